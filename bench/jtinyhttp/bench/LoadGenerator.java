@@ -0,0 +1,366 @@
+package jtinyhttp.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.Headers;
+import jtinyhttp.core.Messages;
+import jtinyhttp.util.BlockingServer;
+import jtinyhttp.util.BufferedHttpConnection;
+import jtinyhttp.util.ByteArrayEntity;
+import jtinyhttp.util.ConnectionPool;
+import jtinyhttp.util.Histogram;
+import jtinyhttp.util.SelectorServer;
+
+/**
+ * Drives a local server over loopback with a configurable load, and reports
+ * throughput and latency percentiles. Each option is given as
+ * <code>key=value</code>, where the options (and their defaults) are:
+ *
+ * <ul>
+ * <li><b>server</b> (selector): either <code>selector</code> or
+ * <code>blocking</code>.</li>
+ * <li><b>client</b> (direct): either <code>direct</code>, where each worker
+ * uses its own connection, or <code>pool</code>, where each request leases a
+ * connection from a shared pool.</li>
+ * <li><b>reuse</b> (true): whether connections are kept alive between
+ * requests, or a new connection is opened for every request.</li>
+ * <li><b>connections</b> (16): the number of concurrent workers.</li>
+ * <li><b>rate</b> (0): the total number of requests per second, or 0 for each
+ * worker to send as fast as it can.</li>
+ * <li><b>seconds</b> (10) and <b>warmup</b> (2): the durations of the
+ * measurement and warmup periods.</li>
+ * <li><b>mix</b> (GET:100): the relative weights of each method.</li>
+ * <li><b>sizes</b> (64): the response payload sizes, one of which is chosen at
+ * random for each request.</li>
+ * <li><b>post</b> (1024): the request payload size for POST requests.</li>
+ * </ul>
+ *
+ * When a rate is given, requests are sent on a fixed schedule and the response
+ * time is measured from when each request should have been sent, rather than
+ * when it actually was. Thus, stalls are reflected in the percentiles instead of
+ * being hidden by requests not sent (i.e. coordinated omission). The service
+ * time (from when the request was actually sent) is reported as well.
+ */
+public class LoadGenerator {
+	private final Map<String, String> options;
+	private final int connections;
+	private final long rate;
+	private final boolean reuse;
+	private final boolean pooled;
+	private final int[] sizes;
+	private final HTTP.Method[] methods;
+	private final byte[] post;
+	private volatile boolean running = true;
+	private volatile boolean measuring;
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+
+	public LoadGenerator(Map<String, String> options) {
+		this.options = options;
+		this.connections = Integer.parseInt(option("connections", "16"));
+		this.rate = Long.parseLong(option("rate", "0"));
+		this.reuse = Boolean.parseBoolean(option("reuse", "true"));
+		this.pooled = option("client", "direct").equals("pool");
+		String[] sizes = option("sizes", "64").split(",");
+		this.sizes = new int[sizes.length];
+		for (int i = 0; i != sizes.length; ++i) {
+			this.sizes[i] = Integer.parseInt(sizes[i].trim());
+		}
+		this.methods = parseMix(option("mix", "GET:100"));
+		this.post = new byte[Integer.parseInt(option("post", "1024"))];
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				System.err.println("usage: LoadGenerator [key=value]...");
+				System.exit(1);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		new LoadGenerator(options).run();
+	}
+
+	public void run() throws Exception {
+		int seconds = Integer.parseInt(option("seconds", "10"));
+		int warmup = Integer.parseInt(option("warmup", "2"));
+		Server server = startServer();
+		ConnectionPool pool = pooled ? new ConnectionPool(connections) : null;
+		List<Worker> workers = new ArrayList<>();
+		for (int i = 0; i != connections; ++i) {
+			Worker worker = new Worker(server.port(), pool);
+			workers.add(worker);
+			worker.start();
+		}
+		Thread.sleep(warmup * 1000L);
+		for (Worker worker : workers) {
+			worker.responseTime.reset();
+			worker.serviceTime.reset();
+		}
+		measuring = true;
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		running = false;
+		for (Worker worker : workers) {
+			worker.join();
+		}
+		if (pool != null) {
+			pool.close();
+		}
+		server.close();
+		//
+		Histogram responseTime = new Histogram();
+		Histogram serviceTime = new Histogram();
+		for (Worker worker : workers) {
+			responseTime.add(worker.responseTime);
+			serviceTime.add(worker.serviceTime);
+		}
+		double secs = elapsed / 1e9;
+		System.out.printf("%s server, %s client, %d connections, reuse=%s, rate=%s%n", option("server", "selector"),
+				pooled ? "pooled" : "direct", connections, reuse, rate == 0 ? "unlimited" : rate + "/s");
+		System.out.printf("requests: %d (%.0f/s), errors: %d, received: %.1f MB/s%n", requests.sum(),
+				requests.sum() / secs, errors.sum(), bytes.sum() / secs / (1024 * 1024));
+		if (rate != 0) {
+			print("response time", responseTime);
+		}
+		print("service time", serviceTime);
+	}
+
+	private static void print(String name, Histogram histogram) {
+		System.out.printf("%s (us): p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f mean=%.1f%n", name,
+				histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(90) / 1e3,
+				histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+				histogram.getMax() / 1e3, histogram.getMean() / 1e3);
+	}
+
+	/**
+	 * A single client, which issues requests one at a time.
+	 */
+	private final class Worker extends Thread {
+		private final int port;
+		private final ConnectionPool pool;
+		private final Histogram responseTime = new Histogram();
+		private final Histogram serviceTime = new Histogram();
+		private final Counter counter = new Counter();
+		private BufferedHttpConnection.Client client;
+
+		public Worker(int port, ConnectionPool pool) {
+			this.port = port;
+			this.pool = pool;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			// Interval between requests for this worker, if rate limited
+			long interval = (rate == 0) ? 0 : (connections * 1_000_000_000L) / rate;
+			long intended = System.nanoTime();
+			while (running) {
+				if (interval != 0) {
+					intended += interval;
+					long delay = intended - System.nanoTime();
+					if (delay > 0) {
+						pause(delay);
+					}
+				}
+				long start = System.nanoTime();
+				try {
+					request();
+				} catch (IOException | RuntimeException e) {
+					errors.increment();
+					closeClient();
+					continue;
+				}
+				long end = System.nanoTime();
+				if (measuring) {
+					requests.increment();
+					serviceTime.record(end - start);
+					if (interval != 0) {
+						responseTime.record(end - intended);
+					}
+				}
+			}
+			closeClient();
+		}
+
+		private void request() throws IOException {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			HTTP.Method method = methods[random.nextInt(methods.length)];
+			String uri = "/bytes/" + sizes[random.nextInt(sizes.length)];
+			HTTP.Request request = (method == HTTP.Method.POST) ? Messages.POST(uri, HTTP.V1_1, new ByteArrayEntity(post))
+					: Messages.GET(uri, HTTP.V1_1);
+			if (pool != null) {
+				ConnectionPool.PooledConnection connection = pool.lease("localhost", port);
+				try {
+					consume(connection.send(request));
+				} finally {
+					connection.close();
+				}
+			} else {
+				if (client == null) {
+					Socket socket = new Socket("localhost", port);
+					socket.setTcpNoDelay(true);
+					client = new BufferedHttpConnection.Client(socket, 4096);
+				}
+				consume(client.send(request));
+				if (!reuse || !client.isReusable()) {
+					closeClient();
+				}
+			}
+		}
+
+		private void consume(HTTP.Response response) throws IOException {
+			if (response.getStatusCode() != HTTP.OK) {
+				throw new IOException("unexpected status " + response.getStatusCode());
+			}
+			counter.count = 0;
+			response.getBody().write(counter);
+			if (measuring) {
+				bytes.add(counter.count);
+			}
+		}
+
+		private void closeClient() {
+			if (client != null) {
+				try {
+					client.close();
+				} catch (IOException e) {
+					// Nothing useful can be done here
+				}
+				client = null;
+			}
+		}
+
+		private void pause(long nanos) {
+			try {
+				Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+			} catch (InterruptedException e) {
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * A stream which discards everything written to it, whilst counting the
+	 * bytes.
+	 */
+	private static final class Counter extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count = count + 1;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			count = count + length;
+		}
+	}
+
+	/**
+	 * Either of the servers, which respond to <code>/bytes/n</code> with a body of
+	 * <code>n</code> bytes.
+	 */
+	private interface Server {
+		int port();
+
+		void close() throws IOException;
+	}
+
+	private Server startServer() throws IOException {
+		Map<Integer, byte[]> bodies = new HashMap<>();
+		for (int size : sizes) {
+			bodies.put(size, new byte[size]);
+		}
+		HTTP.Handler handler = (request, connection) -> {
+			String uri = request.getURI();
+			byte[] body = bodies.get(Integer.parseInt(uri.substring(uri.lastIndexOf('/') + 1)));
+			HTTP.Response response = Messages.OK(HTTP.V1_1, new ByteArrayEntity(body));
+			if (!reuse) {
+				response = response.addHeader(Headers.CONNECTION, "close");
+			}
+			connection.send(response);
+		};
+		InetSocketAddress address = new InetSocketAddress("localhost", 0);
+		if (option("server", "selector").equals("blocking")) {
+			BlockingServer server = new BlockingServer(address, BlockingServer.newVirtualThreadExecutor(), 1024, 4096,
+					handler);
+			server.start();
+			return new Server() {
+				@Override
+				public int port() {
+					return server.getPort();
+				}
+
+				@Override
+				public void close() throws IOException {
+					server.close();
+				}
+			};
+		} else {
+			int threads = Runtime.getRuntime().availableProcessors();
+			SelectorServer server = new SelectorServer(address, threads, 4096, handler);
+			server.start();
+			return new Server() {
+				@Override
+				public int port() {
+					return server.getPort();
+				}
+
+				@Override
+				public void close() throws IOException {
+					server.close();
+				}
+			};
+		}
+	}
+
+	private String option(String key, String defaultValue) {
+		return options.getOrDefault(key, defaultValue);
+	}
+
+	/**
+	 * Parse a request mix (e.g. <code>GET:90,POST:10</code>) into a table of 100
+	 * methods, from which a method can be chosen with the given weights.
+	 *
+	 * @param mix
+	 * @return
+	 */
+	private static HTTP.Method[] parseMix(String mix) {
+		String[] parts = mix.split(",");
+		int[] weights = new int[parts.length];
+		HTTP.Method[] kinds = new HTTP.Method[parts.length];
+		int total = 0;
+		for (int i = 0; i != parts.length; ++i) {
+			String[] pair = parts[i].split(":");
+			kinds[i] = HTTP.Method.valueOf(pair[0].trim());
+			weights[i] = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+			total += weights[i];
+		}
+		HTTP.Method[] table = new HTTP.Method[100];
+		int index = 0;
+		for (int i = 0; i != parts.length; ++i) {
+			int n = (i == parts.length - 1) ? 100 - index : (weights[i] * 100) / total;
+			for (int j = 0; j != n; ++j) {
+				table[index++] = kinds[i];
+			}
+		}
+		return table;
+	}
+}
@@ -0,0 +1,89 @@
+package jtinyhttp.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.Messages;
+import jtinyhttp.util.BlockingServer;
+import jtinyhttp.util.BufferedHttpConnection;
+import jtinyhttp.util.ByteArrayEntity;
+
+/**
+ * Compares <code>BlockingServer</code> running connections on virtual threads
+ * against the same server running them on a fixed pool of platform threads. A
+ * number of idle keep-alive connections are opened first, and then a number of
+ * active clients issue requests as fast as they can. With a fixed pool, each
+ * idle connection pins a platform thread and active clients queue up behind
+ * them. The arguments are (in order): the number of idle connections, the
+ * number of active clients, the number of platform threads and the duration in
+ * seconds.
+ */
+public class ServerBenchmark {
+	private static final byte[] BODY = "Hello World".getBytes(StandardCharsets.US_ASCII);
+
+	public static void main(String[] args) throws Exception {
+		int idle = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int active = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		//
+		run("virtual", BlockingServer.newVirtualThreadExecutor(), idle, active, seconds);
+		run("platform(" + threads + ")", Executors.newFixedThreadPool(threads), idle, active, seconds);
+	}
+
+	private static void run(String name, ExecutorService executor, int idle, int active, int seconds)
+			throws Exception {
+		BlockingServer server = new BlockingServer(new InetSocketAddress("localhost", 0), executor, 1024, 4096,
+				(request, connection) -> {
+					connection.send(Messages.OK(HTTP.V1_1, new ByteArrayEntity(BODY)));
+				});
+		server.start();
+		int port = server.getPort();
+		// Open idle connections, each of which has made one request
+		List<BufferedHttpConnection.Client> idlers = new ArrayList<>();
+		for (int i = 0; i != idle; ++i) {
+			BufferedHttpConnection.Client client = new BufferedHttpConnection.Client(new Socket("localhost", port), 1024);
+			client.pipeline().add(Messages.GET("/", HTTP.V1_1));
+			client.pipeline().flush();
+			idlers.add(client);
+		}
+		// Drive active clients for the given duration
+		AtomicLong requests = new AtomicLong();
+		long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+		CountDownLatch done = new CountDownLatch(active);
+		for (int i = 0; i != active; ++i) {
+			Thread thread = new Thread(() -> {
+				try (Socket socket = new Socket("localhost", port)) {
+					socket.setSoTimeout(seconds * 1000);
+					BufferedHttpConnection.Client client = new BufferedHttpConnection.Client(socket, 1024);
+					while (System.nanoTime() < deadline) {
+						client.send(Messages.GET("/", HTTP.V1_1));
+						requests.incrementAndGet();
+					}
+				} catch (IOException e) {
+					// Starved of a thread for the whole run
+				} finally {
+					done.countDown();
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		System.out.printf("%-16s idle=%d active=%d: %.0f req/s%n", name, idle, active,
+				requests.get() / (double) seconds);
+		for (BufferedHttpConnection.Client client : idlers) {
+			client.close();
+		}
+		server.close();
+	}
+}
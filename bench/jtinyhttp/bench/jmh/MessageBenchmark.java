@@ -0,0 +1,141 @@
+package jtinyhttp.bench.jmh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.Headers;
+import jtinyhttp.core.Messages;
+import jtinyhttp.util.ArbitraryHeader;
+import jtinyhttp.util.MessageBuilder;
+
+/**
+ * Micro benchmarks for constructing, querying and serialising messages. These
+ * are intended to be run with the GC profiler (as the <code>jmh</code> target
+ * does), such that the bytes allocated per operation are reported alongside
+ * the time taken.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	/**
+	 * Number of headers added to each message.
+	 */
+	@Param({ "1", "4", "16" })
+	public int headers;
+
+	private String[] values;
+	private HTTP.Request chained;
+	private HTTP.Request built;
+	private byte[] line;
+	private OutputStream sink;
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		values = new String[headers];
+		for (int i = 0; i != headers; ++i) {
+			values[i] = "value-" + i;
+		}
+		chained = chain();
+		built = build();
+		line = "Content-Type: text/html; charset=utf-8".getBytes(StandardCharsets.US_ASCII);
+		sink = new OutputStream() {
+			@Override
+			public void write(int b) {
+				blackhole.consume(b);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) {
+				blackhole.consume(bytes);
+			}
+		};
+	}
+
+	@Benchmark
+	public HTTP.Request constructRequest() {
+		return Messages.GET("/index.html", HTTP.V1_1);
+	}
+
+	@Benchmark
+	public HTTP.Request addHeaderChain() {
+		return chain();
+	}
+
+	@Benchmark
+	public HTTP.Request messageBuilder() {
+		return build();
+	}
+
+	@Benchmark
+	public void getHeaderByIndex(Blackhole blackhole) {
+		for (int i = 0; i != chained.size(); ++i) {
+			blackhole.consume(chained.getHeader(i));
+		}
+	}
+
+	@Benchmark
+	public HTTP.Header getHeaderByNameChained() {
+		return chained.getHeader(Headers.HOST);
+	}
+
+	@Benchmark
+	public HTTP.Header getHeaderByNameBuilt() {
+		return built.getHeader(Headers.HOST);
+	}
+
+	@Benchmark
+	public String parseArbitraryHeader() {
+		return new ArbitraryHeader(line, 0, line.length).getValue();
+	}
+
+	@Benchmark
+	public void writeChained() throws IOException {
+		chained.writeln(sink);
+	}
+
+	@Benchmark
+	public void writeBuilt() throws IOException {
+		built.writeln(sink);
+	}
+
+	@Benchmark
+	public String toStringChained() {
+		return chained.toString();
+	}
+
+	private HTTP.Request chain() {
+		HTTP.Request request = Messages.GET("/index.html", HTTP.V1_1);
+		for (int i = 0; i < values.length - 1; ++i) {
+			request = request.addHeader(Headers.ACCEPT_ENCODING, values[i]);
+		}
+		return request.addHeader(Headers.HOST, "localhost");
+	}
+
+	private HTTP.Request build() {
+		MessageBuilder<HTTP.Request> builder = new MessageBuilder.Request(HTTP.Method.GET, "/index.html", HTTP.V1_1);
+		for (int i = 0; i < values.length - 1; ++i) {
+			builder.header(Headers.ACCEPT_ENCODING, values[i]);
+		}
+		return builder.header(Headers.HOST, "localhost").build(null);
+	}
+}
@@ -0,0 +1,55 @@
+package jtinyhttp.bench.jmh;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jtinyhttp.core.Headers;
+import jtinyhttp.util.HttpParser;
+
+/**
+ * Micro benchmarks for parsing a typical request head in place.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+	private final HttpParser parser = new HttpParser();
+	private byte[] request;
+
+	@Setup
+	public void setup() {
+		request = ("GET /api/v1/items?page=2 HTTP/1.1\r\n" + "Host: api.example.com\r\n"
+				+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n" + "Accept: application/json\r\n"
+				+ "Accept-Encoding: gzip, deflate\r\n" + "Connection: keep-alive\r\n"
+				+ "Cookie: session=0123456789abcdef\r\n" + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Benchmark
+	public int parseHead() throws ProtocolException {
+		parser.reset();
+		parser.parseHead(request, request.length);
+		return parser.getNumLines();
+	}
+
+	@Benchmark
+	public int parseHeadAndFindHeader() throws ProtocolException {
+		parser.reset();
+		parser.parseHead(request, request.length);
+		return parser.findHeader(request, Headers.COOKIE);
+	}
+}
@@ -0,0 +1,71 @@
+package jtinyhttp.bench.jmh;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jtinyhttp.core.HTTP.Method;
+import jtinyhttp.util.Router;
+
+/**
+ * Micro benchmarks for matching request paths against a number of routes,
+ * which should take much the same time irrespective of how many there are.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+	@Param({ "10", "1000", "10000" })
+	private int routes;
+
+	private final Router router = new Router();
+	private Router.Match match;
+	private byte[] staticPath;
+	private byte[] parameterPath;
+	private byte[] wildcardPath;
+
+	@Setup
+	public void setup() {
+		Router.Target target = (request, match, connection) -> {
+		};
+		router.add(Method.GET, "/users/me", target);
+		router.add(Method.GET, "/users/{id}/posts/{post}", target);
+		router.add(Method.GET, "/static/*", target);
+		for (int i = 0; i != routes; ++i) {
+			router.add(Method.GET, "/api/v1/resource" + i + "/{id}", target);
+		}
+		match = router.newMatch();
+		staticPath = "/users/me".getBytes(StandardCharsets.US_ASCII);
+		parameterPath = ("/api/v1/resource" + (routes / 2) + "/abc").getBytes(StandardCharsets.US_ASCII);
+		wildcardPath = "/static/css/site.css".getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Benchmark
+	public boolean matchStatic() {
+		return router.match(Method.GET, staticPath, 0, staticPath.length, match);
+	}
+
+	@Benchmark
+	public boolean matchParameter() {
+		return router.match(Method.GET, parameterPath, 0, parameterPath.length, match);
+	}
+
+	@Benchmark
+	public boolean matchWildcard() {
+		return router.match(Method.GET, wildcardPath, 0, wildcardPath.length, match);
+	}
+}
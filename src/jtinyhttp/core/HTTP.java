@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.List;
 
 import jtinyhttp.util.AbstractRequest;
 
@@ -42,6 +45,54 @@ public class HTTP {
 		 * @return
 		 */
 		public Response send(Request message) throws IOException;
+
+		/**
+		 * Create a pipeline over this connection, through which several requests can
+		 * be sent without waiting for the response to each.
+		 *
+		 * @return
+		 */
+		public Pipeline pipeline();
+	}
+
+	/**
+	 * Represents a sequence of requests which are written back-to-back to the
+	 * server, whose responses are then received in the same order. Requests are
+	 * queued until the pipeline is flushed, at which point they are written
+	 * together.
+	 */
+	public interface Pipeline {
+		/**
+		 * Queue a request to be sent to the server.
+		 *
+		 * @param message
+		 * @throws IOException
+		 */
+		public void add(Request message) throws IOException;
+
+		/**
+		 * Write all queued requests to the server.
+		 *
+		 * @throws IOException
+		 */
+		public void flush() throws IOException;
+
+		/**
+		 * Receive the response to the earliest request which has not yet received
+		 * one, flushing any queued requests first.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		public Response next() throws IOException;
+
+		/**
+		 * Get the number of requests sent or queued whose responses have not yet been
+		 * received.
+		 *
+		 * @return
+		 */
+		public int pending();
 	}
 
 	/**
@@ -61,6 +112,22 @@ public class HTTP {
 		public void send(Response response) throws IOException;
 	}
 
+	/**
+	 * Responsible for handling requests received by a server. The request remains
+	 * valid until a response has been sent for it, which may happen either before
+	 * or after this method returns, and from any thread.
+	 */
+	public interface Handler {
+		/**
+		 * Handle a given request by sending a response over the given connection.
+		 *
+		 * @param request
+		 * @param connection
+		 * @throws IOException
+		 */
+		public void handle(Request request, ServerConnection connection) throws IOException;
+	}
+
 	/**
 	 * Represents a generic HTTP header.
 	 *
@@ -98,6 +165,27 @@ public class HTTP {
 		 * @throws IOException
 		 */
 		public void write(OutputStream out) throws IOException;
+
+		/**
+		 * Get the number of bytes in this entity, or -1 if this is not known in
+		 * advance.
+		 *
+		 * @return
+		 */
+		public default long getLength() {
+			return -1;
+		}
+
+		/**
+		 * Get a view of this entity's contents as a buffer, or <code>null</code>
+		 * if it can only be written as a stream. The buffer is not copied and,
+		 * hence, should not be modified.
+		 *
+		 * @return
+		 */
+		public default ByteBuffer toByteBuffer() {
+			return null;
+		}
 	}
 
 	/**
@@ -131,6 +219,47 @@ public class HTTP {
 		 */
 		public Header getHeader(int i);
 
+		/**
+		 * Get the first header with a given name (ignoring case), or
+		 * <code>null</code> if there is none. Any trailing ": " on the name is
+		 * ignored, such that the constants in <code>Headers</code> can be used
+		 * directly.
+		 *
+		 * @param name
+		 * @return
+		 */
+		public Header getHeader(byte[] name);
+
+		/**
+		 * Get the value of the first header with a given name (ignoring case), or
+		 * <code>null</code> if there is none.
+		 *
+		 * @param name
+		 * @return
+		 */
+		public String getFirstValue(byte[] name);
+
+		/**
+		 * Get all headers with a given name (ignoring case), in the order they
+		 * appear in the message.
+		 *
+		 * @param name
+		 * @return
+		 */
+		public List<Header> getAll(byte[] name);
+
+		/**
+		 * Get the value of the first header with a given name (ignoring case) as a
+		 * non-negative decimal number (e.g. for <code>Content-Length</code>), or a
+		 * default value if there is no such header. This does not allocate.
+		 *
+		 * @param name
+		 * @param defaultValue
+		 * @return
+		 * @throws NumberFormatException if the value is not a valid number.
+		 */
+		public int getIntValue(byte[] name, int defaultValue);
+
 		/**
 		 * Add a new header to this message.
 		 *
@@ -162,6 +291,27 @@ public class HTTP {
 		 * @param out
 		 */
 		public void writeln(OutputStream stream) throws IOException;
+
+		/**
+		 * Append views of the message start line and headers to a given list,
+		 * whilst ignoring the trailing empty line. The underlying bytes are not
+		 * copied.
+		 *
+		 * @param buffers
+		 */
+		public void toByteBuffers(List<ByteBuffer> buffers);
+
+		/**
+		 * Write the complete message (i.e. start line, headers, trailing empty line
+		 * and body) to a given blocking channel. Where the body can be viewed as a
+		 * buffer, this is done with a single vectored write (unless the channel
+		 * accepts only part of it).
+		 *
+		 * @param channel
+		 * @return The number of bytes written.
+		 * @throws IOException
+		 */
+		public long write(GatheringByteChannel channel) throws IOException;
 	}
 
 	public enum Method {
@@ -176,6 +326,16 @@ public class HTTP {
 	 */
 	public interface Request extends Message {
 		Method getMethod();
+
+		@Override
+		Request addHeader(byte[] key, String value);
+
+		/**
+		 * Get the request target (e.g. path and query) from the request line.
+		 *
+		 * @return
+		 */
+		String getURI();
 	}
 
 	/**
@@ -192,6 +352,9 @@ public class HTTP {
 		 * @return
 		 */
 		int getStatusCode();
+
+		@Override
+		Response addHeader(byte[] key, String value);
 	}
 
 	// ===============================================================
@@ -202,6 +365,8 @@ public class HTTP {
 
 	public static final String V1_1 = "HTTP/1.1";
 
+	public static final String V2_0 = "HTTP/2.0";
+
 	// ===============================================================
 	// 1XX informational
 	// ===============================================================
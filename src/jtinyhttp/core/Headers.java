@@ -7,21 +7,290 @@ import jtinyhttp.util.ArbitraryHeader;
 
 public class Headers {
 
-	public static final byte[] HOST = "Host: ".getBytes(StandardCharsets.US_ASCII);
-	public static final byte[] COOKIE = "Cookie: ".getBytes(StandardCharsets.US_ASCII);
+	// ====================================================
+	// General Headers
+	// ====================================================
+
+	public static final byte[] CACHE_CONTROL = encode("Cache-Control: ");
+	public static final byte[] CONNECTION = encode("Connection: ");
+	public static final byte[] DATE = encode("Date: ");
+	public static final byte[] KEEP_ALIVE = encode("Keep-Alive: ");
+	public static final byte[] PRAGMA = encode("Pragma: ");
+	public static final byte[] TRAILER = encode("Trailer: ");
+	public static final byte[] TRANSFER_ENCODING = encode("Transfer-Encoding: ");
+	public static final byte[] UPGRADE = encode("Upgrade: ");
+	public static final byte[] VIA = encode("Via: ");
+
+	// ====================================================
+	// Request Headers
+	// ====================================================
+
+	public static final byte[] ACCEPT = encode("Accept: ");
+	public static final byte[] ACCEPT_CHARSET = encode("Accept-Charset: ");
+	public static final byte[] ACCEPT_ENCODING = encode("Accept-Encoding: ");
+	public static final byte[] ACCEPT_LANGUAGE = encode("Accept-Language: ");
+	public static final byte[] AUTHORIZATION = encode("Authorization: ");
+	public static final byte[] COOKIE = encode("Cookie: ");
+	public static final byte[] EXPECT = encode("Expect: ");
+	public static final byte[] FORWARDED = encode("Forwarded: ");
+	public static final byte[] HOST = encode("Host: ");
+	public static final byte[] HTTP2_SETTINGS = encode("HTTP2-Settings: ");
+	public static final byte[] IF_MATCH = encode("If-Match: ");
+	public static final byte[] IF_MODIFIED_SINCE = encode("If-Modified-Since: ");
+	public static final byte[] IF_NONE_MATCH = encode("If-None-Match: ");
+	public static final byte[] IF_RANGE = encode("If-Range: ");
+	public static final byte[] IF_UNMODIFIED_SINCE = encode("If-Unmodified-Since: ");
+	public static final byte[] ORIGIN = encode("Origin: ");
+	public static final byte[] PROXY_AUTHORIZATION = encode("Proxy-Authorization: ");
+	public static final byte[] RANGE = encode("Range: ");
+	public static final byte[] REFERER = encode("Referer: ");
+	public static final byte[] TE = encode("TE: ");
+	public static final byte[] USER_AGENT = encode("User-Agent: ");
+	public static final byte[] X_FORWARDED_FOR = encode("X-Forwarded-For: ");
+
+	// ====================================================
+	// Response Headers
+	// ====================================================
+
+	public static final byte[] ACCEPT_RANGES = encode("Accept-Ranges: ");
+	public static final byte[] AGE = encode("Age: ");
+	public static final byte[] ALLOW = encode("Allow: ");
+	public static final byte[] ETAG = encode("ETag: ");
+	public static final byte[] LOCATION = encode("Location: ");
+	public static final byte[] PROXY_AUTHENTICATE = encode("Proxy-Authenticate: ");
+	public static final byte[] RETRY_AFTER = encode("Retry-After: ");
+	public static final byte[] SERVER = encode("Server: ");
+	public static final byte[] SET_COOKIE = encode("Set-Cookie: ");
+	public static final byte[] STRICT_TRANSPORT_SECURITY = encode("Strict-Transport-Security: ");
+	public static final byte[] VARY = encode("Vary: ");
+	public static final byte[] WWW_AUTHENTICATE = encode("WWW-Authenticate: ");
 
 	// ====================================================
 	// Entity Headers
 	// ====================================================
 
+	public static final byte[] CONTENT_DISPOSITION = encode("Content-Disposition: ");
+	public static final byte[] CONTENT_ENCODING = encode("Content-Encoding: ");
+	public static final byte[] CONTENT_LANGUAGE = encode("Content-Language: ");
+	public static final byte[] CONTENT_LENGTH = encode("Content-Length: ");
+	public static final byte[] CONTENT_LOCATION = encode("Content-Location: ");
+	public static final byte[] CONTENT_RANGE = encode("Content-Range: ");
+	public static final byte[] CONTENT_TYPE = encode("Content-Type: ");
+	public static final byte[] EXPIRES = encode("Expires: ");
+	public static final byte[] LAST_MODIFIED = encode("Last-Modified: ");
+
 	/**
-	 * Indicate the size of the entity body in decimal number of OCTETs.
+	 * Indicate the size of the entity body in decimal number of OCTETs. The
+	 * header is written straight into a single array from the pre-encoded name,
+	 * without going through a string.
 	 *
 	 * @param value
 	 * @return
 	 */
 	public static Header ContentLength(int value) {
-		String octets = Integer.toString(value);
-		return new ArbitraryHeader("Content-Length", octets);
+		final int nameLength = CONTENT_LENGTH.length;
+		byte[] bytes = new byte[nameLength + decimalLength(value)];
+		put(CONTENT_LENGTH, bytes, 0);
+		int end = putDecimal(value, bytes, nameLength);
+		// Name excludes the trailing ": "
+		return new ArbitraryHeader(bytes, 0, nameLength - 2, nameLength, end - nameLength);
+	}
+
+	// ====================================================
+	// Status Lines
+	// ====================================================
+
+	/**
+	 * Get the standard reason phrase for a given status code, or
+	 * <code>null</code> if it is not one of the status codes defined in
+	 * <code>HTTP</code>.
+	 *
+	 * @param status
+	 * @return
+	 */
+	public static String reasonPhrase(int status) {
+		return (status >= 0 && status < REASONS.length) ? REASONS[status] : null;
+	}
+
+	/**
+	 * Get the pre-encoded status line (e.g. <code>HTTP/1.1 200 OK\r\n</code>) for
+	 * a given status code, or <code>null</code> if it is not one of the status
+	 * codes defined in <code>HTTP</code>. The returned array is shared and must
+	 * not be modified.
+	 *
+	 * @param status
+	 * @return
+	 */
+	public static byte[] statusLine(int status) {
+		return (status >= 0 && status < STATUS_LINES.length) ? STATUS_LINES[status] : null;
+	}
+
+	// ====================================================
+	// Encoding
+	// ====================================================
+
+	/**
+	 * Copy a pre-encoded value (e.g. a header name) into a buffer at a given
+	 * index.
+	 *
+	 * @param bytes
+	 * @param dest
+	 * @param index
+	 * @return The index following the last byte written.
+	 */
+	public static int put(byte[] bytes, byte[] dest, int index) {
+		System.arraycopy(bytes, 0, dest, index, bytes.length);
+		return index + bytes.length;
+	}
+
+	/**
+	 * Write the pre-encoded status line for a given status code into a buffer at
+	 * a given index.
+	 *
+	 * @param status
+	 * @param dest
+	 * @param index
+	 * @return The index following the last byte written.
+	 */
+	public static int putStatusLine(int status, byte[] dest, int index) {
+		byte[] line = statusLine(status);
+		if (line == null) {
+			throw new IllegalArgumentException("unknown status code " + status);
+		}
+		return put(line, dest, index);
+	}
+
+	/**
+	 * Write a non-negative number in decimal into a buffer at a given index,
+	 * without allocating.
+	 *
+	 * @param value
+	 * @param dest
+	 * @param index
+	 * @return The index following the last digit written.
+	 */
+	public static int putDecimal(long value, byte[] dest, int index) {
+		if (value < 0) {
+			throw new IllegalArgumentException("negative value");
+		}
+		int end = index + decimalLength(value);
+		int i = end;
+		do {
+			dest[--i] = (byte) ('0' + (value % 10));
+			value = value / 10;
+		} while (value != 0);
+		return end;
+	}
+
+	/**
+	 * Determine the number of digits needed to write a non-negative number in
+	 * decimal.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static int decimalLength(long value) {
+		int length = 1;
+		while (value >= 10) {
+			value = value / 10;
+			length = length + 1;
+		}
+		return length;
+	}
+
+	/**
+	 * Write a complete <code>Content-Length</code> header line (including the
+	 * line terminator) into a buffer at a given index, without allocating.
+	 *
+	 * @param length
+	 * @param dest
+	 * @param index
+	 * @return The index following the last byte written.
+	 */
+	public static int putContentLength(long length, byte[] dest, int index) {
+		index = put(CONTENT_LENGTH, dest, index);
+		index = putDecimal(length, dest, index);
+		dest[index++] = '\r';
+		dest[index++] = '\n';
+		return index;
+	}
+
+	private static final String[] REASONS = new String[600];
+
+	private static final byte[][] STATUS_LINES = new byte[600][];
+
+	static {
+		reason(HTTP.CONTINUE, "Continue");
+		reason(HTTP.SWITCHING_PROTOCOLS, "Switching Protocols");
+		reason(HTTP.PROCESSING, "Processing");
+		reason(HTTP.EARLY_HINTS, "Early Hints");
+		reason(HTTP.OK, "OK");
+		reason(HTTP.CREATED, "Created");
+		reason(HTTP.ACCEPTED, "Accepted");
+		reason(HTTP.NON_AUTHORATIVE_INFORMATION, "Non-Authoritative Information");
+		reason(HTTP.NO_CONTENT, "No Content");
+		reason(HTTP.RESET_CONTENT, "Reset Content");
+		reason(HTTP.PARTIAL_CONTENT, "Partial Content");
+		reason(HTTP.MULTI_STATUS, "Multi-Status");
+		reason(HTTP.ALREADY_REPORTED, "Already Reported");
+		reason(HTTP.IM_USED, "IM Used");
+		reason(HTTP.MULTIPLE_CHOICES, "Multiple Choices");
+		reason(HTTP.MOVED_PERMANTENTLY, "Moved Permanently");
+		reason(HTTP.FOUND, "Found");
+		reason(HTTP.SEE_OTHER, "See Other");
+		reason(HTTP.NOT_MODIFIED, "Not Modified");
+		reason(HTTP.USE_PROXY, "Use Proxy");
+		reason(HTTP.SWITCH_PROXY, "Switch Proxy");
+		reason(HTTP.TEMPORARY_REDIRECT, "Temporary Redirect");
+		reason(HTTP.PERMANTENT_REDIRECT, "Permanent Redirect");
+		reason(HTTP.BAD_REQUEST, "Bad Request");
+		reason(HTTP.UNAUTHORISED, "Unauthorized");
+		reason(HTTP.PAYMENT_REQUIRED, "Payment Required");
+		reason(HTTP.FORBIDDEN, "Forbidden");
+		reason(HTTP.NOT_FOUND, "Not Found");
+		reason(HTTP.METHOD_NOT_ALLOWED, "Method Not Allowed");
+		reason(HTTP.NOT_ACCEPTABLE, "Not Acceptable");
+		reason(HTTP.PROXY_AUTHENTICATION_REQUIRED, "Proxy Authentication Required");
+		reason(HTTP.REQUEST_TIMEOUT, "Request Timeout");
+		reason(HTTP.CONFLICT, "Conflict");
+		reason(HTTP.GONE, "Gone");
+		reason(HTTP.LENGTH_REQUIRED, "Length Required");
+		reason(HTTP.PRECONDITION_FAILED, "Precondition Failed");
+		reason(HTTP.PAYLOAD_TOO_LARGE, "Payload Too Large");
+		reason(HTTP.URI_TOO_LONG, "URI Too Long");
+		reason(HTTP.UNSUPPORTED_MEDIA_TYPE, "Unsupported Media Type");
+		reason(HTTP.RANGE_NOT_SATISFIABLE, "Range Not Satisfiable");
+		reason(HTTP.EXPECTATION_FAILED, "Expectation Failed");
+		reason(HTTP.IM_A_TEAPOT, "I'm a teapot");
+		reason(HTTP.MISDIRECTED_REQUEST, "Misdirected Request");
+		reason(HTTP.UNPROCESSABLE_ENTITY, "Unprocessable Entity");
+		reason(HTTP.LOCKED, "Locked");
+		reason(HTTP.FAILED_DEPENDENCY, "Failed Dependency");
+		reason(HTTP.TOO_EARLY, "Too Early");
+		reason(HTTP.UPGRADE_REQUIRED, "Upgrade Required");
+		reason(HTTP.PRECONDITION_REQUIRED, "Precondition Required");
+		reason(HTTP.TOO_MANY_REQUESTS, "Too Many Requests");
+		reason(HTTP.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request Header Fields Too Large");
+		reason(HTTP.UNAVAILABLE_FOR_LEGAL_REASONS, "Unavailable For Legal Reasons");
+		reason(HTTP.INTERNAL_SERVER_ERROR, "Internal Server Error");
+		reason(HTTP.NOT_IMPLEMENTED, "Not Implemented");
+		reason(HTTP.BAD_GATEWAY, "Bad Gateway");
+		reason(HTTP.SERVICE_UNAVAILABLE, "Service Unavailable");
+		reason(HTTP.GATEWAY_TIMEOUT, "Gateway Timeout");
+		reason(HTTP.HTTP_VERSION_NOT_SUPPORTED, "HTTP Version Not Supported");
+		reason(HTTP.VARIANT_ALSO_NEGOTIATES, "Variant Also Negotiates");
+		reason(HTTP.INSUFFICIENT_STORAGE, "Insufficient Storage");
+		reason(HTTP.LOOP_DETECTED, "Loop Detected");
+		reason(HTTP.NOT_EXTENDED, "Not Extended");
+		reason(HTTP.NETWORK_AUTHENTICATION_REQUIRED, "Network Authentication Required");
+	}
+
+	private static void reason(int status, String reason) {
+		REASONS[status] = reason;
+		STATUS_LINES[status] = encode(HTTP.V1_1 + " " + status + " " + reason + "\r\n");
+	}
+
+	private static byte[] encode(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
 	}
 }
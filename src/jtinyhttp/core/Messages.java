@@ -2,7 +2,7 @@ package jtinyhttp.core;
 
 import jtinyhttp.core.HTTP.Entity;
 import jtinyhttp.core.HTTP.Method;
-import jtinyhttp.util.AbstractRequest;
+import jtinyhttp.util.MessageBuilder;
 
 public class Messages {
 	/**
@@ -13,31 +13,52 @@ public class Messages {
 	 *
 	 */
 	public static HTTP.Request GET(String uri, String version) {
-		return new AbstractRequest(Method.GET, uri, version, null) {
-		};
+		return new MessageBuilder.Request(Method.GET, uri, version).build(null);
 	}
 
 	/**
 	 * Represents a simple GET request which can be constructed and then sent to the
-	 * server.
+	 * server. A <code>Content-Length</code> header is added if the length of the
+	 * body is known, or <code>Transfer-Encoding</code> if it is chunked.
 	 *
 	 * @author David J. Pearce
 	 *
 	 */
 	public static HTTP.Request GET(String uri, String version, Entity body) {
-		return new AbstractRequest(Method.GET, uri, version, body) {
-		};
+		return new MessageBuilder.Request(Method.GET, uri, version).build(body);
 	}
 
 	/**
 	 * Represents a simple POST request which can be constructed and then sent to
-	 * the server.
+	 * the server. A <code>Content-Length</code> header is added if the length of
+	 * the body is known, or <code>Transfer-Encoding</code> if it is chunked.
 	 *
 	 * @author David J. Pearce
 	 *
 	 */
 	public static HTTP.Request POST(String uri, String version, Entity body) {
-		return new AbstractRequest(Method.GET, uri, version, body) {
-		};
+		return new MessageBuilder.Request(Method.POST, uri, version).build(body);
+	}
+
+	/**
+	 * Represents a simple response which can be constructed and then sent to the
+	 * client. A <code>Content-Length</code> header is added if the length of the
+	 * body is known, or <code>Transfer-Encoding</code> if it is chunked.
+	 */
+	public static HTTP.Response Response(String version, int status, String reason, Entity body) {
+		return new MessageBuilder.Response(version, status, reason).build(body);
+	}
+
+	/**
+	 * Represents a successful response which can be constructed and then sent to
+	 * the client. A <code>Content-Length</code> header is added if the length of
+	 * the body is known, or <code>Transfer-Encoding</code> if it is chunked.
+	 */
+	public static HTTP.Response OK(String version, Entity body) {
+		if (version.equals(HTTP.V1_1)) {
+			// Status line is pre-encoded
+			return new MessageBuilder.Response(HTTP.OK).build(body);
+		}
+		return new MessageBuilder.Response(version, HTTP.OK, "OK").build(body);
 	}
 }
@@ -1,10 +1,15 @@
 package jtinyhttp.util;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jtinyhttp.core.HTTP;
 import jtinyhttp.core.HTTP.Entity;
@@ -31,21 +36,84 @@ public abstract class AbstractMessage implements HTTP.Message {
 	 * The message body (which may be <code>null</code>.
 	 */
 	protected final Entity body;
+	/**
+	 * Index of the colon on each header line, if known in advance (or
+	 * <code>null</code>).
+	 */
+	private final int[] keyEnds;
+	/**
+	 * Hash index of headers by name, which is constructed on demand.
+	 */
+	private Index index;
+	/**
+	 * Extent of the header buffer when shared with messages extended from this
+	 * one, or <code>null</code> if it is not shared (see
+	 * <code>MessageBuilder</code>).
+	 */
+	AtomicInteger extent;
 
 	public AbstractMessage(byte[] header, Entity body) {
-		this.header = header;
-		this.numLines = countLines(header);
-		this.lines = new int[numLines];
-		//
+		int[] lines = new int[8];
+		int count = 0;
 		int index = 0;
-		for(int i=0;i!=lines.length;++i) {
-			index = skipLine(index,header);
-			lines[i] = index;
+		final ByteBuffer words = HeaderScanner.words(header);
+		// Lines are found in a single pass, stopping at an empty line
+		while (index < header.length) {
+			final int end = HeaderScanner.lineEnd(words, header, index, header.length);
+			if (end < 0) {
+				throw new IllegalArgumentException("invalid header: missing line end");
+			} else if (end == index + 2) {
+				break;
+			} else if (count == lines.length) {
+				lines = Arrays.copyOf(lines, count * 2);
+			}
+			lines[count++] = end;
+			index = end;
 		}
+		this.header = header;
+		this.lines = (count == lines.length) ? lines : Arrays.copyOf(lines, count);
+		this.keyEnds = null;
+		this.numLines = count;
 		this.numBytes = index;
 		this.body = body;
 	}
 
+	/**
+	 * Construct a message over a header which has already been parsed. The given
+	 * lines are end indices into the header (as for <code>lines</code>) and are
+	 * used as is.
+	 *
+	 * @param header
+	 * @param lines
+	 * @param numLines
+	 * @param body
+	 */
+	public AbstractMessage(byte[] header, int[] lines, int numLines, Entity body) {
+		this(header, lines, null, numLines, body);
+	}
+
+	/**
+	 * Construct a message over a header which has already been parsed, where
+	 * the colon ending the name of each header line is also known (e.g. from
+	 * <code>HttpParser.getKeyEnds()</code>). This saves scanning for them again
+	 * when headers are looked up by name.
+	 *
+	 * @param header
+	 * @param lines
+	 * @param keyEnds  Index of the colon on each header line (excluding the start
+	 *                 line), or -1 where there is none. May be <code>null</code>.
+	 * @param numLines
+	 * @param body
+	 */
+	public AbstractMessage(byte[] header, int[] lines, int[] keyEnds, int numLines, Entity body) {
+		this.header = header;
+		this.lines = lines;
+		this.keyEnds = keyEnds;
+		this.numLines = numLines;
+		this.numBytes = lines[numLines - 1];
+		this.body = body;
+	}
+
 	@Override
 	public int size() {
 		return numLines - 1;
@@ -56,6 +124,42 @@ public abstract class AbstractMessage implements HTTP.Message {
 		return new ArbitraryHeader(header, lines[i], lines[i + 1] - 2);
 	}
 
+	@Override
+	public Header getHeader(byte[] name) {
+		Index idx = index();
+		int i = idx.find(header, lines, name, nameLength(name), 0);
+		return (i < 0) ? null : idx.toHeader(header, lines, i);
+	}
+
+	@Override
+	public String getFirstValue(byte[] name) {
+		Header h = getHeader(name);
+		return (h == null) ? null : h.getValue();
+	}
+
+	@Override
+	public List<Header> getAll(byte[] name) {
+		Index idx = index();
+		int length = nameLength(name);
+		ArrayList<Header> headers = new ArrayList<>();
+		int i = idx.find(header, lines, name, length, 0);
+		while (i >= 0) {
+			headers.add(idx.toHeader(header, lines, i));
+			i = idx.find(header, lines, name, length, i + 1);
+		}
+		return headers;
+	}
+
+	@Override
+	public int getIntValue(byte[] name, int defaultValue) {
+		Index idx = index();
+		int i = idx.find(header, lines, name, nameLength(name), 0);
+		if (i < 0) {
+			return defaultValue;
+		}
+		return parseInt(header, valueStart(header, idx.keyEnds[i], lines[i + 1] - 2), lines[i + 1] - 2);
+	}
+
 	@Override
 	public abstract HTTP.Message addHeader(byte[] key, String value);
 
@@ -71,9 +175,24 @@ public abstract class AbstractMessage implements HTTP.Message {
 
 	@Override
 	public void writeln(OutputStream out) throws IOException {
-		this.write(out);
-		out.write(13); // CR
-		out.write(10); // LF
+		if (header.length >= numBytes + 2 && header[numBytes] == CR && header[numBytes + 1] == LF) {
+			// Empty line already follows, so write everything at once
+			out.write(header, 0, numBytes + 2);
+		} else {
+			this.write(out);
+			out.write(13); // CR
+			out.write(10); // LF
+		}
+	}
+
+	@Override
+	public void toByteBuffers(List<ByteBuffer> buffers) {
+		buffers.add(ByteBuffer.wrap(header, 0, numBytes));
+	}
+
+	@Override
+	public long write(GatheringByteChannel channel) throws IOException {
+		return write(this, channel);
 	}
 
 	@Override
@@ -81,32 +200,296 @@ public abstract class AbstractMessage implements HTTP.Message {
 		return toHttpString(header, numBytes);
 	}
 
-	protected static abstract class HeaderMessage<T extends HTTP.Message> implements HTTP.Message {
-		protected final T parent;
-		protected final byte[] line;
+	private Index index() {
+		Index idx = index;
+		if (idx == null) {
+			idx = new Index(header, lines, keyEnds, numLines);
+			index = idx;
+		}
+		return idx;
+	}
+
+	/**
+	 * An open-addressing hash table mapping header names to header indices, which
+	 * operates directly on the raw bytes of the header. Names are hashed and
+	 * compared ignoring case, without decoding them. Headers with the same name
+	 * are stored along the same probe sequence in the order they appear, such that
+	 * the first found is the first in the message.
+	 */
+	private static final class Index {
+		/**
+		 * Header index plus one, or zero for an empty slot.
+		 */
+		private final int[] table;
+		/**
+		 * Index of the colon for each header, or -1 if it has none.
+		 */
+		private final int[] keyEnds;
+
+		public Index(byte[] header, int[] lines, int[] keyEnds, int numLines) {
+			int capacity = 8;
+			while (capacity < numLines * 2) {
+				capacity = capacity * 2;
+			}
+			this.table = new int[capacity];
+			this.keyEnds = (keyEnds != null) ? keyEnds : new int[numLines - 1];
+			final ByteBuffer words = (keyEnds != null) ? null : HeaderScanner.words(header);
+			for (int i = 0; i != numLines - 1; ++i) {
+				final int start = lines[i];
+				final int end = (keyEnds != null) ? keyEnds[i] : HeaderScanner.indexOf(words, header, start, lines[i + 1] - 2, (byte) ':');
+				this.keyEnds[i] = end;
+				if (end >= 0) {
+					int slot = hash(header, start, end - start) & (capacity - 1);
+					while (table[slot] != 0) {
+						slot = (slot + 1) & (capacity - 1);
+					}
+					table[slot] = i + 1;
+				}
+			}
+		}
+
+		/**
+		 * Find the first header with a given name whose index is at least a given
+		 * index, or -1 if there is none.
+		 *
+		 * @param header
+		 * @param lines
+		 * @param name
+		 * @param length
+		 * @param from
+		 * @return
+		 */
+		public int find(byte[] header, int[] lines, byte[] name, int length, int from) {
+			final int mask = table.length - 1;
+			int slot = hash(name, 0, length) & mask;
+			int entry;
+			while ((entry = table[slot]) != 0) {
+				int i = entry - 1;
+				int start = lines[i];
+				if (i >= from && keyEnds[i] - start == length && HttpParser.equalsIgnoreCase(header, start, name, length)) {
+					return i;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		public Header toHeader(byte[] header, int[] lines, int i) {
+			final int start = lines[i];
+			final int end = lines[i + 1] - 2;
+			final int valueStart = valueStart(header, keyEnds[i], end);
+			return new ArbitraryHeader(header, start, keyEnds[i] - start, valueStart, end - valueStart);
+		}
+	}
+
+	/**
+	 * Get views of a complete message (i.e. start line, headers, trailing empty
+	 * line and body) suitable for a single vectored write, or <code>null</code> if
+	 * the body cannot be viewed as a buffer. Where the empty line already follows
+	 * the headers in the same array (as for parsed or built messages), it is
+	 * included in the last slice rather than given its own buffer.
+	 *
+	 * @param message
+	 * @return
+	 */
+	static ByteBuffer[] toByteBuffers(HTTP.Message message) {
+		Entity body = message.getBody();
+		ByteBuffer contents = null;
+		if (body != null && (contents = body.toByteBuffer()) == null) {
+			return null;
+		}
+		ArrayList<ByteBuffer> buffers = head(message);
+		if (contents != null) {
+			buffers.add(contents);
+		}
+		return buffers.toArray(new ByteBuffer[buffers.size()]);
+	}
+
+	/**
+	 * Get views of the head of a message, including the trailing empty line.
+	 *
+	 * @param message
+	 * @return
+	 */
+	static ByteBuffer[] toHeadBuffers(HTTP.Message message) {
+		ArrayList<ByteBuffer> buffers = head(message);
+		return buffers.toArray(new ByteBuffer[buffers.size()]);
+	}
+
+	private static ArrayList<ByteBuffer> head(HTTP.Message message) {
+		ArrayList<ByteBuffer> buffers = new ArrayList<>(4);
+		message.toByteBuffers(buffers);
+		ByteBuffer last = buffers.get(buffers.size() - 1);
+		int limit = last.limit();
+		if (last.hasArray() && limit + 2 <= last.capacity() && last.array()[last.arrayOffset() + limit] == CR
+				&& last.array()[last.arrayOffset() + limit + 1] == LF) {
+			last.limit(limit + 2);
+		} else {
+			buffers.add(ByteBuffer.wrap(CRLF));
+		}
+		return buffers;
+	}
 
-		public HeaderMessage(T parent, byte[] key, String value) {
-			this(parent,toHeaderLine(key,value));
+	/**
+	 * Write a complete message to a given blocking channel. If the body cannot be
+	 * viewed as a buffer then the head is written with a single vectored write,
+	 * and the body transferred (for a file) or streamed after it.
+	 *
+	 * @param message
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	static long write(HTTP.Message message, GatheringByteChannel channel) throws IOException {
+		ByteBuffer[] buffers = toByteBuffers(message);
+		if (buffers != null) {
+			return writeFully(buffers, channel);
 		}
-		public HeaderMessage(T parent, byte[] bytes) {
-			this.parent = parent;
-			this.line = bytes;
+		long written = writeFully(toHeadBuffers(message), channel);
+		Entity body = message.getBody();
+		if (body instanceof FileEntity) {
+			((FileEntity) body).write(channel);
+			return written + body.getLength();
+		}
+		CountingOutputStream out = new CountingOutputStream(Channels.newOutputStream(channel));
+		body.write(out);
+		return written + out.count;
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
 		}
 
 		@Override
-		public void writeln(OutputStream out) throws IOException {
-			this.write(out);
-			out.write(13); // CR
-			out.write(10); // LF
+		public void write(int b) throws IOException {
+			out.write(b);
+			count = count + 1;
 		}
 
 		@Override
-		public String toString() {
-			String r = parent.toString();
-			return r + toHttpString(line, line.length);
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count = count + len;
 		}
 	}
 
+	private static long writeFully(ByteBuffer[] buffers, GatheringByteChannel channel) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		long written = 0;
+		while (written < remaining) {
+			written += channel.write(buffers);
+		}
+		return written;
+	}
+
+	/**
+	 * Get the values of all headers with a given name in a message, combined
+	 * into a comma-separated list (as for a single header).
+	 *
+	 * @param message
+	 * @param name
+	 * @return The combined value, or <code>null</code> if there are no such
+	 *         headers.
+	 */
+	static String getCombinedValue(HTTP.Message message, byte[] name) {
+		String first = message.getFirstValue(name);
+		if (first == null) {
+			return null;
+		}
+		List<Header> all = message.getAll(name);
+		if (all.size() == 1) {
+			return first;
+		}
+		StringBuilder combined = new StringBuilder();
+		for (Header header : all) {
+			if (combined.length() != 0) {
+				combined.append(',');
+			}
+			combined.append(header.getValue());
+		}
+		return combined.toString();
+	}
+
+	/**
+	 * Determine the length of a header name, ignoring any trailing ": ".
+	 *
+	 * @param name
+	 * @return
+	 */
+	static int nameLength(byte[] name) {
+		int length = name.length;
+		while (length > 0 && (name[length - 1] == ' ' || name[length - 1] == ':')) {
+			length = length - 1;
+		}
+		return length;
+	}
+
+	/**
+	 * Hash a header name, ignoring case.
+	 *
+	 * @param bytes
+	 * @param start
+	 * @param length
+	 * @return
+	 */
+	static int hash(byte[] bytes, int start, int length) {
+		int h = 0;
+		for (int i = start; i != start + length; ++i) {
+			h = (31 * h) + (bytes[i] | 0x20);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Find the start of a header value, given the position of the colon
+	 * which precedes it.
+	 *
+	 * @param bytes
+	 * @param colon
+	 * @param end
+	 * @return
+	 */
+	static int valueStart(byte[] bytes, int colon, int end) {
+		int i = colon + 1;
+		while (i < end && (bytes[i] == ' ' || bytes[i] == '\t')) {
+			i = i + 1;
+		}
+		return i;
+	}
+
+	/**
+	 * Parse a non-negative decimal number from a region of bytes, ignoring any
+	 * trailing whitespace.
+	 *
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	static int parseInt(byte[] bytes, int start, int end) {
+		while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) {
+			end = end - 1;
+		}
+		if (start == end) {
+			throw new NumberFormatException("empty value");
+		}
+		int value = 0;
+		for (int i = start; i != end; ++i) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+				throw new NumberFormatException("invalid value");
+			}
+			value = (value * 10) + digit;
+		}
+		return value;
+	}
+
 	protected static String toHttpString(byte[] bytes, int len) {
 		String r = "";
 		for(int i=0;i!=len;++i) {
@@ -126,45 +509,7 @@ public abstract class AbstractMessage implements HTTP.Message {
 		return r;
 	}
 
-	private static byte[] toHeaderLine(byte[] keyBytes, String value) {
-		byte[] valueBytes = value.getBytes(StandardCharsets.US_ASCII);
-		byte[] line = new byte[keyBytes.length + valueBytes.length + 2];
-		int index = 0;
-		System.arraycopy(keyBytes, 0, line, index, keyBytes.length);
-		index = index + keyBytes.length;
-		System.arraycopy(valueBytes, 0, line, index, valueBytes.length);
-		index = index + valueBytes.length;
-		line[index++] = CR;
-		line[index] = LF;
-		return line;
-	}
-
-	private static int countLines(byte[] header) {
-		int count = 0;
-		int index = 0;
-		while (index < header.length) {
-			final int last = index;
-			index = skipLine(index, header);
-			// Check for empty line
-			if (index == (last + 2)) {
-				break;
-			}
-			count = count + 1;
-		}
-		return count;
-	}
-
-	private static int skipLine(int i, byte[] header) {
-		while(i < (header.length+1)) {
-			if (header[i] == CR && header[i + 1] == LF) {
-				return i + 2;
-			}
-			i = i + 1;
-		}
-		throw new IllegalArgumentException("invalid header: missing line end");
-	}
-
-
 	protected static final byte CR = 13;
 	protected static final byte LF = 10;
+	private static final byte[] CRLF = { CR, LF };
 }
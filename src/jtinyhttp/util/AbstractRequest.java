@@ -1,14 +1,9 @@
 package jtinyhttp.util;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 
 import jtinyhttp.core.HTTP;
-import jtinyhttp.core.HTTP.Entity;
-import jtinyhttp.core.HTTP.Header;
 import jtinyhttp.core.HTTP.Method;
-import jtinyhttp.core.HTTP.Request;
 
 public abstract class AbstractRequest extends AbstractMessage implements HTTP.Request {
 
@@ -16,72 +11,87 @@ public abstract class AbstractRequest extends AbstractMessage implements HTTP.Re
 		super(toRequestLine(method,uri,version), body);
 	}
 
+	public AbstractRequest(byte[] header, int[] lines, int numLines, HTTP.Entity body) {
+		super(header, lines, numLines, body);
+	}
+
+	public AbstractRequest(byte[] header, int[] lines, int[] keyEnds, int numLines, HTTP.Entity body) {
+		super(header, lines, keyEnds, numLines, body);
+	}
+
 	@Override
 	public Method getMethod() {
-		switch (header[0]) {
-		case 'G':
-			return Method.GET;
-		case 'P':
-			return Method.POST;
-		default:
+		Method method = parseMethod(header);
+		if (method == null) {
 			throw new IllegalArgumentException("invalid method");
 		}
+		return method;
+	}
+
+	@Override
+	public String getURI() {
+		int start = 0;
+		while (header[start] != ' ') {
+			start = start + 1;
+		}
+		int end = lines[0] - 2;
+		while (header[end - 1] != ' ') {
+			end = end - 1;
+		}
+		return new String(header, start + 1, end - start - 2, StandardCharsets.US_ASCII);
 	}
 
 	@Override
 	public String getVersion() {
-		throw new UnsupportedOperationException("implement me");
+		int end = lines[0] - 2;
+		int start = end;
+		while (header[start - 1] != ' ') {
+			start = start - 1;
+		}
+		return new String(header, start, end - start, StandardCharsets.US_ASCII);
 	}
 
+	/**
+	 * Add a header to this request, giving a new request whose head is flat (as
+	 * for one built with <code>MessageBuilder</code>). This request is left
+	 * unchanged, although its buffer is shared where possible, such that a chain
+	 * of headers costs time linear in its length.
+	 */
 	@Override
 	public HTTP.Request addHeader(byte[] key, String value) {
-		return new HeaderRequest(this,key,value);
+		return new MessageBuilder.Request(this, key.length + value.length()).header(key, value).finish(body);
 	}
 
-	private static final class HeaderRequest extends HeaderMessage<HTTP.Request> implements HTTP.Request {
-
-		public HeaderRequest(Request parent, byte[] key, String value) {
-			super(parent, key, value);
-		}
-
-		@Override
-		public String getVersion() {
-			return parent.getVersion();
-		}
-
-		@Override
-		public int size() {
-			return parent.size() + 1;
-		}
-
-		@Override
-		public Header getHeader(int i) {
-			if(i == parent.size()) {
-				return new ArbitraryHeader(line, 0, line.length - 2);
-			} else {
-				return parent.getHeader(i);
+	/**
+	 * Determine the method at the start of a request line, or <code>null</code>
+	 * if it is not recognised.
+	 *
+	 * @param header
+	 * @return
+	 */
+	public static Method parseMethod(byte[] header) {
+		for (int i = 0; i != METHODS.length; ++i) {
+			byte[] name = METHOD_NAMES[i];
+			if (header.length > name.length && header[name.length] == ' ') {
+				int j = 0;
+				while (j != name.length && header[j] == name[j]) {
+					j = j + 1;
+				}
+				if (j == name.length) {
+					return METHODS[i];
+				}
 			}
 		}
+		return null;
+	}
 
-		@Override
-		public HTTP.Request addHeader(byte[] key, String value) {
-			return new HeaderRequest(this,key,value);
-		}
+	private static final Method[] METHODS = Method.values();
 
-		@Override
-		public Entity getBody() {
-			return parent.getBody();
-		}
-
-		@Override
-		public void write(OutputStream stream) throws IOException {
-			parent.write(stream);
-			stream.write(line);
-		}
+	private static final byte[][] METHOD_NAMES = new byte[METHODS.length][];
 
-		@Override
-		public Method getMethod() {
-			return parent.getMethod();
+	static {
+		for (int i = 0; i != METHODS.length; ++i) {
+			METHOD_NAMES[i] = METHODS[i].toString().getBytes(StandardCharsets.US_ASCII);
 		}
 	}
 
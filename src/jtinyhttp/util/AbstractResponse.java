@@ -0,0 +1,157 @@
+package jtinyhttp.util;
+
+import java.nio.charset.StandardCharsets;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.Headers;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.HTTP.Header;
+import jtinyhttp.core.HTTP.Response;
+
+public abstract class AbstractResponse extends AbstractMessage implements HTTP.Response {
+
+	public AbstractResponse(String version, int status, String reason, HTTP.Entity body) {
+		super(toStatusLine(version, status, reason), body);
+	}
+
+	public AbstractResponse(byte[] header, int[] lines, int numLines, HTTP.Entity body) {
+		super(header, lines, numLines, body);
+	}
+
+	public AbstractResponse(byte[] header, int[] lines, int[] keyEnds, int numLines, HTTP.Entity body) {
+		super(header, lines, keyEnds, numLines, body);
+	}
+
+	@Override
+	public int getStatusCode() {
+		int i = 0;
+		while (header[i] != ' ') {
+			i = i + 1;
+		}
+		int code = 0;
+		for (int j = i + 1; j != i + 4; ++j) {
+			int digit = header[j] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new IllegalArgumentException("invalid status code");
+			}
+			code = (code * 10) + digit;
+		}
+		return code;
+	}
+
+	@Override
+	public String getVersion() {
+		int i = 0;
+		while (header[i] != ' ') {
+			i = i + 1;
+		}
+		return new String(header, 0, i, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Add a header to this response, giving a new response whose head is flat (as
+	 * for one built with <code>MessageBuilder</code>). This response is left
+	 * unchanged, although its buffer is shared where possible, such that a chain
+	 * of headers costs time linear in its length.
+	 */
+	@Override
+	public HTTP.Response addHeader(byte[] key, String value) {
+		return new MessageBuilder.Response(this, key.length + value.length()).header(key, value).finish(body);
+	}
+
+	/**
+	 * Determine whether a connection can remain open after a given response, which
+	 * requires the response to be framed and not to request the connection be
+	 * closed.
+	 *
+	 * @param response
+	 * @return
+	 */
+	static boolean isPersistent(Response response) {
+		for (Header connection : response.getAll(Headers.CONNECTION)) {
+			// Matched as tokens, as for requests (see HttpParser.isPersistent())
+			if (HttpParser.containsToken(connection.getValue(), "close")) {
+				return false;
+			}
+		}
+		int status = response.getStatusCode();
+		return status < 200 || status == HTTP.NO_CONTENT || status == HTTP.NOT_MODIFIED
+				|| response.getHeader(Headers.CONTENT_LENGTH) != null
+				|| response.getHeader(Headers.TRANSFER_ENCODING) != null;
+	}
+
+	/**
+	 * Copy the head of a response into a new message with a given body, leaving
+	 * out the headers which only apply to the connection over which it was
+	 * received (along with any others given). The length of the new body is
+	 * determined from the body itself.
+	 *
+	 * @param response
+	 * @param body
+	 * @param exclude  Names of further headers to leave out.
+	 * @return
+	 */
+	static Response copy(Response response, Entity body, String... exclude) {
+		int status = response.getStatusCode();
+		MessageBuilder.Response builder;
+		if (Headers.statusLine(status) != null) {
+			builder = new MessageBuilder.Response(status);
+		} else {
+			builder = new MessageBuilder.Response(HTTP.V1_1, status, "Unknown");
+		}
+		for (int i = 0; i != response.size(); ++i) {
+			Header header = response.getHeader(i);
+			String key = header.getKey();
+			if (!contains(HOP_BY_HOP, key) && !contains(exclude, key)) {
+				builder.header(encodeName(key), header.getValue());
+			}
+		}
+		return builder.build(body);
+	}
+
+	private static boolean contains(String[] names, String key) {
+		for (String name : names) {
+			if (name.equalsIgnoreCase(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static byte[] encodeName(String key) {
+		byte[] bytes = new byte[key.length() + 2];
+		for (int i = 0; i != key.length(); ++i) {
+			char c = key.charAt(i);
+			bytes[i] = (byte) (c < 128 ? c : '?');
+		}
+		bytes[bytes.length - 2] = ':';
+		bytes[bytes.length - 1] = ' ';
+		return bytes;
+	}
+
+	/**
+	 * Headers which apply only to the connection over which a response was
+	 * received, and the length (which is determined again when copying).
+	 */
+	private static final String[] HOP_BY_HOP = { "Connection", "Keep-Alive", "Proxy-Connection", "TE", "Trailer",
+			"Transfer-Encoding", "Upgrade", "Content-Length" };
+
+	private static byte[] toStatusLine(String version, int status, String reason) {
+		byte[] versionBytes = version.getBytes(StandardCharsets.US_ASCII);
+		byte[] reasonBytes = reason.getBytes(StandardCharsets.US_ASCII);
+		//
+		byte[] result = new byte[versionBytes.length + reasonBytes.length + 7];
+		System.arraycopy(versionBytes, 0, result, 0, versionBytes.length);
+		int index = versionBytes.length;
+		result[index++] = ' ';
+		result[index++] = (byte) ('0' + (status / 100) % 10);
+		result[index++] = (byte) ('0' + (status / 10) % 10);
+		result[index++] = (byte) ('0' + status % 10);
+		result[index++] = ' ';
+		System.arraycopy(reasonBytes, 0, result, index, reasonBytes.length);
+		index = index + reasonBytes.length;
+		result[index++] = CR;
+		result[index] = LF;
+		return result;
+	}
+}
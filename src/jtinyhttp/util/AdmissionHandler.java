@@ -0,0 +1,473 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.Response;
+import jtinyhttp.core.HTTP.ServerConnection;
+import jtinyhttp.core.Headers;
+
+/**
+ * A handler which admits requests to another handler only whilst the number
+ * being handled is within a <code>GradientLimit</code>. This keeps latency
+ * close to its baseline under overload, since excess requests are turned away
+ * rather than piling up inside the server. Requests over the limit wait in a
+ * bounded queue, where those of higher priority (e.g. as determined by their
+ * route) are admitted first and those of lower priority are displaced when the
+ * queue is full. Requests which cannot be queued, or which wait too long, are
+ * rejected immediately with a pre-encoded <code>SERVICE_UNAVAILABLE</code> (or
+ * <code>TOO_MANY_REQUESTS</code>) response carrying a
+ * <code>Retry-After</code> header.
+ * <p>
+ * A queued request holds no thread of this handler whilst waiting: this
+ * handler returns straight away, and the request is later handed to an executor
+ * once admitted (as permitted by <code>HTTP.Handler</code>). Requests which wait
+ * too long are rejected by a timer, which runs only whilst requests are queued.
+ * Since sending may block (e.g. on <code>BlockingServer</code>), the timer (or
+ * the thread of a request which displaces another) only hands the rejection to
+ * the executor.
+ * A request counts towards the limit until its response is sent, and the time
+ * taken to do so is the latency which drives the limit.
+ * <p>
+ * However, a server may still hold resources of its own for a queued request.
+ * In particular, <code>BlockingServer</code> waits for the response on the
+ * thread of the connection, which therefore holds that thread and one of its
+ * permits for requests being handled whilst queued. Its cap should thus allow
+ * for the queue on top of the limit, since otherwise requests wait for permits
+ * (rather than here, where they can be prioritised and rejected).
+ */
+public class AdmissionHandler implements HTTP.Handler, AdmissionHandlerMBean {
+	private final HTTP.Handler handler;
+	private final Executor executor;
+	private final GradientLimit limit;
+	/**
+	 * Determines the priority of each request, from zero (lowest) up to one less
+	 * than the number of queues.
+	 */
+	private final ToIntFunction<Request> priority;
+	/**
+	 * Requests waiting to be admitted, with one queue for each priority.
+	 */
+	private final ArrayDeque<Waiter>[] queues;
+	private final int maxQueue;
+	/**
+	 * Longest time (in milliseconds) a request may wait before it is rejected.
+	 */
+	private final long maxWait;
+	/**
+	 * Tracks how long each queued request has waited, and is expired by a thread
+	 * which runs whilst there are requests queued.
+	 */
+	private final TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE);
+	private Thread timer;
+	/**
+	 * Number of requests across all queues.
+	 */
+	private int queued;
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private volatile Response rejection = rejection(HTTP.SERVICE_UNAVAILABLE, 1);
+
+	/**
+	 * Construct a handler with a default limit and queue, where every request has
+	 * the same priority.
+	 *
+	 * @param handler  Handler to which requests are admitted.
+	 * @param executor Executor on which queued requests are handled once
+	 *                 admitted.
+	 */
+	public AdmissionHandler(HTTP.Handler handler, Executor executor) {
+		this(handler, executor, new GradientLimit(20, 4, 1000), 128, 1000, 1, r -> 0);
+	}
+
+	/**
+	 * Construct a handler.
+	 *
+	 * @param handler    Handler to which requests are admitted.
+	 * @param executor   Executor on which queued requests are handled once
+	 *                   admitted.
+	 * @param limit      Limit on the number of requests being handled.
+	 * @param maxQueue   Maximum number of requests waiting to be admitted.
+	 * @param maxWait    Longest time (in milliseconds) a request may wait.
+	 * @param priorities Number of distinct priorities.
+	 * @param priority   Determines the priority of each request, where higher
+	 *                   values are admitted first. Values out of range are
+	 *                   clamped.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public AdmissionHandler(HTTP.Handler handler, Executor executor, GradientLimit limit, int maxQueue,
+			long maxWait, int priorities, ToIntFunction<Request> priority) {
+		if (maxQueue < 0 || maxWait < 0 || priorities <= 0) {
+			throw new IllegalArgumentException("invalid queue");
+		}
+		this.handler = handler;
+		this.executor = executor;
+		this.limit = limit;
+		this.maxQueue = maxQueue;
+		this.maxWait = maxWait;
+		this.priority = priority;
+		this.queues = new ArrayDeque[priorities];
+		for (int i = 0; i != priorities; ++i) {
+			queues[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * Set the response with which requests are rejected, which must be either
+	 * <code>SERVICE_UNAVAILABLE</code> or <code>TOO_MANY_REQUESTS</code>.
+	 *
+	 * @param status
+	 * @param retryAfter Number of seconds after which clients may retry.
+	 */
+	public void setRejection(int status, int retryAfter) {
+		if (status != HTTP.SERVICE_UNAVAILABLE && status != HTTP.TOO_MANY_REQUESTS) {
+			throw new IllegalArgumentException("invalid rejection status " + status);
+		}
+		this.rejection = rejection(status, retryAfter);
+	}
+
+	@Override
+	public void handle(Request request, ServerConnection connection) throws IOException {
+		int p = Math.max(0, Math.min(queues.length - 1, priority.applyAsInt(request)));
+		ServerConnection refused;
+		synchronized (this) {
+			if (queued == 0 && limit.tryAcquire()) {
+				refused = null;
+			} else if (queued < maxQueue) {
+				enqueue(new Waiter(request, connection, p));
+				return;
+			} else {
+				// Queue is full, so either this or a request of lower priority is refused
+				Waiter displaced = displace(p);
+				if (displaced == null) {
+					refused = connection;
+				} else {
+					enqueue(new Waiter(request, connection, p));
+					refused = displaced.connection;
+				}
+			}
+		}
+		if (refused == null) {
+			// Admitted straight away, so handled on this thread
+			dispatch(request, connection);
+		} else if (refused == connection) {
+			reject(refused);
+		} else {
+			rejectLater(refused);
+		}
+	}
+
+	@Override
+	public int getLimit() {
+		return limit.getLimit();
+	}
+
+	@Override
+	public int getInflight() {
+		return limit.getInflight();
+	}
+
+	@Override
+	public synchronized int getQueueDepth() {
+		return queued;
+	}
+
+	@Override
+	public long getAdmitted() {
+		return admitted.sum();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Register this handler with the platform MBean server, under the name
+	 * <code>jtinyhttp:type=AdmissionHandler,name=...</code>.
+	 *
+	 * @param name
+	 * @return The name registered.
+	 * @throws JMException
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName("jtinyhttp:type=AdmissionHandler,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * Write the metrics of this handler in the same plain text format as
+	 * <code>HttpMetrics</code>, with a given prefix for their names.
+	 *
+	 * @param out
+	 * @param prefix
+	 * @throws IOException
+	 */
+	public void writeText(Appendable out, String prefix) throws IOException {
+		metric(out, prefix, "admission_limit", "gauge", getLimit());
+		metric(out, prefix, "admission_inflight", "gauge", getInflight());
+		metric(out, prefix, "admission_queue_depth", "gauge", getQueueDepth());
+		metric(out, prefix, "admission_admitted_total", "counter", getAdmitted());
+		metric(out, prefix, "admission_rejected_total", "counter", getRejected());
+	}
+
+	private static void metric(Appendable out, String prefix, String name, String type, long value)
+			throws IOException {
+		out.append("# TYPE ").append(prefix).append('_').append(name).append(' ').append(type).append('\n');
+		out.append(prefix).append('_').append(name).append(' ').append(Long.toString(value)).append('\n');
+	}
+
+	/**
+	 * Hand an admitted request to the handler, such that it is released once its
+	 * response is sent (or the handler fails).
+	 *
+	 * @param request
+	 * @param connection
+	 * @throws IOException
+	 */
+	private void dispatch(Request request, ServerConnection connection) throws IOException {
+		admitted.increment();
+		Admitted wrapped = new Admitted(connection);
+		try {
+			handler.handle(request, wrapped);
+		} catch (IOException | RuntimeException e) {
+			wrapped.release(-1);
+			throw e;
+		}
+	}
+
+	/**
+	 * Admit as many waiting requests as the limit now allows, having released a
+	 * request.
+	 */
+	private void admitWaiting() {
+		while (true) {
+			Waiter waiter;
+			synchronized (this) {
+				if (queued == 0 || !limit.tryAcquire()) {
+					return;
+				}
+				waiter = dequeue();
+			}
+			try {
+				executor.execute(() -> {
+					try {
+						dispatch(waiter.request, waiter.connection);
+					} catch (IOException | RuntimeException e) {
+						// The server only learns of failures on its own thread
+						reject(waiter.connection);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				limit.release();
+				rejectLater(waiter.connection);
+			}
+		}
+	}
+
+	/**
+	 * Reject a request which has waited too long, unless it has been admitted (or
+	 * displaced) in the meantime.
+	 *
+	 * @param waiter
+	 */
+	private void expired(Waiter waiter) {
+		synchronized (this) {
+			if (!queues[waiter.priority].remove(waiter)) {
+				return;
+			}
+			queued = queued - 1;
+		}
+		rejectLater(waiter.connection);
+	}
+
+	/**
+	 * Expire the timeouts of queued requests once a tick, until there are none.
+	 */
+	private void expire() {
+		try {
+			while (true) {
+				synchronized (this) {
+					if (wheel.isEmpty()) {
+						timer = null;
+						return;
+					}
+				}
+				Thread.sleep(TICK);
+				wheel.expire();
+			}
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				timer = null;
+			}
+		}
+	}
+
+	private void reject(ServerConnection connection) {
+		rejected.increment();
+		try {
+			connection.send(rejection);
+		} catch (IOException | RuntimeException e) {
+			// Client has gone, or already has a response
+		}
+	}
+
+	/**
+	 * Reject a request from a thread other than its own, which must not block on
+	 * sending the rejection, by handing it to the executor. Should the executor
+	 * refuse it, the connection is simply closed.
+	 *
+	 * @param connection
+	 */
+	private void rejectLater(ServerConnection connection) {
+		try {
+			executor.execute(() -> reject(connection));
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			try {
+				connection.close();
+			} catch (IOException ex) {
+				// Client has gone
+			}
+		}
+	}
+
+	private void enqueue(Waiter waiter) {
+		queues[waiter.priority].addLast(waiter);
+		queued = queued + 1;
+		// A delay of zero would cancel the timeout, rather than expiring it
+		wheel.schedule(waiter.timeout, Math.max(1, maxWait));
+		if (timer == null) {
+			timer = new Thread(this::expire, "AdmissionHandler-timer");
+			timer.setDaemon(true);
+			timer.start();
+		}
+	}
+
+	/**
+	 * Remove the waiter which should be admitted next (i.e. the oldest of the
+	 * highest priority), assuming there is one.
+	 *
+	 * @return
+	 */
+	private Waiter dequeue() {
+		for (int i = queues.length - 1; i >= 0; --i) {
+			Waiter waiter = queues[i].pollFirst();
+			if (waiter != null) {
+				queued = queued - 1;
+				wheel.cancel(waiter.timeout);
+				return waiter;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the most recent waiter of lower priority than a given priority, to
+	 * make room for a request of that priority.
+	 *
+	 * @param priority
+	 * @return The waiter removed, or <code>null</code> if there is none.
+	 */
+	private Waiter displace(int priority) {
+		for (int i = 0; i < priority; ++i) {
+			Waiter waiter = queues[i].pollLast();
+			if (waiter != null) {
+				queued = queued - 1;
+				wheel.cancel(waiter.timeout);
+				return waiter;
+			}
+		}
+		return null;
+	}
+
+	private static Response rejection(int status, int retryAfter) {
+		return new MessageBuilder.Response(status).header(Headers.RETRY_AFTER, retryAfter)
+				.header(Headers.CONTENT_LENGTH, 0).build(null);
+	}
+
+	/**
+	 * A request waiting to be admitted.
+	 */
+	private final class Waiter {
+		private final Request request;
+		private final ServerConnection connection;
+		private final int priority;
+		/**
+		 * Rejects the request once it has waited too long.
+		 */
+		private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(() -> expired(this));
+
+		public Waiter(Request request, ServerConnection connection, int priority) {
+			this.request = request;
+			this.connection = connection;
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * The connection of an admitted request, which releases the request from the
+	 * limit once its response is sent.
+	 */
+	private final class Admitted implements ServerConnection {
+		private final ServerConnection connection;
+		private final long start = System.nanoTime();
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		public Admitted(ServerConnection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void send(Response response) throws IOException {
+			long rtt = System.nanoTime() - start;
+			try {
+				connection.send(response);
+			} finally {
+				release(rtt);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			release(-1);
+			connection.close();
+		}
+
+		/**
+		 * Release the request from the limit (if not already), where a negative
+		 * latency indicates the request did not complete normally.
+		 *
+		 * @param rtt
+		 */
+		private void release(long rtt) {
+			if (released.compareAndSet(false, true)) {
+				if (rtt < 0) {
+					limit.release();
+				} else {
+					limit.release(rtt);
+				}
+				admitWaiting();
+			}
+		}
+	}
+
+	/**
+	 * Length of a tick (in milliseconds) and number of buckets of the wheel on
+	 * which queued requests are timed.
+	 */
+	private static final long TICK = 10;
+	private static final int WHEEL_SIZE = 256;
+}
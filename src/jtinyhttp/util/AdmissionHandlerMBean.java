@@ -0,0 +1,16 @@
+package jtinyhttp.util;
+
+/**
+ * The attributes of <code>AdmissionHandler</code> exposed through JMX.
+ */
+public interface AdmissionHandlerMBean {
+	public int getLimit();
+
+	public int getInflight();
+
+	public int getQueueDepth();
+
+	public long getAdmitted();
+
+	public long getRejected();
+}
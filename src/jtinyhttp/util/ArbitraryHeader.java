@@ -33,21 +33,19 @@ public class ArbitraryHeader implements HTTP.Header {
 
 	public ArbitraryHeader(byte[] bytes, int start, int end) {
 		this.bytes = bytes;
-		for (int i = start; i < end; ++i) {
-			if (bytes[i] == ':') {
-				this.keyStart = start;
-				this.keyLength = i - start;
-				// SKIP WHITESPACE
-				while (bytes[i] == ' ') {
-					i = i + 1;
-				}
-				// DONE
-				this.valueStart = i;
-				this.valueLength = end - valueStart;
-				return;
-			}
+		int i = HeaderScanner.indexOf(bytes, start, end, (byte) ':');
+		if (i < 0) {
+			throw new IllegalArgumentException("invalid header");
 		}
-		throw new IllegalArgumentException("invalid header");
+		this.keyStart = start;
+		this.keyLength = i - start;
+		i = i + 1;
+		// SKIP WHITESPACE
+		while (i < end && bytes[i] == ' ') {
+			i = i + 1;
+		}
+		this.valueStart = i;
+		this.valueLength = end - valueStart;
 	}
 
 	public ArbitraryHeader(byte[] bytes, int keyStart, int keyLength, int valueStart, int valueLength) {
@@ -0,0 +1,791 @@
+package jtinyhttp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.Response;
+import jtinyhttp.core.Headers;
+
+/**
+ * A client which sends requests without blocking the calling thread, returning
+ * a <code>CompletableFuture</code> for each response. Requests to any number of
+ * hosts are multiplexed over a small number of selector threads, using a bounded
+ * set of persistent connections to each host. A request is sent on an idle
+ * connection where there is one, or on a new connection where the bound
+ * permits, and otherwise waits for a connection to become free. Each request
+ * can be given a timeout, and cancelling its future aborts it (closing the
+ * connection if the exchange has begun). Responses are read in full before
+ * their futures complete, and are independent of the connection they arrived
+ * on. Dependent actions (e.g. <code>thenApply()</code>) run on the selector
+ * thread unless their asynchronous variants are used, so they should not
+ * block.
+ */
+public class AsyncClient {
+	private final Worker[] workers;
+	private final AtomicInteger next = new AtomicInteger();
+	private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+	/**
+	 * Fires request timeouts.
+	 */
+	private final ScheduledThreadPoolExecutor timer;
+	/**
+	 * Maximum number of connections to any one host.
+	 */
+	private final int maxPerHost;
+	/**
+	 * Initial size of the read buffer for each connection.
+	 */
+	private final int bufferSize;
+	/**
+	 * Largest response body which will be accepted.
+	 */
+	private final long maxBodySize;
+	private volatile boolean closed;
+
+	public AsyncClient(int threads) throws IOException {
+		this(threads, 64, 8192, 64 * 1024 * 1024);
+	}
+
+	/**
+	 * Construct a client and start its selector threads.
+	 *
+	 * @param threads     Number of selector threads.
+	 * @param maxPerHost  Maximum number of connections to any one host.
+	 * @param bufferSize  Initial size of the read buffer for each connection.
+	 * @param maxBodySize Largest response body which will be accepted.
+	 * @throws IOException
+	 */
+	public AsyncClient(int threads, int maxPerHost, int bufferSize, long maxBodySize) throws IOException {
+		this.maxPerHost = maxPerHost;
+		this.bufferSize = bufferSize;
+		this.maxBodySize = maxBodySize;
+		this.workers = new Worker[threads];
+		for (int i = 0; i != threads; ++i) {
+			workers[i] = new Worker();
+			Thread thread = new Thread(workers[i], "AsyncClient-" + i);
+			thread.setDaemon(true);
+			workers[i].thread = thread;
+			thread.start();
+		}
+		this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "AsyncClient-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Get an endpoint through which requests are sent to a given host. Endpoints
+	 * for the same host share its connections.
+	 *
+	 * @param host
+	 * @param port
+	 * @return
+	 */
+	public Endpoint connect(String host, int port) {
+		String authority = host + ":" + port;
+		Route route = routes.computeIfAbsent(authority, k -> new Route(new InetSocketAddress(host, port), authority));
+		return new Endpoint(route);
+	}
+
+	/**
+	 * Close all connections, and fail any requests which have not yet completed.
+	 */
+	public void close() {
+		closed = true;
+		for (Route route : routes.values()) {
+			route.close();
+		}
+		for (Worker worker : workers) {
+			worker.selector.wakeup();
+		}
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Sends requests to a particular host. This can also be used as a (blocking)
+	 * <code>ClientConnection</code>, in which case each pipelined request is sent
+	 * concurrently (on its own connection) rather than queued on one connection.
+	 */
+	public final class Endpoint implements HTTP.ClientConnection {
+		private final Route route;
+
+		private Endpoint(Route route) {
+			this.route = route;
+		}
+
+		/**
+		 * Send a request without a timeout.
+		 *
+		 * @param request
+		 * @return
+		 */
+		public CompletableFuture<Response> sendAsync(Request request) {
+			return sendAsync(request, 0, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Send a request, failing with a <code>SocketTimeoutException</code> if the
+		 * response is not received in full within a given time (including any
+		 * time spent waiting for a connection).
+		 *
+		 * @param request
+		 * @param timeout Time after which the request fails, or 0 for none.
+		 * @param unit
+		 * @return
+		 */
+		public CompletableFuture<Response> sendAsync(Request request, long timeout, TimeUnit unit) {
+			if (request.getHeader(Headers.HOST) == null) {
+				request = request.addHeader(Headers.HOST, route.authority);
+			}
+			Exchange exchange = new Exchange(route, request);
+			if (timeout > 0) {
+				ScheduledFuture<?> task = timer.schedule(() -> {
+					exchange.future.completeExceptionally(new SocketTimeoutException("request timed out"));
+				}, timeout, unit);
+				exchange.future.whenComplete((r, e) -> task.cancel(false));
+			}
+			exchange.future.whenComplete((r, e) -> {
+				if (e != null) {
+					// Timed out, cancelled or failed, so stop any exchange in progress
+					exchange.abort();
+				}
+			});
+			route.submit(exchange);
+			return exchange.future;
+		}
+
+		/**
+		 * Send a request and wait for its response.
+		 */
+		@Override
+		public Response send(Request request) throws IOException {
+			return await(sendAsync(request));
+		}
+
+		@Override
+		public HTTP.Pipeline pipeline() {
+			return new HTTP.Pipeline() {
+				private final ArrayDeque<CompletableFuture<Response>> futures = new ArrayDeque<>();
+
+				@Override
+				public void add(Request message) throws IOException {
+					futures.add(sendAsync(message));
+				}
+
+				@Override
+				public void flush() throws IOException {
+					// Requests are sent as they are added
+				}
+
+				@Override
+				public Response next() throws IOException {
+					CompletableFuture<Response> future = futures.poll();
+					if (future == null) {
+						throw new IllegalStateException("no outstanding requests");
+					}
+					return await(future);
+				}
+
+				@Override
+				public int pending() {
+					return futures.size();
+				}
+			};
+		}
+
+		/**
+		 * Does nothing, since connections are shared by all endpoints for the same
+		 * host and are closed along with the client.
+		 */
+		@Override
+		public void close() {
+		}
+	}
+
+	private static Response await(CompletableFuture<Response> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (CancellationException e) {
+			throw new IOException("request cancelled", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * A request awaiting its response.
+	 */
+	private final class Exchange {
+		private final Route route;
+		private final Request request;
+		private final CompletableFuture<Response> future = new CompletableFuture<>();
+		/**
+		 * Connection on which this is being sent, if any.
+		 */
+		private volatile Connection connection;
+
+		public Exchange(Route route, Request request) {
+			this.route = route;
+			this.request = request;
+		}
+
+		/**
+		 * Check whether this can safely be sent again, should a reused connection
+		 * turn out to have been closed by the server.
+		 *
+		 * @return
+		 */
+		public boolean isIdempotent() {
+			return request.getMethod() == HTTP.Method.GET;
+		}
+
+		public void abort() {
+			if (!route.withdraw(this)) {
+				Connection c = connection;
+				if (c != null) {
+					c.worker.execute(() -> c.abort(this));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The connections to a particular host, along with the requests waiting for
+	 * one.
+	 */
+	private final class Route {
+		private final InetSocketAddress address;
+		private final String authority;
+		/**
+		 * Idle connections, with the most recently used at the front.
+		 */
+		private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+		private final ArrayDeque<Exchange> waiting = new ArrayDeque<>();
+		/**
+		 * Number of connections open (or opening), whether idle or not.
+		 */
+		private int open;
+
+		public Route(InetSocketAddress address, String authority) {
+			this.address = address;
+			this.authority = authority;
+		}
+
+		/**
+		 * Send a request on an idle connection, or a new connection, or else queue
+		 * it until a connection is released.
+		 *
+		 * @param exchange
+		 */
+		public void submit(Exchange exchange) {
+			Connection connection;
+			synchronized (this) {
+				if (closed) {
+					exchange.future.completeExceptionally(new IOException("client closed"));
+					return;
+				}
+				connection = idle.pollFirst();
+				if (connection == null) {
+					if (open == maxPerHost) {
+						waiting.add(exchange);
+						return;
+					}
+					open++;
+				}
+			}
+			if (connection != null) {
+				Connection c = connection;
+				c.worker.execute(() -> c.start(exchange, true));
+			} else {
+				Worker worker = workers[Math.floorMod(next.getAndIncrement(), workers.length)];
+				worker.execute(() -> worker.open(this, exchange));
+			}
+		}
+
+		/**
+		 * Remove a request which is still waiting for a connection.
+		 *
+		 * @param exchange
+		 * @return <code>true</code> if it was waiting.
+		 */
+		public synchronized boolean withdraw(Exchange exchange) {
+			return waiting.remove(exchange);
+		}
+
+		/**
+		 * Return a connection whose exchange has completed, either handing it
+		 * straight to a waiting request or making it idle.
+		 *
+		 * @param connection
+		 * @return The request to send next on the connection, if any.
+		 */
+		public synchronized Exchange release(Connection connection) {
+			Exchange exchange = waiting.poll();
+			if (exchange == null) {
+				idle.addFirst(connection);
+			}
+			return exchange;
+		}
+
+		/**
+		 * Account for a connection which has been closed, opening a replacement if
+		 * requests are waiting.
+		 *
+		 * @param connection The connection closed, or <code>null</code> if it
+		 *                   could not be opened.
+		 */
+		public void closed(Connection connection) {
+			Exchange exchange;
+			synchronized (this) {
+				idle.remove(connection);
+				open--;
+				exchange = waiting.poll();
+				if (exchange == null) {
+					return;
+				}
+				open++;
+			}
+			Worker worker = workers[Math.floorMod(next.getAndIncrement(), workers.length)];
+			worker.execute(() -> worker.open(this, exchange));
+		}
+
+		public void close() {
+			ArrayDeque<Exchange> failed;
+			synchronized (this) {
+				failed = new ArrayDeque<>(waiting);
+				waiting.clear();
+			}
+			for (Exchange exchange : failed) {
+				exchange.future.completeExceptionally(new IOException("client closed"));
+			}
+		}
+	}
+
+	/**
+	 * A selector thread, which is responsible for reading and writing on a
+	 * subset of the connections.
+	 */
+	private final class Worker implements Runnable {
+		private final Selector selector;
+		/**
+		 * Tasks to be run on this worker's thread, such as sending requests.
+		 */
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private Thread thread;
+
+		public Worker() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Run a given task on this worker's thread, either immediately (if already
+		 * on it) or at the next opportunity.
+		 *
+		 * @param task
+		 */
+		public void execute(Runnable task) {
+			if (Thread.currentThread() == thread) {
+				task.run();
+			} else {
+				tasks.add(task);
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Open a new connection to a given host, on which to send a given request.
+		 *
+		 * @param route
+		 * @param exchange
+		 */
+		public void open(Route route, Exchange exchange) {
+			if (exchange.future.isDone()) {
+				// Timed out or cancelled before the connection was opened
+				route.closed(null);
+				return;
+			}
+			SocketChannel socket = null;
+			try {
+				socket = SocketChannel.open();
+				socket.configureBlocking(false);
+				socket.socket().setTcpNoDelay(true);
+				SelectionKey key = socket.register(selector, 0);
+				Connection connection = new Connection(this, route, socket, key);
+				key.attach(connection);
+				if (socket.connect(route.address)) {
+					connection.start(exchange, false);
+				} else {
+					connection.exchange = exchange;
+					exchange.connection = connection;
+					key.interestOps(SelectionKey.OP_CONNECT);
+				}
+			} catch (IOException | RuntimeException e) {
+				// Including an address which could not be resolved
+				if (socket != null) {
+					closeQuietly(socket);
+				}
+				exchange.future.completeExceptionally(e);
+				route.closed(null);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					selector.select();
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							// A task which fails must not stop the connections of every other
+						}
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isConnectable()) {
+								connection.connected();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.write();
+							}
+							if (key.isValid() && key.isReadable()) {
+								connection.read();
+							}
+						} catch (IOException | RuntimeException e) {
+							connection.fail(e);
+						}
+					}
+				}
+			} catch (IOException e) {
+				// Selector failed, so this worker cannot continue
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					((Connection) key.attachment()).fail(new IOException("client closed"));
+				}
+				closeQuietly(selector);
+			}
+		}
+	}
+
+	/**
+	 * A single connection to a host, over which one request at a time is sent.
+	 */
+	private final class Connection {
+		private final Worker worker;
+		private final Route route;
+		private final SocketChannel socket;
+		private final SelectionKey key;
+		private final HttpParser parser = new HttpParser();
+		private byte[] buffer;
+		private ByteBuffer input;
+		/**
+		 * Index one past the last byte read into the buffer.
+		 */
+		private int end;
+		/**
+		 * Exchange in progress, or <code>null</code> if idle.
+		 */
+		private Exchange exchange;
+		/**
+		 * Indicates whether the current exchange is on a connection which was
+		 * previously idle (and so may have been closed by the server).
+		 */
+		private boolean reused;
+		private boolean headParsed;
+		private ByteBuffer[] pending;
+		private long remaining;
+		private boolean closed;
+
+		public Connection(Worker worker, Route route, SocketChannel socket, SelectionKey key) {
+			this.worker = worker;
+			this.route = route;
+			this.socket = socket;
+			this.key = key;
+		}
+
+		/**
+		 * Begin sending a request on this connection.
+		 *
+		 * @param exchange
+		 * @param reused
+		 */
+		public void start(Exchange exchange, boolean reused) {
+			if (closed) {
+				// Closed whilst idle, so try again
+				route.submit(exchange);
+				return;
+			} else if (exchange.future.isDone()) {
+				// Timed out or cancelled whilst waiting
+				release();
+				return;
+			}
+			this.exchange = exchange;
+			this.reused = reused;
+			exchange.connection = this;
+			try {
+				ByteBuffer[] buffers = AbstractMessage.toByteBuffers(exchange.request);
+				if (buffers == null) {
+					// Body can only be streamed, so assemble the request instead
+					ByteArrayOutputStream output = new ByteArrayOutputStream();
+					exchange.request.writeln(output);
+					exchange.request.getBody().write(output);
+					buffers = new ByteBuffer[] { ByteBuffer.wrap(output.toByteArray()) };
+				}
+				long total = 0;
+				for (ByteBuffer buffer : buffers) {
+					total += buffer.remaining();
+				}
+				pending = buffers;
+				remaining = total;
+				if (buffer == null) {
+					buffer = BufferPool.DEFAULT.acquire(bufferSize);
+					input = ByteBuffer.wrap(buffer);
+				}
+				end = 0;
+				headParsed = false;
+				parser.reset();
+				write();
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		public void connected() throws IOException {
+			socket.finishConnect();
+			Exchange e = exchange;
+			exchange = null;
+			start(e, false);
+		}
+
+		public void write() throws IOException {
+			remaining -= socket.write(pending);
+			if (remaining > 0) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				pending = null;
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		public void read() throws IOException {
+			if (exchange == null) {
+				// Data (or end of stream) on an idle connection
+				close();
+				return;
+			} else if (end == buffer.length) {
+				grow(buffer.length + 1L);
+			}
+			input.limit(buffer.length).position(end);
+			int n = socket.read(input);
+			if (n < 0) {
+				if (headParsed && parser.endOfStream()) {
+					complete(false);
+				} else if (end == 0 && reused && exchange.isIdempotent()) {
+					// Server closed the connection whilst it was idle
+					Exchange e = exchange;
+					exchange = null;
+					close();
+					route.submit(e);
+				} else {
+					throw new EOFException("unexpected end of stream");
+				}
+				return;
+			}
+			end = end + n;
+			process();
+		}
+
+		/**
+		 * Parse as much of the response as possible from the buffer, completing
+		 * the exchange once it has been received in full.
+		 *
+		 * @throws IOException
+		 */
+		private void process() throws IOException {
+			while (!headParsed) {
+				if (!parser.parseHead(buffer, end)) {
+					return;
+				}
+				int status = parseStatus(buffer);
+				if (status >= 100 && status < 200 && status != HTTP.SWITCHING_PROTOCOLS) {
+					// Discard interim response
+					int start = parser.getPosition();
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end = end - start;
+					parser.reset();
+					continue;
+				}
+				headParsed = true;
+				parser.expectResponseBody(buffer, status);
+				if (parser.getBodyLength() > maxBodySize) {
+					throw new ProtocolException("response body exceeds maximum size");
+				}
+				// The buffer then grows only as the body actually arrives (see read()),
+				// since a server can claim any length within the limit
+			}
+			if (parser.parseBody(buffer, end)) {
+				complete(parser.getPosition() == end && parser.isPersistent(buffer));
+			} else if (parser.getBodyEnd() - parser.getBodyStart() > maxBodySize) {
+				throw new ProtocolException("response body exceeds maximum size");
+			}
+		}
+
+		/**
+		 * Complete the current exchange with a copy of the response, and then
+		 * either reuse or close this connection.
+		 *
+		 * @param reusable
+		 */
+		private void complete(boolean reusable) {
+			int bodyStart = parser.getBodyStart();
+			byte[] head = Arrays.copyOf(buffer, bodyStart);
+			int bodyLength = parser.getBodyEnd() - bodyStart;
+			Entity body = new ByteArrayEntity(Arrays.copyOfRange(buffer, bodyStart, bodyStart + bodyLength));
+			Response response = new AbstractResponse(head, parser.getLines(), parser.getNumLines(), body) {
+			};
+			Exchange e = exchange;
+			exchange = null;
+			e.connection = null;
+			if (reusable && !AsyncClient.this.closed) {
+				release();
+			} else {
+				close();
+			}
+			e.future.complete(response);
+		}
+
+		private void release() {
+			Exchange e = route.release(this);
+			if (e != null) {
+				start(e, true);
+			}
+		}
+
+		/**
+		 * Abort a given exchange, if it is still in progress on this connection.
+		 * The connection cannot be reused, since part of the exchange may already
+		 * have taken place.
+		 *
+		 * @param e
+		 */
+		public void abort(Exchange e) {
+			if (exchange == e) {
+				exchange = null;
+				close();
+			}
+		}
+
+		/**
+		 * Fail the current exchange (if any), and close this connection.
+		 *
+		 * @param cause
+		 */
+		public void fail(Throwable cause) {
+			Exchange e = exchange;
+			exchange = null;
+			close();
+			if (e != null) {
+				e.future.completeExceptionally(cause);
+			}
+		}
+
+		private void close() {
+			if (!closed) {
+				closed = true;
+				key.cancel();
+				closeQuietly(socket);
+				if (buffer != null) {
+					BufferPool.DEFAULT.release(buffer);
+					buffer = null;
+					input = null;
+				}
+				route.closed(this);
+			}
+		}
+
+		private void grow(long capacity) throws ProtocolException {
+			if (capacity > Integer.MAX_VALUE - 8) {
+				throw new ProtocolException("response too large");
+			} else if (capacity > buffer.length) {
+				int size = (int) Math.max(capacity, Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8));
+				byte[] grown = BufferPool.DEFAULT.acquire(size);
+				System.arraycopy(buffer, 0, grown, 0, end);
+				BufferPool.DEFAULT.release(buffer);
+				buffer = grown;
+				input = ByteBuffer.wrap(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Parse the status code from the status line at the start of a buffer.
+	 *
+	 * @param buffer
+	 * @return
+	 * @throws ProtocolException
+	 */
+	private static int parseStatus(byte[] buffer) throws ProtocolException {
+		int i = 0;
+		while (buffer[i] != ' ' && buffer[i] != '\r') {
+			i = i + 1;
+		}
+		int code = 0;
+		for (int j = i + 1; j != i + 4; ++j) {
+			int digit = buffer[j] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new ProtocolException("invalid status code");
+			}
+			code = (code * 10) + digit;
+		}
+		return code;
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing useful can be done here
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package jtinyhttp.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.Headers;
+
+/**
+ * A server which serves each connection on its own thread using blocking I/O,
+ * via <code>BufferedHttpConnection.Server</code>. This is intended for use with
+ * virtual threads, where a thread blocked on an idle connection costs little
+ * more than the connection itself. The number of requests being handled at any
+ * one time is capped, which bounds the work in progress irrespective of how many
+ * connections are open. Connections whose requests exceed the cap simply wait
+ * (rather than being rejected), which applies back pressure to the clients.
+ * <p>
+ * Cleartext HTTP/2 can optionally be enabled, in which case clients may either
+ * open a connection with the HTTP/2 preface or upgrade from HTTP/1.1. The
+ * streams of an HTTP/2 connection are handled concurrently on the executor,
+ * subject to the same cap.
+ * <p>
+ * Since a thread blocked on a connection cannot notice time passing, timeouts
+ * for every connection are tracked on one timer wheel, which is expired by a
+ * thread of its own.
+ * <p>
+ * Connections are plain (not channel-backed) sockets, so a
+ * <code>FileEntity</code> is copied through user space rather than sent with
+ * <code>transferTo()</code>; use <code>SelectorServer</code> for zero-copy.
+ */
+public class BlockingServer {
+	private final HTTP.Handler handler;
+	private final ServerSocket socket;
+	private final ExecutorService executor;
+	/**
+	 * Permits for requests being handled.
+	 */
+	private final Semaphore inflight;
+	/**
+	 * Initial size of the buffer for each connection.
+	 */
+	private final int bufferSize;
+	/**
+	 * Receives events from every connection.
+	 */
+	private final Metrics metrics;
+	/**
+	 * Tracks the timeouts of every connection, and is expired by a thread of its
+	 * own.
+	 */
+	private final TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE);
+	private volatile HttpTimeouts timeouts = HttpTimeouts.DEFAULT;
+	private Thread acceptor;
+	private Thread timer;
+	private volatile boolean closed;
+	private volatile boolean http2;
+	private volatile HttpLimits limits = HttpLimits.DEFAULT;
+
+	/**
+	 * Construct a server where each connection is run as a task on a given
+	 * executor, such as that returned by <code>newVirtualThreadExecutor()</code>.
+	 *
+	 * @param address
+	 * @param executor
+	 * @param maxInflight Maximum number of requests being handled at once.
+	 * @param bufferSize
+	 * @param handler
+	 * @throws IOException
+	 */
+	public BlockingServer(InetSocketAddress address, ExecutorService executor, int maxInflight, int bufferSize,
+			HTTP.Handler handler) throws IOException {
+		this(address, executor, maxInflight, bufferSize, Metrics.NONE, handler);
+	}
+
+	/**
+	 * Construct a server which records metrics from its connections (e.g. to an
+	 * <code>HttpMetrics</code>).
+	 *
+	 * @param address
+	 * @param executor
+	 * @param maxInflight Maximum number of requests being handled at once.
+	 * @param bufferSize
+	 * @param metrics
+	 * @param handler
+	 * @throws IOException
+	 */
+	public BlockingServer(InetSocketAddress address, ExecutorService executor, int maxInflight, int bufferSize,
+			Metrics metrics, HTTP.Handler handler) throws IOException {
+		this.handler = handler;
+		this.metrics = metrics;
+		this.executor = executor;
+		this.inflight = new Semaphore(maxInflight);
+		this.bufferSize = bufferSize;
+		this.socket = new ServerSocket();
+		this.socket.bind(address, 1024);
+	}
+
+	/**
+	 * Get the port this server is listening on.
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Set the limits on the size of requests, which apply to connections accepted
+	 * from now on. Requests which exceed them are rejected with the corresponding
+	 * status code, and their connection closed. By default,
+	 * <code>HttpLimits.DEFAULT</code> applies.
+	 *
+	 * @param limits
+	 */
+	public void setLimits(HttpLimits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Set the timeouts for connections accepted from now on. By default,
+	 * <code>HttpTimeouts.DEFAULT</code> applies.
+	 *
+	 * @param timeouts
+	 */
+	public void setTimeouts(HttpTimeouts timeouts) {
+		this.timeouts = timeouts;
+	}
+
+	/**
+	 * Enable (or disable) cleartext HTTP/2 on connections accepted from now on.
+	 *
+	 * @param enabled
+	 */
+	public void setHttp2Enabled(boolean enabled) {
+		this.http2 = enabled;
+	}
+
+	/**
+	 * Begin accepting connections.
+	 */
+	public void start() {
+		acceptor = new Thread(this::accept, "BlockingServer-acceptor");
+		acceptor.start();
+		timer = new Thread(this::expire, "BlockingServer-timer");
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	/**
+	 * Stop accepting connections and shutdown the executor. Connections already
+	 * open are closed once their current request has been handled.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		closed = true;
+		socket.close();
+		executor.shutdownNow();
+		timer.interrupt();
+	}
+
+	/**
+	 * Expire the timeouts of connections once a tick until the server is closed.
+	 */
+	private void expire() {
+		try {
+			while (!closed) {
+				Thread.sleep(TICK);
+				wheel.expire();
+			}
+		} catch (InterruptedException e) {
+			// Server is shutting down
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket client = socket.accept();
+				client.setTcpNoDelay(true);
+				try {
+					executor.execute(() -> serve(client));
+				} catch (RejectedExecutionException e) {
+					client.close();
+				}
+			} catch (SocketException e) {
+				// Server socket closed
+				return;
+			} catch (IOException e) {
+				// Failure to accept one connection should not stop the server
+			}
+		}
+	}
+
+	/**
+	 * Serve requests from a given client until the connection is closed.
+	 *
+	 * @param client
+	 */
+	private void serve(Socket client) {
+		BufferedHttpConnection.Server connection = new BufferedHttpConnection.Server(client, bufferSize,
+				BufferPool.DEFAULT, metrics);
+		connection.setLimits(limits);
+		connection.setTimeouts(wheel, timeouts);
+		boolean rejected = false;
+		try {
+			if (http2 && connection.isHttp2Preface()) {
+				serveHttp2(client, connection, null);
+				return;
+			}
+			do {
+				Request request;
+				try {
+					request = connection.receive();
+				} catch (HttpException e) {
+					connection.send(ErrorResponses.get(e.getStatusCode()));
+					rejected = true;
+					break;
+				} catch (ProtocolException e) {
+					connection.send(ErrorResponses.BAD_REQUEST);
+					rejected = true;
+					break;
+				}
+				if (request == null) {
+					break;
+				} else if (http2 && isUpgrade(request)) {
+					connection.send(Http2Connection.SWITCHING_PROTOCOLS);
+					serveHttp2(client, connection, request);
+					return;
+				}
+				inflight.acquire();
+				try {
+					handler.handle(request, connection);
+					connection.awaitResponse();
+				} catch (IOException | RuntimeException e) {
+					connection.send(ErrorResponses.INTERNAL_SERVER_ERROR);
+				} finally {
+					inflight.release();
+				}
+			} while (!closed && connection.isPersistent());
+		} catch (InterruptedException | InterruptedIOException e) {
+			// Server is shutting down
+		} catch (IOException e) {
+			// Connection failed, so nothing more can be done with it
+		} finally {
+			try {
+				if (rejected) {
+					connection.closeRejected();
+				} else {
+					connection.close();
+				}
+			} catch (IOException e) {
+				// Nothing useful can be done here
+			}
+		}
+	}
+
+	/**
+	 * Serve a connection over HTTP/2 until it is closed, where each stream is
+	 * handled as a separate task on the executor.
+	 *
+	 * @param client
+	 * @param connection Connection holding any bytes already read.
+	 * @param upgrade    Request which asked to upgrade the connection, or
+	 *                   <code>null</code> if the client sent the preface.
+	 * @throws IOException
+	 */
+	private void serveHttp2(Socket client, BufferedHttpConnection.Server connection, Request upgrade)
+			throws IOException {
+		InputStream in = new SequenceInputStream(new ByteArrayInputStream(connection.takeBuffered()),
+				client.getInputStream());
+		Http2Connection.Server h2 = new Http2Connection.Server(client, in, executor, MAX_HTTP2_STREAMS, metrics,
+				handler) {
+			@Override
+			protected void handle(Request request, Http2Connection.Stream stream) {
+				try {
+					inflight.acquire();
+				} catch (InterruptedException e) {
+					reset(stream.getId(), Http2Frame.REFUSED_STREAM);
+					return;
+				}
+				try {
+					super.handle(request, stream);
+				} finally {
+					inflight.release();
+				}
+			}
+		};
+		h2.setMaxBodySize(limits.getMaxBodySize());
+		if (upgrade == null) {
+			h2.serve();
+		} else {
+			h2.serve(upgrade);
+		}
+	}
+
+	/**
+	 * Check whether a request asks to upgrade its connection to cleartext
+	 * HTTP/2.
+	 *
+	 * @param request
+	 * @return
+	 */
+	private static boolean isUpgrade(Request request) {
+		String upgrade = request.getFirstValue(Headers.UPGRADE);
+		if (upgrade == null || request.getFirstValue(Headers.HTTP2_SETTINGS) == null
+				|| !HTTP.V1_1.equals(request.getVersion())) {
+			return false;
+		}
+		for (String token : upgrade.split(",")) {
+			if (token.trim().equalsIgnoreCase(Http2Connection.UPGRADE_TOKEN)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Maximum number of streams a client may have open on an HTTP/2 connection.
+	 */
+	private static final int MAX_HTTP2_STREAMS = 100;
+
+	/**
+	 * Resolution of the timer wheel (in milliseconds), and the number of buckets,
+	 * which together cover just under a minute per revolution.
+	 */
+	private static final long TICK = 100;
+	private static final int WHEEL_SIZE = 512;
+
+	/**
+	 * Create an executor which runs each task on a new virtual thread. Virtual
+	 * threads are only available from Java 21 and, on earlier versions, this falls
+	 * back to a cached pool of platform threads.
+	 *
+	 * @return
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package jtinyhttp.util;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of buffers, which allows the buffers of short-lived connections to be
+ * reused rather than churned through the garbage collector. Buffers are grouped
+ * into size classes (powers of two) and each request is rounded up to the
+ * nearest class, so a buffer released by one connection can serve any other of
+ * similar size. Buffers larger than the largest class are not pooled.
+ *
+ * Each platform thread has a small cache per size class, such that a thread
+ * which repeatedly acquires and releases buffers does so without contention.
+ * Beyond this, buffers are kept on a global free list for each class, whose
+ * total size is bounded. Virtual threads bypass their cache, since they rarely
+ * live long enough to reuse it.
+ *
+ * Both heap arrays and (off-heap) direct buffers are pooled, though separately.
+ * Connections use heap arrays, since messages are parsed directly from them.
+ * In debug mode, the pool records where each buffer was acquired so that any
+ * buffers not released can be reported, and buffers released twice are
+ * detected.
+ */
+public final class BufferPool {
+	/**
+	 * The pool used by connections unless otherwise specified. Debug mode is
+	 * enabled by setting the system property <code>jtinyhttp.debug.buffers</code>.
+	 */
+	public static final BufferPool DEFAULT = new BufferPool(64 * 1024 * 1024, 8,
+			Boolean.getBoolean("jtinyhttp.debug.buffers"));
+
+	private final Arena<byte[]> heap;
+	private final Arena<ByteBuffer> direct;
+	/**
+	 * Where each outstanding buffer was acquired, or <code>null</code> when not
+	 * in debug mode. Buffers are compared by identity.
+	 */
+	private final Map<Object, Throwable> leases;
+
+	/**
+	 * Construct a pool with given bounds.
+	 *
+	 * @param maxPooledBytes  Maximum number of bytes held on the global free lists
+	 *                        (for each of heap and direct buffers).
+	 * @param threadCacheSize Maximum number of buffers of each size class cached
+	 *                        by each thread.
+	 * @param debug           Whether to track outstanding buffers.
+	 */
+	public BufferPool(long maxPooledBytes, int threadCacheSize, boolean debug) {
+		this.heap = new Arena<byte[]>(maxPooledBytes, threadCacheSize) {
+			@Override
+			protected byte[] allocate(int capacity) {
+				return new byte[capacity];
+			}
+
+			@Override
+			protected int capacity(byte[] buffer) {
+				return buffer.length;
+			}
+		};
+		this.direct = new Arena<ByteBuffer>(maxPooledBytes, threadCacheSize) {
+			@Override
+			protected ByteBuffer allocate(int capacity) {
+				return ByteBuffer.allocateDirect(capacity);
+			}
+
+			@Override
+			protected int capacity(ByteBuffer buffer) {
+				return buffer.capacity();
+			}
+		};
+		this.leases = debug ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+	}
+
+	/**
+	 * Acquire an array of at least a given size. The array is not cleared.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public byte[] acquire(int size) {
+		return track(heap.acquire(size));
+	}
+
+	/**
+	 * Return an array to this pool. The array must not be used after this.
+	 *
+	 * @param buffer
+	 */
+	public void release(byte[] buffer) {
+		heap.release(untrack(buffer));
+	}
+
+	/**
+	 * Acquire a direct buffer with a capacity of at least a given size. The buffer
+	 * is cleared, but its contents are not.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer acquireDirect(int size) {
+		ByteBuffer buffer = direct.acquire(size);
+		buffer.clear();
+		return track(buffer);
+	}
+
+	/**
+	 * Return a direct buffer to this pool. The buffer must not be used after this.
+	 *
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		if (!buffer.isDirect()) {
+			throw new IllegalArgumentException("buffer not direct");
+		}
+		direct.release(untrack(buffer));
+	}
+
+	/**
+	 * Get the number of bytes currently held on the global free lists.
+	 *
+	 * @return
+	 */
+	public long getPooledBytes() {
+		return heap.pooled() + direct.pooled();
+	}
+
+	/**
+	 * Get the number of buffers acquired but not yet released, which is only
+	 * tracked in debug mode.
+	 *
+	 * @return
+	 */
+	public int getOutstanding() {
+		return leases == null ? 0 : leases.size();
+	}
+
+	/**
+	 * Get a trace of where each buffer acquired but not yet released was
+	 * acquired, which is only tracked in debug mode. This allows leaks to be
+	 * found, for example at shutdown or at the end of a test.
+	 *
+	 * @return
+	 */
+	public List<Throwable> getLeaks() {
+		if (leases == null) {
+			return Collections.emptyList();
+		}
+		synchronized (leases) {
+			return new ArrayList<>(leases.values());
+		}
+	}
+
+	private <T> T track(T buffer) {
+		if (leases != null) {
+			leases.put(buffer, new Throwable("buffer acquired here"));
+		}
+		return buffer;
+	}
+
+	private <T> T untrack(T buffer) {
+		if (leases != null && leases.remove(buffer) == null) {
+			throw new IllegalStateException("buffer released twice, or not acquired from this pool");
+		}
+		return buffer;
+	}
+
+	/**
+	 * Determine the size class for a given size, or -1 if it is too large to be
+	 * pooled.
+	 *
+	 * @param size
+	 * @return
+	 */
+	static int sizeClass(int size) {
+		if (size <= MIN_CLASS_SIZE) {
+			return 0;
+		} else if (size > MAX_CLASS_SIZE) {
+			return -1;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * The buffers of a given kind (i.e. heap or direct) held by a pool.
+	 * @param <T>
+	 */
+	private static abstract class Arena<T> {
+		private final FreeList[] free = new FreeList[NUM_CLASSES];
+		private final ThreadLocal<Cache> caches;
+
+		public Arena(long maxPooledBytes, int threadCacheSize) {
+			for (int i = 0; i != NUM_CLASSES; ++i) {
+				long capacity = maxPooledBytes / NUM_CLASSES / (MIN_CLASS_SIZE << i);
+				free[i] = new FreeList((int) Math.min(Math.max(capacity, 1), Integer.MAX_VALUE - 8));
+			}
+			this.caches = ThreadLocal.withInitial(
+					() -> (threadCacheSize == 0 || isVirtual(Thread.currentThread())) ? NO_CACHE
+							: new Cache(threadCacheSize));
+		}
+
+		protected abstract T allocate(int capacity);
+
+		protected abstract int capacity(T buffer);
+
+		@SuppressWarnings("unchecked")
+		public T acquire(int size) {
+			final int c = sizeClass(size);
+			if (c < 0) {
+				return allocate(size);
+			}
+			Object buffer = caches.get().pop(c);
+			if (buffer == null) {
+				buffer = free[c].pop();
+			}
+			return (buffer != null) ? (T) buffer : allocate(MIN_CLASS_SIZE << c);
+		}
+
+		public void release(T buffer) {
+			final int capacity = capacity(buffer);
+			final int c = sizeClass(capacity);
+			if (c < 0 || capacity != (MIN_CLASS_SIZE << c)) {
+				// Not allocated by this pool, so leave it for the garbage collector
+				return;
+			} else if (!caches.get().push(c, buffer)) {
+				// If the free list is also full, then the buffer is dropped
+				free[c].push(buffer);
+			}
+		}
+
+		public long pooled() {
+			long total = 0;
+			for (int i = 0; i != NUM_CLASSES; ++i) {
+				total += (long) free[i].size() * (MIN_CLASS_SIZE << i);
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * A bounded stack of free buffers for one size class, which is shared by all
+	 * threads.
+	 */
+	private static final class FreeList {
+		private final Object[] items;
+		private int count;
+
+		public FreeList(int capacity) {
+			this.items = new Object[capacity];
+		}
+
+		public synchronized Object pop() {
+			if (count == 0) {
+				return null;
+			}
+			Object item = items[--count];
+			items[count] = null;
+			return item;
+		}
+
+		public synchronized boolean push(Object item) {
+			if (count == items.length) {
+				return false;
+			}
+			items[count++] = item;
+			return true;
+		}
+
+		public synchronized int size() {
+			return count;
+		}
+	}
+
+	/**
+	 * A small stack of free buffers for each size class, which belongs to a
+	 * single thread.
+	 */
+	private static final class Cache {
+		private final Object[][] items;
+		private final int[] counts;
+
+		public Cache(int capacity) {
+			this.items = new Object[NUM_CLASSES][capacity];
+			this.counts = new int[NUM_CLASSES];
+		}
+
+		public Object pop(int c) {
+			int count = counts[c];
+			if (count == 0) {
+				return null;
+			}
+			Object item = items[c][--count];
+			items[c][count] = null;
+			counts[c] = count;
+			return item;
+		}
+
+		public boolean push(int c, Object item) {
+			int count = counts[c];
+			if (count == items[c].length) {
+				return false;
+			}
+			items[c][count] = item;
+			counts[c] = count + 1;
+			return true;
+		}
+	}
+
+	/**
+	 * Check whether a given thread is virtual, which is only possible from Java
+	 * 21.
+	 *
+	 * @param thread
+	 * @return
+	 */
+	static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL != null) {
+			try {
+				return (Boolean) IS_VIRTUAL.invoke(thread);
+			} catch (ReflectiveOperationException e) {
+				// Fall through
+			}
+		}
+		return false;
+	}
+
+	private static final Method IS_VIRTUAL;
+
+	static {
+		Method method;
+		try {
+			method = Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			method = null;
+		}
+		IS_VIRTUAL = method;
+	}
+
+	private static final Cache NO_CACHE = new Cache(0);
+
+	private static final int MIN_CLASS_SHIFT = 9;
+	private static final int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+	private static final int MAX_CLASS_SIZE = 1 << 20;
+	private static final int NUM_CLASSES = 20 - MIN_CLASS_SHIFT + 1;
+}
@@ -1,59 +1,1394 @@
 package jtinyhttp.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
 import jtinyhttp.core.HTTP.Request;
 import jtinyhttp.core.HTTP.Response;
 
 public abstract class BufferedHttpConnection implements HTTP.Connection {
 	protected final Socket socket;
-	protected final byte[] buffer;
+	protected byte[] buffer;
+	/**
+	 * Index of the first byte in the buffer which has not been consumed.
+	 */
+	protected int start;
+	/**
+	 * Index one past the last byte in the buffer which has been read from the
+	 * socket.
+	 */
+	protected int end;
+	/**
+	 * Parser used for reading messages directly out of the buffer.
+	 */
+	protected final HttpParser parser = new HttpParser();
+	/**
+	 * Pool from which the buffer is leased, and to which it is returned on close.
+	 */
+	private final BufferPool pool;
+	/**
+	 * Buffers replaced when growing, which may still be referenced by the current
+	 * message and so are only returned to the pool once it is finished with.
+	 */
+	private ArrayList<byte[]> retired;
+	private boolean released;
+	/**
+	 * Guards closing this connection and, for a server, sending a response, either
+	 * of which may happen on a thread other than that of this connection. This is
+	 * a lock rather than a monitor, since blocking whilst holding a monitor pins a
+	 * virtual thread to its carrier.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Receives events from this connection, or <code>Metrics.NONE</code> if
+	 * they are not recorded.
+	 */
+	protected final Metrics metrics;
+	/**
+	 * Output stream of the socket, which counts the bytes written through it.
+	 */
+	private CountingOutputStream out;
+	/**
+	 * Number of bytes read and written, which are only updated by the thread of
+	 * this connection but may be read by others (e.g. to check for progress).
+	 */
+	private volatile long bytesRead;
+	private volatile long bytesWritten;
+	/**
+	 * Time spent parsing the head of the current message, which is only
+	 * measured when metrics are recorded.
+	 */
+	protected long parseNanos;
 
 	public BufferedHttpConnection(Socket socket, int size) {
+		this(socket, size, BufferPool.DEFAULT);
+	}
+
+	public BufferedHttpConnection(Socket socket, int size, BufferPool pool) {
+		this(socket, size, pool, Metrics.NONE);
+	}
+
+	public BufferedHttpConnection(Socket socket, int size, BufferPool pool, Metrics metrics) {
 		this.socket = socket;
-		this.buffer = new byte[size];
+		this.pool = pool;
+		this.metrics = metrics;
+		this.buffer = pool.acquire(size);
+		metrics.connectionOpened();
 	}
 
+	/**
+	 * Get the number of bytes read from the socket so far.
+	 *
+	 * @return
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Get the number of bytes written to the socket so far.
+	 *
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Close the socket, and return the buffer to the pool. Any messages received
+	 * are invalid after this.
+	 */
 	@Override
 	public void close() throws IOException {
-		socket.close();
+		try {
+			socket.close();
+		} finally {
+			lock.lock();
+			try {
+				if (!released) {
+					released = true;
+					releaseRetired();
+					pool.release(buffer);
+					metrics.connectionClosed();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
 
-	public class Client extends BufferedHttpConnection implements HTTP.ClientConnection {
+	public static class Client extends BufferedHttpConnection implements HTTP.ClientConnection {
+		/**
+		 * Indicates whether the connection can be reused after the last response.
+		 */
+		private boolean reusable;
+		/**
+		 * Holds request heads which have been queued but not yet written.
+		 */
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		/**
+		 * Number of requests sent (or queued) whose responses are yet to be received.
+		 */
+		private int outstanding;
+		/**
+		 * Body of the response most recently received, which may not yet have been
+		 * consumed.
+		 */
+		private ResponseBody body;
+		/**
+		 * Largest response body which will be accepted.
+		 */
+		private long maxBodySize = Long.MAX_VALUE;
+		/**
+		 * Times at which the outstanding requests were sent, oldest first, as a
+		 * circular buffer starting at <code>sentStart</code>. Only the first
+		 * <code>stamped</code> have been sent, since the rest are queued awaiting a
+		 * flush. These are only measured when metrics are recorded.
+		 */
+		private long[] sent = new long[4];
+		private int sentStart;
+		private int stamped;
+		/**
+		 * Time at which bytes were last read from the socket, and at which the first
+		 * byte of the response being received arrived (or zero if it has not). These
+		 * are only measured when metrics are recorded.
+		 */
+		private long filled;
+		private long firstByte;
 
 		public Client(Socket socket, int size) {
 			super(socket, size);
 		}
 
+		public Client(Socket socket, int size, BufferPool pool) {
+			super(socket, size, pool);
+		}
+
+		public Client(Socket socket, int size, BufferPool pool, Metrics metrics) {
+			super(socket, size, pool, metrics);
+		}
+
+		/**
+		 * Set the largest response body which will be accepted. A response whose
+		 * body exceeds this causes a <code>ProtocolException</code>, and the
+		 * connection to be closed.
+		 *
+		 * @param maxBodySize
+		 */
+		public void setMaxBodySize(long maxBodySize) {
+			this.maxBodySize = maxBodySize;
+		}
+
+		/**
+		 * Send a request to the server and parse the head of its response. The
+		 * response returned (including its headers and body) is a view onto the
+		 * buffer of this connection, and is therefore only valid until the next
+		 * request is sent. The body is a <code>ResponseBody</code> which is read from
+		 * the connection as it is consumed, so memory use is bounded by the size of
+		 * the buffer irrespective of the size of the body. Any part of the body not
+		 * consumed is discarded before the next response is read.
+		 */
 		@Override
 		public Response send(Request message) throws IOException {
-			// Write request to server
-			message.write(socket.getOutputStream());
-			// Read response from server
-			InputStream in = socket.getInputStream();
-			byte[] data = read(buffer,in);
-			// Parse data and return response
-			return null;
+			if (outstanding != 0) {
+				throw new IllegalStateException("pipelined responses outstanding");
+			}
+			write(message);
+			flush();
+			return next();
+		}
+
+		/**
+		 * Create a pipeline over this connection. As for <code>send()</code>, each
+		 * response returned from the pipeline is a view onto the buffer of this
+		 * connection, and is therefore only valid until the next response is received.
+		 * Requests should be flushed in modest batches, since the server may stop
+		 * reading whilst its responses are not being consumed.
+		 */
+		@Override
+		public HTTP.Pipeline pipeline() {
+			return new Pipeline();
+		}
+
+		private final class Pipeline implements HTTP.Pipeline {
+
+			@Override
+			public void add(Request message) throws IOException {
+				write(message);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				Client.this.flush();
+			}
+
+			@Override
+			public Response next() throws IOException {
+				return Client.this.next();
+			}
+
+			@Override
+			public int pending() {
+				return outstanding;
+			}
+		}
+
+		/**
+		 * Queue a request in the output buffer. The message head is buffered so that
+		 * several requests can be written with a single flush, whilst any body is
+		 * streamed directly to the socket.
+		 *
+		 * @param message
+		 * @throws IOException
+		 */
+		private void write(Request message) throws IOException {
+			message.writeln(output);
+			Entity body = message.getBody();
+			if (body != null) {
+				flush();
+				writeBody(body);
+			}
+			outstanding = outstanding + 1;
+			if (metrics != Metrics.NONE) {
+				if (outstanding > sent.length) {
+					long[] grown = new long[sent.length * 2];
+					for (int i = 0; i != outstanding - 1; ++i) {
+						grown[i] = sent[(sentStart + i) % sent.length];
+					}
+					sent = grown;
+					sentStart = 0;
+				}
+				if (body != null) {
+					// The whole request has now been sent, rather than queued
+					stamp();
+				}
+			}
+		}
+
+		private void flush() throws IOException {
+			OutputStream out = out();
+			if (output.size() != 0) {
+				output.writeTo(out);
+				output.reset();
+				if (metrics != Metrics.NONE) {
+					stamp();
+				}
+			}
+			out.flush();
+		}
+
+		/**
+		 * Record the current time as the time at which every outstanding request not
+		 * yet stamped was sent.
+		 */
+		private void stamp() {
+			long now = System.nanoTime();
+			for (; stamped < outstanding; ++stamped) {
+				sent[(sentStart + stamped) % sent.length] = now;
+			}
+		}
+
+		private Response next() throws IOException {
+			if (outstanding == 0) {
+				throw new IllegalStateException("no outstanding requests");
+			}
+			flush();
+			if (body != null) {
+				body.discard(Long.MAX_VALUE);
+			}
+			outstanding = outstanding - 1;
+			long requestSent = 0;
+			if (metrics != Metrics.NONE) {
+				requestSent = sent[sentStart];
+				sentStart = (sentStart + 1) % sent.length;
+				stamped = stamped - 1;
+				// The response may have started arriving along with the previous one
+				firstByte = (end > start) ? filled : 0;
+			}
+			Response response = receive(socket.getInputStream());
+			if (metrics != Metrics.NONE) {
+				metrics.responseReceived(response.getStatusCode(), Math.max(0, firstByte - requestSent));
+			}
+			return response;
+		}
+
+		@Override
+		protected int fill(InputStream input) throws IOException {
+			int length = super.fill(input);
+			if (length > 0 && metrics != Metrics.NONE) {
+				filled = System.nanoTime();
+				if (firstByte == 0) {
+					firstByte = filled;
+				}
+			}
+			return length;
+		}
+
+		/**
+		 * Discard the unconsumed part of the current response body, provided no more
+		 * than a given number of bytes remain. Otherwise, the body is aborted since
+		 * it is cheaper to open a new connection than read it.
+		 *
+		 * @param limit
+		 * @return <code>true</code> if the body was discarded.
+		 */
+		public boolean discardBody(long limit) {
+			try {
+				return body == null || body.discard(limit);
+			} catch (IOException e) {
+				body.abort();
+				return false;
+			}
+		}
+
+		/**
+		 * Check whether this connection can be reused for another request, based on
+		 * the response most recently received.
+		 *
+		 * @return
+		 */
+		public boolean isReusable() {
+			return reusable && outstanding == 0;
+		}
+
+		/**
+		 * Check whether this connection has become unusable whilst idle, for example
+		 * because the server closed it. This blocks for at most a millisecond.
+		 *
+		 * @return
+		 */
+		public boolean isStale() {
+			if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+				return true;
+			}
+			compact();
+			if (end != 0) {
+				// Bytes already buffered are unsolicited (e.g. a 408 sent whilst idle)
+				return true;
+			}
+			try {
+				int timeout = socket.getSoTimeout();
+				socket.setSoTimeout(1);
+				try {
+					// Any data (or end of stream) here is unsolicited
+					return fill(socket.getInputStream()) != 0;
+				} finally {
+					socket.setSoTimeout(timeout);
+				}
+			} catch (SocketTimeoutException e) {
+				return false;
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+		/**
+		 * Read the next response from a given input stream into the buffer. Any
+		 * informational (1XX) responses are skipped.
+		 *
+		 * @param in
+		 * @return
+		 * @throws IOException
+		 */
+		protected Response receive(InputStream in) throws IOException {
+			reusable = false;
+			body = null;
+			while (true) {
+				if (!readHead(in)) {
+					throw new EOFException("unexpected end of stream");
+				}
+				int[] lines = parser.getLines();
+				int numLines = parser.getNumLines();
+				Response response = new AbstractResponse(buffer, lines, numLines, null) {
+				};
+				int status = response.getStatusCode();
+				if (status >= 100 && status < 200 && status != HTTP.SWITCHING_PROTOCOLS) {
+					// Discard interim response
+					start = parser.getPosition();
+					continue;
+				}
+				parser.expectResponseBody(buffer, status);
+				if (parser.getBodyLength() > maxBodySize) {
+					close();
+					throw new ProtocolException("response body exceeds maximum size");
+				}
+				boolean persistent = !parser.isEndOfStreamDelimited() && parser.isPersistent(buffer);
+				body = new ResponseBody(in, persistent, parser.getBodyLength());
+				return new AbstractResponse(buffer, lines, parser.getKeyEnds(), numLines, body) {
+				};
+			}
+		}
+
+		/**
+		 * The body of a response, which is consumed lazily from the buffer of the
+		 * connection. The buffer is refilled from the socket only once the bytes
+		 * already in it have been consumed, at which point they are discarded. Thus,
+		 * bodies of any size can be read without growing the buffer. The body can be
+		 * consumed either as a stream or channel, or by writing it to another stream.
+		 * In all cases, it can be read only once.
+		 */
+		public final class ResponseBody extends InputStream implements Entity, ReadableByteChannel {
+			private final InputStream in;
+			private final boolean persistent;
+			private final long length;
+			/**
+			 * Index in the buffer of the next byte of the body to be consumed.
+			 */
+			private int position;
+			/**
+			 * Number of decoded bytes of the body which have been discarded from the
+			 * buffer.
+			 */
+			private long discarded;
+			private boolean complete;
+			private boolean aborted;
+
+			private ResponseBody(InputStream in, boolean persistent, long length) throws IOException {
+				this.in = in;
+				this.persistent = persistent;
+				this.length = length;
+				this.position = parser.getBodyStart();
+				if (parser.parseBody(buffer, end)) {
+					finish();
+				}
+			}
+
+			@Override
+			public long getLength() {
+				return length;
+			}
+
+			/**
+			 * Check whether the whole body has been received from the connection
+			 * (though not necessarily consumed).
+			 *
+			 * @return
+			 */
+			public boolean isComplete() {
+				return complete;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if (!ensureData()) {
+					return -1;
+				}
+				return buffer[position++] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) throws IOException {
+				if (length == 0) {
+					return 0;
+				} else if (!ensureData()) {
+					return -1;
+				}
+				int n = Math.min(length, parser.getBodyEnd() - position);
+				System.arraycopy(buffer, position, bytes, offset, n);
+				position += n;
+				return n;
+			}
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				if (!dst.hasRemaining()) {
+					return 0;
+				} else if (!ensureData()) {
+					return -1;
+				}
+				int n = Math.min(dst.remaining(), parser.getBodyEnd() - position);
+				dst.put(buffer, position, n);
+				position += n;
+				return n;
+			}
+
+			@Override
+			public int available() {
+				return aborted ? 0 : parser.getBodyEnd() - position;
+			}
+
+			@Override
+			public void write(OutputStream out) throws IOException {
+				while (ensureData()) {
+					int n = parser.getBodyEnd() - position;
+					out.write(buffer, position, n);
+					position += n;
+				}
+			}
+
+			/**
+			 * Discard the remainder of this body, provided no more than a given number
+			 * of bytes remain. Otherwise, the body is aborted.
+			 *
+			 * @param limit
+			 * @return <code>true</code> if the body was discarded.
+			 * @throws IOException
+			 */
+			public boolean discard(long limit) throws IOException {
+				if (aborted) {
+					return false;
+				} else if (length >= 0 && length - consumed() > limit) {
+					abort();
+					return false;
+				}
+				long count = 0;
+				while (ensureData()) {
+					count += parser.getBodyEnd() - position;
+					position = parser.getBodyEnd();
+					if (count > limit) {
+						abort();
+						return false;
+					}
+				}
+				return true;
+			}
+
+			/**
+			 * Stop reading this body, and close the connection. This is the cheapest
+			 * way to abandon a large body, though the connection cannot then be reused.
+			 */
+			public void abort() {
+				if (!aborted) {
+					aborted = true;
+					complete = true;
+					reusable = false;
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// Nothing useful can be done here
+					}
+				}
+			}
+
+			@Override
+			public boolean isOpen() {
+				return !aborted;
+			}
+
+			/**
+			 * Close this body, discarding any small remainder so the connection can be
+			 * reused and otherwise aborting it.
+			 */
+			@Override
+			public void close() throws IOException {
+				discard(DRAIN_LIMIT);
+			}
+
+			private long consumed() {
+				return discarded + (position - parser.getBodyStart());
+			}
+
+			/**
+			 * Ensure there are bytes of the body in the buffer waiting to be consumed,
+			 * reading more from the connection if necessary.
+			 *
+			 * @return <code>false</code> if the end of the body has been reached.
+			 * @throws IOException
+			 */
+			private boolean ensureData() throws IOException {
+				if (aborted) {
+					throw new IOException("response body aborted");
+				} else if (socket.isClosed()) {
+					// Buffer may have been returned to the pool
+					throw new IOException("connection closed");
+				}
+				while (position == parser.getBodyEnd()) {
+					if (complete) {
+						return false;
+					}
+					reclaim();
+					if (parser.parseBody(buffer, end)) {
+						finish();
+					} else if (position == parser.getBodyEnd()) {
+						if (end == buffer.length) {
+							// Only when a chunk size or trailer line fills the buffer
+							ensureCapacity(buffer.length + 1L);
+						}
+						if (fill(in) < 0) {
+							if (!parser.endOfStream()) {
+								throw new EOFException("unexpected end of stream");
+							}
+							finish();
+						}
+					}
+					if (discarded + (parser.getBodyEnd() - parser.getBodyStart()) > maxBodySize) {
+						abort();
+						throw new ProtocolException("response body exceeds maximum size");
+					}
+				}
+				return true;
+			}
+
+			/**
+			 * Discard the consumed bytes of the body from the buffer, by moving the
+			 * unparsed bytes which follow down to the start of the body.
+			 */
+			private void reclaim() {
+				final int bodyStart = parser.getBodyStart();
+				final int from = parser.getPosition();
+				if (from != bodyStart) {
+					System.arraycopy(buffer, from, buffer, bodyStart, end - from);
+					end = end - (from - bodyStart);
+					discarded += parser.getBodyEnd() - bodyStart;
+					parser.discardBody();
+					position = bodyStart;
+				}
+			}
+
+			private void finish() {
+				complete = true;
+				start = parser.getPosition();
+				reusable = persistent;
+			}
+		}
+	}
+
+	/**
+	 * Represents a connection from the server to a client, over which requests are
+	 * received and responses sent using blocking I/O.
+	 */
+	public static class Server extends BufferedHttpConnection implements HTTP.ServerConnection {
+		/**
+		 * Holds the head of the response, so it can be written with the body in one
+		 * go.
+		 */
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		/**
+		 * Guards the phase against the timeout expiring, and is never held whilst
+		 * blocked, such that the thread of the wheel cannot be stalled by a client.
+		 */
+		private final ReentrantLock phaseLock = new ReentrantLock();
+		/**
+		 * Signalled once the current request has received a response.
+		 */
+		private final Condition respondedSignal = lock.newCondition();
+		/**
+		 * Indicates whether the connection can persist after the current request.
+		 */
+		private boolean keepAlive;
+		/**
+		 * Indicates whether the current request has received a response.
+		 */
+		private boolean responded = true;
+		/**
+		 * Time at which the current request was received, which is only measured
+		 * when metrics are recorded.
+		 */
+		private long received;
+		/**
+		 * Wheel on which the timeouts of this connection are scheduled, or
+		 * <code>null</code> if there are none.
+		 */
+		private TimerWheel wheel;
+		private HttpTimeouts timeouts = HttpTimeouts.NONE;
+		private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::expired);
+		/**
+		 * Current phase of this connection, which is guarded by the phase lock
+		 * since it is checked when the timeout expires on the thread of the wheel.
+		 */
+		private int phase = NONE;
+		/**
+		 * Time at which the current phase began, and the number of bytes read or
+		 * written by then, from which the minimum transfer rate is enforced.
+		 */
+		private long phaseStart;
+		private long phaseBytes;
+		/**
+		 * Number of bytes read or written when progress was last seen (by the
+		 * timeout), and the time at which it was seen.
+		 */
+		private long progressBytes;
+		private long progressTime;
+		/**
+		 * Indicates whether the body of the current request is being read.
+		 */
+		private boolean readingBody;
+		/**
+		 * Indicates the current request timed out before it was received, such that
+		 * it should be answered with <code>REQUEST_TIMEOUT</code>.
+		 */
+		private volatile boolean timedOut;
+
+		public Server(Socket socket, int size) {
+			super(socket, size);
+		}
+
+		public Server(Socket socket, int size, BufferPool pool) {
+			super(socket, size, pool);
+		}
+
+		public Server(Socket socket, int size, BufferPool pool, Metrics metrics) {
+			super(socket, size, pool, metrics);
+		}
+
+		/**
+		 * Read the next request from the client. The request returned (including its
+		 * headers and body) is a view onto the buffer of this connection, and is
+		 * therefore only valid until a response to it is sent.
+		 *
+		 * @return The request, or <code>null</code> if the client closed the
+		 *         connection cleanly.
+		 * @throws ProtocolException If the request is malformed.
+		 * @throws IOException
+		 */
+		public Request receive() throws IOException {
+			if (!responded) {
+				throw new IllegalStateException("previous request awaiting response");
+			}
+			// Should the request be rejected whilst being read, it can still be
+			// answered with a canned response
+			responded = false;
+			received = 0;
+			readingBody = false;
+			if (!readHead(socket.getInputStream())) {
+				if (end != 0) {
+					throw new EOFException("unexpected end of stream");
+				}
+				responded = true;
+				return null;
+			} else if (AbstractRequest.parseMethod(buffer) == null) {
+				throw new HttpException(HTTP.NOT_IMPLEMENTED, "unsupported method");
+			}
+			int[] lines = parser.getLines();
+			int numLines = parser.getNumLines();
+			parser.expectRequestBody(buffer);
+			readingBody = true;
+			readBody(socket.getInputStream());
+			readingBody = false;
+			phaseLock.lock();
+			try {
+				// Either the timeout has already expired, or it never will
+				if (timedOut) {
+					throw new HttpException(HTTP.REQUEST_TIMEOUT, "request timed out");
+				}
+				// The time spent handling the request is not limited
+				disarm();
+			} finally {
+				phaseLock.unlock();
+			}
+			keepAlive = parser.isPersistent(buffer);
+			responded = false;
+			if (metrics != Metrics.NONE) {
+				received = System.nanoTime();
+				metrics.requestReceived(parseNanos);
+			}
+			int bodyStart = parser.getBodyStart();
+			int bodyLength = parser.getBodyEnd() - bodyStart;
+			Entity body = (bodyLength == 0) ? null : new ByteArrayEntity(buffer, bodyStart, bodyLength);
+			return new AbstractRequest(buffer, lines, parser.getKeyEnds(), numLines, body) {
+			};
+		}
+
+		@Override
+		public void send(Response response) throws IOException {
+			lock.lock();
+			try {
+				if (responded) {
+					throw new IllegalStateException("no request awaiting response");
+				}
+				if (metrics != Metrics.NONE) {
+					metrics.responseSent(response.getStatusCode(), System.nanoTime() - received);
+				}
+				arm(WRITE);
+				try {
+					OutputStream out = out();
+					response.writeln(output);
+					output.writeTo(out);
+					Entity body = response.getBody();
+					if (body != null) {
+						out.flush();
+						writeBody(body);
+					}
+					out.flush();
+					keepAlive &= AbstractResponse.isPersistent(response);
+				} finally {
+					disarm();
+					output.reset();
+					responded = true;
+					respondedSignal.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Send a canned response, which is assumed to close the connection.
+		 *
+		 * @param response
+		 * @throws IOException
+		 */
+		public void send(byte[] response) throws IOException {
+			lock.lock();
+			try {
+				keepAlive = false;
+				if (responded) {
+					// Too late to send anything else
+					return;
+				}
+				if (metrics != Metrics.NONE) {
+					// Requests rejected whilst being read were never dispatched
+					long nanos = (received == 0) ? 0 : System.nanoTime() - received;
+					metrics.responseSent(ErrorResponses.getStatusCode(response), nanos);
+				}
+				arm(WRITE);
+				try {
+					OutputStream out = out();
+					out.write(response);
+					out.flush();
+				} finally {
+					disarm();
+					responded = true;
+					respondedSignal.signalAll();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Set the limits on the size of requests received from now on. A request
+		 * which exceeds them causes <code>receive()</code> to throw an
+		 * <code>HttpException</code> as soon as the violation is seen, such that
+		 * it can be answered with the corresponding canned response.
+		 *
+		 * @param limits
+		 */
+		public void setLimits(HttpLimits limits) {
+			parser.setLimits(limits);
+		}
+
+		/**
+		 * Apply timeouts to this connection from now on, which are scheduled on a
+		 * given wheel. The wheel must be expired by some other thread, since this
+		 * connection is blocked whilst waiting for the client.
+		 *
+		 * @param wheel
+		 * @param timeouts
+		 */
+		public void setTimeouts(TimerWheel wheel, HttpTimeouts timeouts) {
+			this.wheel = wheel;
+			this.timeouts = timeouts;
+		}
+
+		@Override
+		protected int fill(InputStream input) throws IOException {
+			if (wheel != null) {
+				int next = readingBody ? BODY : (end > start ? HEADER : IDLE);
+				phaseLock.lock();
+				try {
+					if (timedOut) {
+						throw new HttpException(HTTP.REQUEST_TIMEOUT, "request timed out");
+					}
+					arm(next);
+				} finally {
+					phaseLock.unlock();
+				}
+			}
+			int length;
+			try {
+				length = super.fill(input);
+			} catch (IOException e) {
+				if (timedOut) {
+					throw new HttpException(HTTP.REQUEST_TIMEOUT, "request timed out");
+				}
+				throw e;
+			}
+			// The timeout shuts down input, which appears as the end of the stream
+			if (timedOut) {
+				throw new HttpException(HTTP.REQUEST_TIMEOUT, "request timed out");
+			}
+			return length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			disarm();
+			super.close();
+		}
+
+		/**
+		 * Begin a given phase, scheduling the timeout for it, unless already in
+		 * that phase. Progress within a phase is not tracked as it happens, since
+		 * that would touch the shared wheel on every read and write; instead, it is
+		 * checked when the timeout expires (see <code>expired()</code>).
+		 *
+		 * @param next
+		 */
+		private void arm(int next) {
+			if (wheel != null) {
+				phaseLock.lock();
+				try {
+					if (next != phase) {
+						long now = System.nanoTime();
+						phase = next;
+						phaseStart = now;
+						phaseBytes = bytes(next);
+						progressTime = now;
+						progressBytes = phaseBytes;
+						wheel.schedule(timeout, limit(next));
+					}
+				} finally {
+					phaseLock.unlock();
+				}
+			}
+		}
+
+		private void disarm() {
+			if (wheel != null) {
+				phaseLock.lock();
+				try {
+					phase = NONE;
+					wheel.cancel(timeout);
+				} finally {
+					phaseLock.unlock();
+				}
+			}
+		}
+
+		private long bytes(int phase) {
+			return (phase == WRITE) ? getBytesWritten() : getBytesRead();
+		}
+
+		private long limit(int phase) {
+			switch (phase) {
+			case IDLE:
+				return timeouts.getIdle();
+			case HEADER:
+				return timeouts.getHeaderRead();
+			case BODY:
+				return timeouts.getBodyRead();
+			case WRITE:
+				return timeouts.getWrite();
+			default:
+				return 0;
+			}
+		}
+
+		/**
+		 * Determine how long remains of the current phase. The idle and header
+		 * phases have a fixed deadline from when they begin, whilst reading a body
+		 * or writing a response may continue for as long as it makes progress, at
+		 * no less than the minimum rate (see <code>HttpTimeouts</code>).
+		 *
+		 * @param now
+		 * @return The time remaining in milliseconds, which is not positive once
+		 *         the phase has timed out.
+		 */
+		private long remaining(long now) {
+			long limit = limit(phase);
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(now - phaseStart);
+			if (phase != BODY && phase != WRITE) {
+				return limit - elapsed;
+			}
+			long bytes = bytes(phase);
+			if (bytes != progressBytes) {
+				progressBytes = bytes;
+				progressTime = now;
+			}
+			long remaining = limit - TimeUnit.NANOSECONDS.toMillis(now - progressTime);
+			long minRate = timeouts.getMinRate();
+			if (minRate > 0) {
+				long transferred = bytes - phaseBytes;
+				long earned = (transferred >= Long.MAX_VALUE / 1000) ? Long.MAX_VALUE : transferred * 1000 / minRate;
+				if (earned < Long.MAX_VALUE - limit) {
+					remaining = Math.min(remaining, limit + earned - elapsed);
+				}
+			}
+			return remaining;
+		}
+
+		/**
+		 * Called on the thread of the wheel when the timeout for the current phase
+		 * expires, whilst the thread of this connection is most likely blocked on
+		 * the socket. Since the wheel is shared, this never blocks: the connection
+		 * is only marked and its socket shutdown (or closed), which wakes up the
+		 * thread of this connection. A client which is part way through sending a
+		 * request is then told so with <code>REQUEST_TIMEOUT</code> from that
+		 * thread, in which case writing the response is itself timed.
+		 */
+		private void expired() {
+			int current;
+			phaseLock.lock();
+			try {
+				current = phase;
+				if (current == NONE || limit(current) <= 0) {
+					// Scheduled for a phase which has since ended
+					return;
+				}
+				long remaining = remaining(System.nanoTime());
+				if (remaining > 0) {
+					// Scheduled for an earlier phase, or there has been progress since
+					wheel.schedule(timeout, remaining);
+					return;
+				} else if (current == HEADER || current == BODY) {
+					timedOut = true;
+				}
+			} finally {
+				phaseLock.unlock();
+			}
+			try {
+				if (current == HEADER || current == BODY) {
+					socket.shutdownInput();
+				} else if (current == IDLE) {
+					// Client has sent nothing, so can be treated as having closed
+					socket.shutdownInput();
+				} else if (current == WRITE) {
+					// Client has stopped reading, so whatever remains unsent is discarded
+					socket.setSoLinger(true, 0);
+					socket.close();
+				} else if (current != NONE) {
+					socket.close();
+				}
+			} catch (IOException e) {
+				try {
+					socket.close();
+				} catch (IOException ex) {
+					// Nothing more can be done
+				}
+			}
+		}
+
+		/**
+		 * Close this connection after rejecting a request. This first finishes
+		 * sending, and then discards whatever the client is still sending (up to a
+		 * limit), since closing a socket with unread bytes resets the connection.
+		 * That could otherwise destroy the error response before the client has
+		 * read it.
+		 *
+		 * @throws IOException
+		 */
+		public void closeRejected() throws IOException {
+			try {
+				disarm();
+				if (!socket.isOutputShutdown()) {
+					socket.shutdownOutput();
+				}
+				socket.setSoTimeout(LINGER_TIMEOUT);
+				InputStream in = socket.getInputStream();
+				long discarded = 0;
+				int n;
+				while (discarded < LINGER_LIMIT && (n = in.read(buffer)) >= 0) {
+					discarded += n;
+				}
+			} catch (IOException e) {
+				// Client has gone, or is taking too long
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Wait until a response has been sent for the current request, which may
+		 * happen on another thread.
+		 *
+		 * @throws InterruptedIOException
+		 */
+		public void awaitResponse() throws InterruptedIOException {
+			lock.lock();
+			try {
+				while (!responded) {
+					respondedSignal.await();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Check whether the client opened this connection with the HTTP/2 preface
+		 * (i.e. it has prior knowledge of HTTP/2 support). This reads only as far as
+		 * needed to decide, and consumes nothing from the buffer.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		public boolean isHttp2Preface() throws IOException {
+			compact();
+			byte[] preface = Http2Frame.PREFACE;
+			ensureCapacity(preface.length);
+			for (int i = 0; i != preface.length; ++i) {
+				while (i >= end) {
+					if (fill(socket.getInputStream()) < 0) {
+						return false;
+					}
+				}
+				if (buffer[i] != preface[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Remove any bytes which have been read from the socket but not yet
+		 * consumed, such as when handing the connection over to another protocol.
+		 *
+		 * @return
+		 */
+		public byte[] takeBuffered() {
+			// The new protocol applies its own timeouts (if any)
+			disarm();
+			byte[] bytes = Arrays.copyOfRange(buffer, start, end);
+			start = end;
+			return bytes;
+		}
+
+		/**
+		 * Check whether another request can be received on this connection, based on
+		 * the last request and response.
+		 *
+		 * @return
+		 */
+		public boolean isPersistent() {
+			return keepAlive;
 		}
 	}
 
 	/**
+	 * Read the head of the next message into the buffer, which begins with any
+	 * bytes left over from the previous message.
+	 *
+	 * @param in
+	 * @return <code>false</code> if the end of stream was reached first.
+	 * @throws IOException
+	 */
+	protected boolean readHead(InputStream in) throws IOException {
+		// Previous message is no longer valid, so buffers it referenced can be reused
+		releaseRetired();
+		compact();
+		parser.reset();
+		parseNanos = 0;
+		while (!parseHead()) {
+			if (end == buffer.length) {
+				ensureCapacity(buffer.length + 1L);
+			}
+			if (fill(in) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse as much of the message head as is in the buffer, accumulating the
+	 * time taken when metrics are recorded.
+	 *
+	 * @return <code>true</code> if the head is complete.
+	 * @throws ProtocolException
+	 */
+	private boolean parseHead() throws ProtocolException {
+		if (metrics == Metrics.NONE) {
+			return parser.parseHead(buffer, end);
+		}
+		long time = System.nanoTime();
+		try {
+			return parser.parseHead(buffer, end);
+		} finally {
+			parseNanos += System.nanoTime() - time;
+		}
+	}
+
+	/**
+	 * Read the body of the current message into the buffer, once its framing has
+	 * been determined.
+	 *
+	 * @param in
+	 * @throws IOException
+	 */
+	protected void readBody(InputStream in) throws IOException {
+		while (!parser.parseBody(buffer, end)) {
+			// Grow only as the body actually arrives, rather than to its declared
+			// length, since a client can claim any length within the limits
+			if (end == buffer.length) {
+				ensureCapacity(buffer.length + 1L);
+			}
+			if (fill(in) < 0) {
+				if (!parser.endOfStream()) {
+					throw new EOFException("unexpected end of stream");
+				}
+				break;
+			}
+		}
+		start = parser.getPosition();
+	}
+
+	/**
+	 * Write a message body directly to the socket. Files are transferred using
+	 * <code>FileChannel.transferTo()</code> when the socket is backed by a
+	 * channel, and are otherwise copied in chunks.
+	 * <p>
+	 * Note that the sockets opened by <code>BlockingServer</code> and
+	 * <code>ConnectionPool</code> are plain sockets, so files are always copied
+	 * on those paths; zero-copy transfer is only done by
+	 * <code>SelectorServer</code>. Plain sockets are kept deliberately: the
+	 * streams of a channel's socket adaptor serialise reads against writes (on
+	 * Java 8), which would stall a connection writing while it reads.
+	 *
+	 * @param body
+	 * @throws IOException
+	 */
+	protected void writeBody(Entity body) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		if (channel != null && body instanceof FileEntity) {
+			FileEntity file = (FileEntity) body;
+			file.write(channel);
+			written(file.getLength());
+		} else {
+			body.write(out());
+		}
+	}
+
+	/**
+	 * Get the output stream of the socket, through which all bytes should be
+	 * written so they are counted.
 	 *
-	 * @param input
 	 * @return
 	 * @throws IOException
 	 */
-	private static byte[] read(byte[] buffer, InputStream input) throws IOException {
-		ByteArrayOutputStream result = new ByteArrayOutputStream();
-		int length;
-		while ((length = input.read(buffer)) != -1) {
-		    result.write(buffer, 0, length);
+	protected OutputStream out() throws IOException {
+		if (out == null) {
+			out = new CountingOutputStream(socket.getOutputStream());
+		}
+		return out;
+	}
+
+	/**
+	 * Move any unconsumed bytes down to the start of the buffer, such that the
+	 * next message begins at index 0.
+	 */
+	protected void compact() {
+		if (start != 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end = end - start;
+			start = 0;
+		}
+	}
+
+	/**
+	 * Read as many bytes as are available from a given input stream into the
+	 * free space at the end of the buffer.
+	 *
+	 * @param input
+	 * @return The number of bytes read, or -1 at the end of the stream.
+	 * @throws IOException
+	 */
+	protected int fill(InputStream input) throws IOException {
+		int length = input.read(buffer, end, buffer.length - end);
+		if (length > 0) {
+			end = end + length;
+			bytesRead += length;
+			metrics.bytesRead(length);
+		}
+		return length;
+	}
+
+	/**
+	 * Record a given number of bytes as having been written to the socket.
+	 *
+	 * @param length
+	 */
+	protected void written(long length) {
+		bytesWritten += length;
+		metrics.bytesWritten(length);
+	}
+
+	/**
+	 * Counts the bytes written to the socket, and passes writes of arrays
+	 * straight through (rather than byte-by-byte, as
+	 * <code>FilterOutputStream</code> does).
+	 */
+	private final class CountingOutputStream extends FilterOutputStream {
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			written(1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			written(length);
+		}
+	}
+
+	/**
+	 * Ensure the buffer can hold at least a given number of bytes, by growing it
+	 * if necessary. Existing indices into the buffer remain valid.
+	 *
+	 * @param capacity
+	 * @throws ProtocolException
+	 */
+	protected void ensureCapacity(long capacity) throws ProtocolException {
+		if (capacity > MAX_BUFFER_SIZE) {
+			throw new ProtocolException("message exceeds maximum buffer size");
+		} else if (capacity > buffer.length) {
+			long size = Math.max(capacity, Math.min(buffer.length * 2L, MAX_BUFFER_SIZE));
+			byte[] grown = pool.acquire((int) size);
+			System.arraycopy(buffer, 0, grown, 0, end);
+			if (retired == null) {
+				retired = new ArrayList<>();
+			}
+			retired.add(buffer);
+			buffer = grown;
 		}
-		return result.toByteArray();
 	}
+
+	private void releaseRetired() {
+		if (retired != null) {
+			for (byte[] old : retired) {
+				pool.release(old);
+			}
+			retired = null;
+		}
+	}
+
+	private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Time (in milliseconds) and number of bytes for which a rejected request
+	 * continues to be read and discarded before its connection is closed.
+	 */
+	private static final int LINGER_TIMEOUT = 1000;
+	private static final long LINGER_LIMIT = 1024 * 1024;
+
+	/**
+	 * Phases of a server connection, each of which has its own timeout.
+	 */
+	private static final int NONE = 0;
+	private static final int IDLE = 1;
+	private static final int HEADER = 2;
+	private static final int BODY = 3;
+	private static final int WRITE = 4;
+
+	/**
+	 * Largest remainder of a response body which is read and discarded (rather
+	 * than closing the connection) when the body is closed.
+	 */
+	public static final long DRAIN_LIMIT = 64 * 1024;
 }
@@ -0,0 +1,53 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import jtinyhttp.core.HTTP;
+
+/**
+ * An entity whose contents are a region of a byte array. The array is not
+ * copied and, hence, the entity is only valid for as long as the array is not
+ * modified (e.g. when the region belongs to the buffer of a connection).
+ */
+public class ByteArrayEntity implements HTTP.Entity {
+	private final byte[] bytes;
+	private final int start;
+	private final int length;
+
+	public ByteArrayEntity(byte[] bytes) {
+		this(bytes, 0, bytes.length);
+	}
+
+	public ByteArrayEntity(byte[] bytes, int start, int length) {
+		this.bytes = bytes;
+		this.start = start;
+		this.length = length;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public long getLength() {
+		return length;
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		out.write(bytes, start, length);
+	}
+
+	@Override
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(bytes, start, length).slice();
+	}
+
+	@Override
+	public String toString() {
+		return new String(bytes, start, length, StandardCharsets.US_ASCII);
+	}
+}
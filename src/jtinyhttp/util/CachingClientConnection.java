@@ -0,0 +1,209 @@
+package jtinyhttp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.Response;
+import jtinyhttp.core.Headers;
+
+/**
+ * A client connection which answers <code>GET</code> requests from a
+ * <code>HttpCache</code> where possible, and otherwise forwards them to an
+ * underlying connection. A fresh entry is returned without contacting the
+ * server at all. A stale entry with validators is revalidated with a
+ * conditional request (i.e. <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code>) and, when the server responds with
+ * <code>304 Not Modified</code>, the cached response is returned instead. Thus,
+ * a slowly changing resource costs at most a small exchange of headers.
+ * An entry stored for a request whose headers differ from this one in those the
+ * response varies by (see <code>Vary</code>) is not used, and is replaced by
+ * the response to this request. Responses returned from the cache are not views
+ * onto a connection buffer, and remain valid indefinitely. Pipelined requests
+ * bypass the cache.
+ */
+public class CachingClientConnection implements HTTP.ClientConnection {
+	private final HTTP.ClientConnection connection;
+	private final HttpCache cache;
+	/**
+	 * Authority (i.e. host and port) of the server, used to key requests which
+	 * don't have a <code>Host</code> header.
+	 */
+	private final String authority;
+
+	public CachingClientConnection(HTTP.ClientConnection connection, HttpCache cache, String authority) {
+		this.connection = connection;
+		this.cache = cache;
+		this.authority = authority;
+	}
+
+	@Override
+	public Response send(Request request) throws IOException {
+		String key = key(request);
+		if (request.getMethod() != HTTP.Method.GET) {
+			// An unsafe method may change the resource
+			cache.remove(key);
+			return connection.send(request);
+		}
+		String directives = HttpCache.cacheControl(request);
+		if (directives != null && HttpCache.hasDirective(directives, "no-store")) {
+			return connection.send(request);
+		}
+		boolean revalidate = directives != null && (HttpCache.hasDirective(directives, "no-cache")
+				|| HttpCache.directiveValue(directives, "max-age") == 0);
+		HttpCache.Entry entry = cache.get(key);
+		if (entry != null && !entry.matches(request)) {
+			entry = null;
+		}
+		if (entry != null && !revalidate && entry.isFresh(System.currentTimeMillis())) {
+			cache.hit();
+			return entry.getResponse();
+		}
+		Response response;
+		if (entry != null && entry.canRevalidate()) {
+			response = connection.send(entry.addValidators(request));
+			if (response.getStatusCode() == HTTP.NOT_MODIFIED) {
+				discard(response.getBody());
+				HttpCache.Entry refreshed = entry.refresh(response, System.currentTimeMillis());
+				cache.put(key, refreshed);
+				cache.revalidated();
+				return refreshed.getResponse();
+			}
+		} else {
+			response = connection.send(request);
+		}
+		cache.miss();
+		if (!HttpCache.isStorable(response)) {
+			cache.remove(key);
+			return response;
+		}
+		return store(key, request, response);
+	}
+
+	/**
+	 * Read the body of a response received from the server and store it in the
+	 * cache, returning the cached copy. If the body turns out to be too large to
+	 * cache, the response is instead returned with a body consisting of the bytes
+	 * read so far followed by the remainder.
+	 *
+	 * @param key
+	 * @param request
+	 * @param response
+	 * @return
+	 * @throws IOException
+	 */
+	private Response store(String key, Request request, Response response) throws IOException {
+		Entity body = response.getBody();
+		long limit = cache.getMaxEntrySize();
+		if (body != null && body.getLength() > limit) {
+			cache.remove(key);
+			return response;
+		}
+		byte[] bytes;
+		int length;
+		if (body == null) {
+			bytes = new byte[0];
+			length = 0;
+		} else if (body instanceof InputStream) {
+			InputStream in = (InputStream) body;
+			long known = body.getLength();
+			// Allow one byte more than the limit, to detect when it is exceeded
+			int capacity = (int) Math.min(limit, MAX_ARRAY_SIZE - 1) + 1;
+			bytes = new byte[(int) Math.min(known >= 0 ? known + 1 : INITIAL_CAPACITY, capacity)];
+			length = 0;
+			int n;
+			while ((n = in.read(bytes, length, bytes.length - length)) >= 0) {
+				length += n;
+				if (length > limit) {
+					// Too large to cache, so hand back what was read along with the rest
+					cache.remove(key);
+					return AbstractResponse.copy(response, new PrefixedEntity(bytes, length, in, known));
+				} else if (length == bytes.length) {
+					bytes = Arrays.copyOf(bytes, (int) Math.min(length * 2L, capacity));
+				}
+			}
+		} else {
+			// Body is already in memory
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			body.write(out);
+			bytes = out.toByteArray();
+			length = bytes.length;
+		}
+		HttpCache.Entry entry = cache.create(request, response, bytes, length, System.currentTimeMillis());
+		cache.put(key, entry);
+		return entry.getResponse();
+	}
+
+	@Override
+	public HTTP.Pipeline pipeline() {
+		return connection.pipeline();
+	}
+
+	@Override
+	public void close() throws IOException {
+		connection.close();
+	}
+
+	private String key(Request request) {
+		String uri = request.getURI();
+		if (!uri.startsWith("/")) {
+			// Already in absolute form
+			return uri;
+		}
+		String host = request.getFirstValue(Headers.HOST);
+		return (host == null ? authority : host) + uri;
+	}
+
+	private static void discard(Entity body) throws IOException {
+		if (body instanceof InputStream) {
+			InputStream in = (InputStream) body;
+			byte[] skip = new byte[1024];
+			while (in.read(skip) >= 0) {
+			}
+		} else if (body != null) {
+			body.write(new ByteArrayOutputStream());
+		}
+	}
+
+	/**
+	 * A body of which a prefix has already been read from a stream, and whose
+	 * remainder can still be read from it.
+	 */
+	private static final class PrefixedEntity implements Entity {
+		private final byte[] prefix;
+		private final int prefixLength;
+		private final InputStream rest;
+		private final long length;
+
+		public PrefixedEntity(byte[] prefix, int prefixLength, InputStream rest, long length) {
+			this.prefix = prefix;
+			this.prefixLength = prefixLength;
+			this.rest = rest;
+			this.length = length;
+		}
+
+		@Override
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException {
+			out.write(prefix, 0, prefixLength);
+			byte[] chunk = new byte[8192];
+			int n;
+			while ((n = rest.read(chunk)) >= 0) {
+				out.write(chunk, 0, n);
+			}
+		}
+	}
+
+	private static final int INITIAL_CAPACITY = 8192;
+
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+}
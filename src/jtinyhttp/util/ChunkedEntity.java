@@ -0,0 +1,55 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jtinyhttp.core.HTTP;
+
+/**
+ * An entity of unknown length which is sent using the chunked transfer coding.
+ * This wraps another entity (the producer) which generates the contents on
+ * demand, such as a report or export. The contents are encoded as they are
+ * written, using a buffer of at most one chunk, and therefore never need to be
+ * held in memory all at once. Messages built with this entity (e.g. through
+ * <code>MessageBuilder</code>) are given a <code>Transfer-Encoding:
+ * chunked</code> header automatically.
+ */
+public class ChunkedEntity implements HTTP.Entity {
+	private final HTTP.Entity producer;
+	private final int chunkSize;
+
+	public ChunkedEntity(HTTP.Entity producer) {
+		this(producer, DEFAULT_CHUNK_SIZE);
+	}
+
+	public ChunkedEntity(HTTP.Entity producer, int chunkSize) {
+		if (chunkSize <= 0 || chunkSize > ChunkedOutputStream.MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+		}
+		this.producer = producer;
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Get the entity which produces the content, without chunk framing. This is
+	 * needed where the connection frames the body itself (e.g. HTTP/2).
+	 *
+	 * @return
+	 */
+	public HTTP.Entity getProducer() {
+		return producer;
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out, chunkSize);
+		producer.write(chunked);
+		chunked.finish();
+	}
+
+	private static final int DEFAULT_CHUNK_SIZE = 8192;
+}
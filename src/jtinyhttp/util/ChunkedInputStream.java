@@ -0,0 +1,124 @@
+package jtinyhttp.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * An input stream which decodes a body sent using the chunked transfer coding,
+ * as it is read from an underlying stream. The underlying stream is read no
+ * further than the end of the body (i.e. the empty line after any trailer), so
+ * that it can be used for subsequent messages. Likewise, closing this stream
+ * does not close the underlying stream. Trailer fields are discarded. Size lines
+ * are read a byte at a time and, hence, the underlying stream should be
+ * buffered.
+ */
+public class ChunkedInputStream extends InputStream {
+	private final InputStream in;
+	/**
+	 * Holds the current size or trailer line.
+	 */
+	private final byte[] line = new byte[MAX_LINE_LENGTH];
+	/**
+	 * Bytes of the current chunk remaining to be read, or -1 before the first
+	 * chunk.
+	 */
+	private long remaining = -1;
+	private boolean done;
+
+	public ChunkedInputStream(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureData()) {
+			return -1;
+		}
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("unexpected end of chunked body");
+		}
+		remaining = remaining - 1;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		} else if (!ensureData()) {
+			return -1;
+		}
+		int n = in.read(bytes, offset, (int) Math.min(length, remaining));
+		if (n < 0) {
+			throw new EOFException("unexpected end of chunked body");
+		}
+		remaining = remaining - n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return done ? 0 : (int) Math.min(Math.max(remaining, 0), in.available());
+	}
+
+	@Override
+	public void close() {
+		// The underlying stream belongs to the connection
+	}
+
+	/**
+	 * Ensure there is data remaining in the current chunk, reading the next size
+	 * line (and, at the end, the trailer) as necessary.
+	 *
+	 * @return <code>false</code> if the end of the body has been reached.
+	 * @throws IOException
+	 */
+	private boolean ensureData() throws IOException {
+		if (done) {
+			return false;
+		} else if (remaining > 0) {
+			return true;
+		} else if (remaining == 0) {
+			// End of chunk data
+			if (readLine() != 0) {
+				throw new ProtocolException("invalid chunk: missing line end");
+			}
+		}
+		int length = readLine();
+		remaining = HttpParser.parseChunkSize(line, 0, length);
+		if (remaining == 0) {
+			// Discard trailer fields up to the empty line
+			while (readLine() != 0) {
+			}
+			done = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read a line into the line buffer, excluding its line end.
+	 *
+	 * @return The length of the line.
+	 * @throws IOException
+	 */
+	private int readLine() throws IOException {
+		int length = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("unexpected end of chunked body");
+			} else if (b == '\n' && length > 0 && line[length - 1] == '\r') {
+				return length - 1;
+			} else if (length == line.length) {
+				throw new ProtocolException("invalid chunk: line too long");
+			}
+			line[length++] = (byte) b;
+		}
+	}
+
+	private static final int MAX_LINE_LENGTH = 4096;
+}
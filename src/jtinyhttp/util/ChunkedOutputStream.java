@@ -0,0 +1,131 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream which encodes everything written to it using the chunked
+ * transfer coding. Data is accumulated in a fixed-size buffer, and each chunk
+ * (i.e. its size line, data and line end) is written to the underlying stream
+ * with a single call once the buffer is full, or when flushed. Thus, memory use
+ * is bounded by the chunk size irrespective of how much is written. Closing this
+ * stream writes the last chunk, but does not close the underlying stream (which
+ * is typically a connection).
+ */
+public class ChunkedOutputStream extends OutputStream {
+	private final OutputStream out;
+	/**
+	 * Holds the size line, data and line end of the current chunk. The size line
+	 * is written backwards from <code>DATA_START</code>, once the size is known.
+	 */
+	private final byte[] buffer;
+	/**
+	 * Index one past the last byte of data in the buffer.
+	 */
+	private int end = DATA_START;
+	private boolean finished;
+
+	public ChunkedOutputStream(OutputStream out, int chunkSize) {
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+		}
+		this.out = out;
+		this.buffer = new byte[DATA_START + chunkSize + 2];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (end == buffer.length - 2) {
+			writeChunk();
+		}
+		buffer[end++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		ensureOpen();
+		while (length > 0) {
+			if (end == buffer.length - 2) {
+				writeChunk();
+			}
+			int n = Math.min(length, buffer.length - 2 - end);
+			System.arraycopy(bytes, offset, buffer, end, n);
+			end += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Write any buffered data as a chunk, and then flush the underlying stream.
+	 * Once finished, there is no data left to write, so this only flushes.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (!finished) {
+			writeChunk();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write any buffered data, followed by the last chunk and the (empty)
+	 * trailer. Nothing further can be written after this.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (!finished) {
+			writeChunk();
+			out.write(LAST_CHUNK);
+			finished = true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.flush();
+	}
+
+	private void ensureOpen() throws IOException {
+		if (finished) {
+			throw new IOException("stream finished");
+		}
+	}
+
+	private void writeChunk() throws IOException {
+		int length = end - DATA_START;
+		if (length == 0) {
+			// An empty chunk would mark the end of the body
+			return;
+		}
+		int start = DATA_START - 2;
+		buffer[start] = '\r';
+		buffer[start + 1] = '\n';
+		do {
+			buffer[--start] = HEX[length & 0xF];
+			length >>>= 4;
+		} while (length != 0);
+		buffer[end++] = '\r';
+		buffer[end++] = '\n';
+		out.write(buffer, start, end - start);
+		end = DATA_START;
+	}
+
+	/**
+	 * Room for the largest size line (i.e. seven hex digits and a line end).
+	 */
+	private static final int DATA_START = 9;
+
+	/**
+	 * The largest chunk which can be written, which matches the largest accepted
+	 * by <code>HttpParser</code>.
+	 */
+	public static final int MAX_CHUNK_SIZE = 0xFFFFFFF;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+}
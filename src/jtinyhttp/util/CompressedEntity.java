@@ -0,0 +1,115 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import jtinyhttp.core.HTTP;
+
+/**
+ * An entity which compresses another entity (the producer) as it is written,
+ * using either the <code>gzip</code> or <code>deflate</code> content coding.
+ * The compressed length is not known in advance and, hence, this is typically
+ * sent within a <code>ChunkedEntity</code> (see <code>ContentEncoder</code>).
+ * Creating a <code>Deflater</code> is expensive and each holds native memory,
+ * so they are reused by each (platform) thread rather than created for every
+ * message.
+ */
+public class CompressedEntity implements HTTP.Entity {
+	private final HTTP.Entity producer;
+	private final boolean gzip;
+	private final int level;
+
+	/**
+	 * Construct an entity which compresses a given producer.
+	 *
+	 * @param producer
+	 * @param coding   Either <code>"gzip"</code> or <code>"deflate"</code>.
+	 * @param level    Compression level, from 0 (none) to 9 (best).
+	 */
+	public CompressedEntity(HTTP.Entity producer, String coding, int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("invalid compression level: " + level);
+		} else if (coding.equalsIgnoreCase(GZIP)) {
+			this.gzip = true;
+		} else if (coding.equalsIgnoreCase(DEFLATE)) {
+			this.gzip = false;
+		} else {
+			throw new IllegalArgumentException("unsupported content coding: " + coding);
+		}
+		this.producer = producer;
+		this.level = level;
+	}
+
+	/**
+	 * Get the name of the content coding applied.
+	 *
+	 * @return
+	 */
+	public String getCoding() {
+		return gzip ? GZIP : DEFLATE;
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		Deflater deflater = acquire(level, gzip);
+		byte[] buffer = BufferPool.DEFAULT.acquire(BUFFER_SIZE);
+		try {
+			CompressingOutputStream compressed = new CompressingOutputStream(out, deflater, gzip, buffer);
+			producer.write(compressed);
+			compressed.finish();
+		} finally {
+			BufferPool.DEFAULT.release(buffer);
+			release(deflater, level, gzip);
+		}
+	}
+
+	/**
+	 * Take a deflater with a given level from the current thread's cache, or
+	 * create one if there is none. The deflater is removed from the cache whilst
+	 * in use, such that nested compression is safe.
+	 *
+	 * @param level
+	 * @param nowrap
+	 * @return
+	 */
+	private static Deflater acquire(int level, boolean nowrap) {
+		Deflater[] cache = DEFLATERS.get();
+		int slot = slot(level, nowrap);
+		Deflater deflater = cache == null ? null : cache[slot];
+		if (deflater == null) {
+			return new Deflater(level, nowrap);
+		}
+		cache[slot] = null;
+		return deflater;
+	}
+
+	private static void release(Deflater deflater, int level, boolean nowrap) {
+		Deflater[] cache = DEFLATERS.get();
+		int slot = slot(level, nowrap);
+		if (cache == null || cache[slot] != null) {
+			// Free the native memory now, rather than waiting for the collector
+			deflater.end();
+		} else {
+			deflater.reset();
+			cache[slot] = deflater;
+		}
+	}
+
+	private static int slot(int level, boolean nowrap) {
+		return (level + 1) * 2 + (nowrap ? 1 : 0);
+	}
+
+	/**
+	 * Deflaters cached by each thread, indexed by level and wrapping. Virtual
+	 * threads are too numerous (and short lived) to cache for, so they have
+	 * none.
+	 */
+	private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(
+			() -> BufferPool.isVirtual(Thread.currentThread()) ? null : new Deflater[(Deflater.BEST_COMPRESSION + 2) * 2]);
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	private static final int BUFFER_SIZE = 8192;
+}
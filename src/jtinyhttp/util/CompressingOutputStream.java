@@ -0,0 +1,136 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * An output stream which compresses everything written to it using a given
+ * <code>Deflater</code>, producing either the <code>gzip</code> or
+ * <code>deflate</code> content coding. Unlike
+ * <code>java.util.zip.GZIPOutputStream</code>, the deflater and output buffer
+ * are supplied by the caller, so they can be reused across messages. The
+ * deflater must be created with <code>nowrap</code> for <code>gzip</code>, since
+ * this stream writes the gzip header and trailer itself. Closing this stream
+ * finishes the compressed data, but does not close the underlying stream
+ * (which is typically a connection).
+ */
+public class CompressingOutputStream extends OutputStream {
+	private final OutputStream out;
+	private final Deflater deflater;
+	private final byte[] buffer;
+	/**
+	 * Checksum of the uncompressed data, or <code>null</code> if this is not
+	 * gzip.
+	 */
+	private final CRC32 crc;
+	private boolean started;
+	private boolean finished;
+
+	/**
+	 * Construct a stream which compresses into a given output stream.
+	 *
+	 * @param out
+	 * @param deflater Deflater to use, which should have been reset.
+	 * @param gzip     Whether to produce gzip (rather than zlib) framing.
+	 * @param buffer   Buffer to hold compressed data before it is written.
+	 */
+	public CompressingOutputStream(OutputStream out, Deflater deflater, boolean gzip, byte[] buffer) {
+		this.out = out;
+		this.deflater = deflater;
+		this.buffer = buffer;
+		this.crc = gzip ? new CRC32() : null;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		if (finished) {
+			throw new IOException("stream finished");
+		} else if (length == 0) {
+			return;
+		}
+		start();
+		if (crc != null) {
+			crc.update(bytes, offset, length);
+		}
+		deflater.setInput(bytes, offset, length);
+		while (!deflater.needsInput()) {
+			deflate(Deflater.NO_FLUSH);
+		}
+	}
+
+	/**
+	 * Write all data compressed so far, and then flush the underlying stream.
+	 * This uses a sync flush, which costs a little compression.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (!finished && started) {
+			while (deflate(Deflater.SYNC_FLUSH) == buffer.length) {
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write the remaining compressed data, followed by the trailer (for gzip).
+	 * Nothing further can be written after this.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (!finished) {
+			start();
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate(Deflater.NO_FLUSH);
+			}
+			if (crc != null) {
+				long value = crc.getValue();
+				long size = deflater.getBytesRead();
+				byte[] trailer = new byte[8];
+				for (int i = 0; i != 4; ++i) {
+					trailer[i] = (byte) (value >>> (i * 8));
+					trailer[i + 4] = (byte) (size >>> (i * 8));
+				}
+				out.write(trailer);
+			}
+			finished = true;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.flush();
+	}
+
+	private void start() throws IOException {
+		if (!started) {
+			started = true;
+			if (crc != null) {
+				out.write(GZIP_HEADER);
+			}
+		}
+	}
+
+	private int deflate(int flush) throws IOException {
+		int n = deflater.deflate(buffer, 0, buffer.length, flush);
+		if (n > 0) {
+			out.write(buffer, 0, n);
+		}
+		return n;
+	}
+
+	/**
+	 * Minimal gzip header (i.e. magic number, deflate method, no flags, no
+	 * modification time and an unknown operating system).
+	 */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+}
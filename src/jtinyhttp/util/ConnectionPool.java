@@ -0,0 +1,286 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.Response;
+
+/**
+ * A pool of persistent (keep-alive) client connections, keyed by host and port.
+ * Connections are leased from the pool and returned to it when closed, at which
+ * point they are kept open for reuse provided the last response permits this.
+ * The number of connections open to any given host is bounded, and connections
+ * which have been idle for too long are evicted. A connection which has been
+ * idle for a while is validated before being reused, since the server may have
+ * closed it in the meantime.
+ */
+public class ConnectionPool {
+	private final ConcurrentHashMap<String, Route> routes = new ConcurrentHashMap<>();
+	/**
+	 * Maximum number of connections (leased or idle) to any one host.
+	 */
+	private final int maxPerHost;
+	/**
+	 * Time (in milliseconds) after which an idle connection is evicted.
+	 */
+	private final long idleTimeout;
+	/**
+	 * Time (in milliseconds) after which an idle connection must be validated
+	 * before being reused.
+	 */
+	private final long validateAfter;
+	/**
+	 * Time (in milliseconds) to wait when connecting, or when waiting for a
+	 * connection to become available.
+	 */
+	private final int connectTimeout;
+	/**
+	 * Initial buffer size for each connection.
+	 */
+	private final int bufferSize;
+	/**
+	 * Background thread responsible for evicting idle connections.
+	 */
+	private final Thread evictor;
+	private volatile boolean closed;
+
+	public ConnectionPool(int maxPerHost) {
+		this(maxPerHost, 30_000, 2_000, 10_000, 8192);
+	}
+
+	public ConnectionPool(int maxPerHost, long idleTimeout, long validateAfter, int connectTimeout, int bufferSize) {
+		this.maxPerHost = maxPerHost;
+		this.idleTimeout = idleTimeout;
+		this.validateAfter = validateAfter;
+		this.connectTimeout = connectTimeout;
+		this.bufferSize = bufferSize;
+		this.evictor = new Thread(this::evictLoop, "ConnectionPool-evictor");
+		this.evictor.setDaemon(true);
+		this.evictor.start();
+	}
+
+	/**
+	 * Lease a connection to a given host from this pool, either by reusing an idle
+	 * connection or by opening a new one. The connection must be closed once the
+	 * last response received over it has been consumed, which returns it to the
+	 * pool.
+	 *
+	 * @param host
+	 * @param port
+	 * @return
+	 * @throws IOException
+	 */
+	public PooledConnection lease(String host, int port) throws IOException {
+		if (closed) {
+			throw new IOException("connection pool closed");
+		}
+		Route route = routes.computeIfAbsent(host + ":" + port, k -> new Route(host, port));
+		try {
+			if (!route.permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+				throw new IOException("timeout waiting for connection to " + host + ":" + port);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		try {
+			BufferedHttpConnection.Client client = route.poll();
+			if (client == null) {
+				client = open(route.address);
+			}
+			return new PooledConnection(route, client);
+		} catch (IOException | RuntimeException e) {
+			route.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close all idle connections which have exceeded the idle timeout.
+	 */
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Route route : routes.values()) {
+			route.evict(now - idleTimeout);
+		}
+	}
+
+	/**
+	 * Close this pool along with all idle connections. Leased connections are
+	 * closed when they are returned.
+	 */
+	public void close() {
+		closed = true;
+		evictor.interrupt();
+		for (Route route : routes.values()) {
+			route.evict(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * A connection leased from the pool, which is returned to the pool when
+	 * closed.
+	 */
+	public final class PooledConnection implements HTTP.ClientConnection {
+		private final Route route;
+		private BufferedHttpConnection.Client client;
+
+		private PooledConnection(Route route, BufferedHttpConnection.Client client) {
+			this.route = route;
+			this.client = client;
+		}
+
+		@Override
+		public Response send(Request message) throws IOException {
+			if (client == null) {
+				throw new IllegalStateException("connection returned to pool");
+			}
+			try {
+				return client.send(message);
+			} catch (IOException | RuntimeException e) {
+				// Connection is in an unknown state, so cannot be reused
+				client.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public HTTP.Pipeline pipeline() {
+			if (client == null) {
+				throw new IllegalStateException("connection returned to pool");
+			}
+			return client.pipeline();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (client != null) {
+				BufferedHttpConnection.Client c = client;
+				client = null;
+				// Discard a small unread body, rather than the whole connection
+				if (!closed && c.discardBody(BufferedHttpConnection.DRAIN_LIMIT) && c.isReusable()
+						&& !c.socket.isClosed()) {
+					route.offer(c);
+				} else {
+					c.close();
+				}
+				route.permits.release();
+			}
+		}
+	}
+
+	private BufferedHttpConnection.Client open(InetSocketAddress address) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.connect(address, connectTimeout);
+			return new BufferedHttpConnection.Client(socket, bufferSize);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private void evictLoop() {
+		long period = Math.max(idleTimeout / 2, 100);
+		while (!closed) {
+			try {
+				Thread.sleep(period);
+			} catch (InterruptedException e) {
+				return;
+			}
+			evictIdle();
+		}
+	}
+
+	/**
+	 * Holds the idle connections for a given host and port.
+	 */
+	private final class Route {
+		private final InetSocketAddress address;
+		private final Semaphore permits;
+		/**
+		 * Idle connections, with the most recently used at the front.
+		 */
+		private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+
+		public Route(String host, int port) {
+			this.address = new InetSocketAddress(host, port);
+			this.permits = new Semaphore(maxPerHost, true);
+		}
+
+		/**
+		 * Get the most recently used idle connection which is still valid, or
+		 * <code>null</code> if there is none.
+		 *
+		 * @return
+		 */
+		public BufferedHttpConnection.Client poll() {
+			long now = System.currentTimeMillis();
+			while (true) {
+				Idle next;
+				synchronized (this) {
+					next = idle.pollFirst();
+				}
+				if (next == null) {
+					return null;
+				} else if (now - next.since < validateAfter || !next.client.isStale()) {
+					return next.client;
+				}
+				closeQuietly(next.client);
+			}
+		}
+
+		public void offer(BufferedHttpConnection.Client client) {
+			synchronized (this) {
+				idle.addFirst(new Idle(client, System.currentTimeMillis()));
+			}
+		}
+
+		/**
+		 * Close all idle connections which became idle before a given time.
+		 *
+		 * @param before
+		 */
+		public void evict(long before) {
+			while (true) {
+				Idle last;
+				synchronized (this) {
+					last = idle.peekLast();
+					if (last == null || last.since >= before) {
+						return;
+					}
+					idle.pollLast();
+				}
+				closeQuietly(last.client);
+			}
+		}
+	}
+
+	private static final class Idle {
+		private final BufferedHttpConnection.Client client;
+		private final long since;
+
+		public Idle(BufferedHttpConnection.Client client, long since) {
+			this.client = client;
+			this.since = since;
+		}
+	}
+
+	private static void closeQuietly(HTTP.Connection connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// Nothing useful can be done here
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package jtinyhttp.util;
+
+import java.util.zip.Deflater;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.Headers;
+
+/**
+ * Applies a content coding to response bodies, as negotiated by the
+ * <code>Accept-Encoding</code> header of the request. Bodies smaller than a
+ * minimum size are sent as they are, since compressing them saves little and
+ * may even increase their size. Compressed bodies are streamed using the
+ * chunked transfer coding, and so are never held in memory all at once. For
+ * example:
+ *
+ * <pre>
+ * MessageBuilder.Response builder = new MessageBuilder.Response(HTTP.OK).header(Headers.CONTENT_TYPE,
+ * 		"application/json");
+ * connection.send(encoder.build(request, builder, body));
+ * </pre>
+ */
+public class ContentEncoder {
+	private final int level;
+	private final long minSize;
+
+	public ContentEncoder() {
+		this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_SIZE);
+	}
+
+	/**
+	 * Construct an encoder with a given level and threshold.
+	 *
+	 * @param level   Compression level, from 0 (none) to 9 (best).
+	 * @param minSize Smallest body (in bytes) which is compressed. Bodies of
+	 *                unknown length are always compressed.
+	 */
+	public ContentEncoder(int level, long minSize) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("invalid compression level: " + level);
+		}
+		this.level = level;
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Build a response with a given body, compressing the body if the request
+	 * accepts a supported coding and the body is large enough. Bodies which are
+	 * already encoded (i.e. the builder has a <code>Content-Encoding</code>
+	 * header) are left alone.
+	 *
+	 * @param request
+	 * @param builder
+	 * @param body
+	 * @return
+	 */
+	public HTTP.Response build(Request request, MessageBuilder.Response builder, Entity body) {
+		if (body == null || builder.contains(Headers.CONTENT_ENCODING)) {
+			return builder.build(body);
+		}
+		long length = body.getLength();
+		if (length >= 0 && length < minSize) {
+			return builder.build(body);
+		}
+		// Caches must distinguish the representations, whichever is chosen
+		builder.header(Headers.VARY, ACCEPT_ENCODING);
+		String coding = negotiate(AbstractMessage.getCombinedValue(request, Headers.ACCEPT_ENCODING));
+		if (coding == null) {
+			return builder.build(body);
+		}
+		builder.header(Headers.CONTENT_ENCODING, coding);
+		return builder.build(new ChunkedEntity(new CompressedEntity(body, coding, level)));
+	}
+
+	/**
+	 * Choose the supported coding (if any) with the highest quality in a given
+	 * <code>Accept-Encoding</code> value, preferring <code>gzip</code> when
+	 * equal.
+	 *
+	 * @param accept
+	 * @return The coding, or <code>null</code> if none is acceptable.
+	 */
+	public static String negotiate(String accept) {
+		if (accept == null) {
+			return null;
+		}
+		int gzip = -1;
+		int deflate = -1;
+		int any = -1;
+		int start = 0;
+		while (start < accept.length()) {
+			int end = accept.indexOf(',', start);
+			if (end < 0) {
+				end = accept.length();
+			}
+			int params = accept.indexOf(';', start);
+			int nameEnd = (params < 0 || params > end) ? end : params;
+			String name = accept.substring(start, nameEnd).trim();
+			int quality = (nameEnd == end) ? 1000 : quality(accept.substring(nameEnd + 1, end));
+			if (name.equalsIgnoreCase(CompressedEntity.GZIP) || name.equalsIgnoreCase("x-gzip")) {
+				gzip = Math.max(gzip, quality);
+			} else if (name.equalsIgnoreCase(CompressedEntity.DEFLATE)) {
+				deflate = Math.max(deflate, quality);
+			} else if (name.equals("*")) {
+				any = quality;
+			}
+			start = end + 1;
+		}
+		// The wildcard only applies to codings not otherwise listed
+		gzip = gzip < 0 ? any : gzip;
+		deflate = deflate < 0 ? any : deflate;
+		if (gzip > 0 && gzip >= deflate) {
+			return CompressedEntity.GZIP;
+		} else if (deflate > 0) {
+			return CompressedEntity.DEFLATE;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Parse the quality (e.g. <code>q=0.5</code>) from the parameters of a
+	 * coding, scaled to an integer between 0 and 1000.
+	 *
+	 * @param params
+	 * @return
+	 */
+	private static int quality(String params) {
+		params = params.trim();
+		if (params.length() < 2 || (params.charAt(0) != 'q' && params.charAt(0) != 'Q') || params.charAt(1) != '=') {
+			return 1000;
+		}
+		int value = 0;
+		int digits = 0;
+		boolean fraction = false;
+		for (int i = 2; i < params.length() && digits < 4; ++i) {
+			char c = params.charAt(i);
+			if (c == '.' && !fraction) {
+				fraction = true;
+				digits = 1;
+			} else if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				digits = fraction ? digits + 1 : 1;
+			} else {
+				break;
+			}
+		}
+		// Scale to thousandths
+		for (int i = digits; i < 4; ++i) {
+			value = value * 10;
+		}
+		return Math.min(value, 1000);
+	}
+
+	private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	/**
+	 * Smallest body compressed by default, below which the saving rarely covers
+	 * the cost (e.g. a single TCP segment).
+	 */
+	private static final long DEFAULT_MIN_SIZE = 1024;
+}
@@ -0,0 +1,172 @@
+package jtinyhttp.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.Response;
+import jtinyhttp.core.Headers;
+
+/**
+ * A client connection which asks the server to compress responses (i.e. by
+ * adding an <code>Accept-Encoding</code> header to requests without one), and
+ * transparently decompresses those which are. A decompressed response has no
+ * <code>Content-Encoding</code> or <code>Content-Length</code> header, and its
+ * body is decompressed as it is read. Hence, the body remains a view onto the
+ * underlying connection, and is only valid for as long as the response it was
+ * decoded from.
+ */
+public class DecodingClientConnection implements HTTP.ClientConnection {
+	private final HTTP.ClientConnection connection;
+
+	public DecodingClientConnection(HTTP.ClientConnection connection) {
+		this.connection = connection;
+	}
+
+	@Override
+	public Response send(Request request) throws IOException {
+		return decode(connection.send(accept(request)));
+	}
+
+	@Override
+	public HTTP.Pipeline pipeline() {
+		HTTP.Pipeline pipeline = connection.pipeline();
+		return new HTTP.Pipeline() {
+			@Override
+			public void add(Request message) throws IOException {
+				pipeline.add(accept(message));
+			}
+
+			@Override
+			public void flush() throws IOException {
+				pipeline.flush();
+			}
+
+			@Override
+			public Response next() throws IOException {
+				return decode(pipeline.next());
+			}
+
+			@Override
+			public int pending() {
+				return pipeline.pending();
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		connection.close();
+	}
+
+	private static Request accept(Request request) {
+		if (request.getHeader(Headers.ACCEPT_ENCODING) != null) {
+			return request;
+		}
+		return request.addHeader(Headers.ACCEPT_ENCODING, ACCEPTED);
+	}
+
+	/**
+	 * Decode the body of a given response, if it has a supported content coding.
+	 * Responses with no coding, or some other coding, are returned as they are.
+	 *
+	 * @param response
+	 * @return
+	 * @throws IOException
+	 */
+	static Response decode(Response response) throws IOException {
+		String coding = response.getFirstValue(Headers.CONTENT_ENCODING);
+		Entity body = response.getBody();
+		if (coding == null || body == null) {
+			return response;
+		}
+		coding = coding.trim();
+		boolean gzip;
+		if (coding.equalsIgnoreCase(CompressedEntity.GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+			gzip = true;
+		} else if (coding.equalsIgnoreCase(CompressedEntity.DEFLATE)) {
+			gzip = false;
+		} else {
+			return response;
+		}
+		return AbstractResponse.copy(response, new DecodedBody(stream(body), gzip), CONTENT_ENCODING);
+	}
+
+	private static InputStream stream(Entity body) throws IOException {
+		if (body instanceof InputStream) {
+			return (InputStream) body;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		body.write(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	/**
+	 * A body which is decompressed as it is read from the original (compressed)
+	 * body. The decompressor is only created when the body is first read, so an
+	 * empty body (e.g. to <code>HEAD</code>) costs nothing.
+	 */
+	private static final class DecodedBody extends InputStream implements Entity {
+		private final InputStream in;
+		private final boolean gzip;
+		private InputStream decoded;
+
+		public DecodedBody(InputStream in, boolean gzip) {
+			this.in = in;
+			this.gzip = gzip;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return decoded().read();
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			return decoded().read(bytes, offset, length);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return decoded == null ? 0 : decoded.available();
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException {
+			InputStream source = decoded();
+			byte[] chunk = new byte[8192];
+			int n;
+			while ((n = source.read(chunk)) >= 0) {
+				out.write(chunk, 0, n);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (decoded != null) {
+				// Also releases the native memory of the inflater
+				decoded.close();
+			} else {
+				in.close();
+			}
+		}
+
+		private InputStream decoded() throws IOException {
+			if (decoded == null) {
+				decoded = gzip ? new GZIPInputStream(in, 8192) : new InflaterInputStream(in);
+			}
+			return decoded;
+		}
+	}
+
+	private static final String ACCEPTED = "gzip, deflate";
+
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+}
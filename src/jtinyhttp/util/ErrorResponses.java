@@ -0,0 +1,74 @@
+package jtinyhttp.util;
+
+import java.nio.charset.StandardCharsets;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.Headers;
+
+/**
+ * Canned responses used by servers when a request cannot be handled, each of
+ * which closes the connection. These are encoded once up front, since they are
+ * typically needed when a server is under the most pressure.
+ */
+final class ErrorResponses {
+	/**
+	 * Headers common to all canned responses, followed by the empty line.
+	 */
+	private static final byte[] SUFFIX = "Content-Length: 0\r\nConnection: close\r\n\r\n"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	public static final byte[] BAD_REQUEST = encode(HTTP.BAD_REQUEST);
+	public static final byte[] REQUEST_TIMEOUT = encode(HTTP.REQUEST_TIMEOUT);
+	public static final byte[] PAYLOAD_TOO_LARGE = encode(HTTP.PAYLOAD_TOO_LARGE);
+	public static final byte[] URI_TOO_LONG = encode(HTTP.URI_TOO_LONG);
+	public static final byte[] REQUEST_HEADER_FIELDS_TOO_LARGE = encode(HTTP.REQUEST_HEADER_FIELDS_TOO_LARGE);
+	public static final byte[] INTERNAL_SERVER_ERROR = encode(HTTP.INTERNAL_SERVER_ERROR);
+	public static final byte[] NOT_IMPLEMENTED = encode(HTTP.NOT_IMPLEMENTED);
+
+	private ErrorResponses() {
+	}
+
+	/**
+	 * Get the canned response for a given error status, defaulting to
+	 * <code>BAD_REQUEST</code>.
+	 *
+	 * @param status
+	 * @return
+	 */
+	public static byte[] get(int status) {
+		switch (status) {
+		case HTTP.REQUEST_TIMEOUT:
+			return REQUEST_TIMEOUT;
+		case HTTP.PAYLOAD_TOO_LARGE:
+			return PAYLOAD_TOO_LARGE;
+		case HTTP.URI_TOO_LONG:
+			return URI_TOO_LONG;
+		case HTTP.REQUEST_HEADER_FIELDS_TOO_LARGE:
+			return REQUEST_HEADER_FIELDS_TOO_LARGE;
+		case HTTP.INTERNAL_SERVER_ERROR:
+			return INTERNAL_SERVER_ERROR;
+		case HTTP.NOT_IMPLEMENTED:
+			return NOT_IMPLEMENTED;
+		default:
+			return BAD_REQUEST;
+		}
+	}
+
+	/**
+	 * Get the status code of a canned response, which follows the
+	 * <code>HTTP/1.1</code> at the start of its status line.
+	 *
+	 * @param response
+	 * @return
+	 */
+	public static int getStatusCode(byte[] response) {
+		return (response[9] - '0') * 100 + (response[10] - '0') * 10 + (response[11] - '0');
+	}
+
+	private static byte[] encode(int status) {
+		byte[] line = Headers.statusLine(status);
+		byte[] response = new byte[line.length + SUFFIX.length];
+		Headers.put(SUFFIX, response, Headers.put(line, response, 0));
+		return response;
+	}
+}
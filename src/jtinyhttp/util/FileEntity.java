@@ -0,0 +1,121 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import jtinyhttp.core.HTTP;
+
+/**
+ * An entity whose contents are a region of a file. The file is opened each time
+ * the entity is written, and its contents are never held on the heap all at
+ * once. When written to a channel (e.g. a <code>SocketChannel</code>) the
+ * contents are transferred using <code>FileChannel.transferTo()</code>, which
+ * allows the operating system to send the file without copying it through user
+ * space. Otherwise, the contents are copied to the stream in fixed-size chunks.
+ * <p>
+ * Only <code>SelectorServer</code> writes to a channel; the blocking server and
+ * client write to plain socket streams, and so always copy.
+ */
+public class FileEntity implements HTTP.Entity {
+	private final Path path;
+	private final long position;
+	private final long length;
+
+	public FileEntity(Path path) throws IOException {
+		this(path, 0, Files.size(path));
+	}
+
+	public FileEntity(Path path, long position, long length) {
+		this.path = path;
+		this.position = position;
+		this.length = length;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Open the underlying file for reading.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public FileChannel open() throws IOException {
+		return FileChannel.open(path, StandardOpenOption.READ);
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		try (FileChannel file = open()) {
+			byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(length, 1))];
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			long offset = 0;
+			while (offset < length) {
+				buffer.clear();
+				buffer.limit((int) Math.min(chunk.length, length - offset));
+				int n = file.read(buffer, position + offset);
+				if (n < 0) {
+					throw new IOException("file truncated: " + path);
+				}
+				out.write(chunk, 0, n);
+				offset = offset + n;
+			}
+		}
+	}
+
+	/**
+	 * Write the contents of this entity to a given blocking channel.
+	 *
+	 * @param target
+	 * @throws IOException
+	 */
+	public void write(WritableByteChannel target) throws IOException {
+		try (FileChannel file = open()) {
+			long offset = 0;
+			while (offset < length) {
+				offset = offset + transferTo(file, offset, target);
+			}
+		}
+	}
+
+	/**
+	 * Transfer as much of this entity as possible from a given offset, using a
+	 * channel previously returned from <code>open()</code>. For a non-blocking
+	 * target, this may transfer nothing.
+	 *
+	 * @param file
+	 * @param offset
+	 * @param target
+	 * @return The number of bytes transferred.
+	 * @throws IOException
+	 */
+	public long transferTo(FileChannel file, long offset, WritableByteChannel target) throws IOException {
+		long n = file.transferTo(position + offset, length - offset, target);
+		if (n == 0 && file.size() < position + length) {
+			throw new IOException("file truncated: " + path);
+		}
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return path.toString();
+	}
+
+	/**
+	 * Size of the chunks used when copying through a stream.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+}
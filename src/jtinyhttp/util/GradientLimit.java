@@ -0,0 +1,140 @@
+package jtinyhttp.util;
+
+/**
+ * A concurrency limit which adapts to the latency of the requests it admits.
+ * The latency observed without load is tracked as a baseline, against which
+ * recent latency is compared. Their
+ * ratio (i.e. the gradient) is close to one whilst there is spare capacity, in
+ * which case the limit grows in proportion to its square root, and falls
+ * towards one half as requests begin to queue inside the server, in which case
+ * the limit shrinks. Thus, the limit settles near the concurrency at which
+ * latency starts to rise, rather than having to be tuned up front. Latency is
+ * allowed to rise somewhat above the baseline before the limit shrinks, since
+ * some variation is expected.
+ * <p>
+ * The limit is adjusted once per window of samples, which is at least as large
+ * as the limit itself (i.e. roughly once per round trip through the server).
+ * Adjusting on every sample instead overshoots in both directions, since
+ * latency only reflects a change in the limit once the requests admitted under
+ * it have completed.
+ */
+public final class GradientLimit {
+	private final int minLimit;
+	private final int maxLimit;
+	private double limit;
+	/**
+	 * Average latency over the last window, and the baseline latency without
+	 * load (in nanoseconds), or zero if there have been no samples yet.
+	 */
+	private double shortRtt;
+	private double longRtt;
+	/**
+	 * Total latency and number of samples in the current window, along with the
+	 * most requests in flight at once.
+	 */
+	private long windowSum;
+	private int windowCount;
+	private int windowInflight;
+	/**
+	 * Number of requests admitted and not yet released.
+	 */
+	private int inflight;
+
+	/**
+	 * Construct a limit with a given initial value, which then varies within the
+	 * given bounds.
+	 *
+	 * @param initial
+	 * @param minLimit
+	 * @param maxLimit
+	 */
+	public GradientLimit(int initial, int minLimit, int maxLimit) {
+		if (minLimit <= 0 || maxLimit < minLimit || initial < minLimit || initial > maxLimit) {
+			throw new IllegalArgumentException("invalid limit");
+		}
+		this.limit = initial;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Admit a request, provided doing so would not exceed the limit. If admitted,
+	 * the request must later be released.
+	 *
+	 * @return <code>true</code> if the request was admitted.
+	 */
+	public synchronized boolean tryAcquire() {
+		if (inflight >= (int) limit) {
+			return false;
+		}
+		inflight = inflight + 1;
+		windowInflight = Math.max(windowInflight, inflight);
+		return true;
+	}
+
+	/**
+	 * Release a request which completed with a given latency, and adjust the limit
+	 * accordingly.
+	 *
+	 * @param rtt Latency in nanoseconds.
+	 */
+	public synchronized void release(long rtt) {
+		inflight = inflight - 1;
+		windowSum += rtt;
+		windowCount = windowCount + 1;
+		if (windowCount < Math.max(MIN_WINDOW, (int) limit)) {
+			return;
+		}
+		shortRtt = (double) windowSum / windowCount;
+		// The baseline is the lowest latency seen, which drifts up slowly in case
+		// the latency without load has genuinely risen (e.g. the work has changed)
+		longRtt = (longRtt == 0) ? shortRtt : Math.min(shortRtt, longRtt * (1 + DRIFT));
+		int peak = windowInflight;
+		windowSum = 0;
+		windowCount = 0;
+		windowInflight = inflight;
+		// Requests are not queueing, so there is no evidence the limit is too low
+		if (peak < limit / 2) {
+			return;
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+		double next = limit * gradient + Math.sqrt(limit);
+		next = limit * (1 - SMOOTHING) + next * SMOOTHING;
+		limit = Math.max(minLimit, Math.min(maxLimit, next));
+	}
+
+	/**
+	 * Release a request whose latency says nothing about the load (e.g. because
+	 * it failed), leaving the limit unchanged.
+	 */
+	public synchronized void release() {
+		inflight = inflight - 1;
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInflight() {
+		return inflight;
+	}
+
+	/**
+	 * Minimum number of samples in a window.
+	 */
+	private static final int MIN_WINDOW = 10;
+	/**
+	 * Fraction by which the baseline rises each window whilst latency remains
+	 * above it.
+	 */
+	private static final double DRIFT = 0.01;
+	/**
+	 * Ratio by which recent latency may exceed the baseline before the limit
+	 * shrinks.
+	 */
+	private static final double TOLERANCE = 1.5;
+	/**
+	 * Fraction of each new estimate applied to the limit.
+	 */
+	private static final double SMOOTHING = 0.2;
+}
@@ -0,0 +1,137 @@
+package jtinyhttp.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Locates bytes of interest in a message head eight bytes at a time, by
+ * treating each group of eight bytes as a <code>long</code> word (i.e. SWAR).
+ * A word is compared against every byte of interest at once by XORing it with
+ * that byte repeated, and then computing a mask with the high bit set in each
+ * byte which is now zero. The mask is exact (i.e. no carry propagates between
+ * bytes), so every bit set is a genuine match, and matches are visited in order
+ * by counting trailing zeros. Words are read in little endian order for this
+ * reason, irrespective of the platform. Bytes which do not fill a whole word
+ * are examined one at a time. <code>HttpParser</code> uses the same technique
+ * to find both the line ends and colons of a head in a single sweep.
+ */
+public final class HeaderScanner {
+
+	/**
+	 * Find the first occurrence of a given byte within a region of a buffer.
+	 *
+	 * @param bytes
+	 * @param from  Index of first byte to examine.
+	 * @param to    Index one past the last byte to examine.
+	 * @param b
+	 * @return The index of the byte, or -1 if it does not occur.
+	 */
+	public static int indexOf(byte[] bytes, int from, int to, byte b) {
+		// Creating a view only pays off over a longer region
+		return indexOf((to - from >= MIN_WORDS) ? words(bytes) : null, bytes, from, to, b);
+	}
+
+	/**
+	 * Find the first occurrence of a given byte within a region of a buffer,
+	 * using a view of the buffer which has already been created (see
+	 * <code>words()</code>).
+	 *
+	 * @param words View of the buffer, or <code>null</code> to examine one byte
+	 *              at a time.
+	 * @param bytes
+	 * @param from  Index of first byte to examine.
+	 * @param to    Index one past the last byte to examine.
+	 * @param b
+	 * @return The index of the byte, or -1 if it does not occur.
+	 */
+	static int indexOf(ByteBuffer words, byte[] bytes, int from, int to, byte b) {
+		int i = from;
+		if (words != null && to - from >= 8) {
+			final long pattern = broadcast(b);
+			for (; i + 8 <= to; i += 8) {
+				long mask = zeros(words.getLong(i) ^ pattern);
+				if (mask != 0) {
+					return i + (Long.numberOfTrailingZeros(mask) >>> 3);
+				}
+			}
+		}
+		for (; i < to; ++i) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the end of the line which begins at a given index.
+	 *
+	 * @param bytes
+	 * @param from
+	 * @param to    Index one past the last byte to examine.
+	 * @return The index following the CRLF, or -1 if the line is incomplete.
+	 */
+	public static int lineEnd(byte[] bytes, int from, int to) {
+		return lineEnd((to - from >= MIN_WORDS) ? words(bytes) : null, bytes, from, to);
+	}
+
+	/**
+	 * Find the end of the line which begins at a given index, using a view of the
+	 * buffer which has already been created (see <code>words()</code>).
+	 *
+	 * @param words View of the buffer, or <code>null</code> to examine one byte
+	 *              at a time.
+	 * @param bytes
+	 * @param from
+	 * @param to    Index one past the last byte to examine.
+	 * @return The index following the CRLF, or -1 if the line is incomplete.
+	 */
+	static int lineEnd(ByteBuffer words, byte[] bytes, int from, int to) {
+		int i = from + 1;
+		while ((i = indexOf(words, bytes, i, to, LF)) >= 0) {
+			if (bytes[i - 1] == CR) {
+				return i + 1;
+			}
+			i = i + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compute a mask with the high bit set in each byte of a given word which is
+	 * zero, and all other bits clear.
+	 *
+	 * @param word
+	 * @return
+	 */
+	static long zeros(long word) {
+		long t = (word & LOW7) + LOW7;
+		return ~(t | word | LOW7);
+	}
+
+	/**
+	 * Create a view of a given buffer from which words can be read. Since this
+	 * allocates, callers which scan the same buffer repeatedly should create it
+	 * once and reuse it.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	static ByteBuffer words(byte[] bytes) {
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	static long broadcast(byte b) {
+		return (b & 0xFFL) * 0x0101010101010101L;
+	}
+
+	private static final byte CR = 13;
+	private static final byte LF = 10;
+	private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+	/**
+	 * Shortest region for which a one-off scan creates a view of the buffer.
+	 */
+	private static final int MIN_WORDS = 64;
+	static final long LFS = broadcast(LF);
+	static final long COLONS = broadcast((byte) ':');
+}
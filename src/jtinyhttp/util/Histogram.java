@@ -0,0 +1,189 @@
+package jtinyhttp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values (e.g. latencies in nanoseconds) with
+ * logarithmic buckets. Values are grouped by their highest set bit, and each
+ * group is divided into 64 linear sub-buckets, such that any value is recorded
+ * to within about 1.6% across the full range of <code>long</code>. Recording is
+ * lock-free and allocation-free, so a histogram can be shared between threads,
+ * though keeping one per thread and combining them with <code>add()</code>
+ * avoids contention entirely.
+ *
+ * Latencies measured by a client which waits for each response before sending
+ * the next request under-represent stalls, since requests which would have been
+ * sent during a stall are never made (coordinated omission). Where the expected
+ * interval between requests is known, <code>recordCorrected()</code> compensates
+ * by also recording the latencies those requests would have seen.
+ */
+public class Histogram {
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a single value.
+	 *
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("negative value: " + value);
+		}
+		counts.incrementAndGet(bucket(value));
+		sum.add(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Record a value which was measured once every expected interval, correcting
+	 * for coordinated omission. If the value exceeds the interval, then the values
+	 * which would have been seen by the samples missed whilst waiting (i.e. the
+	 * value less one interval, less two intervals and so on) are also recorded.
+	 *
+	 * @param value
+	 * @param expectedInterval
+	 */
+	public void recordCorrected(long value, long expectedInterval) {
+		record(value);
+		if (expectedInterval > 0) {
+			for (long missed = value - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+				record(missed);
+			}
+		}
+	}
+
+	/**
+	 * Add all values recorded in another histogram to this one.
+	 *
+	 * @param other
+	 */
+	public void add(Histogram other) {
+		for (int i = 0; i != NUM_BUCKETS; ++i) {
+			long n = other.counts.get(i);
+			if (n != 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		sum.add(other.sum.sum());
+		long m = other.max.get();
+		long current = max.get();
+		while (m > current && !max.compareAndSet(current, m)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Get the number of values recorded.
+	 *
+	 * @return
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i != NUM_BUCKETS; ++i) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Get the total of all values recorded.
+	 *
+	 * @return
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * Get the value below which a given percentage of recorded values fall. The
+	 * result is the highest value in the corresponding bucket, and so is an
+	 * overestimate by at most the precision of the histogram.
+	 *
+	 * @param percentile Between 0 and 100.
+	 * @return
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil((percentile / 100) * count));
+		long seen = 0;
+		for (int i = 0; i != NUM_BUCKETS; ++i) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clear all recorded values. Values recorded concurrently with this may or
+	 * may not be retained.
+	 */
+	public void reset() {
+		for (int i = 0; i != NUM_BUCKETS; ++i) {
+			counts.set(i, 0);
+		}
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Determine the bucket for a given value. Values below
+	 * <code>2^SUB_BITS</code> have a bucket each. Above this, a value whose
+	 * highest set bit is <code>k</code> is identified by its top
+	 * <code>SUB_BITS</code> bits.
+	 *
+	 * @param value
+	 * @return
+	 */
+	static int bucket(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS + 1;
+		int mantissa = (int) (value >>> shift);
+		return SUB_COUNT + ((shift - 1) << (SUB_BITS - 1)) + (mantissa - HALF_COUNT);
+	}
+
+	/**
+	 * Determine the highest value recorded in a given bucket.
+	 *
+	 * @param bucket
+	 * @return
+	 */
+	static long highestValue(int bucket) {
+		if (bucket < SUB_COUNT) {
+			return bucket;
+		}
+		int j = bucket - SUB_COUNT;
+		int shift = (j >>> (SUB_BITS - 1)) + 1;
+		long mantissa = (j & (HALF_COUNT - 1)) + HALF_COUNT;
+		long high = ((mantissa + 1) << shift) - 1;
+		// The last bucket extends to the end of the range
+		return high < 0 ? Long.MAX_VALUE : high;
+	}
+
+	private static final int SUB_BITS = 7;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT >>> 1;
+	private static final int NUM_BUCKETS = SUB_COUNT + ((63 - SUB_BITS) << (SUB_BITS - 1));
+}
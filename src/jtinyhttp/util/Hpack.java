@@ -0,0 +1,657 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Header compression for HTTP/2 (RFC 7541). An <code>Encoder</code> turns
+ * header fields into a header block, and a <code>Decoder</code> turns a header
+ * block back into fields. Each maintains a dynamic table of recently sent
+ * fields, which the encoder refers to by index rather than sending them again.
+ * Hence, every block must be decoded in the order it was encoded and the two
+ * tables kept in step, so one encoder and one decoder exist for each direction
+ * of a connection. String literals are Huffman coded unless this would make
+ * them longer.
+ */
+public final class Hpack {
+
+	private Hpack() {
+	}
+
+	/**
+	 * Receives the header fields decoded from a header block, in the order they
+	 * appear.
+	 */
+	public interface Listener {
+		/**
+		 * Accept a decoded header field. Both arrays may be shared with the table
+		 * and, hence, should not be modified.
+		 *
+		 * @param name
+		 * @param value
+		 * @throws IOException
+		 */
+		public void header(byte[] name, byte[] value) throws IOException;
+	}
+
+	/**
+	 * Encodes header fields into a header block, which is accumulated in an
+	 * internal buffer.
+	 */
+	public static final class Encoder {
+		private final Table table;
+		/**
+		 * Largest table size this encoder will use, irrespective of what the
+		 * decoder allows.
+		 */
+		private final int maxCapacity;
+		/**
+		 * Smallest table size set since the last block, or -1 if unchanged. This
+		 * must be signalled at the start of the next block, followed by the final
+		 * size if different.
+		 */
+		private int minSizeUpdate = -1;
+		private byte[] bytes = new byte[256];
+		private int numBytes;
+
+		public Encoder(int maxCapacity) {
+			this.maxCapacity = maxCapacity;
+			this.table = new Table(Math.min(maxCapacity, DEFAULT_TABLE_SIZE));
+		}
+
+		/**
+		 * Set the table size allowed by the decoder (i.e.
+		 * <code>SETTINGS_HEADER_TABLE_SIZE</code> from the peer). The change is
+		 * signalled at the start of the next block.
+		 *
+		 * @param size
+		 */
+		public void setMaxTableSize(int size) {
+			size = Math.min(size, maxCapacity);
+			if (size != table.getMaxSize() || minSizeUpdate >= 0) {
+				minSizeUpdate = (minSizeUpdate < 0) ? size : Math.min(minSizeUpdate, size);
+				table.setMaxSize(size);
+			}
+		}
+
+		/**
+		 * Begin a new header block, discarding the previous one.
+		 */
+		public void begin() {
+			numBytes = 0;
+			if (minSizeUpdate >= 0) {
+				putInt(0x20, 5, minSizeUpdate);
+				if (minSizeUpdate != table.getMaxSize()) {
+					putInt(0x20, 5, table.getMaxSize());
+				}
+				minSizeUpdate = -1;
+			}
+		}
+
+		/**
+		 * Append a header field to the current block. The name should already be
+		 * in lower case. Sensitive fields (e.g. credentials) are never added to
+		 * the table, and are marked such that intermediaries will not add them
+		 * either.
+		 *
+		 * @param name
+		 * @param value
+		 * @param sensitive
+		 */
+		public void header(String name, String value, boolean sensitive) {
+			Integer match = STATIC_FIELDS.get(name + '\0' + value);
+			byte[] nameBytes = name.getBytes(StandardCharsets.ISO_8859_1);
+			byte[] valueBytes = value.getBytes(StandardCharsets.ISO_8859_1);
+			if (match == null && !sensitive) {
+				int i = table.indexOf(nameBytes, valueBytes);
+				match = (i < 0) ? null : STATIC_TABLE.length + i;
+			}
+			if (match != null) {
+				putInt(0x80, 7, match);
+				return;
+			}
+			Integer nameIndex = STATIC_NAMES.get(name);
+			if (nameIndex == null) {
+				int i = table.indexOfName(nameBytes);
+				nameIndex = (i < 0) ? 0 : STATIC_TABLE.length + i;
+			}
+			long size = entrySize(nameBytes, valueBytes);
+			if (sensitive) {
+				putInt(0x10, 4, nameIndex);
+			} else if (size <= table.getMaxSize()) {
+				putInt(0x40, 6, nameIndex);
+				table.add(nameBytes, valueBytes);
+			} else {
+				// Would only empty the table
+				putInt(0x00, 4, nameIndex);
+			}
+			if (nameIndex == 0) {
+				putString(nameBytes);
+			}
+			putString(valueBytes);
+		}
+
+		/**
+		 * Get the buffer holding the current block, which begins at index 0.
+		 *
+		 * @return
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the number of bytes in the current block.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return numBytes;
+		}
+
+		private void putString(byte[] string) {
+			int huffman = Huffman.encodedLength(string);
+			if (huffman <= string.length) {
+				putInt(0x80, 7, huffman);
+				ensureCapacity(numBytes + huffman);
+				numBytes = Huffman.encode(string, bytes, numBytes);
+			} else {
+				putInt(0x00, 7, string.length);
+				ensureCapacity(numBytes + string.length);
+				System.arraycopy(string, 0, bytes, numBytes, string.length);
+				numBytes += string.length;
+			}
+		}
+
+		/**
+		 * Append an integer with a given prefix size, where the bits above the
+		 * prefix in the first byte are given by a pattern (RFC 7541, section 5.1).
+		 *
+		 * @param pattern
+		 * @param prefix
+		 * @param value
+		 */
+		private void putInt(int pattern, int prefix, int value) {
+			ensureCapacity(numBytes + 6);
+			int max = (1 << prefix) - 1;
+			if (value < max) {
+				bytes[numBytes++] = (byte) (pattern | value);
+				return;
+			}
+			bytes[numBytes++] = (byte) (pattern | max);
+			value -= max;
+			while (value >= 0x80) {
+				bytes[numBytes++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[numBytes++] = (byte) value;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+			}
+		}
+	}
+
+	/**
+	 * Decodes header blocks into header fields.
+	 */
+	public static final class Decoder {
+		private final Table table;
+		/**
+		 * Largest table size the encoder may use (i.e. our
+		 * <code>SETTINGS_HEADER_TABLE_SIZE</code>).
+		 */
+		private final int maxCapacity;
+
+		public Decoder(int maxCapacity) {
+			this.maxCapacity = maxCapacity;
+			this.table = new Table(maxCapacity);
+		}
+
+		/**
+		 * Decode a complete header block, passing each field to a given listener.
+		 *
+		 * @param block
+		 * @param offset
+		 * @param length
+		 * @param listener
+		 * @throws Http2Exception A <code>COMPRESSION_ERROR</code> if the block is
+		 *                        malformed, after which the table is unusable.
+		 * @throws IOException    If thrown by the listener.
+		 */
+		public void decode(byte[] block, int offset, int length, Listener listener) throws IOException {
+			int[] position = { offset };
+			int end = offset + length;
+			boolean start = true;
+			while (position[0] < end) {
+				int b = block[position[0]] & 0xFF;
+				if ((b & 0x80) != 0) {
+					// Indexed field
+					int index = getInt(block, position, end, 7);
+					listener.header(name(index), value(index));
+				} else if ((b & 0xE0) == 0x20) {
+					// Dynamic table size update
+					if (!start) {
+						throw error("table size update after first field");
+					}
+					int size = getInt(block, position, end, 5);
+					if (size > maxCapacity) {
+						throw error("table size exceeds maximum");
+					}
+					table.setMaxSize(size);
+					continue;
+				} else {
+					// Literal field, which may be added to the table
+					boolean indexed = (b & 0xC0) == 0x40;
+					int index = getInt(block, position, end, indexed ? 6 : 4);
+					byte[] name = (index == 0) ? getString(block, position, end) : name(index);
+					byte[] value = getString(block, position, end);
+					if (indexed) {
+						table.add(name, value);
+					}
+					listener.header(name, value);
+				}
+				start = false;
+			}
+		}
+
+		private byte[] name(int index) throws Http2Exception {
+			if (index <= 0) {
+				throw error("invalid index");
+			} else if (index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1][0];
+			} else if (index - STATIC_TABLE.length <= table.size()) {
+				return table.getName(index - STATIC_TABLE.length);
+			}
+			throw error("invalid index");
+		}
+
+		private byte[] value(int index) throws Http2Exception {
+			if (index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1][1];
+			}
+			return table.getValue(index - STATIC_TABLE.length);
+		}
+
+		private static int getInt(byte[] block, int[] position, int end, int prefix) throws Http2Exception {
+			int max = (1 << prefix) - 1;
+			int value = block[position[0]++] & max;
+			if (value < max) {
+				return value;
+			}
+			for (int shift = 0; shift < 28; shift += 7) {
+				if (position[0] == end) {
+					throw error("truncated integer");
+				}
+				int b = block[position[0]++] & 0xFF;
+				value += (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw error("integer too large");
+		}
+
+		private static byte[] getString(byte[] block, int[] position, int end) throws Http2Exception {
+			if (position[0] == end) {
+				throw error("truncated string");
+			}
+			boolean huffman = (block[position[0]] & 0x80) != 0;
+			int length = getInt(block, position, end, 7);
+			if (length > end - position[0]) {
+				throw error("truncated string");
+			}
+			int start = position[0];
+			position[0] += length;
+			if (huffman) {
+				return Huffman.decode(block, start, length);
+			}
+			return Arrays.copyOfRange(block, start, start + length);
+		}
+	}
+
+	/**
+	 * Determine the size of a table entry, which includes a fixed overhead.
+	 *
+	 * @param name
+	 * @param value
+	 * @return
+	 */
+	private static long entrySize(byte[] name, byte[] value) {
+		return name.length + value.length + 32L;
+	}
+
+	private static Http2Exception error(String message) {
+		return new Http2Exception(Http2Frame.COMPRESSION_ERROR, message);
+	}
+
+	/**
+	 * The dynamic table, which holds the most recently added entries in a
+	 * circular buffer. Entries are evicted oldest first to keep the total size
+	 * within the maximum.
+	 */
+	private static final class Table {
+		private byte[][] names = new byte[16][];
+		private byte[][] values = new byte[16][];
+		/**
+		 * Index of the newest entry.
+		 */
+		private int head = -1;
+		private int count;
+		private long size;
+		private int maxSize;
+
+		public Table(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public int getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict(0);
+		}
+
+		/**
+		 * Get the name of an entry, where 1 is the newest.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public byte[] getName(int index) {
+			return names[slot(index)];
+		}
+
+		public byte[] getValue(int index) {
+			return values[slot(index)];
+		}
+
+		public void add(byte[] name, byte[] value) {
+			long entry = entrySize(name, value);
+			if (entry > maxSize) {
+				// Entry cannot fit, which empties the table
+				evict(maxSize + 1);
+				return;
+			}
+			evict(entry);
+			if (count == names.length) {
+				grow();
+			}
+			head = (head + 1) % names.length;
+			names[head] = name;
+			values[head] = value;
+			count++;
+			size += entry;
+		}
+
+		/**
+		 * Find an entry with a given name and value, returning its index or -1.
+		 *
+		 * @param name
+		 * @param value
+		 * @return
+		 */
+		public int indexOf(byte[] name, byte[] value) {
+			for (int i = 1; i <= count; ++i) {
+				int s = slot(i);
+				if (Arrays.equals(names[s], name) && Arrays.equals(values[s], value)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		public int indexOfName(byte[] name) {
+			for (int i = 1; i <= count; ++i) {
+				if (Arrays.equals(names[slot(i)], name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private int slot(int index) {
+			return Math.floorMod(head - index + 1, names.length);
+		}
+
+		/**
+		 * Remove the oldest entries until there is room for an entry of a given
+		 * size.
+		 *
+		 * @param room
+		 */
+		private void evict(long room) {
+			while (count > 0 && size + room > maxSize) {
+				int s = slot(count);
+				size -= entrySize(names[s], values[s]);
+				names[s] = null;
+				values[s] = null;
+				count--;
+			}
+		}
+
+		private void grow() {
+			byte[][] newNames = new byte[names.length * 2][];
+			byte[][] newValues = new byte[names.length * 2][];
+			// Copy oldest first, so the newest ends up at count - 1
+			for (int i = 0; i != count; ++i) {
+				int s = slot(count - i);
+				newNames[i] = names[s];
+				newValues[i] = values[s];
+			}
+			names = newNames;
+			values = newValues;
+			head = count - 1;
+		}
+	}
+
+	/**
+	 * The canonical Huffman code used for string literals (RFC 7541, appendix
+	 * B). The code is determined entirely by the length of each symbol's code,
+	 * where codes of the same length are assigned consecutively in symbol order.
+	 * Symbol 256 is the end of string marker, whose prefix pads the last byte.
+	 */
+	private static final class Huffman {
+		private static final byte[] LENGTHS = {
+				13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+				28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+				6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+				5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+				13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+				7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+				15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+				6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+				20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+				24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+				22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+				21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+				26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+				19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+				20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+				26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+				30 };
+
+		private static final int EOS = 256;
+		private static final int MAX_LENGTH = 30;
+		/**
+		 * Code for each symbol, held in the low bits.
+		 */
+		private static final int[] CODES = new int[LENGTHS.length];
+		/**
+		 * Number of codes of each length.
+		 */
+		private static final int[] COUNTS = new int[MAX_LENGTH + 1];
+		/**
+		 * Symbols ordered by code.
+		 */
+		private static final int[] SYMBOLS = new int[LENGTHS.length];
+
+		static {
+			for (byte length : LENGTHS) {
+				COUNTS[length]++;
+			}
+			int[] next = new int[MAX_LENGTH + 1];
+			int[] offsets = new int[MAX_LENGTH + 1];
+			int code = 0;
+			for (int length = 1; length <= MAX_LENGTH; ++length) {
+				code = (code + COUNTS[length - 1]) << 1;
+				next[length] = code;
+				offsets[length] = offsets[length - 1] + COUNTS[length - 1];
+			}
+			for (int symbol = 0; symbol != LENGTHS.length; ++symbol) {
+				int length = LENGTHS[symbol];
+				SYMBOLS[offsets[length]++] = symbol;
+				CODES[symbol] = next[length]++;
+			}
+		}
+
+		/**
+		 * Determine the number of bytes needed to encode a given string.
+		 *
+		 * @param string
+		 * @return
+		 */
+		public static int encodedLength(byte[] string) {
+			long bits = 0;
+			for (byte b : string) {
+				bits += LENGTHS[b & 0xFF];
+			}
+			return (int) ((bits + 7) >>> 3);
+		}
+
+		/**
+		 * Encode a string into a given buffer, which must have room for it.
+		 *
+		 * @param string
+		 * @param bytes
+		 * @param index
+		 * @return The index following the last byte written.
+		 */
+		public static int encode(byte[] string, byte[] bytes, int index) {
+			long bits = 0;
+			int numBits = 0;
+			for (byte b : string) {
+				int symbol = b & 0xFF;
+				bits = (bits << LENGTHS[symbol]) | CODES[symbol];
+				numBits += LENGTHS[symbol];
+				while (numBits >= 8) {
+					numBits -= 8;
+					bytes[index++] = (byte) (bits >>> numBits);
+				}
+			}
+			if (numBits > 0) {
+				// Pad with the most significant bits of EOS (i.e. ones)
+				bytes[index++] = (byte) ((bits << (8 - numBits)) | (0xFF >>> numBits));
+			}
+			return index;
+		}
+
+		/**
+		 * Decode a string, one bit at a time using the canonical code.
+		 *
+		 * @param block
+		 * @param offset
+		 * @param length
+		 * @return
+		 * @throws Http2Exception
+		 */
+		public static byte[] decode(byte[] block, int offset, int length) throws Http2Exception {
+			// Every symbol is at least 5 bits
+			byte[] result = new byte[(length * 8) / 5];
+			int n = 0;
+			int code = 0;
+			int first = 0;
+			int index = 0;
+			int numBits = 0;
+			for (int i = offset; i != offset + length; ++i) {
+				int b = block[i];
+				for (int bit = 7; bit >= 0; --bit) {
+					code |= (b >>> bit) & 1;
+					numBits++;
+					int count = COUNTS[numBits];
+					if (code - count < first) {
+						int symbol = SYMBOLS[index + (code - first)];
+						if (symbol == EOS) {
+							throw error("EOS in string literal");
+						}
+						result[n++] = (byte) symbol;
+						code = 0;
+						first = 0;
+						index = 0;
+						numBits = 0;
+					} else {
+						index += count;
+						first = (first + count) << 1;
+						code <<= 1;
+						if (numBits == MAX_LENGTH) {
+							throw error("invalid Huffman code");
+						}
+					}
+				}
+			}
+			// Padding must be fewer than 8 bits, all of which are ones
+			if (numBits > 7 || (numBits > 0 && (code >>> 1) != (1 << numBits) - 1)) {
+				throw error("invalid Huffman padding");
+			}
+			return Arrays.copyOf(result, n);
+		}
+	}
+
+	/**
+	 * Default size of the dynamic table, which applies until changed by
+	 * settings.
+	 */
+	public static final int DEFAULT_TABLE_SIZE = 4096;
+
+	/**
+	 * Entries of the static table (RFC 7541, appendix A), where index 1 is the
+	 * first.
+	 */
+	private static final byte[][][] STATIC_TABLE;
+
+	/**
+	 * Maps each name in the static table to its first index.
+	 */
+	private static final HashMap<String, Integer> STATIC_NAMES = new HashMap<>();
+
+	/**
+	 * Maps each name and value (separated by a null character) in the static
+	 * table to its index.
+	 */
+	private static final HashMap<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+	static {
+		String[] fields = { ":authority", "", ":method", "GET", ":method", "POST", ":path", "/", ":path",
+				"/index.html", ":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204", ":status",
+				"206", ":status", "304", ":status", "400", ":status", "404", ":status", "500", "accept-charset", "",
+				"accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "", "accept", "",
+				"access-control-allow-origin", "", "age", "", "allow", "", "authorization", "", "cache-control", "",
+				"content-disposition", "", "content-encoding", "", "content-language", "", "content-length", "",
+				"content-location", "", "content-range", "", "content-type", "", "cookie", "", "date", "", "etag", "",
+				"expect", "", "expires", "", "from", "", "host", "", "if-match", "", "if-modified-since", "",
+				"if-none-match", "", "if-range", "", "if-unmodified-since", "", "last-modified", "", "link", "",
+				"location", "", "max-forwards", "", "proxy-authenticate", "", "proxy-authorization", "", "range", "",
+				"referer", "", "refresh", "", "retry-after", "", "server", "", "set-cookie", "",
+				"strict-transport-security", "", "transfer-encoding", "", "user-agent", "", "vary", "", "via", "",
+				"www-authenticate", "" };
+		STATIC_TABLE = new byte[fields.length / 2][][];
+		for (int i = 0; i != STATIC_TABLE.length; ++i) {
+			String name = fields[i * 2];
+			String value = fields[i * 2 + 1];
+			STATIC_TABLE[i] = new byte[][] { name.getBytes(StandardCharsets.ISO_8859_1),
+					value.getBytes(StandardCharsets.ISO_8859_1) };
+			STATIC_NAMES.putIfAbsent(name, i + 1);
+			STATIC_FIELDS.put(name + '\0' + value, i + 1);
+		}
+	}
+}
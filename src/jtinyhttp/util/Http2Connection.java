@@ -0,0 +1,2045 @@
+package jtinyhttp.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.HTTP.Header;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.Response;
+import jtinyhttp.core.Headers;
+
+/**
+ * A connection which carries many concurrent exchanges over cleartext HTTP/2
+ * (i.e. h2c, RFC 7540). Each exchange is a stream of frames, and frames from
+ * different streams are interleaved on the connection, so a slow response does
+ * not hold up those behind it. Messages are exchanged through the usual
+ * <code>Request</code> and <code>Response</code> interfaces, with version
+ * <code>HTTP.V2_0</code>. Outgoing headers are compressed with HPACK, leaving
+ * out those which only apply to HTTP/1 connections, and incoming headers are
+ * presented as an HTTP/1 style message head. Message bodies are received in
+ * full before being presented, and sent subject to flow control.
+ * <p>
+ * One thread reads frames from the connection, whilst any number of threads
+ * write to it. Each frame is written whole under a lock, and the reading thread
+ * never waits for this lock: frames it must send (e.g. acknowledgements and
+ * window updates) are queued and written by whichever thread next holds the
+ * lock. Hence, a peer which stops reading cannot stop this connection from
+ * reading.
+ */
+public abstract class Http2Connection implements HTTP.Connection {
+	protected final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	/**
+	 * Receives events from this connection, or <code>Metrics.NONE</code> if
+	 * they are not recorded.
+	 */
+	protected final Metrics metrics;
+	/**
+	 * Open streams by identifier, which are removed once closed in both
+	 * directions or reset.
+	 */
+	protected final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+	/**
+	 * Held whilst writing, such that frames (and header blocks) are written
+	 * contiguously. This also guards the encoder.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/**
+	 * Frames queued by the reading thread, to be written by whichever thread
+	 * next holds the write lock.
+	 */
+	private final ConcurrentLinkedQueue<byte[]> control = new ConcurrentLinkedQueue<>();
+	/**
+	 * Number of bytes of frames in the control queue, which is bounded (see
+	 * <code>MAX_CONTROL_BYTES</code>).
+	 */
+	private final AtomicInteger controlBytes = new AtomicInteger();
+	private final Hpack.Encoder encoder = new Hpack.Encoder(Hpack.DEFAULT_TABLE_SIZE);
+	private final byte[] frameHeader = new byte[Http2Frame.HEADER_SIZE];
+	// The following are only accessed by the reading thread.
+	private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+	private final Http2Frame frame = new Http2Frame(Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+	/**
+	 * Header block being accumulated from <code>CONTINUATION</code> frames, or
+	 * <code>null</code> if none.
+	 */
+	private ByteArrayOutputStream headerBlock;
+	private int headerStream;
+	private boolean headerEndStream;
+	private int receiveWindow = CONNECTION_WINDOW;
+	private int receiveUnacked;
+	/**
+	 * Largest request or response body which will be accepted.
+	 */
+	protected volatile long maxBodySize = 64 * 1024 * 1024;
+	// The following are guarded by this connection's monitor, on which threads
+	// wait for flow control credit (amongst other things).
+	private long sendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+	private int initialSendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+	private int maxSendFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+	/**
+	 * Maximum number of streams the peer allows us to open.
+	 */
+	protected int maxConcurrentStreams = Integer.MAX_VALUE;
+	/**
+	 * Smallest and last table size received in settings, which are applied to
+	 * the encoder before the next header block (or -1 if none).
+	 */
+	private int minTableSize = -1;
+	private int lastTableSize = -1;
+	/**
+	 * Identifier of the last stream the peer will process, once it has sent
+	 * <code>GOAWAY</code>.
+	 */
+	protected int goAway = Integer.MAX_VALUE;
+	protected boolean closed;
+
+	protected Http2Connection(Socket socket, InputStream in, Metrics metrics) throws IOException {
+		this.socket = socket;
+		this.in = new BufferedInputStream(in, BUFFER_SIZE);
+		this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the largest message body which will be accepted. A stream whose body
+	 * exceeds this is reset.
+	 *
+	 * @param maxBodySize
+	 */
+	public void setMaxBodySize(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Get the number of streams which are currently open.
+	 *
+	 * @return
+	 */
+	public int getOpenStreams() {
+		return streams.size();
+	}
+
+	/**
+	 * Close this connection, telling the peer that no further streams will be
+	 * processed. Any streams still open are failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			lock();
+			try {
+				writeFrame(Http2Frame.GOAWAY, 0, 0, goAwayPayload(Http2Frame.NO_ERROR), 0, 8);
+			} finally {
+				unlock();
+			}
+		} catch (IOException e) {
+			// Connection already failed
+		} finally {
+			shutdown(new IOException("connection closed"));
+		}
+	}
+
+	/**
+	 * Represents a single exchange on this connection. For a server, this is
+	 * the connection over which the response to the stream's request is sent.
+	 */
+	public final class Stream implements HTTP.ServerConnection {
+		private final int id;
+		/**
+		 * Completed with the response to a request sent by a client.
+		 */
+		private final CompletableFuture<Response> response;
+		/**
+		 * Head of the message being received, which is built once the first header
+		 * block has been decoded.
+		 */
+		private MessageBuilder<?> head;
+		private ByteArrayOutputStream body;
+		/**
+		 * Indicates the request received cannot be handled, with the status to
+		 * respond with (or 0).
+		 */
+		private int rejected;
+		/**
+		 * Indicates the rest of the body is being discarded, having been
+		 * rejected.
+		 */
+		private boolean discarding;
+		private int receiveWindow = STREAM_WINDOW;
+		private int receiveUnacked;
+		/**
+		 * Time at which the request was sent or received, which is only measured
+		 * when metrics are recorded.
+		 */
+		private long started;
+		// Guarded by the connection's monitor
+		private long sendWindow;
+		private boolean localClosed;
+		private boolean remoteClosed;
+		private boolean reset;
+		// Guarded by this stream's monitor
+		private boolean responded;
+		private boolean sent;
+
+		private Stream(int id, CompletableFuture<Response> response) {
+			this.id = id;
+			this.response = response;
+			this.sendWindow = initialSendWindow;
+		}
+
+		/**
+		 * Get the identifier of this stream.
+		 *
+		 * @return
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Send the response to this stream's request. This may be called from any
+		 * thread, and blocks whilst the body is subject to flow control.
+		 */
+		@Override
+		public void send(Response message) throws IOException {
+			synchronized (this) {
+				if (responded) {
+					throw new IllegalStateException("response already sent");
+				}
+				responded = true;
+			}
+			try {
+				if (metrics != Metrics.NONE) {
+					metrics.responseSent(message.getStatusCode(), System.nanoTime() - started);
+				}
+				sendMessage(this, message);
+			} finally {
+				synchronized (this) {
+					sent = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Wait until a response has been sent on this stream, which may happen on
+		 * another thread.
+		 *
+		 * @throws InterruptedIOException
+		 */
+		public synchronized void awaitResponse() throws InterruptedIOException {
+			try {
+				while (!sent) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		/**
+		 * Reset this stream, abandoning the exchange.
+		 */
+		@Override
+		public void close() throws IOException {
+			reset(id, Http2Frame.CANCEL);
+		}
+
+		private synchronized boolean isResponded() {
+			return responded;
+		}
+
+		/**
+		 * Append data received on this stream to its body.
+		 *
+		 * @param bytes
+		 * @param offset
+		 * @param length
+		 * @return <code>false</code> if the body is now too large.
+		 */
+		private boolean append(byte[] bytes, int offset, int length) {
+			if (body == null) {
+				body = new ByteArrayOutputStream(Math.max(length, 256));
+			}
+			if (body.size() + (long) length > maxBodySize) {
+				return false;
+			}
+			body.write(bytes, offset, length);
+			return true;
+		}
+
+		/**
+		 * Build the message received on this stream, once it has been received in
+		 * full.
+		 *
+		 * @return
+		 */
+		private HTTP.Message build() {
+			Entity entity = (body == null || body.size() == 0) ? null : new ByteArrayEntity(body.toByteArray());
+			return head.build(entity);
+		}
+	}
+
+	// ===============================================================
+	// Reading
+	// ===============================================================
+
+	/**
+	 * Read and process frames until the connection ends. Stream errors reset
+	 * the stream concerned, whilst connection errors are reported to the peer
+	 * before the connection is closed.
+	 */
+	protected void read() {
+		try {
+			while (frame.read(in)) {
+				metrics.bytesRead(Http2Frame.HEADER_SIZE + frame.getLength());
+				try {
+					process();
+				} catch (Http2Exception e) {
+					if (e.getStream() == 0) {
+						throw e;
+					}
+					reset(e.getStream(), e.getErrorCode());
+				}
+				if (controlBytes.get() > MAX_CONTROL_BYTES) {
+					// The peer keeps provoking frames (e.g. PING or SETTINGS
+					// acknowledgements, or resets) faster than it reads them
+					throw new Http2Exception(Http2Frame.ENHANCE_YOUR_CALM, "too many control frames queued");
+				}
+			}
+			shutdown(new EOFException("connection closed by peer"));
+		} catch (Http2Exception e) {
+			control(Http2Frame.GOAWAY, 0, 0, goAwayPayload(e.getErrorCode()));
+			shutdown(e);
+		} catch (IOException | RuntimeException e) {
+			shutdown(e);
+		}
+	}
+
+	private void process() throws IOException {
+		final int type = frame.getType();
+		final int id = frame.getStream();
+		final int length = frame.getLength();
+		final byte[] payload = frame.getPayload();
+		if (headerBlock != null && (type != Http2Frame.CONTINUATION || id != headerStream)) {
+			throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "expected CONTINUATION");
+		}
+		switch (type) {
+		case Http2Frame.DATA:
+			onData(id, length, payload);
+			break;
+		case Http2Frame.HEADERS:
+			onHeaders(id, length, payload);
+			break;
+		case Http2Frame.PRIORITY:
+			if (id == 0) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "PRIORITY on stream 0");
+			} else if (length != 5) {
+				throw new Http2Exception(id, Http2Frame.FRAME_SIZE_ERROR, "invalid PRIORITY");
+			}
+			break;
+		case Http2Frame.RST_STREAM:
+			if (id == 0) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+			} else if (length != 4) {
+				throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "invalid RST_STREAM");
+			} else if (isIdle(id)) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "RST_STREAM on idle stream");
+			}
+			Stream stream = streams.remove(id);
+			if (stream != null) {
+				fail(stream, new Http2Exception(id, Http2Frame.getInt(payload, 0), "stream reset by peer"));
+			}
+			break;
+		case Http2Frame.SETTINGS:
+			if (id != 0) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "SETTINGS on stream " + id);
+			} else if (frame.hasFlag(Http2Frame.FLAG_ACK)) {
+				if (length != 0) {
+					throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "invalid SETTINGS acknowledgement");
+				}
+			} else {
+				applySettings(payload, 0, length);
+				control(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[0]);
+			}
+			break;
+		case Http2Frame.PUSH_PROMISE:
+			throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "push not enabled");
+		case Http2Frame.PING:
+			if (id != 0) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "PING on stream " + id);
+			} else if (length != 8) {
+				throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "invalid PING");
+			} else if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+				control(Http2Frame.PING, Http2Frame.FLAG_ACK, 0, Arrays.copyOf(payload, 8));
+			}
+			break;
+		case Http2Frame.GOAWAY:
+			if (id != 0) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "GOAWAY on stream " + id);
+			} else if (length < 8) {
+				throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "invalid GOAWAY");
+			}
+			onGoAway(Http2Frame.getInt(payload, 0) & 0x7FFFFFFF);
+			break;
+		case Http2Frame.WINDOW_UPDATE:
+			if (length != 4) {
+				throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE");
+			}
+			onWindowUpdate(id, Http2Frame.getInt(payload, 0) & 0x7FFFFFFF);
+			break;
+		case Http2Frame.CONTINUATION:
+			if (headerBlock == null) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "unexpected CONTINUATION");
+			}
+			appendHeaderBlock(payload, 0, length);
+			if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+				endHeaders();
+			}
+			break;
+		default:
+			// Unknown frame types are ignored
+		}
+	}
+
+	private void onData(int id, int length, byte[] payload) throws IOException {
+		if (id == 0 || isIdle(id)) {
+			throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "DATA on idle stream");
+		}
+		int offset = 0;
+		int dataLength = length;
+		if (frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+			offset = 1;
+			dataLength -= 1 + (length == 0 ? 0 : payload[0] & 0xFF);
+			if (length == 0 || dataLength < 0) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "invalid padding");
+			}
+		}
+		receiveWindow -= length;
+		if (receiveWindow < 0) {
+			throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "connection window exceeded");
+		}
+		// Padding counts against the window as well, so is credited immediately
+		credit(length);
+		Stream stream = streams.get(id);
+		if (stream == null || stream.discarding) {
+			// Stream already closed, reset or rejected
+			return;
+		} else if (stream.remoteClosed || stream.head == null) {
+			throw new Http2Exception(id, Http2Frame.STREAM_CLOSED, "unexpected DATA");
+		}
+		stream.receiveWindow -= length;
+		if (stream.receiveWindow < 0) {
+			throw new Http2Exception(id, Http2Frame.FLOW_CONTROL_ERROR, "stream window exceeded");
+		} else if (!stream.append(payload, offset, dataLength)) {
+			tooLarge(stream);
+			return;
+		}
+		if (frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+			received(stream);
+		} else {
+			stream.receiveUnacked += length;
+			if (stream.receiveUnacked >= STREAM_WINDOW / 2) {
+				control(Http2Frame.WINDOW_UPDATE, 0, id, intPayload(stream.receiveUnacked));
+				stream.receiveWindow += stream.receiveUnacked;
+				stream.receiveUnacked = 0;
+			}
+		}
+	}
+
+	/**
+	 * Account for data received on the connection as a whole, replenishing the
+	 * peer's window once half of it has been used.
+	 *
+	 * @param length
+	 */
+	private void credit(int length) {
+		receiveUnacked += length;
+		if (receiveUnacked >= CONNECTION_WINDOW / 2) {
+			control(Http2Frame.WINDOW_UPDATE, 0, 0, intPayload(receiveUnacked));
+			receiveWindow += receiveUnacked;
+			receiveUnacked = 0;
+		}
+	}
+
+	private void onHeaders(int id, int length, byte[] payload) throws IOException {
+		if (id == 0) {
+			throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "HEADERS on stream 0");
+		}
+		int offset = 0;
+		if (frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+			if (length == 0) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "invalid padding");
+			}
+			offset = 1;
+			length -= 1 + (payload[0] & 0xFF);
+		}
+		if (frame.hasFlag(Http2Frame.FLAG_PRIORITY)) {
+			// Priorities are ignored
+			offset += 5;
+			length -= 5;
+		}
+		if (length < 0) {
+			throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "invalid HEADERS");
+		}
+		headerBlock = new ByteArrayOutputStream(length);
+		headerStream = id;
+		headerEndStream = frame.hasFlag(Http2Frame.FLAG_END_STREAM);
+		appendHeaderBlock(payload, offset, length);
+		if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+			endHeaders();
+		}
+	}
+
+	private void appendHeaderBlock(byte[] bytes, int offset, int length) throws Http2Exception {
+		if (headerBlock.size() + length > MAX_HEADER_BLOCK) {
+			throw new Http2Exception(Http2Frame.ENHANCE_YOUR_CALM, "header block too large");
+		}
+		headerBlock.write(bytes, offset, length);
+	}
+
+	/**
+	 * Decode a complete header block, and apply it to its stream. The block is
+	 * decoded even if the stream is closed, to keep the decoder's table in step
+	 * with the peer's encoder.
+	 *
+	 * @throws IOException
+	 */
+	private void endHeaders() throws IOException {
+		final int id = headerStream;
+		final boolean endStream = headerEndStream;
+		ArrayList<byte[]> fields = new ArrayList<>();
+		byte[] block = headerBlock.toByteArray();
+		headerBlock = null;
+		decoder.decode(block, 0, block.length, (name, value) -> {
+			fields.add(name);
+			fields.add(value);
+		});
+		Stream stream = streams.get(id);
+		if (stream == null) {
+			stream = open(id);
+			if (stream == null) {
+				// Stream already closed or reset
+				return;
+			}
+		} else if (stream.remoteClosed) {
+			throw new Http2Exception(id, Http2Frame.STREAM_CLOSED, "HEADERS on closed stream");
+		}
+		if (stream.head == null) {
+			headers(stream, fields, endStream);
+		} else if (!endStream) {
+			throw new Http2Exception(id, Http2Frame.PROTOCOL_ERROR, "trailers must end stream");
+		}
+		// Trailers are ignored
+		if (endStream && stream.head != null) {
+			received(stream);
+		}
+	}
+
+	/**
+	 * Process the settings in a given payload, which are sent by the peer in a
+	 * <code>SETTINGS</code> frame (or an <code>HTTP2-Settings</code> header).
+	 *
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @throws Http2Exception
+	 */
+	protected void applySettings(byte[] payload, int offset, int length) throws Http2Exception {
+		if (length % 6 != 0) {
+			throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "invalid SETTINGS");
+		}
+		for (int i = offset; i != offset + length; i += 6) {
+			int setting = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+			int value = Http2Frame.getInt(payload, i + 2);
+			synchronized (this) {
+				switch (setting) {
+				case Http2Frame.SETTINGS_HEADER_TABLE_SIZE:
+					minTableSize = (minTableSize < 0) ? value : Math.min(minTableSize, value);
+					lastTableSize = value;
+					break;
+				case Http2Frame.SETTINGS_ENABLE_PUSH:
+					if (value != 0 && value != 1) {
+						throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "invalid ENABLE_PUSH");
+					}
+					break;
+				case Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS:
+					maxConcurrentStreams = (value < 0) ? Integer.MAX_VALUE : value;
+					break;
+				case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE:
+					if (value < 0) {
+						throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "invalid INITIAL_WINDOW_SIZE");
+					}
+					int delta = value - initialSendWindow;
+					initialSendWindow = value;
+					for (Stream stream : streams.values()) {
+						stream.sendWindow += delta;
+						if (stream.sendWindow > Http2Frame.MAX_WINDOW_SIZE) {
+							throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "stream window overflow");
+						}
+					}
+					break;
+				case Http2Frame.SETTINGS_MAX_FRAME_SIZE:
+					if (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > Http2Frame.MAX_FRAME_SIZE) {
+						throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "invalid MAX_FRAME_SIZE");
+					}
+					maxSendFrameSize = value;
+					break;
+				default:
+					// Unknown settings (and MAX_HEADER_LIST_SIZE) are ignored
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private void onWindowUpdate(int id, int increment) throws Http2Exception {
+		if (id == 0) {
+			if (increment == 0) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+			}
+			synchronized (this) {
+				sendWindow += increment;
+				if (sendWindow > Http2Frame.MAX_WINDOW_SIZE) {
+					throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "connection window overflow");
+				}
+				notifyAll();
+			}
+		} else if (isIdle(id)) {
+			throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+		} else if (increment == 0) {
+			throw new Http2Exception(id, Http2Frame.PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+		} else {
+			Stream stream = streams.get(id);
+			if (stream != null) {
+				synchronized (this) {
+					stream.sendWindow += increment;
+					if (stream.sendWindow > Http2Frame.MAX_WINDOW_SIZE) {
+						throw new Http2Exception(id, Http2Frame.FLOW_CONTROL_ERROR, "stream window overflow");
+					}
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given stream has never been opened, in which case the peer
+	 * should not be sending frames for it.
+	 *
+	 * @param id
+	 * @return
+	 */
+	protected abstract boolean isIdle(int id);
+
+	/**
+	 * Open a stream on which the peer has sent the first header block.
+	 *
+	 * @param id
+	 * @return The stream, or <code>null</code> if its frames should be ignored.
+	 * @throws Http2Exception
+	 */
+	protected abstract Stream open(int id) throws Http2Exception;
+
+	/**
+	 * Apply the first header block received on a given stream.
+	 *
+	 * @param stream
+	 * @param fields    Decoded names and values, alternately.
+	 * @param endStream Indicates the message has no body.
+	 * @throws IOException
+	 */
+	protected abstract void headers(Stream stream, ArrayList<byte[]> fields, boolean endStream) throws IOException;
+
+	/**
+	 * Called once the message on a given stream has been received in full.
+	 *
+	 * @param stream
+	 * @throws IOException
+	 */
+	protected abstract void received(Stream stream) throws IOException;
+
+	/**
+	 * Called when the body of the message on a given stream exceeds the maximum
+	 * size.
+	 *
+	 * @param stream
+	 */
+	protected abstract void tooLarge(Stream stream);
+
+	/**
+	 * Called when the peer will not process any stream after a given one.
+	 *
+	 * @param lastStream
+	 */
+	protected void onGoAway(int lastStream) {
+		synchronized (this) {
+			goAway = lastStream;
+			notifyAll();
+		}
+	}
+
+	// ===============================================================
+	// Writing
+	// ===============================================================
+
+	/**
+	 * Send a message on a given stream, consisting of its headers followed by
+	 * its body (if any).
+	 *
+	 * @param stream
+	 * @param message
+	 * @throws IOException
+	 */
+	protected void sendMessage(Stream stream, HTTP.Message message) throws IOException {
+		Entity body = message.getBody();
+		if (body instanceof ChunkedEntity) {
+			// Framing is provided by DATA frames instead
+			body = ((ChunkedEntity) body).getProducer();
+		}
+		boolean empty = (body == null || body.getLength() == 0);
+		lock();
+		try {
+			writeHeaders(stream, message, empty);
+		} finally {
+			unlock();
+		}
+		if (!empty) {
+			DataOutputStream data = new DataOutputStream(stream);
+			try {
+				body.write(data);
+				data.finish();
+			} finally {
+				data.release();
+			}
+		}
+	}
+
+	/**
+	 * Encode the headers of a given message, and write them as a header block on
+	 * a given stream. This must be called whilst holding the write lock.
+	 *
+	 * @param stream
+	 * @param message
+	 * @param endStream
+	 * @throws IOException
+	 */
+	protected void writeHeaders(Stream stream, HTTP.Message message, boolean endStream) throws IOException {
+		int frameSize;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("connection closed");
+			} else if (stream.reset) {
+				throw new IOException("stream reset");
+			}
+			if (lastTableSize >= 0) {
+				encoder.setMaxTableSize(minTableSize);
+				encoder.setMaxTableSize(lastTableSize);
+				minTableSize = lastTableSize = -1;
+			}
+			frameSize = maxSendFrameSize;
+		}
+		encoder.begin();
+		encode(message);
+		byte[] block = encoder.getBytes();
+		int size = encoder.size();
+		int n = Math.min(size, frameSize);
+		int flags = (endStream ? Http2Frame.FLAG_END_STREAM : 0) | (n == size ? Http2Frame.FLAG_END_HEADERS : 0);
+		writeFrame(Http2Frame.HEADERS, flags, stream.id, block, 0, n);
+		for (int offset = n; offset < size; offset += n) {
+			n = Math.min(size - offset, frameSize);
+			writeFrame(Http2Frame.CONTINUATION, offset + n == size ? Http2Frame.FLAG_END_HEADERS : 0, stream.id, block,
+					offset, n);
+		}
+		if (endStream) {
+			closeLocal(stream);
+		}
+	}
+
+	/**
+	 * Encode the pseudo-headers and headers of a given message.
+	 *
+	 * @param message
+	 */
+	private void encode(HTTP.Message message) {
+		String host = null;
+		if (message instanceof Request) {
+			Request request = (Request) message;
+			host = request.getFirstValue(Headers.HOST);
+			String uri = request.getURI();
+			String path = uri;
+			int scheme = uri.indexOf("://");
+			if (!uri.startsWith("/") && scheme >= 0) {
+				// Absolute form, so the authority is taken from the URI
+				int start = scheme + 3;
+				int end = uri.indexOf('/', start);
+				host = uri.substring(start, end < 0 ? uri.length() : end);
+				path = (end < 0) ? "/" : uri.substring(end);
+			}
+			encoder.header(":method", request.getMethod().toString(), false);
+			encoder.header(":scheme", "http", false);
+			encoder.header(":authority", host != null ? host : authority(), false);
+			encoder.header(":path", path, false);
+		} else {
+			encoder.header(":status", Integer.toString(((Response) message).getStatusCode()), false);
+		}
+		for (int i = 0; i != message.size(); ++i) {
+			Header header = message.getHeader(i);
+			String name = header.getKey().toLowerCase(Locale.ROOT);
+			String value = header.getValue();
+			if (isConnectionSpecific(name, value) || (host != null && name.equals("host"))) {
+				continue;
+			}
+			encoder.header(name, value, name.equals("authorization") || name.equals("proxy-authorization"));
+		}
+	}
+
+	/**
+	 * Get the authority to use for requests which don't specify one.
+	 *
+	 * @return
+	 */
+	protected String authority() {
+		return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+	}
+
+	/**
+	 * Send data on a given stream, waiting for flow control credit as necessary.
+	 *
+	 * @param stream
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param endStream Indicates this is the last data on the stream.
+	 * @throws IOException
+	 */
+	private void writeData(Stream stream, byte[] bytes, int offset, int length, boolean endStream)
+			throws IOException {
+		do {
+			int n = reserve(stream, length);
+			boolean last = endStream && n == length;
+			lock();
+			try {
+				writeFrame(Http2Frame.DATA, last ? Http2Frame.FLAG_END_STREAM : 0, stream.id, bytes, offset, n);
+			} finally {
+				unlock();
+			}
+			offset += n;
+			length -= n;
+		} while (length > 0);
+		if (endStream) {
+			closeLocal(stream);
+		}
+	}
+
+	/**
+	 * Wait until some data can be sent on a given stream, and then reserve the
+	 * flow control credit for it.
+	 *
+	 * @param stream
+	 * @param length Amount of data waiting to be sent.
+	 * @return The amount of data which can be sent now, which is at least one
+	 *         byte (unless <code>length</code> is zero).
+	 * @throws IOException
+	 */
+	private synchronized int reserve(Stream stream, int length) throws IOException {
+		try {
+			while (true) {
+				if (closed) {
+					throw new IOException("connection closed");
+				} else if (stream.reset) {
+					throw new IOException("stream reset");
+				} else if (length == 0) {
+					return 0;
+				}
+				long available = Math.min(sendWindow, stream.sendWindow);
+				if (available > 0) {
+					int n = (int) Math.min(Math.min(available, length), maxSendFrameSize);
+					sendWindow -= n;
+					stream.sendWindow -= n;
+					return n;
+				}
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Reset a given stream, telling the peer it has been abandoned.
+	 *
+	 * @param id
+	 * @param errorCode
+	 */
+	protected void reset(int id, int errorCode) {
+		Stream stream = streams.remove(id);
+		control(Http2Frame.RST_STREAM, 0, id, intPayload(errorCode));
+		if (stream != null) {
+			fail(stream, new Http2Exception(id, errorCode, "stream reset"));
+		}
+	}
+
+	/**
+	 * Mark a given stream as having been reset (or its connection closed), such
+	 * that further attempts to send on it fail.
+	 *
+	 * @param stream
+	 * @param cause
+	 */
+	protected void fail(Stream stream, Throwable cause) {
+		synchronized (this) {
+			stream.reset = true;
+			notifyAll();
+		}
+		if (stream.response != null) {
+			stream.response.completeExceptionally(cause);
+		}
+		closed(stream);
+	}
+
+	private void closeLocal(Stream stream) {
+		boolean done;
+		synchronized (this) {
+			stream.localClosed = true;
+			done = stream.remoteClosed;
+		}
+		if (done && streams.remove(stream.id) != null) {
+			closed(stream);
+		}
+	}
+
+	/**
+	 * Mark a given stream as closed by the peer, which removes it once closed in
+	 * both directions.
+	 *
+	 * @param stream
+	 */
+	protected void closeRemote(Stream stream) {
+		boolean done;
+		synchronized (this) {
+			stream.remoteClosed = true;
+			done = stream.localClosed;
+		}
+		if (done && streams.remove(stream.id) != null) {
+			closed(stream);
+		}
+	}
+
+	/**
+	 * Called once a given stream has been removed.
+	 *
+	 * @param stream
+	 */
+	protected void closed(Stream stream) {
+	}
+
+	/**
+	 * Queue a frame to be written by whichever thread next holds the write lock,
+	 * writing it now if the lock is free. This never blocks on the lock. Frames
+	 * queued by the reading thread are bounded (see <code>read()</code>), since
+	 * a peer which does not read would otherwise grow the queue without limit.
+	 *
+	 * @param type
+	 * @param flags
+	 * @param stream
+	 * @param payload
+	 */
+	protected void control(int type, int flags, int stream, byte[] payload) {
+		byte[] bytes = new byte[Http2Frame.HEADER_SIZE + payload.length];
+		Http2Frame.putHeader(bytes, 0, payload.length, type, flags, stream);
+		System.arraycopy(payload, 0, bytes, Http2Frame.HEADER_SIZE, payload.length);
+		controlBytes.addAndGet(bytes.length);
+		control.add(bytes);
+		if (writeLock.tryLock()) {
+			try {
+				unlock();
+			} catch (IOException e) {
+				shutdown(e);
+			}
+		}
+	}
+
+	protected void lock() {
+		writeLock.lock();
+	}
+
+	/**
+	 * Write any queued frames and flush, before releasing the write lock.
+	 *
+	 * @throws IOException
+	 */
+	protected void unlock() throws IOException {
+		try {
+			byte[] bytes;
+			while ((bytes = control.poll()) != null) {
+				controlBytes.addAndGet(-bytes.length);
+				out.write(bytes);
+				metrics.bytesWritten(bytes.length);
+			}
+			out.flush();
+		} finally {
+			writeLock.unlock();
+		}
+		// Frames queued whilst the lock was held must not be left behind
+		if (!control.isEmpty() && writeLock.tryLock()) {
+			unlock();
+		}
+	}
+
+	/**
+	 * Write a single frame, which must be done whilst holding the write lock.
+	 *
+	 * @param type
+	 * @param flags
+	 * @param stream
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	protected void writeFrame(int type, int flags, int stream, byte[] payload, int offset, int length)
+			throws IOException {
+		Http2Frame.putHeader(frameHeader, 0, length, type, flags, stream);
+		out.write(frameHeader);
+		out.write(payload, offset, length);
+		metrics.bytesWritten(Http2Frame.HEADER_SIZE + length);
+	}
+
+	/**
+	 * Write the settings which open this side of the connection, along with the
+	 * update which enlarges the connection's receive window. This must be done
+	 * whilst holding the write lock.
+	 *
+	 * @throws IOException
+	 */
+	protected void writeSettings() throws IOException {
+		byte[] settings = settings();
+		writeFrame(Http2Frame.SETTINGS, 0, 0, settings, 0, settings.length);
+		byte[] increment = intPayload(CONNECTION_WINDOW - Http2Frame.DEFAULT_WINDOW_SIZE);
+		writeFrame(Http2Frame.WINDOW_UPDATE, 0, 0, increment, 0, increment.length);
+	}
+
+	/**
+	 * Write the client's connection preface, which must be done whilst holding
+	 * the write lock.
+	 *
+	 * @throws IOException
+	 */
+	protected void writePreface() throws IOException {
+		out.write(Http2Frame.PREFACE);
+		metrics.bytesWritten(Http2Frame.PREFACE.length);
+	}
+
+	/**
+	 * Read the client's connection preface.
+	 *
+	 * @return <code>false</code> if the preface is invalid.
+	 * @throws IOException
+	 */
+	protected boolean readPreface() throws IOException {
+		for (byte b : Http2Frame.PREFACE) {
+			if (in.read() != (b & 0xFF)) {
+				return false;
+			}
+		}
+		metrics.bytesRead(Http2Frame.PREFACE.length);
+		return true;
+	}
+
+	/**
+	 * Get the payload of the settings sent by this side of the connection.
+	 *
+	 * @return
+	 */
+	protected abstract byte[] settings();
+
+	/**
+	 * Close the socket, and fail any streams still open.
+	 *
+	 * @param cause
+	 */
+	protected void shutdown(Throwable cause) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing useful can be done here
+		}
+		for (Stream stream : streams.values()) {
+			if (streams.remove(stream.id) != null) {
+				fail(stream, cause);
+			}
+		}
+	}
+
+	private byte[] goAwayPayload(int errorCode) {
+		byte[] payload = new byte[8];
+		Http2Frame.putInt(payload, 0, lastStream());
+		Http2Frame.putInt(payload, 4, errorCode);
+		return payload;
+	}
+
+	/**
+	 * Get the identifier of the last stream opened by the peer.
+	 *
+	 * @return
+	 */
+	protected abstract int lastStream();
+
+	/**
+	 * Encode the payload of a settings frame.
+	 *
+	 * @param settings Identifiers and values, alternately.
+	 * @return
+	 */
+	protected static byte[] encodeSettings(int... settings) {
+		byte[] payload = new byte[settings.length * 3];
+		for (int i = 0; i != settings.length; i += 2) {
+			int offset = i * 3;
+			payload[offset] = (byte) (settings[i] >>> 8);
+			payload[offset + 1] = (byte) settings[i];
+			Http2Frame.putInt(payload, offset + 2, settings[i + 1]);
+		}
+		return payload;
+	}
+
+	private static byte[] intPayload(int value) {
+		byte[] payload = new byte[4];
+		Http2Frame.putInt(payload, 0, value);
+		return payload;
+	}
+
+	/**
+	 * Check whether a header applies only to an HTTP/1 connection, and so must
+	 * not be sent over HTTP/2.
+	 *
+	 * @param name  Lower case name.
+	 * @param value
+	 * @return
+	 */
+	private static boolean isConnectionSpecific(String name, String value) {
+		switch (name) {
+		case "connection":
+		case "keep-alive":
+		case "proxy-connection":
+		case "transfer-encoding":
+		case "upgrade":
+		case "http2-settings":
+			return true;
+		case "te":
+			return !value.equalsIgnoreCase("trailers");
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Check whether a decoded header name is valid for HTTP/2, which requires
+	 * lower case and excludes connection specific headers.
+	 *
+	 * @param name
+	 * @param value
+	 * @return
+	 */
+	private static boolean isValidField(byte[] name, byte[] value) {
+		for (byte b : name) {
+			if (b >= 'A' && b <= 'Z') {
+				return false;
+			}
+		}
+		return !isConnectionSpecific(new String(name, StandardCharsets.ISO_8859_1),
+				new String(value, StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Append the regular (i.e. non-pseudo) fields of a header block to a message
+	 * head, checking that no pseudo-header follows them.
+	 *
+	 * @param id
+	 * @param head
+	 * @param fields
+	 * @param skip   Name of a field to leave out, or <code>null</code>.
+	 * @throws Http2Exception
+	 */
+	private static void appendFields(int id, MessageBuilder<?> head, ArrayList<byte[]> fields, String skip)
+			throws Http2Exception {
+		byte[] skipBytes = (skip == null) ? null : skip.getBytes(StandardCharsets.ISO_8859_1);
+		for (int i = 0; i < fields.size(); i += 2) {
+			byte[] name = fields.get(i);
+			byte[] value = fields.get(i + 1);
+			if (name.length > 0 && name[0] == ':') {
+				continue;
+			} else if (!isValidField(name, value)) {
+				throw new Http2Exception(id, Http2Frame.PROTOCOL_ERROR, "invalid header field");
+			} else if (skipBytes != null && Arrays.equals(name, skipBytes)) {
+				continue;
+			}
+			byte[] key = Arrays.copyOf(name, name.length + 2);
+			key[name.length] = ':';
+			key[name.length + 1] = ' ';
+			head.header(key, value);
+		}
+	}
+
+	/**
+	 * Get the value of a pseudo-header from a header block, checking it occurs
+	 * at most once and before any regular field.
+	 *
+	 * @param id
+	 * @param fields
+	 * @param name
+	 * @return The value, or <code>null</code> if there is none.
+	 * @throws Http2Exception
+	 */
+	private static String pseudo(int id, ArrayList<byte[]> fields, String name) throws Http2Exception {
+		byte[] nameBytes = name.getBytes(StandardCharsets.ISO_8859_1);
+		String result = null;
+		boolean regular = false;
+		for (int i = 0; i < fields.size(); i += 2) {
+			byte[] field = fields.get(i);
+			if (field.length == 0 || field[0] != ':') {
+				regular = true;
+			} else if (Arrays.equals(field, nameBytes)) {
+				if (result != null || regular) {
+					throw new Http2Exception(id, Http2Frame.PROTOCOL_ERROR, "invalid pseudo-header " + name);
+				}
+				result = new String(fields.get(i + 1), StandardCharsets.ISO_8859_1);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the reason phrase for a given status code.
+	 *
+	 * @param status
+	 * @return
+	 */
+	private static String reason(int status) {
+		byte[] line = Headers.statusLine(status);
+		if (line == null) {
+			return "Unknown";
+		}
+		// Skip "HTTP/1.1 NNN " and the line terminator
+		return new String(line, 13, line.length - 15, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Writes a message body as <code>DATA</code> frames, buffering at most one
+	 * frame's worth of data.
+	 */
+	private final class DataOutputStream extends OutputStream {
+		private final Stream stream;
+		private byte[] buffer;
+		private int count;
+
+		public DataOutputStream(Stream stream) {
+			this.stream = stream;
+			this.buffer = BufferPool.DEFAULT.acquire(Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (count == 0 && length >= buffer.length) {
+					// Nothing buffered, so send directly from the caller's array
+					writeData(stream, bytes, offset, length, false);
+					return;
+				}
+				int n = Math.min(length, buffer.length - count);
+				System.arraycopy(bytes, offset, buffer, count, n);
+				count += n;
+				offset += n;
+				length -= n;
+				if (count == buffer.length) {
+					flush();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				writeData(stream, buffer, 0, count, false);
+				count = 0;
+			}
+		}
+
+		/**
+		 * Send any buffered data, ending the stream.
+		 *
+		 * @throws IOException
+		 */
+		public void finish() throws IOException {
+			writeData(stream, buffer, 0, count, true);
+			count = 0;
+		}
+
+		public void release() {
+			if (buffer != null) {
+				BufferPool.DEFAULT.release(buffer);
+				buffer = null;
+			}
+		}
+	}
+
+	/**
+	 * Represents a connection from a client to a server, over which any number
+	 * of threads can send requests concurrently. Responses are read by a
+	 * dedicated (daemon) thread.
+	 */
+	public static class Client extends Http2Connection implements HTTP.ClientConnection {
+		/**
+		 * Identifier of the next stream to open, which is only updated whilst
+		 * holding the write lock.
+		 */
+		private volatile int nextStream = 1;
+		/**
+		 * Number of streams open, which is guarded by the connection's monitor.
+		 */
+		private int active;
+		/**
+		 * Response to the request which upgraded this connection, if any.
+		 */
+		private CompletableFuture<Response> upgradeResponse;
+
+		/**
+		 * Construct a client over a connection which is known to support HTTP/2
+		 * (i.e. prior knowledge), sending the connection preface immediately.
+		 *
+		 * @param socket
+		 * @throws IOException
+		 */
+		public Client(Socket socket) throws IOException {
+			this(socket, Metrics.NONE);
+		}
+
+		public Client(Socket socket, Metrics metrics) throws IOException {
+			this(socket, metrics, false);
+		}
+
+		private Client(Socket socket, Metrics metrics, boolean upgraded) throws IOException {
+			super(socket, socket.getInputStream(), metrics);
+			metrics.connectionOpened();
+			if (upgraded) {
+				// Stream 1 carries the response to the upgrade request
+				Stream stream = new Stream(1, new CompletableFuture<>());
+				stream.localClosed = true;
+				stream.started = System.nanoTime();
+				streams.put(1, stream);
+				upgradeResponse = stream.response;
+				nextStream = 3;
+				active = 1;
+			}
+			lock();
+			try {
+				writePreface();
+				writeSettings();
+			} finally {
+				unlock();
+			}
+			Thread reader = new Thread(this::read, "Http2Connection-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Open an HTTP/2 connection by upgrading from HTTP/1.1, where the first
+		 * request is sent over HTTP/1.1 and its response is received over HTTP/2
+		 * (see <code>getUpgradeResponse()</code>). The request should have no
+		 * body.
+		 *
+		 * @param socket
+		 * @param request
+		 * @return
+		 * @throws HttpException If the server declines to upgrade, with the status
+		 *                       it responded with. The socket is closed.
+		 * @throws IOException
+		 */
+		public static Client upgrade(Socket socket, Request request) throws IOException {
+			return upgrade(socket, request, Metrics.NONE);
+		}
+
+		public static Client upgrade(Socket socket, Request request, Metrics metrics) throws IOException {
+			String settings = Base64.getUrlEncoder().withoutPadding().encodeToString(clientSettings());
+			request = request.addHeader(Headers.CONNECTION, "Upgrade, HTTP2-Settings")
+					.addHeader(Headers.UPGRADE, UPGRADE_TOKEN).addHeader(Headers.HTTP2_SETTINGS, settings);
+			OutputStream out = socket.getOutputStream();
+			request.writeln(out);
+			out.flush();
+			// Read the response head a byte at a time, so nothing beyond it is consumed
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream head = new ByteArrayOutputStream();
+			int state = 0;
+			while (state != 4) {
+				int b = in.read();
+				if (b < 0) {
+					socket.close();
+					throw new EOFException("unexpected end of stream");
+				} else if (head.size() == MAX_UPGRADE_HEAD) {
+					socket.close();
+					throw new ProtocolException("response head too large");
+				}
+				head.write(b);
+				state = (b == (state % 2 == 0 ? '\r' : '\n')) ? state + 1 : (b == '\r' ? 1 : 0);
+			}
+			byte[] bytes = head.toByteArray();
+			int status = -1;
+			if (bytes.length > 12 && bytes[8] == ' ') {
+				status = 0;
+				for (int i = 9; i != 12; ++i) {
+					status = (status * 10) + (bytes[i] - '0');
+				}
+			}
+			if (status != HTTP.SWITCHING_PROTOCOLS) {
+				socket.close();
+				throw new HttpException(status, "server declined upgrade");
+			}
+			return new Client(socket, metrics, true);
+		}
+
+		/**
+		 * Get the response to the request which upgraded this connection, waiting
+		 * until it has been received.
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		public Response getUpgradeResponse() throws IOException {
+			if (upgradeResponse == null) {
+				throw new IllegalStateException("connection was not upgraded");
+			}
+			return await(upgradeResponse);
+		}
+
+		/**
+		 * Send a request on a new stream, returning a future for its response. The
+		 * request (including its body) is written before this returns, blocking
+		 * only whilst waiting for flow control credit or for the server to allow
+		 * another stream.
+		 *
+		 * @param request
+		 * @return
+		 */
+		public CompletableFuture<Response> sendAsync(Request request) {
+			CompletableFuture<Response> response = new CompletableFuture<>();
+			Stream stream = null;
+			try {
+				acquire();
+				stream = start(request, response);
+				final Stream s = stream;
+				response.whenComplete((r, e) -> {
+					if (e != null && streams.containsKey(s.getId())) {
+						// Cancelled (or failed), so abandon the exchange
+						reset(s.getId(), Http2Frame.CANCEL);
+					}
+				});
+				Entity body = request.getBody();
+				if (body instanceof ChunkedEntity) {
+					body = ((ChunkedEntity) body).getProducer();
+				}
+				if (body != null && body.getLength() != 0) {
+					DataOutputStream data = new DataOutputStream(stream);
+					try {
+						body.write(data);
+						data.finish();
+					} finally {
+						data.release();
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				// The server may already have responded (e.g. rejecting the body)
+				response.completeExceptionally(e);
+			}
+			return response;
+		}
+
+		@Override
+		public Response send(Request request) throws IOException {
+			return await(sendAsync(request));
+		}
+
+		/**
+		 * Create a pipeline which sends each request on its own stream as soon as
+		 * it is added, rather than waiting for it to be flushed.
+		 */
+		@Override
+		public HTTP.Pipeline pipeline() {
+			return new HTTP.Pipeline() {
+				private final ArrayDeque<CompletableFuture<Response>> futures = new ArrayDeque<>();
+
+				@Override
+				public void add(Request message) throws IOException {
+					futures.add(sendAsync(message));
+				}
+
+				@Override
+				public void flush() throws IOException {
+					// Requests are sent as they are added
+				}
+
+				@Override
+				public Response next() throws IOException {
+					CompletableFuture<Response> future = futures.poll();
+					if (future == null) {
+						throw new IllegalStateException("no outstanding requests");
+					}
+					return await(future);
+				}
+
+				@Override
+				public int pending() {
+					return futures.size();
+				}
+			};
+		}
+
+		/**
+		 * Open a new stream and write the headers of a given request on it, having
+		 * already acquired a slot for the stream. The slot is released if the
+		 * stream cannot be opened.
+		 *
+		 * @param request
+		 * @param response
+		 * @return
+		 * @throws IOException
+		 */
+		private Stream start(Request request, CompletableFuture<Response> response) throws IOException {
+			Entity body = request.getBody();
+			boolean empty = (body == null || body.getLength() == 0);
+			lock();
+			try {
+				Stream stream;
+				synchronized (this) {
+					if (nextStream > goAway || nextStream < 0) {
+						release();
+						throw new IOException("connection is shutting down");
+					}
+					stream = new Stream(nextStream, response);
+					nextStream += 2;
+				}
+				if (metrics != Metrics.NONE) {
+					stream.started = System.nanoTime();
+				}
+				streams.put(stream.getId(), stream);
+				try {
+					writeHeaders(stream, request, empty);
+				} catch (IOException e) {
+					if (streams.remove(stream.getId()) != null) {
+						closed(stream);
+					}
+					throw e;
+				}
+				return stream;
+			} finally {
+				unlock();
+			}
+		}
+
+		/**
+		 * Wait until the server allows another stream to be opened.
+		 *
+		 * @throws IOException
+		 */
+		private synchronized void acquire() throws IOException {
+			try {
+				while (active >= maxConcurrentStreams && !closed) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (closed) {
+				throw new IOException("connection closed");
+			}
+			active++;
+		}
+
+		private synchronized void release() {
+			active--;
+			notifyAll();
+		}
+
+		@Override
+		protected void closed(Stream stream) {
+			release();
+		}
+
+		@Override
+		protected boolean isIdle(int id) {
+			return (id % 2) == 0 || id >= nextStream;
+		}
+
+		@Override
+		protected Stream open(int id) throws Http2Exception {
+			if (isIdle(id)) {
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "HEADERS on idle stream");
+			}
+			return null;
+		}
+
+		@Override
+		protected void headers(Stream stream, ArrayList<byte[]> fields, boolean endStream) throws IOException {
+			String status = pseudo(stream.getId(), fields, ":status");
+			int code;
+			try {
+				code = Integer.parseInt(status);
+			} catch (NumberFormatException e) {
+				throw new Http2Exception(stream.getId(), Http2Frame.PROTOCOL_ERROR, "invalid :status");
+			}
+			if (code < 200) {
+				// Interim response
+				if (endStream) {
+					throw new Http2Exception(stream.getId(), Http2Frame.PROTOCOL_ERROR, "interim response ends stream");
+				}
+				return;
+			}
+			MessageBuilder<?> head = new MessageBuilder.Response(HTTP.V2_0, code, reason(code));
+			appendFields(stream.getId(), head, fields, null);
+			stream.head = head;
+		}
+
+		@Override
+		protected void received(Stream stream) {
+			closeRemote(stream);
+			Response response = (Response) stream.build();
+			if (metrics != Metrics.NONE) {
+				metrics.responseReceived(response.getStatusCode(), System.nanoTime() - stream.started);
+			}
+			stream.response.complete(response);
+		}
+
+		@Override
+		protected void tooLarge(Stream stream) {
+			stream.response.completeExceptionally(new ProtocolException("response body exceeds maximum size"));
+			reset(stream.getId(), Http2Frame.CANCEL);
+		}
+
+		@Override
+		protected void onGoAway(int lastStream) {
+			super.onGoAway(lastStream);
+			for (Stream stream : streams.values()) {
+				if (stream.getId() > lastStream && streams.remove(stream.getId()) != null) {
+					// Not processed by the server, so can safely be retried elsewhere
+					fail(stream, new IOException("stream refused by server"));
+				}
+			}
+		}
+
+		@Override
+		protected int lastStream() {
+			return 0;
+		}
+
+		@Override
+		protected byte[] settings() {
+			return clientSettings();
+		}
+
+		@Override
+		protected void shutdown(Throwable cause) {
+			boolean open;
+			synchronized (this) {
+				open = !closed;
+			}
+			super.shutdown(cause);
+			if (open) {
+				metrics.connectionClosed();
+			}
+		}
+
+		private static byte[] clientSettings() {
+			return encodeSettings(Http2Frame.SETTINGS_ENABLE_PUSH, 0, Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE,
+					STREAM_WINDOW);
+		}
+	}
+
+	/**
+	 * Represents a connection from the server to a client, over which requests
+	 * are received on the thread calling <code>serve()</code> and handled
+	 * concurrently by tasks on an executor.
+	 */
+	public static class Server extends Http2Connection {
+		private final Executor executor;
+		private final HTTP.Handler handler;
+		/**
+		 * Maximum number of streams the client may have open at once.
+		 */
+		private final int maxStreams;
+		/**
+		 * Number of requests passed to the executor whose handlers have not yet
+		 * finished. Unlike the open streams, this is not reduced when the client
+		 * resets a stream, so resetting streams as soon as they are opened cannot
+		 * run up an unbounded number of handlers.
+		 */
+		private final AtomicInteger handling = new AtomicInteger();
+		/**
+		 * Identifier of the last stream opened by the client, which is only
+		 * accessed by the reading thread (except when closing).
+		 */
+		private volatile int lastStream;
+
+		/**
+		 * Construct a server connection over a given socket.
+		 *
+		 * @param socket
+		 * @param in         Stream from which to read, which should begin with any
+		 *                   bytes already read from the socket.
+		 * @param executor   Runs the handler for each request.
+		 * @param maxStreams Maximum number of streams the client may have open.
+		 * @param metrics
+		 * @param handler
+		 * @throws IOException
+		 */
+		public Server(Socket socket, InputStream in, Executor executor, int maxStreams, Metrics metrics,
+				HTTP.Handler handler) throws IOException {
+			super(socket, in, metrics);
+			this.executor = executor;
+			this.handler = handler;
+			this.maxStreams = maxStreams;
+		}
+
+		/**
+		 * Serve a connection on which the client sent the HTTP/2 preface (i.e.
+		 * prior knowledge), returning once the connection has ended.
+		 *
+		 * @throws IOException If the connection could not be started.
+		 */
+		public void serve() throws IOException {
+			serve(null, null);
+		}
+
+		/**
+		 * Serve a connection which is being upgraded from HTTP/1.1, once the
+		 * <code>101</code> response has been sent. The request which asked for the
+		 * upgrade is handled as stream 1, and the settings it carried are applied.
+		 *
+		 * @param request
+		 * @throws IOException If the connection could not be started.
+		 */
+		public void serve(Request request) throws IOException {
+			String settings = request.getFirstValue(Headers.HTTP2_SETTINGS);
+			byte[] payload;
+			try {
+				payload = Base64.getUrlDecoder().decode(settings == null ? "" : settings.trim());
+			} catch (IllegalArgumentException e) {
+				throw new ProtocolException("invalid HTTP2-Settings");
+			}
+			serve(copy(request), payload);
+		}
+
+		private void serve(Request upgrade, byte[] settings) throws IOException {
+			lock();
+			try {
+				writeSettings();
+			} finally {
+				unlock();
+			}
+			if (upgrade != null) {
+				applySettings(settings, 0, settings.length);
+				Stream stream = new Stream(1, null);
+				lastStream = 1;
+				streams.put(1, stream);
+				closeRemote(stream);
+				dispatch(stream, upgrade);
+			}
+			if (!readPreface()) {
+				shutdown(new ProtocolException("invalid connection preface"));
+				return;
+			}
+			read();
+		}
+
+		/**
+		 * Handle a request received on a given stream, by passing it to the handler
+		 * and waiting until a response has been sent. Should the handler fail, an
+		 * error response is sent instead.
+		 *
+		 * @param request
+		 * @param stream
+		 */
+		protected void handle(Request request, Stream stream) {
+			try {
+				handler.handle(request, stream);
+				stream.awaitResponse();
+			} catch (IOException | RuntimeException e) {
+				if (!stream.isResponded()) {
+					try {
+						stream.send(error(HTTP.INTERNAL_SERVER_ERROR));
+					} catch (IOException | IllegalStateException ex) {
+						// Nothing more can be done
+					}
+				}
+			} finally {
+				handling.decrementAndGet();
+			}
+		}
+
+		private void dispatch(Stream stream, Request request) {
+			if (metrics != Metrics.NONE) {
+				stream.started = System.nanoTime();
+				metrics.requestReceived(0);
+			}
+			handling.incrementAndGet();
+			try {
+				executor.execute(() -> handle(request, stream));
+			} catch (RejectedExecutionException e) {
+				handling.decrementAndGet();
+				reset(stream.getId(), Http2Frame.REFUSED_STREAM);
+			}
+		}
+
+		/**
+		 * Send an error response on a given stream from another thread, since the
+		 * reading thread must not write.
+		 *
+		 * @param stream
+		 * @param status
+		 * @param reset  Reset the stream once the response has been sent.
+		 */
+		private void reject(Stream stream, int status, boolean reset) {
+			handling.incrementAndGet();
+			try {
+				executor.execute(() -> {
+					try {
+						stream.send(error(status));
+					} catch (IOException | IllegalStateException e) {
+						// Nothing more can be done
+					} finally {
+						handling.decrementAndGet();
+					}
+					if (reset) {
+						reset(stream.getId(), Http2Frame.NO_ERROR);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				handling.decrementAndGet();
+				reset(stream.getId(), Http2Frame.REFUSED_STREAM);
+			}
+		}
+
+		@Override
+		protected boolean isIdle(int id) {
+			return id > lastStream;
+		}
+
+		@Override
+		protected Stream open(int id) throws Http2Exception {
+			if ((id % 2) == 0 || id <= lastStream) {
+				if (id <= lastStream && (id % 2) != 0) {
+					// Closed stream
+					throw new Http2Exception(id, Http2Frame.STREAM_CLOSED, "HEADERS on closed stream");
+				}
+				throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "invalid stream identifier");
+			}
+			lastStream = id;
+			if (streams.size() >= maxStreams) {
+				throw new Http2Exception(id, Http2Frame.REFUSED_STREAM, "too many streams");
+			} else if (handling.get() >= maxStreams) {
+				// Streams reset by the client whose handlers are still running
+				throw new Http2Exception(id, Http2Frame.REFUSED_STREAM, "too many requests in progress");
+			}
+			Stream stream = new Stream(id, null);
+			streams.put(id, stream);
+			return stream;
+		}
+
+		@Override
+		protected void headers(Stream stream, ArrayList<byte[]> fields, boolean endStream) throws IOException {
+			int id = stream.getId();
+			String method = pseudo(id, fields, ":method");
+			String path = pseudo(id, fields, ":path");
+			String scheme = pseudo(id, fields, ":scheme");
+			String authority = pseudo(id, fields, ":authority");
+			if (method == null || path == null || scheme == null || path.isEmpty()) {
+				throw new Http2Exception(id, Http2Frame.PROTOCOL_ERROR, "missing pseudo-header");
+			}
+			HTTP.Method m = null;
+			for (HTTP.Method candidate : HTTP.Method.values()) {
+				if (candidate.toString().equals(method)) {
+					m = candidate;
+				}
+			}
+			if (m == null) {
+				// Respond once the request has been received in full
+				stream.rejected = HTTP.NOT_IMPLEMENTED;
+				m = HTTP.Method.GET;
+			}
+			MessageBuilder<?> head = new MessageBuilder.Request(m, path, HTTP.V2_0);
+			if (authority != null) {
+				head.header(Headers.HOST, authority);
+			}
+			appendFields(id, head, fields, authority != null ? "host" : null);
+			stream.head = head;
+		}
+
+		@Override
+		protected void received(Stream stream) {
+			closeRemote(stream);
+			if (stream.rejected != 0) {
+				reject(stream, stream.rejected, false);
+			} else {
+				dispatch(stream, (Request) stream.build());
+			}
+		}
+
+		@Override
+		protected void tooLarge(Stream stream) {
+			// Discard the rest of the body, and reset the stream once the rejection
+			// has been sent so the client stops sending it
+			stream.body = null;
+			stream.discarding = true;
+			closeRemote(stream);
+			reject(stream, HTTP.PAYLOAD_TOO_LARGE, true);
+		}
+
+		@Override
+		protected int lastStream() {
+			return lastStream;
+		}
+
+		@Override
+		protected byte[] settings() {
+			return encodeSettings(Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams,
+					Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+		}
+
+		private static Response error(int status) {
+			return new MessageBuilder.Response(status).build(null);
+		}
+
+		/**
+		 * Copy a request which is a view onto another connection's buffer.
+		 *
+		 * @param request
+		 * @return
+		 * @throws IOException
+		 */
+		private static Request copy(Request request) throws IOException {
+			MessageBuilder.Request head = new MessageBuilder.Request(request.getMethod(), request.getURI(),
+					request.getVersion());
+			for (int i = 0; i != request.size(); ++i) {
+				Header header = request.getHeader(i);
+				String key = header.getKey();
+				if (!key.equalsIgnoreCase("Content-Length") && !key.equalsIgnoreCase("Transfer-Encoding")) {
+					head.header((key + ": ").getBytes(StandardCharsets.ISO_8859_1), header.getValue());
+				}
+			}
+			Entity body = request.getBody();
+			Entity copy = null;
+			if (body != null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				body.write(bytes);
+				copy = new ByteArrayEntity(bytes.toByteArray());
+			}
+			return head.build(copy);
+		}
+	}
+
+	/**
+	 * Wait for a response, unwrapping the exception with which it failed.
+	 *
+	 * @param future
+	 * @return
+	 * @throws IOException
+	 */
+	private static Response await(CompletableFuture<Response> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (CancellationException e) {
+			throw new IOException("request cancelled", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Token identifying cleartext HTTP/2 in an <code>Upgrade</code> header.
+	 */
+	public static final String UPGRADE_TOKEN = "h2c";
+
+	/**
+	 * Response which agrees to upgrade a connection to cleartext HTTP/2.
+	 */
+	public static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n"
+			+ "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Receive window of each stream, which is replenished once half has been
+	 * used.
+	 */
+	private static final int STREAM_WINDOW = 1024 * 1024;
+
+	/**
+	 * Receive window of the connection as a whole.
+	 */
+	private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+	/**
+	 * Largest header block accepted, across all of its frames.
+	 */
+	private static final int MAX_HEADER_BLOCK = 256 * 1024;
+
+	private static final int MAX_UPGRADE_HEAD = 8192;
+
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	/**
+	 * Maximum number of bytes of control frames queued for writing, beyond which
+	 * the connection is closed with <code>ENHANCE_YOUR_CALM</code>.
+	 */
+	private static final int MAX_CONTROL_BYTES = 64 * 1024;
+}
@@ -0,0 +1,44 @@
+package jtinyhttp.util;
+
+import java.net.ProtocolException;
+
+/**
+ * Signals an error on an HTTP/2 connection, which carries the error code to
+ * report to the peer (e.g. <code>Http2Frame.PROTOCOL_ERROR</code>). A stream
+ * error affects only the given stream, which is reset, whilst a connection
+ * error (i.e. on stream 0) ends the connection as a whole.
+ */
+public class Http2Exception extends ProtocolException {
+	private static final long serialVersionUID = 1L;
+
+	private final int errorCode;
+	private final int stream;
+
+	public Http2Exception(int errorCode, String message) {
+		this(0, errorCode, message);
+	}
+
+	public Http2Exception(int stream, int errorCode, String message) {
+		super(message);
+		this.errorCode = errorCode;
+		this.stream = stream;
+	}
+
+	/**
+	 * Get the error code which should be reported for this error.
+	 *
+	 * @return
+	 */
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+	/**
+	 * Get the stream affected by this error, or 0 if it is a connection error.
+	 *
+	 * @return
+	 */
+	public int getStream() {
+		return stream;
+	}
+}
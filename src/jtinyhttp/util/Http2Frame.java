@@ -0,0 +1,232 @@
+package jtinyhttp.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A frame read from an HTTP/2 connection (RFC 7540, section 4). Frames are read
+ * one after another into the same instance, and the payload buffer is reused
+ * between them, so it is only valid until the next frame is read. This also
+ * defines the frame types, flags, settings and error codes used on the wire.
+ */
+public final class Http2Frame {
+	private final byte[] header = new byte[HEADER_SIZE];
+	private byte[] payload;
+	private int length;
+	private int type;
+	private int flags;
+	private int stream;
+
+	/**
+	 * Construct a frame whose payload can hold at most a given number of bytes.
+	 *
+	 * @param maxFrameSize
+	 */
+	public Http2Frame(int maxFrameSize) {
+		this.payload = new byte[maxFrameSize];
+	}
+
+	/**
+	 * Read the next frame from a given input stream, blocking until it has been
+	 * received in full.
+	 *
+	 * @param in
+	 * @return <code>false</code> if the stream ended cleanly before the frame.
+	 * @throws Http2Exception If the frame exceeds the maximum frame size.
+	 * @throws IOException
+	 */
+	public boolean read(InputStream in) throws IOException {
+		int n = in.read(header, 0, HEADER_SIZE);
+		if (n < 0) {
+			return false;
+		}
+		readFully(in, header, n, HEADER_SIZE - n);
+		length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+		type = header[3] & 0xFF;
+		flags = header[4] & 0xFF;
+		stream = getInt(header, 5) & 0x7FFFFFFF;
+		if (length > payload.length) {
+			throw new Http2Exception(FRAME_SIZE_ERROR, "frame exceeds maximum size");
+		}
+		readFully(in, payload, 0, length);
+		return true;
+	}
+
+	/**
+	 * Get the number of bytes in the payload.
+	 *
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Check whether a given flag is set on this frame.
+	 *
+	 * @param flag
+	 * @return
+	 */
+	public boolean hasFlag(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	/**
+	 * Get the stream identifier, where 0 identifies the connection as a whole.
+	 *
+	 * @return
+	 */
+	public int getStream() {
+		return stream;
+	}
+
+	/**
+	 * Get the buffer holding the payload, which begins at index 0.
+	 *
+	 * @return
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Encode a frame header into a given buffer.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param type
+	 * @param flags
+	 * @param stream
+	 */
+	public static void putHeader(byte[] bytes, int offset, int length, int type, int flags, int stream) {
+		bytes[offset] = (byte) (length >>> 16);
+		bytes[offset + 1] = (byte) (length >>> 8);
+		bytes[offset + 2] = (byte) length;
+		bytes[offset + 3] = (byte) type;
+		bytes[offset + 4] = (byte) flags;
+		putInt(bytes, offset + 5, stream);
+	}
+
+	/**
+	 * Decode a 32-bit big-endian integer.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @return
+	 */
+	public static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8)
+				| (bytes[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Encode a 32-bit big-endian integer.
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param value
+	 */
+	public static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			int n = in.read(bytes, offset, length);
+			if (n < 0) {
+				throw new EOFException("unexpected end of stream");
+			}
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Number of bytes in a frame header.
+	 */
+	public static final int HEADER_SIZE = 9;
+
+	/**
+	 * Sent by a client to open a connection, before its first
+	 * <code>SETTINGS</code> frame.
+	 */
+	public static final byte[] PREFACE = { 'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r',
+			'\n', '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n' };
+
+	// ===============================================================
+	// Frame Types
+	// ===============================================================
+
+	public static final int DATA = 0x0;
+	public static final int HEADERS = 0x1;
+	public static final int PRIORITY = 0x2;
+	public static final int RST_STREAM = 0x3;
+	public static final int SETTINGS = 0x4;
+	public static final int PUSH_PROMISE = 0x5;
+	public static final int PING = 0x6;
+	public static final int GOAWAY = 0x7;
+	public static final int WINDOW_UPDATE = 0x8;
+	public static final int CONTINUATION = 0x9;
+
+	// ===============================================================
+	// Flags
+	// ===============================================================
+
+	public static final int FLAG_END_STREAM = 0x1;
+	public static final int FLAG_ACK = 0x1;
+	public static final int FLAG_END_HEADERS = 0x4;
+	public static final int FLAG_PADDED = 0x8;
+	public static final int FLAG_PRIORITY = 0x20;
+
+	// ===============================================================
+	// Settings
+	// ===============================================================
+
+	public static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	public static final int SETTINGS_ENABLE_PUSH = 0x2;
+	public static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	public static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	public static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	public static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	/**
+	 * Initial size of every flow control window, and the largest frame payload,
+	 * until changed by settings.
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 65535;
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	public static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	public static final int MAX_FRAME_SIZE = 16777215;
+
+	// ===============================================================
+	// Error Codes
+	// ===============================================================
+
+	public static final int NO_ERROR = 0x0;
+	public static final int PROTOCOL_ERROR = 0x1;
+	public static final int INTERNAL_ERROR = 0x2;
+	public static final int FLOW_CONTROL_ERROR = 0x3;
+	public static final int SETTINGS_TIMEOUT = 0x4;
+	public static final int STREAM_CLOSED = 0x5;
+	public static final int FRAME_SIZE_ERROR = 0x6;
+	public static final int REFUSED_STREAM = 0x7;
+	public static final int CANCEL = 0x8;
+	public static final int COMPRESSION_ERROR = 0x9;
+	public static final int CONNECT_ERROR = 0xa;
+	public static final int ENHANCE_YOUR_CALM = 0xb;
+	public static final int INADEQUATE_SECURITY = 0xc;
+	public static final int HTTP_1_1_REQUIRED = 0xd;
+}
@@ -0,0 +1,641 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.HTTP.Header;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.Response;
+import jtinyhttp.core.Headers;
+
+/**
+ * A store of responses for use by <code>CachingClientConnection</code>, which
+ * can be shared by any number of connections (and threads). Responses are held
+ * in least recently used order, and evicted once their total size exceeds a
+ * byte budget. Bodies are held either on the heap or in direct buffers, where
+ * the latter keeps a large cache out of the garbage collector's way. Each
+ * entry records when it becomes stale, computed from the
+ * <code>Cache-Control</code> or <code>Expires</code> headers of the response,
+ * along with the validators (i.e. <code>ETag</code> and
+ * <code>Last-Modified</code>) used to revalidate it once stale. A response
+ * which varies by request header (i.e. <code>Vary</code>) is stored along with
+ * the values of those headers in the request, and only used for requests with
+ * the same values. Only the most recent variant of each resource is held.
+ */
+public class HttpCache {
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * Maximum total size (in bytes) of the entries held.
+	 */
+	private final long capacity;
+	/**
+	 * Maximum size (in bytes) of any one entry.
+	 */
+	private final long maxEntrySize;
+	/**
+	 * Indicates whether bodies are held in direct (off-heap) buffers.
+	 */
+	private final boolean offHeap;
+	private long size;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder revalidated = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public HttpCache(long capacity) {
+		this(capacity, capacity / 8, false);
+	}
+
+	/**
+	 * Construct a cache with a given budget.
+	 *
+	 * @param capacity     Maximum total size (in bytes) of the entries held.
+	 * @param maxEntrySize Maximum size (in bytes) of any one entry.
+	 * @param offHeap      Whether bodies are held in direct buffers.
+	 */
+	public HttpCache(long capacity, long maxEntrySize, boolean offHeap) {
+		this.capacity = capacity;
+		this.maxEntrySize = Math.min(maxEntrySize, capacity);
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Get the largest body which can be cached.
+	 *
+	 * @return
+	 */
+	public long getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	/**
+	 * Get the total size (in bytes) of the entries held.
+	 *
+	 * @return
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of requests answered from the cache without contacting the
+	 * server.
+	 *
+	 * @return
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of requests answered from the cache after the server
+	 * confirmed the entry was unchanged (i.e. <code>304 Not Modified</code>).
+	 *
+	 * @return
+	 */
+	public long getRevalidated() {
+		return revalidated.sum();
+	}
+
+	/**
+	 * Get the number of requests for which the server sent a full response.
+	 *
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Look up the entry for a given key, which may be stale.
+	 *
+	 * @param key
+	 * @return The entry, or <code>null</code> if there is none.
+	 */
+	public synchronized Entry get(String key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Store an entry under a given key, replacing any existing entry and evicting
+	 * the least recently used entries as necessary to stay within budget.
+	 * Entries which exceed the maximum entry size are not stored.
+	 *
+	 * @param key
+	 * @param entry
+	 */
+	public synchronized void put(String key, Entry entry) {
+		if (entry.size > maxEntrySize) {
+			remove(key);
+			return;
+		}
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			size -= old.size;
+		}
+		size += entry.size;
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (size > capacity && eldest.hasNext()) {
+			size -= eldest.next().size;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Remove the entry (if any) for a given key.
+	 *
+	 * @param key
+	 */
+	public synchronized void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			size -= old.size;
+		}
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	void hit() {
+		hits.increment();
+	}
+
+	void revalidated() {
+		revalidated.increment();
+	}
+
+	void miss() {
+		misses.increment();
+	}
+
+	/**
+	 * Create an entry for a response to a given request received at a given
+	 * time, whose body has been read in full.
+	 *
+	 * @param request
+	 * @param response
+	 * @param body
+	 * @param length   Number of bytes of the body.
+	 * @param now      Time (in milliseconds) at which the response was received.
+	 * @return
+	 */
+	Entry create(Request request, Response response, byte[] body, int length, long now) {
+		Entity entity;
+		if (offHeap) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+			buffer.put(body, 0, length).flip();
+			entity = new DirectEntity(buffer.asReadOnlyBuffer());
+		} else {
+			entity = new ByteArrayEntity(length == body.length ? body : Arrays.copyOf(body, length));
+		}
+		Response cached = AbstractResponse.copy(response, entity);
+		long headBytes = ((AbstractMessage) cached).numBytes;
+		byte[][] varyNames = varyNames(response);
+		String[] varyValues = null;
+		if (varyNames != null) {
+			varyValues = new String[varyNames.length];
+			for (int i = 0; i != varyNames.length; ++i) {
+				varyValues[i] = varyValue(request, varyNames[i]);
+			}
+		}
+		return new Entry(cached, headBytes + length, freshUntil(response, now), validators(response), varyNames,
+				varyValues);
+	}
+
+	/**
+	 * A cached response, along with when it becomes stale.
+	 */
+	public static final class Entry {
+		private final Response response;
+		private final long size;
+		/**
+		 * Time (in milliseconds) at which this entry becomes stale.
+		 */
+		private final long expires;
+		/**
+		 * Headers to add to a request which revalidates this entry, or
+		 * <code>null</code> if it has no validators.
+		 */
+		private final String[] validators;
+		/**
+		 * Names of the request headers the response varies by, and their values in
+		 * the request for which it was stored, or <code>null</code> if it does not
+		 * vary.
+		 */
+		private final byte[][] varyNames;
+		private final String[] varyValues;
+
+		private Entry(Response response, long size, long expires, String[] validators, byte[][] varyNames,
+				String[] varyValues) {
+			this.response = response;
+			this.size = size;
+			this.expires = expires;
+			this.validators = validators;
+			this.varyNames = varyNames;
+			this.varyValues = varyValues;
+		}
+
+		/**
+		 * Get the cached response, whose body can be read any number of times.
+		 *
+		 * @return
+		 */
+		public Response getResponse() {
+			return response;
+		}
+
+		public long getExpires() {
+			return expires;
+		}
+
+		/**
+		 * Check whether this entry can be used without revalidation at a given
+		 * time.
+		 *
+		 * @param now
+		 * @return
+		 */
+		public boolean isFresh(long now) {
+			return now < expires;
+		}
+
+		/**
+		 * Check whether this entry can be used for a given request, i.e. the
+		 * request has the same values as the one it was stored for of every header
+		 * the response varies by.
+		 *
+		 * @param request
+		 * @return
+		 */
+		public boolean matches(Request request) {
+			if (varyNames != null) {
+				for (int i = 0; i != varyNames.length; ++i) {
+					if (!Objects.equals(varyValue(request, varyNames[i]), varyValues[i])) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Check whether this entry can be revalidated with a conditional request.
+		 *
+		 * @return
+		 */
+		public boolean canRevalidate() {
+			return validators != null;
+		}
+
+		/**
+		 * Add the conditional headers (<code>If-None-Match</code> and
+		 * <code>If-Modified-Since</code>) used to revalidate this entry to a
+		 * request.
+		 *
+		 * @param request
+		 * @return
+		 */
+		public HTTP.Request addValidators(HTTP.Request request) {
+			if (validators[0] != null) {
+				request = request.addHeader(Headers.IF_NONE_MATCH, validators[0]);
+			}
+			if (validators[1] != null) {
+				request = request.addHeader(Headers.IF_MODIFIED_SINCE, validators[1]);
+			}
+			return request;
+		}
+
+		/**
+		 * Create an entry for the same response, updated from a <code>304 Not
+		 * Modified</code> response received at a given time. The headers which
+		 * describe the stored response (e.g. <code>ETag</code> and
+		 * <code>Cache-Control</code>) are replaced by any sent with it, and its
+		 * freshness and validators determined again.
+		 *
+		 * @param notModified
+		 * @param now
+		 * @return
+		 */
+		public Entry refresh(Response notModified, long now) {
+			Response updated = merge(response, notModified);
+			HTTP.Message source = notModified;
+			if (notModified.getHeader(Headers.CACHE_CONTROL) == null
+					&& notModified.getHeader(Headers.EXPIRES) == null) {
+				// Freshness is determined by the stored headers
+				source = updated;
+			}
+			long headBytes = ((AbstractMessage) updated).numBytes - ((AbstractMessage) response).numBytes;
+			return new Entry(updated, size + headBytes, freshUntil(source, now), validators(updated), varyNames,
+					varyValues);
+		}
+	}
+
+	/**
+	 * Replace the headers of a stored response with those of the same name sent
+	 * with a <code>304 Not Modified</code> response (see <code>UPDATED</code>).
+	 *
+	 * @param response
+	 * @param notModified
+	 * @return The updated response, or the same one if nothing was sent.
+	 */
+	private static Response merge(Response response, Response notModified) {
+		int count = 0;
+		String[] replaced = new String[UPDATED.length];
+		for (byte[] name : UPDATED) {
+			if (notModified.getHeader(name) != null) {
+				replaced[count++] = new String(name, 0, AbstractMessage.nameLength(name), StandardCharsets.US_ASCII);
+			}
+		}
+		if (count == 0) {
+			return response;
+		}
+		Response merged = AbstractResponse.copy(response, response.getBody(), Arrays.copyOf(replaced, count));
+		for (byte[] name : UPDATED) {
+			for (Header header : notModified.getAll(name)) {
+				merged = merged.addHeader(name, header.getValue());
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Check whether a response can be stored, according to its status and
+	 * headers. Only <code>200 OK</code> responses are stored, and those which
+	 * vary by something other than request headers (i.e. <code>Vary: *</code>)
+	 * are not.
+	 *
+	 * @param response
+	 * @return
+	 */
+	static boolean isStorable(Response response) {
+		String vary = AbstractMessage.getCombinedValue(response, Headers.VARY);
+		if (response.getStatusCode() != HTTP.OK || (vary != null && HttpParser.containsToken(vary, "*"))) {
+			return false;
+		}
+		String directives = cacheControl(response);
+		return directives == null || !hasDirective(directives, "no-store");
+	}
+
+	/**
+	 * Determine when a response received at a given time becomes stale, using
+	 * the <code>max-age</code> directive, or else the <code>Expires</code>
+	 * header, or else a tenth of the time since it was last modified.
+	 *
+	 * @param message
+	 * @param now
+	 * @return
+	 */
+	static long freshUntil(HTTP.Message message, long now) {
+		String directives = cacheControl(message);
+		if (directives != null) {
+			if (hasDirective(directives, "no-cache")) {
+				return now;
+			}
+			long maxAge = directiveValue(directives, "max-age");
+			if (maxAge >= 0) {
+				long age = Math.max(parseSeconds(message.getFirstValue(Headers.AGE)), 0);
+				return now + Math.max(maxAge - age, 0) * 1000;
+			}
+		}
+		long date = parseDate(message.getFirstValue(Headers.DATE));
+		if (date < 0) {
+			date = now;
+		}
+		String expires = message.getFirstValue(Headers.EXPIRES);
+		if (expires != null) {
+			// An invalid date (e.g. "0") means already expired
+			long time = parseDate(expires);
+			return time < 0 ? now : now + Math.max(time - date, 0);
+		}
+		long modified = parseDate(message.getFirstValue(Headers.LAST_MODIFIED));
+		if (modified >= 0 && modified < date) {
+			return now + Math.min((date - modified) / 10, MAX_HEURISTIC_LIFETIME);
+		}
+		return now;
+	}
+
+	/**
+	 * Get the names of the request headers a response varies by.
+	 *
+	 * @param response
+	 * @return The names (as header keys), or <code>null</code> if there are
+	 *         none.
+	 */
+	private static byte[][] varyNames(Response response) {
+		String vary = AbstractMessage.getCombinedValue(response, Headers.VARY);
+		if (vary == null) {
+			return null;
+		}
+		String[] names = vary.split(",");
+		byte[][] keys = new byte[names.length][];
+		int count = 0;
+		for (String name : names) {
+			name = name.trim();
+			if (!name.isEmpty()) {
+				keys[count++] = AbstractResponse.encodeName(name);
+			}
+		}
+		return count == 0 ? null : Arrays.copyOf(keys, count);
+	}
+
+	/**
+	 * Get the value of a request header which a response varies by, normalised
+	 * such that lists differing only in case and whitespace (e.g.
+	 * <code>gzip, deflate</code> and <code>GZIP,deflate</code>) are equal.
+	 *
+	 * @param request
+	 * @param name
+	 * @return The value, or <code>null</code> if the request has no such header.
+	 */
+	static String varyValue(Request request, byte[] name) {
+		String value = AbstractMessage.getCombinedValue(request, name);
+		if (value == null) {
+			return null;
+		}
+		StringBuilder normalised = new StringBuilder(value.length());
+		for (String element : value.split(",")) {
+			if (normalised.length() != 0) {
+				normalised.append(',');
+			}
+			normalised.append(element.trim().toLowerCase(Locale.ROOT));
+		}
+		return normalised.toString();
+	}
+
+	private static String[] validators(Response response) {
+		String etag = response.getFirstValue(Headers.ETAG);
+		String modified = response.getFirstValue(Headers.LAST_MODIFIED);
+		return etag == null && modified == null ? null : new String[] { etag, modified };
+	}
+
+	/**
+	 * Get the combined value of any <code>Cache-Control</code> headers.
+	 *
+	 * @param message
+	 * @return The directives, or <code>null</code> if there are none.
+	 */
+	static String cacheControl(HTTP.Message message) {
+		return AbstractMessage.getCombinedValue(message, Headers.CACHE_CONTROL);
+	}
+
+	/**
+	 * Check whether a list of directives (ignoring case) includes a given one.
+	 *
+	 * @param directives
+	 * @param name
+	 * @return
+	 */
+	static boolean hasDirective(String directives, String name) {
+		return find(directives, name) >= 0;
+	}
+
+	/**
+	 * Get the numeric value of a given directive (e.g. <code>max-age=60</code>).
+	 *
+	 * @param directives
+	 * @param name
+	 * @return The value, or -1 if the directive is missing or invalid.
+	 */
+	static long directiveValue(String directives, String name) {
+		int index = find(directives, name);
+		if (index < 0 || index == directives.length() || directives.charAt(index) != '=') {
+			return -1;
+		}
+		int end = index + 1;
+		while (end < directives.length() && directives.charAt(end) != ',') {
+			end++;
+		}
+		String value = directives.substring(index + 1, end).trim();
+		if (value.length() > 1 && value.charAt(0) == '"') {
+			value = value.substring(1, value.length() - 1);
+		}
+		return parseSeconds(value);
+	}
+
+	/**
+	 * Find the index following the name of a given directive.
+	 *
+	 * @param directives
+	 * @param name
+	 * @return
+	 */
+	private static int find(String directives, String name) {
+		final int length = directives.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && (directives.charAt(i) == ' ' || directives.charAt(i) == '\t')) {
+				i++;
+			}
+			if (directives.regionMatches(true, i, name, 0, name.length())) {
+				int end = i + name.length();
+				if (end == length || directives.charAt(end) == '=' || directives.charAt(end) == ','
+						|| directives.charAt(end) == ' ') {
+					return end;
+				}
+			}
+			// Skip to the next directive, ignoring commas within quotes
+			boolean quoted = false;
+			while (i < length && (quoted || directives.charAt(i) != ',')) {
+				if (directives.charAt(i) == '"') {
+					quoted = !quoted;
+				}
+				i++;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	private static long parseSeconds(String value) {
+		if (value == null || value.isEmpty()) {
+			return -1;
+		}
+		long seconds = 0;
+		for (int i = 0; i != value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			// Saturate rather than overflow, as delta-seconds require
+			seconds = Math.min(seconds * 10 + (c - '0'), Integer.MAX_VALUE);
+		}
+		return seconds;
+	}
+
+	/**
+	 * Parse an HTTP date (e.g. <code>Sun, 06 Nov 1994 08:49:37 GMT</code>).
+	 *
+	 * @param value
+	 * @return The time in milliseconds, or -1 if it is missing or invalid.
+	 */
+	static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * An entity whose contents are held in a (read-only) direct buffer.
+	 */
+	private static final class DirectEntity implements Entity {
+		private final ByteBuffer buffer;
+
+		public DirectEntity(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public long getLength() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public ByteBuffer toByteBuffer() {
+			return buffer.duplicate();
+		}
+
+		@Override
+		public void write(OutputStream out) throws IOException {
+			ByteBuffer contents = buffer.duplicate();
+			byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(contents.remaining(), 1))];
+			while (contents.hasRemaining()) {
+				int n = Math.min(chunk.length, contents.remaining());
+				contents.get(chunk, 0, n);
+				out.write(chunk, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Longest time for which a response without explicit freshness is considered
+	 * fresh (one day).
+	 */
+	private static final byte[][] UPDATED = { Headers.CACHE_CONTROL, Headers.DATE, Headers.ETAG, Headers.EXPIRES,
+			Headers.LAST_MODIFIED };
+
+	private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+}
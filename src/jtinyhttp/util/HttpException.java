@@ -0,0 +1,28 @@
+package jtinyhttp.util;
+
+import java.net.ProtocolException;
+
+/**
+ * Signals that a message was rejected for a reason which corresponds to a
+ * specific HTTP status code (e.g. <code>HTTP.NOT_IMPLEMENTED</code>), which a
+ * server can then report back to the client.
+ */
+public class HttpException extends ProtocolException {
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	public HttpException(int status, String message) {
+		super(message);
+		this.status = status;
+	}
+
+	/**
+	 * Get the status code which should be reported for this error.
+	 *
+	 * @return
+	 */
+	public int getStatusCode() {
+		return status;
+	}
+}
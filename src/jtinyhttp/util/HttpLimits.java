@@ -0,0 +1,69 @@
+package jtinyhttp.util;
+
+/**
+ * Limits on the size of a request which a server will accept, which bound the
+ * memory used by each connection irrespective of what clients send. Limits are
+ * enforced by <code>HttpParser</code> as bytes arrive, such that a request is
+ * rejected as soon as it exceeds one (and before the remainder is buffered).
+ * Each violation corresponds to a status code with which the request should be
+ * answered (see <code>HttpException</code>).
+ */
+public final class HttpLimits {
+	/**
+	 * Limits suitable for most servers.
+	 */
+	public static final HttpLimits DEFAULT = new HttpLimits(8 * 1024, 100, 64 * 1024, 64 * 1024 * 1024);
+
+	/**
+	 * No limits at all, other than those imposed by the size of an array.
+	 */
+	public static final HttpLimits NONE = new HttpLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+			Long.MAX_VALUE);
+
+	private final int maxRequestLine;
+	private final int maxHeaderCount;
+	private final int maxHeaderBytes;
+	private final long maxBodySize;
+
+	/**
+	 * Construct a set of limits.
+	 *
+	 * @param maxRequestLine Maximum length of the request line (excluding its
+	 *                       line terminator), beyond which requests are answered
+	 *                       with <code>URI_TOO_LONG</code>.
+	 * @param maxHeaderCount Maximum number of header lines, beyond which requests
+	 *                       are answered with
+	 *                       <code>REQUEST_HEADER_FIELDS_TOO_LARGE</code>.
+	 * @param maxHeaderBytes Maximum size of the message head as a whole, beyond
+	 *                       which requests are answered with
+	 *                       <code>REQUEST_HEADER_FIELDS_TOO_LARGE</code>.
+	 * @param maxBodySize    Maximum size of the (decoded) body, beyond which
+	 *                       requests are answered with
+	 *                       <code>PAYLOAD_TOO_LARGE</code>.
+	 */
+	public HttpLimits(int maxRequestLine, int maxHeaderCount, int maxHeaderBytes, long maxBodySize) {
+		if (maxRequestLine <= 0 || maxHeaderCount < 0 || maxHeaderBytes <= 0 || maxBodySize < 0) {
+			throw new IllegalArgumentException("invalid limits");
+		}
+		this.maxRequestLine = maxRequestLine;
+		this.maxHeaderCount = maxHeaderCount;
+		this.maxHeaderBytes = maxHeaderBytes;
+		this.maxBodySize = maxBodySize;
+	}
+
+	public int getMaxRequestLine() {
+		return maxRequestLine;
+	}
+
+	public int getMaxHeaderCount() {
+		return maxHeaderCount;
+	}
+
+	public int getMaxHeaderBytes() {
+		return maxHeaderBytes;
+	}
+
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+}
@@ -0,0 +1,264 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jtinyhttp.core.HTTP;
+
+/**
+ * Records metrics from the events of any number of connections, using
+ * lock-free counters and histograms which can be updated concurrently at a cost
+ * of a few nanoseconds each. The metrics can be exported through JMX (see
+ * <code>register()</code>) or scraped as plain text (see
+ * <code>MetricsHandler</code>).
+ */
+public class HttpMetrics implements Metrics, HttpMetricsMBean {
+	private final String prefix;
+	private final LongAdder opened = new LongAdder();
+	private final LongAdder closed = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder[] responses = new LongAdder[5];
+	private final Histogram parseTime = new Histogram();
+	private final Histogram responseTime = new Histogram();
+	private final Histogram firstByteTime = new Histogram();
+
+	/**
+	 * Construct metrics with a given prefix for the names of the metrics when
+	 * scraped (e.g. <code>"http"</code>).
+	 *
+	 * @param prefix
+	 */
+	public HttpMetrics(String prefix) {
+		this.prefix = prefix;
+		for (int i = 0; i != responses.length; ++i) {
+			responses[i] = new LongAdder();
+		}
+	}
+
+	@Override
+	public void connectionOpened() {
+		opened.increment();
+	}
+
+	@Override
+	public void connectionClosed() {
+		closed.increment();
+	}
+
+	@Override
+	public void bytesRead(long count) {
+		bytesRead.add(count);
+	}
+
+	@Override
+	public void bytesWritten(long count) {
+		bytesWritten.add(count);
+	}
+
+	@Override
+	public void requestReceived(long parseNanos) {
+		requests.increment();
+		parseTime.record(parseNanos);
+	}
+
+	@Override
+	public void responseSent(int status, long nanos) {
+		count(status);
+		responseTime.record(nanos);
+	}
+
+	@Override
+	public void responseReceived(int status, long nanos) {
+		count(status);
+		firstByteTime.record(nanos);
+	}
+
+	private void count(int status) {
+		int c = statusClass(status);
+		if (c >= 0) {
+			responses[c].increment();
+		}
+	}
+
+	@Override
+	public long getConnectionsOpened() {
+		return opened.sum();
+	}
+
+	@Override
+	public long getOpenConnections() {
+		// Read closed first, so the gauge is never negative
+		long c = closed.sum();
+		return opened.sum() - c;
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	@Override
+	public long getResponses() {
+		long total = 0;
+		for (LongAdder r : responses) {
+			total += r.sum();
+		}
+		return total;
+	}
+
+	@Override
+	public long[] getResponsesByClass() {
+		long[] counts = new long[responses.length];
+		for (int i = 0; i != counts.length; ++i) {
+			counts[i] = responses[i].sum();
+		}
+		return counts;
+	}
+
+	public Histogram getParseTime() {
+		return parseTime;
+	}
+
+	public Histogram getResponseTime() {
+		return responseTime;
+	}
+
+	public Histogram getFirstByteTime() {
+		return firstByteTime;
+	}
+
+	@Override
+	public double getParseTimeP50() {
+		return parseTime.getValueAtPercentile(50) / 1e3;
+	}
+
+	@Override
+	public double getParseTimeP99() {
+		return parseTime.getValueAtPercentile(99) / 1e3;
+	}
+
+	@Override
+	public double getResponseTimeP50() {
+		return responseTime.getValueAtPercentile(50) / 1e3;
+	}
+
+	@Override
+	public double getResponseTimeP99() {
+		return responseTime.getValueAtPercentile(99) / 1e3;
+	}
+
+	@Override
+	public double getResponseTimeP999() {
+		return responseTime.getValueAtPercentile(99.9) / 1e3;
+	}
+
+	@Override
+	public double getFirstByteTimeP50() {
+		return firstByteTime.getValueAtPercentile(50) / 1e3;
+	}
+
+	@Override
+	public double getFirstByteTimeP99() {
+		return firstByteTime.getValueAtPercentile(99) / 1e3;
+	}
+
+	/**
+	 * Register these metrics with the platform MBean server, under the name
+	 * <code>jtinyhttp:type=HttpMetrics,name=...</code>.
+	 *
+	 * @param name
+	 * @return The name registered.
+	 * @throws JMException
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName("jtinyhttp:type=HttpMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * Write these metrics in a plain text format, with one metric per line (as
+	 * understood by Prometheus). Times are in seconds.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeText(Appendable out) throws IOException {
+		counter(out, "connections_opened_total", getConnectionsOpened());
+		gauge(out, "connections_open", getOpenConnections());
+		counter(out, "bytes_read_total", getBytesRead());
+		counter(out, "bytes_written_total", getBytesWritten());
+		counter(out, "requests_total", getRequests());
+		out.append("# TYPE ").append(prefix).append("_responses_total counter\n");
+		for (int i = 0; i != responses.length; ++i) {
+			out.append(prefix).append("_responses_total{class=\"").append(Integer.toString(i + 1))
+					.append("xx\"} ").append(Long.toString(responses[i].sum())).append('\n');
+		}
+		summary(out, "parse_seconds", parseTime);
+		summary(out, "response_seconds", responseTime);
+		summary(out, "first_byte_seconds", firstByteTime);
+	}
+
+	private void counter(Appendable out, String name, long value) throws IOException {
+		out.append("# TYPE ").append(prefix).append('_').append(name).append(" counter\n");
+		out.append(prefix).append('_').append(name).append(' ').append(Long.toString(value)).append('\n');
+	}
+
+	private void gauge(Appendable out, String name, long value) throws IOException {
+		out.append("# TYPE ").append(prefix).append('_').append(name).append(" gauge\n");
+		out.append(prefix).append('_').append(name).append(' ').append(Long.toString(value)).append('\n');
+	}
+
+	private void summary(Appendable out, String name, Histogram histogram) throws IOException {
+		String metric = prefix + "_" + name;
+		out.append("# TYPE ").append(metric).append(" summary\n");
+		for (String quantile : QUANTILES) {
+			double q = Double.parseDouble(quantile);
+			out.append(metric).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(Double.toString(histogram.getValueAtPercentile(q * 100) / 1e9)).append('\n');
+		}
+		out.append(metric).append("_sum ").append(Double.toString(histogram.getSum() / 1e9)).append('\n');
+		out.append(metric).append("_count ").append(Long.toString(histogram.getCount())).append('\n');
+	}
+
+	/**
+	 * Determine the class of a status code (i.e. 0 for 1XX, through 4 for 5XX),
+	 * or -1 if it is not valid.
+	 *
+	 * @param status
+	 * @return
+	 */
+	static int statusClass(int status) {
+		if (status < HTTP.CONTINUE || status >= 600) {
+			return -1;
+		} else if (status < HTTP.OK) {
+			return 0;
+		} else if (status < HTTP.MULTIPLE_CHOICES) {
+			return 1;
+		} else if (status < HTTP.BAD_REQUEST) {
+			return 2;
+		} else if (status < HTTP.INTERNAL_SERVER_ERROR) {
+			return 3;
+		} else {
+			return 4;
+		}
+	}
+
+	private static final String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };
+}
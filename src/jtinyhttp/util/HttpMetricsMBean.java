@@ -0,0 +1,40 @@
+package jtinyhttp.util;
+
+/**
+ * The attributes of <code>HttpMetrics</code> exposed through JMX. Times are in
+ * microseconds.
+ */
+public interface HttpMetricsMBean {
+	public long getConnectionsOpened();
+
+	public long getOpenConnections();
+
+	public long getBytesRead();
+
+	public long getBytesWritten();
+
+	public long getRequests();
+
+	public long getResponses();
+
+	/**
+	 * Get the number of responses in each status class (i.e. 1XX through 5XX).
+	 *
+	 * @return
+	 */
+	public long[] getResponsesByClass();
+
+	public double getParseTimeP50();
+
+	public double getParseTimeP99();
+
+	public double getResponseTimeP50();
+
+	public double getResponseTimeP99();
+
+	public double getResponseTimeP999();
+
+	public double getFirstByteTimeP50();
+
+	public double getFirstByteTimeP99();
+}
@@ -0,0 +1,785 @@
+package jtinyhttp.util;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.Headers;
+
+/**
+ * An incremental parser for HTTP/1.x messages which operates directly over the
+ * buffer of a connection. The parser is fed the same buffer repeatedly as more
+ * bytes arrive, and remembers how far it got between calls. Header lines are
+ * recorded as end offsets into the buffer (in the same style as
+ * <code>AbstractMessage.lines</code>) and no bytes are ever copied out of it.
+ * Chunked bodies are decoded in place, such that the body always occupies a
+ * contiguous region of the buffer once parsing is complete.
+ */
+public class HttpParser {
+	private static final int HEAD = 0;
+	private static final int FIXED = 1;
+	private static final int CHUNK_SIZE = 2;
+	private static final int CHUNK_DATA = 3;
+	private static final int CHUNK_END = 4;
+	private static final int TRAILER = 5;
+	private static final int UNTIL_CLOSE = 6;
+	private static final int DONE = 7;
+
+	/**
+	 * Current state of the parser.
+	 */
+	private int state;
+	/**
+	 * Index of the next byte in the buffer which has not yet been examined.
+	 */
+	private int position;
+	/**
+	 * End indices of lines in the message head, where 0 is the start line.
+	 */
+	private int[] lines = new int[16];
+	/**
+	 * Index of the first colon on each line of the message head, or -1 if it
+	 * has none.
+	 */
+	private int[] colons = new int[16];
+	/**
+	 * Index of the first colon on the line currently being scanned, or -1 if
+	 * none has been found yet.
+	 */
+	private int colon;
+	/**
+	 * Number of lines recorded so far in the message head.
+	 */
+	private int numLines;
+	/**
+	 * Index of the first byte of the (decoded) message body.
+	 */
+	private int bodyStart;
+	/**
+	 * Index one past the last byte of the (decoded) message body.
+	 */
+	private int bodyEnd;
+	/**
+	 * Number of bytes remaining in the current fixed length body or chunk.
+	 */
+	private long remaining;
+	/**
+	 * Length of the message body as determined by its framing, or -1 if this is
+	 * not known in advance.
+	 */
+	private long length;
+	/**
+	 * Limits on the size of messages, which are enforced as bytes are parsed.
+	 */
+	private HttpLimits limits = HttpLimits.NONE;
+	/**
+	 * View of the buffer last parsed, from which words are read.
+	 */
+	private ByteBuffer words;
+
+	/**
+	 * Set the limits on the size of messages parsed from now on. Once a message
+	 * exceeds a limit, parsing fails with an <code>HttpException</code> carrying
+	 * the status with which it should be answered.
+	 *
+	 * @param limits
+	 */
+	public void setLimits(HttpLimits limits) {
+		this.limits = limits;
+	}
+
+	public HttpLimits getLimits() {
+		return limits;
+	}
+
+	/**
+	 * Reset this parser in preparation for a new message which starts at index 0
+	 * of the buffer.
+	 */
+	public void reset() {
+		this.state = HEAD;
+		this.position = 0;
+		this.numLines = 0;
+		this.colon = -1;
+		this.bodyStart = 0;
+		this.bodyEnd = 0;
+		this.remaining = 0;
+		this.length = -1;
+	}
+
+	/**
+	 * Scan the bytes of the buffer up to a given limit looking for the end of the
+	 * message head (i.e. the empty line). This can be called repeatedly as more
+	 * bytes arrive, and scanning always continues from where it left off.
+	 *
+	 * @param buffer
+	 * @param limit
+	 * @return <code>true</code> once the message head is complete.
+	 * @throws ProtocolException
+	 */
+	public boolean parseHead(byte[] buffer, int limit) throws ProtocolException {
+		if (state != HEAD) {
+			return true;
+		}
+		int i = position;
+		int lineStart = (numLines == 0) ? 0 : lines[numLines - 1];
+		// Line ends and colons are found together, eight bytes at a time
+		if (i + 8 <= limit) {
+			final ByteBuffer words = words(buffer);
+			for (; i + 8 <= limit; i += 8) {
+				final long word = words.getLong(i);
+				long mask = HeaderScanner.zeros(word ^ HeaderScanner.LFS) | HeaderScanner.zeros(word ^ HeaderScanner.COLONS);
+				while (mask != 0) {
+					final int j = i + (Long.numberOfTrailingZeros(mask) >>> 3);
+					mask &= mask - 1;
+					if (buffer[j] != LF) {
+						colon(j);
+					} else if (j > lineStart && buffer[j - 1] == CR) {
+						if (endLine(buffer, j + 1, lineStart)) {
+							return true;
+						}
+						lineStart = j + 1;
+					}
+				}
+			}
+		}
+		for (; i < limit; ++i) {
+			final byte b = buffer[i];
+			if (b == ':') {
+				colon(i);
+			} else if (b == LF && i > lineStart && buffer[i - 1] == CR) {
+				if (endLine(buffer, i + 1, lineStart)) {
+					return true;
+				}
+				lineStart = i + 1;
+			}
+		}
+		position = i;
+		// The head is incomplete, but may already be too long
+		if (numLines == 0 && i - 2 > limits.getMaxRequestLine()) {
+			throw new HttpException(HTTP.URI_TOO_LONG, "request line too long");
+		} else if (i > limits.getMaxHeaderBytes()) {
+			throw new HttpException(HTTP.REQUEST_HEADER_FIELDS_TOO_LARGE, "message head too large");
+		}
+		return false;
+	}
+
+	/**
+	 * Get a view of a given buffer from which words can be read, which is only
+	 * created again when the buffer changes (e.g. because it has grown).
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	private ByteBuffer words(byte[] buffer) {
+		ByteBuffer view = words;
+		if (view == null || view.array() != buffer) {
+			view = HeaderScanner.words(buffer);
+			words = view;
+		}
+		return view;
+	}
+
+	/**
+	 * Record a colon on the current line, which is only kept if it is the first.
+	 *
+	 * @param index
+	 */
+	private void colon(int index) {
+		if (colon < 0) {
+			colon = index;
+		}
+	}
+
+	/**
+	 * Record the end of a line in the message head, or the end of the head
+	 * itself if the line is empty.
+	 *
+	 * @param buffer
+	 * @param lineEnd
+	 * @param lineStart
+	 * @return <code>true</code> if the message head is complete.
+	 * @throws ProtocolException
+	 */
+	private boolean endLine(byte[] buffer, int lineEnd, int lineStart) throws ProtocolException {
+		if (lineEnd > limits.getMaxHeaderBytes()) {
+			throw new HttpException(HTTP.REQUEST_HEADER_FIELDS_TOO_LARGE, "message head too large");
+		} else if (lineEnd == lineStart + 2) {
+			if (numLines == 0) {
+				throw new ProtocolException("invalid message: empty start line");
+			}
+			// Empty line signals end of message head
+			position = lineEnd;
+			bodyStart = lineEnd;
+			bodyEnd = lineEnd;
+			state = DONE;
+			return true;
+		}
+		if (numLines == 0 && lineEnd - 2 > limits.getMaxRequestLine()) {
+			throw new HttpException(HTTP.URI_TOO_LONG, "request line too long");
+		} else if (numLines > limits.getMaxHeaderCount()) {
+			throw new HttpException(HTTP.REQUEST_HEADER_FIELDS_TOO_LARGE, "too many header fields");
+		} else if (numLines > 0 && colon > lineStart && (buffer[colon - 1] == ' ' || buffer[colon - 1] == '\t')) {
+			// Otherwise, e.g. "Content-Length : 5" would not be recognised as framing
+			throw new ProtocolException("invalid header: whitespace before colon");
+		} else if (numLines == lines.length) {
+			lines = Arrays.copyOf(lines, lines.length * 2);
+			colons = Arrays.copyOf(colons, colons.length * 2);
+		}
+		colons[numLines] = colon;
+		lines[numLines++] = lineEnd;
+		colon = -1;
+		return false;
+	}
+
+	/**
+	 * Indicate the message has no body.
+	 */
+	public void expectNone() {
+		length = 0;
+		state = DONE;
+	}
+
+	/**
+	 * Indicate the message body has a fixed length (e.g. as determined by
+	 * <code>Content-Length</code>).
+	 *
+	 * @param length
+	 */
+	public void expectLength(long length) {
+		this.remaining = length;
+		this.length = length;
+		state = (length == 0) ? DONE : FIXED;
+	}
+
+	/**
+	 * Indicate the message body uses the chunked transfer encoding.
+	 */
+	public void expectChunked() {
+		state = CHUNK_SIZE;
+	}
+
+	/**
+	 * Indicate the message body extends until the connection is closed.
+	 */
+	public void expectEndOfStream() {
+		state = UNTIL_CLOSE;
+	}
+
+	/**
+	 * Determine the framing of a request body from the message head, which must
+	 * already have been parsed. A request without either a
+	 * <code>Transfer-Encoding</code> or <code>Content-Length</code> has no body.
+	 *
+	 * @param buffer
+	 * @throws ProtocolException
+	 */
+	public void expectRequestBody(byte[] buffer) throws ProtocolException {
+		int te = findHeader(buffer, Headers.TRANSFER_ENCODING);
+		int cl = findContentLength(buffer, te);
+		if (te >= 0) {
+			// Unless chunked is the final coding, the length cannot be determined
+			if (!isChunked(buffer, te)) {
+				throw new ProtocolException("unsupported transfer encoding");
+			}
+			expectChunked();
+		} else if (cl >= 0) {
+			long length = parseDecimal(buffer, cl);
+			if (length > limits.getMaxBodySize()) {
+				throw new HttpException(HTTP.PAYLOAD_TOO_LARGE, "request body too large");
+			}
+			expectLength(length);
+		} else {
+			expectNone();
+		}
+	}
+
+	/**
+	 * Determine the framing of a response body from the message head, which must
+	 * already have been parsed. A response without either a
+	 * <code>Transfer-Encoding</code> or <code>Content-Length</code> extends until
+	 * the connection is closed.
+	 *
+	 * @param buffer
+	 * @param status
+	 * @throws ProtocolException
+	 */
+	public void expectResponseBody(byte[] buffer, int status) throws ProtocolException {
+		int te = findHeader(buffer, Headers.TRANSFER_ENCODING);
+		int cl = findContentLength(buffer, te);
+		if (status < 200 || status == HTTP.NO_CONTENT || status == HTTP.NOT_MODIFIED) {
+			expectNone();
+		} else if (te >= 0 && isChunked(buffer, te)) {
+			expectChunked();
+		} else if (cl >= 0) {
+			expectLength(parseDecimal(buffer, cl));
+		} else {
+			expectEndOfStream();
+		}
+	}
+
+	/**
+	 * Determine whether the connection remains open after this message, based on
+	 * the version in its start line and any <code>Connection</code> header.
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	public boolean isPersistent(byte[] buffer) {
+		int connection = findHeader(buffer, Headers.CONNECTION);
+		if (connection >= 0 && containsToken(buffer, connection, CLOSE)) {
+			return false;
+		} else if (contains(buffer, V1_1, 0, lines[0])) {
+			return true;
+		} else {
+			return connection >= 0 && containsToken(buffer, connection, KEEP_ALIVE);
+		}
+	}
+
+	/**
+	 * Consume bytes of the message body from the buffer up to a given limit. As
+	 * for <code>parseHead()</code>, this can be called repeatedly as more bytes
+	 * arrive.
+	 *
+	 * @param buffer
+	 * @param limit
+	 * @return <code>true</code> once the message body is complete.
+	 * @throws ProtocolException
+	 */
+	public boolean parseBody(byte[] buffer, int limit) throws ProtocolException {
+		while (true) {
+			switch (state) {
+			case FIXED: {
+				int n = (int) Math.min(remaining, limit - position);
+				position += n;
+				bodyEnd = position;
+				remaining -= n;
+				if (remaining != 0) {
+					return false;
+				}
+				state = DONE;
+				break;
+			}
+			case CHUNK_SIZE: {
+				int end = HeaderScanner.lineEnd(words(buffer), buffer, position, limit);
+				if (end < 0) {
+					if (limit - position > limits.getMaxHeaderBytes()) {
+						throw new ProtocolException("invalid chunk: size line too long");
+					}
+					return false;
+				}
+				remaining = parseChunkSize(buffer, position, end - 2);
+				if ((bodyEnd - bodyStart) + remaining > limits.getMaxBodySize()) {
+					// Rejected before the chunk is buffered
+					throw new HttpException(HTTP.PAYLOAD_TOO_LARGE, "request body too large");
+				}
+				position = end;
+				state = (remaining == 0) ? TRAILER : CHUNK_DATA;
+				break;
+			}
+			case CHUNK_DATA: {
+				int n = (int) Math.min(remaining, limit - position);
+				if (bodyEnd != position) {
+					// Compact chunk data down onto the end of the body
+					System.arraycopy(buffer, position, buffer, bodyEnd, n);
+				}
+				bodyEnd += n;
+				position += n;
+				remaining -= n;
+				if (remaining != 0) {
+					return false;
+				}
+				state = CHUNK_END;
+				break;
+			}
+			case CHUNK_END:
+				if ((limit - position) < 2) {
+					return false;
+				} else if (buffer[position] != CR || buffer[position + 1] != LF) {
+					throw new ProtocolException("invalid chunk: missing line end");
+				}
+				position += 2;
+				state = CHUNK_SIZE;
+				break;
+			case TRAILER: {
+				int end = HeaderScanner.lineEnd(words(buffer), buffer, position, limit);
+				if (end < 0) {
+					if (limit - position > limits.getMaxHeaderBytes()) {
+						throw new HttpException(HTTP.REQUEST_HEADER_FIELDS_TOO_LARGE, "trailer too large");
+					}
+					return false;
+				}
+				// Trailer fields are discarded
+				state = (end == position + 2) ? DONE : TRAILER;
+				position = end;
+				break;
+			}
+			case UNTIL_CLOSE:
+				position = limit;
+				bodyEnd = limit;
+				return false;
+			case DONE:
+				return true;
+			default:
+				throw new IllegalStateException("message head not parsed");
+			}
+		}
+	}
+
+	/**
+	 * Signal that the underlying stream has been closed.
+	 *
+	 * @return <code>true</code> if the message is complete, or
+	 *         <code>false</code> if it has been truncated.
+	 */
+	public boolean endOfStream() {
+		if (state == UNTIL_CLOSE) {
+			state = DONE;
+		}
+		return state == DONE;
+	}
+
+	/**
+	 * Check whether the message body is delimited only by the end of stream.
+	 *
+	 * @return
+	 */
+	public boolean isEndOfStreamDelimited() {
+		return state == UNTIL_CLOSE;
+	}
+
+	/**
+	 * Get the index of the first byte following everything consumed by this
+	 * parser. Once a message is complete, this is where the next message begins.
+	 *
+	 * @return
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Get the number of bytes remaining in a fixed length body or, for a chunked
+	 * body, in the current chunk.
+	 *
+	 * @return
+	 */
+	public long getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Get the number of lines in the message head, including the start line.
+	 *
+	 * @return
+	 */
+	public int getNumLines() {
+		return numLines;
+	}
+
+	/**
+	 * Get a copy of the line end indices of the message head.
+	 *
+	 * @return
+	 */
+	public int[] getLines() {
+		return Arrays.copyOf(lines, numLines);
+	}
+
+	/**
+	 * Get a copy of the indices of the colon which ends the name of each header
+	 * line (excluding the start line), or -1 where a line has none. This is in
+	 * the style expected by <code>AbstractMessage</code>.
+	 *
+	 * @return
+	 */
+	public int[] getKeyEnds() {
+		return Arrays.copyOfRange(colons, 1, Math.max(numLines, 1));
+	}
+
+	public int getBodyStart() {
+		return bodyStart;
+	}
+
+	public int getBodyEnd() {
+		return bodyEnd;
+	}
+
+	/**
+	 * Get the length of the message body as determined by its framing, or -1 if
+	 * this is not known in advance (i.e. for a chunked body, or one delimited by
+	 * the end of stream).
+	 *
+	 * @return
+	 */
+	public long getBodyLength() {
+		return length;
+	}
+
+	/**
+	 * Check whether the message (including its body) is complete.
+	 *
+	 * @return
+	 */
+	public boolean isComplete() {
+		return state == DONE;
+	}
+
+	/**
+	 * Discard the body decoded so far, such that further body bytes are decoded
+	 * from the body start again. This allows a body to be consumed incrementally
+	 * within a buffer of fixed size. The caller must first move the bytes
+	 * following <code>getPosition()</code> down to <code>getBodyStart()</code>.
+	 */
+	public void discardBody() {
+		position = bodyStart;
+		bodyEnd = bodyStart;
+	}
+
+	/**
+	 * Find the <code>Content-Length</code> header line, or -1 if there is none.
+	 * Since a message whose length is ambiguous can be framed differently by each
+	 * party which reads it (i.e. request smuggling), a message with more than one
+	 * <code>Content-Length</code>, or with both it and a
+	 * <code>Transfer-Encoding</code>, is rejected outright.
+	 *
+	 * @param buffer
+	 * @param te     Index of the <code>Transfer-Encoding</code> header line, or
+	 *               -1 if there is none.
+	 * @return
+	 * @throws ProtocolException
+	 */
+	private int findContentLength(byte[] buffer, int te) throws ProtocolException {
+		int cl = findHeader(buffer, Headers.CONTENT_LENGTH, 0);
+		if (cl < 0) {
+			return cl;
+		} else if (te >= 0) {
+			throw new ProtocolException("invalid message: both Content-Length and Transfer-Encoding");
+		} else if (findHeader(buffer, Headers.CONTENT_LENGTH, cl + 1) >= 0) {
+			throw new ProtocolException("invalid message: multiple Content-Length");
+		}
+		return cl;
+	}
+
+	/**
+	 * Find the index of the header line with a given name (ignoring case), or -1
+	 * if no such line exists. Header lines are indexed from 0, excluding the start
+	 * line. Any trailing ": " on the given name is ignored, such that the
+	 * constants in <code>Headers</code> may be used directly.
+	 *
+	 * @param buffer
+	 * @param name
+	 * @return
+	 */
+	public int findHeader(byte[] buffer, byte[] name) {
+		return findHeader(buffer, name, 0);
+	}
+
+	private int findHeader(byte[] buffer, byte[] name, int from) {
+		int length = name.length;
+		while (length > 0 && (name[length - 1] == ' ' || name[length - 1] == ':')) {
+			length = length - 1;
+		}
+		for (int i = from + 1; i < numLines; ++i) {
+			final int start = lines[i - 1];
+			if (colons[i] == start + length && equalsIgnoreCase(buffer, start, name, length)) {
+				return i - 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse the value of a given header line as a non-negative decimal number.
+	 *
+	 * @param buffer
+	 * @param header
+	 * @return
+	 * @throws ProtocolException
+	 */
+	public long parseDecimal(byte[] buffer, int header) throws ProtocolException {
+		int i = valueStart(buffer, header);
+		final int end = lines[header + 1] - 2;
+		long value = 0;
+		if (i == end) {
+			throw new ProtocolException("invalid number");
+		}
+		for (; i < end && buffer[i] != ' ' && buffer[i] != '\t'; ++i) {
+			int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+				throw new ProtocolException("invalid number");
+			}
+			value = (value * 10) + digit;
+		}
+		// Only trailing whitespace may follow, so e.g. "10 20" is not read as 10
+		for (; i < end; ++i) {
+			if (buffer[i] != ' ' && buffer[i] != '\t') {
+				throw new ProtocolException("invalid number");
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Check whether the value of a given header line, taken as a comma-separated
+	 * list, has an element equal to a given token (ignoring case and surrounding
+	 * whitespace). Thus, <code>keep-alive-ish</code> does not contain
+	 * <code>keep-alive</code>.
+	 *
+	 * @param buffer
+	 * @param header
+	 * @param token
+	 * @return
+	 */
+	public boolean containsToken(byte[] buffer, int header, byte[] token) {
+		final int end = lines[header + 1] - 2;
+		int i = valueStart(buffer, header);
+		while (i < end) {
+			int start = i;
+			while (i < end && buffer[i] != ',') {
+				i = i + 1;
+			}
+			int last = i;
+			while (last > start && (buffer[last - 1] == ' ' || buffer[last - 1] == '\t')) {
+				last = last - 1;
+			}
+			while (start < last && (buffer[start] == ' ' || buffer[start] == '\t')) {
+				start = start + 1;
+			}
+			if (last - start == token.length && equalsIgnoreCase(buffer, start, token, token.length)) {
+				return true;
+			}
+			// Skip the comma
+			i = i + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a header value, taken as a comma-separated list, has an
+	 * element equal to a given token (ignoring case and surrounding whitespace),
+	 * exactly as for a header line in the buffer.
+	 *
+	 * @param value
+	 * @param token
+	 * @return
+	 */
+	static boolean containsToken(String value, String token) {
+		final int end = value.length();
+		int i = 0;
+		while (i < end) {
+			int start = i;
+			while (i < end && value.charAt(i) != ',') {
+				i = i + 1;
+			}
+			int last = i;
+			while (last > start && (value.charAt(last - 1) == ' ' || value.charAt(last - 1) == '\t')) {
+				last = last - 1;
+			}
+			while (start < last && (value.charAt(start) == ' ' || value.charAt(start) == '\t')) {
+				start = start + 1;
+			}
+			if (last - start == token.length() && value.regionMatches(true, start, token, 0, token.length())) {
+				return true;
+			}
+			// Skip the comma
+			i = i + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether chunked is the final transfer coding applied to a message,
+	 * given the first of its <code>Transfer-Encoding</code> header lines. Any
+	 * later lines continue the list of codings.
+	 *
+	 * @param buffer
+	 * @param te
+	 * @return
+	 */
+	private boolean isChunked(byte[] buffer, int te) {
+		for (int next = te; next >= 0; next = findHeader(buffer, Headers.TRANSFER_ENCODING, te + 1)) {
+			te = next;
+		}
+		final int valueStart = valueStart(buffer, te);
+		int end = lines[te + 1] - 2;
+		int start = end;
+		while (start > valueStart && buffer[start - 1] != ',') {
+			start = start - 1;
+		}
+		while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t')) {
+			end = end - 1;
+		}
+		while (start < end && (buffer[start] == ' ' || buffer[start] == '\t')) {
+			start = start + 1;
+		}
+		return end - start == CHUNKED.length && equalsIgnoreCase(buffer, start, CHUNKED, CHUNKED.length);
+	}
+
+	private static boolean contains(byte[] buffer, byte[] token, int start, int end) {
+		for (int i = start; (i + token.length) <= end; ++i) {
+			if (equalsIgnoreCase(buffer, i, token, token.length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int valueStart(byte[] buffer, int header) {
+		int i = colons[header + 1] + 1;
+		while (buffer[i] == ' ' || buffer[i] == '\t') {
+			i = i + 1;
+		}
+		return i;
+	}
+
+	static long parseChunkSize(byte[] buffer, int i, int end) throws ProtocolException {
+		long size = 0;
+		int digits = 0;
+		for (; i < end; ++i) {
+			int digit = Character.digit(buffer[i], 16);
+			if (digit < 0) {
+				// Start of chunk extension or whitespace
+				break;
+			} else if (++digits > 7) {
+				throw new ProtocolException("invalid chunk: size too large");
+			}
+			size = (size << 4) | digit;
+		}
+		if (digits == 0) {
+			throw new ProtocolException("invalid chunk: missing size");
+		}
+		return size;
+	}
+
+	/**
+	 * Compare a region of a buffer against a given ASCII name, whilst ignoring
+	 * case.
+	 *
+	 * @param buffer
+	 * @param start
+	 * @param name
+	 * @param length
+	 * @return
+	 */
+	static boolean equalsIgnoreCase(byte[] buffer, int start, byte[] name, int length) {
+		for (int i = 0; i != length; ++i) {
+			int b = buffer[start + i];
+			int c = name[i];
+			if (b != c && ((b | 0x20) != (c | 0x20) || (c | 0x20) < 'a' || (c | 0x20) > 'z')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] V1_1 = HTTP.V1_1.getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte CR = 13;
+	private static final byte LF = 10;
+}
@@ -0,0 +1,115 @@
+package jtinyhttp.util;
+
+/**
+ * Timeouts which a server applies to each connection, such that clients which
+ * are idle or slow (whether deliberately or not) cannot hold onto connections
+ * indefinitely. All timeouts are in milliseconds, where zero means there is no
+ * timeout. The time spent handling a request is never limited.
+ * <p>
+ * Reading a body and writing a response are limited both by inactivity and by
+ * a minimum transfer rate, since otherwise a client which sends (or reads) one
+ * byte just before each timeout could hold the connection forever. The rate is
+ * averaged over the whole body (or response), so brief stalls are tolerated.
+ */
+public final class HttpTimeouts {
+	/**
+	 * Timeouts suitable for most servers.
+	 */
+	public static final HttpTimeouts DEFAULT = new HttpTimeouts(60 * 1000, 10 * 1000, 30 * 1000, 30 * 1000, 256);
+
+	/**
+	 * No timeouts at all.
+	 */
+	public static final HttpTimeouts NONE = new HttpTimeouts(0, 0, 0, 0, 0);
+
+	private final long idle;
+	private final long headerRead;
+	private final long bodyRead;
+	private final long write;
+	private final long minRate;
+
+	/**
+	 * Construct a set of timeouts with no minimum transfer rate.
+	 *
+	 * @param idle
+	 * @param headerRead
+	 * @param bodyRead
+	 * @param write
+	 */
+	public HttpTimeouts(long idle, long headerRead, long bodyRead, long write) {
+		this(idle, headerRead, bodyRead, write, 0);
+	}
+
+	/**
+	 * Construct a set of timeouts.
+	 *
+	 * @param idle       Time a connection may wait for the first byte of a
+	 *                   request, after which it is closed.
+	 * @param headerRead Time in which the whole head of a request must arrive
+	 *                   once it has begun, after which the request is answered
+	 *                   with <code>REQUEST_TIMEOUT</code>. This is a deadline
+	 *                   (rather than a limit on inactivity), since otherwise a
+	 *                   client sending one byte at a time could hold the
+	 *                   connection forever.
+	 * @param bodyRead   Time a request body may go without progress, after which
+	 *                   the request is answered with
+	 *                   <code>REQUEST_TIMEOUT</code>.
+	 * @param write      Time a response may go without progress, after which the
+	 *                   connection is closed.
+	 * @param minRate    Minimum average rate (in bytes per second) at which a
+	 *                   body is read or a response written, beyond an initial
+	 *                   allowance of the corresponding timeout, or zero for no
+	 *                   minimum.
+	 */
+	public HttpTimeouts(long idle, long headerRead, long bodyRead, long write, long minRate) {
+		if (idle < 0 || headerRead < 0 || bodyRead < 0 || write < 0 || minRate < 0) {
+			throw new IllegalArgumentException("invalid timeouts");
+		}
+		this.idle = idle;
+		this.headerRead = headerRead;
+		this.bodyRead = bodyRead;
+		this.write = write;
+		this.minRate = minRate;
+	}
+
+	public long getIdle() {
+		return idle;
+	}
+
+	public long getHeaderRead() {
+		return headerRead;
+	}
+
+	public long getBodyRead() {
+		return bodyRead;
+	}
+
+	public long getWrite() {
+		return write;
+	}
+
+	public long getMinRate() {
+		return minRate;
+	}
+
+	/**
+	 * Get the delay until a transfer which is limited by both inactivity and the
+	 * minimum rate should time out. The transfer is given the whole timeout to
+	 * begin with, and then earns more time for every byte transferred.
+	 *
+	 * @param timeout     Timeout on inactivity (in milliseconds), or zero for
+	 *                    none.
+	 * @param elapsed     Time since the transfer began (in milliseconds).
+	 * @param transferred Number of bytes transferred since it began.
+	 * @return The delay in milliseconds, or zero if there is no timeout.
+	 */
+	long getDelay(long timeout, long elapsed, long transferred) {
+		if (timeout == 0 || minRate == 0) {
+			return timeout;
+		}
+		long earned = (transferred >= Long.MAX_VALUE / 1000) ? Long.MAX_VALUE : transferred * 1000 / minRate;
+		long remaining = (earned >= Long.MAX_VALUE - timeout) ? timeout : timeout + earned - elapsed;
+		// A delay of zero would cancel the timeout, rather than expiring it
+		return Math.max(1, Math.min(timeout, remaining));
+	}
+}
@@ -0,0 +1,58 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import jtinyhttp.core.HTTP;
+
+/**
+ * An entity whose contents are a memory-mapped region of a file. This suits
+ * small to medium files which are served repeatedly, since the mapping is made
+ * once and then written directly from the page cache (e.g. as part of a
+ * vectored write). A single mapping is limited to less than 2GB.
+ */
+public class MappedEntity implements HTTP.Entity {
+	private final MappedByteBuffer buffer;
+
+	public MappedEntity(Path path) throws IOException {
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			this.buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+		}
+	}
+
+	public MappedEntity(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public long getLength() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public ByteBuffer toByteBuffer() {
+		// Duplicate so concurrent writes don't share a position
+		return buffer.duplicate();
+	}
+
+	@Override
+	public void write(OutputStream out) throws IOException {
+		ByteBuffer contents = buffer.duplicate();
+		byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(contents.remaining(), 1))];
+		while (contents.hasRemaining()) {
+			int n = Math.min(chunk.length, contents.remaining());
+			contents.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+	/**
+	 * Size of the chunks used when copying through a stream.
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+}
@@ -0,0 +1,363 @@
+package jtinyhttp.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.Headers;
+import jtinyhttp.core.HTTP.Method;
+
+/**
+ * Builds a message by appending header lines into a single growable buffer,
+ * whilst recording the end of each line (as for <code>AbstractMessage.lines</code>).
+ * The buffer and line indices are then handed over to the message without
+ * copying. Thus, provided the initial capacity is sufficient, building a message
+ * with any number of headers allocates only the buffer, the index and the
+ * message itself. The resulting message can be written with a single call, and
+ * offers constant time access to its headers. In contrast,
+ * <code>addHeader()</code> must leave the message it is called on unchanged,
+ * so it copies the head into a buffer with room to spare. The message added to
+ * can then be extended in place, provided nothing has been added to it already
+ * (i.e. it is the end of a chain), such that a chain of headers is copied only
+ * as often as the buffer doubles.
+ * @param <T>
+ */
+public abstract class MessageBuilder<T extends HTTP.Message> {
+	/**
+	 * Raw bytes of the message head.
+	 */
+	protected byte[] bytes;
+	/**
+	 * Number of bytes in use.
+	 */
+	protected int numBytes;
+	/**
+	 * End indices of lines, where 0 is the start line.
+	 */
+	protected int[] lines;
+	/**
+	 * Number of lines in use.
+	 */
+	protected int numLines;
+	/**
+	 * Number of bytes of the buffer used by the messages sharing it, or -1 whilst
+	 * one of them is being extended. This is <code>null</code> unless building
+	 * from <code>addHeader()</code>.
+	 */
+	private AtomicInteger extent;
+
+	public MessageBuilder(int capacity) {
+		this.bytes = new byte[capacity];
+		this.lines = new int[16];
+	}
+
+	/**
+	 * Construct a builder which continues from a copy of the head of a given
+	 * message, with room for one more header of (roughly) a given size.
+	 *
+	 * @param message
+	 * @param extra
+	 */
+	MessageBuilder(AbstractMessage message, int extra) {
+		final int capacity = message.numBytes + extra + 4;
+		AtomicInteger extent = message.extent;
+		this.numBytes = message.numBytes;
+		this.numLines = message.numLines;
+		if (extent != null && capacity <= message.header.length && numLines < message.lines.length
+				&& extent.compareAndSet(numBytes, -1)) {
+			// Nothing follows the message in its buffer, so it is extended in place
+			this.bytes = message.header;
+			this.lines = message.lines;
+		} else {
+			this.bytes = new byte[capacity * 2];
+			this.lines = Arrays.copyOf(message.lines, numLines * 2);
+			System.arraycopy(message.header, 0, bytes, 0, numBytes);
+			extent = new AtomicInteger(-1);
+		}
+		this.extent = extent;
+	}
+
+	/**
+	 * Append a header with a given key (e.g. <code>Headers.HOST</code>) and
+	 * value. The value is assumed to consist of ASCII characters only.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public MessageBuilder<T> header(byte[] key, String value) {
+		ensureCapacity(numBytes + key.length + value.length() + 4);
+		System.arraycopy(key, 0, bytes, numBytes, key.length);
+		return endLine(append(value, numBytes + key.length));
+	}
+
+	/**
+	 * Append a header with a given key (e.g. <code>Headers.HOST</code>) and
+	 * pre-encoded value.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public MessageBuilder<T> header(byte[] key, byte[] value) {
+		ensureCapacity(numBytes + key.length + value.length + 4);
+		System.arraycopy(key, 0, bytes, numBytes, key.length);
+		System.arraycopy(value, 0, bytes, numBytes + key.length, value.length);
+		return endLine(numBytes + key.length + value.length);
+	}
+
+	/**
+	 * Append a header with a given key (e.g. <code>Headers.CONTENT_LENGTH</code>)
+	 * and non-negative numeric value, which is written in decimal without
+	 * allocating.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public MessageBuilder<T> header(byte[] key, long value) {
+		ensureCapacity(numBytes + key.length + Headers.decimalLength(value) + 4);
+		int index = Headers.put(key, bytes, numBytes);
+		return endLine(Headers.putDecimal(value, bytes, index));
+	}
+
+	/**
+	 * Get the number of headers appended so far.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return numLines - 1;
+	}
+
+	/**
+	 * Check whether a header with a given name (ignoring case) has been appended.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public boolean contains(byte[] name) {
+		final int length = AbstractMessage.nameLength(name);
+		for (int i = 1; i < numLines; ++i) {
+			final int start = lines[i - 1];
+			// Names never contain a colon, so there is no need to find where it is
+			if (start + length < lines[i] && bytes[start + length] == ':'
+					&& HttpParser.equalsIgnoreCase(bytes, start, name, length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Construct the message with a given (optional) body. If the message is not
+	 * otherwise framed, then a <code>Content-Length</code> header is added when
+	 * the length of the body is known, or a <code>Transfer-Encoding</code> header
+	 * for a <code>ChunkedEntity</code>. The builder cannot be used after this,
+	 * since the message now owns its buffer.
+	 *
+	 * @param body
+	 * @return
+	 */
+	public T build(Entity body) {
+		if (bytes == null) {
+			throw new IllegalStateException("message already built");
+		} else if (body != null && !contains(Headers.CONTENT_LENGTH) && !contains(Headers.TRANSFER_ENCODING)) {
+			if (body instanceof ChunkedEntity) {
+				header(Headers.TRANSFER_ENCODING, CHUNKED);
+			} else if (body.getLength() >= 0) {
+				header(Headers.CONTENT_LENGTH, body.getLength());
+			}
+		}
+		return finish(body);
+	}
+
+	/**
+	 * Construct the message with a given (optional) body, exactly as built so far.
+	 *
+	 * @param body
+	 * @return
+	 */
+	T finish(Entity body) {
+		if (bytes == null) {
+			throw new IllegalStateException("message already built");
+		} else if (extent == null) {
+			// Terminate the message head, so it can be written in one go
+			bytes[numBytes] = CR;
+			bytes[numBytes + 1] = LF;
+		}
+		// Otherwise, the buffer is shared and a message extended from this one would
+		// overwrite the terminator whilst it could be written
+		T message = construct(bytes, lines, numLines, body);
+		if (extent != null) {
+			((AbstractMessage) message).extent = extent;
+			extent.set(numBytes);
+		}
+		bytes = null;
+		lines = null;
+		return message;
+	}
+
+	/**
+	 * Construct the actual message from the given buffer and line indices.
+	 *
+	 * @param bytes
+	 * @param lines
+	 * @param numLines
+	 * @param body
+	 * @return
+	 */
+	protected abstract T construct(byte[] bytes, int[] lines, int numLines, Entity body);
+
+	/**
+	 * Write a pre-encoded start line (including its line terminator).
+	 *
+	 * @param line
+	 */
+	protected void startLine(byte[] line) {
+		ensureCapacity(line.length + 2);
+		numBytes = Headers.put(line, bytes, 0);
+		lines[numLines++] = numBytes;
+	}
+
+	/**
+	 * Write the characters of a given string at a given index, assuming there is
+	 * enough space in the buffer. Characters outside of ASCII are replaced.
+	 *
+	 * @param value
+	 * @param index
+	 * @return The index following the last character written.
+	 */
+	protected int append(String value, int index) {
+		final int length = value.length();
+		for (int i = 0; i != length; ++i) {
+			char c = value.charAt(i);
+			bytes[index++] = (byte) (c < 128 ? c : '?');
+		}
+		return index;
+	}
+
+	/**
+	 * Write a start line consisting of three space-separated parts.
+	 *
+	 * @param first
+	 * @param second
+	 * @param third
+	 */
+	protected void startLine(String first, String second, String third) {
+		ensureCapacity(first.length() + second.length() + third.length() + 6);
+		int index = append(first, 0);
+		bytes[index++] = ' ';
+		index = append(second, index);
+		bytes[index++] = ' ';
+		endLine(append(third, index));
+	}
+
+	/**
+	 * Terminate the current header line at a given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	protected MessageBuilder<T> endLine(int index) {
+		bytes[index++] = CR;
+		bytes[index++] = LF;
+		numBytes = index;
+		if (numLines == lines.length) {
+			lines = Arrays.copyOf(lines, lines.length * 2);
+		}
+		lines[numLines++] = index;
+		return this;
+	}
+
+	/**
+	 * Ensure the buffer can hold a given number of bytes, leaving room for the
+	 * empty line which terminates the message head.
+	 *
+	 * @param capacity
+	 */
+	protected void ensureCapacity(int capacity) {
+		if (bytes == null) {
+			throw new IllegalStateException("message already built");
+		} else if (capacity > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+		}
+	}
+
+	/**
+	 * Builds a request message.
+	 */
+	public static class Request extends MessageBuilder<HTTP.Request> {
+
+		public Request(Method method, String uri, String version) {
+			this(method, uri, version, DEFAULT_CAPACITY);
+		}
+
+		public Request(Method method, String uri, String version, int capacity) {
+			super(capacity);
+			startLine(method.toString(), uri, version);
+		}
+
+		Request(AbstractRequest request, int extra) {
+			super(request, extra);
+		}
+
+		@Override
+		protected HTTP.Request construct(byte[] bytes, int[] lines, int numLines, Entity body) {
+			return new AbstractRequest(bytes, lines, numLines, body) {
+			};
+		}
+	}
+
+	/**
+	 * Builds a response message.
+	 */
+	public static class Response extends MessageBuilder<HTTP.Response> {
+
+		/**
+		 * Construct an HTTP/1.1 response using the pre-encoded status line for a
+		 * given status code (see <code>Headers.statusLine()</code>).
+		 *
+		 * @param status
+		 */
+		public Response(int status) {
+			this(status, DEFAULT_CAPACITY);
+		}
+
+		public Response(int status, int capacity) {
+			super(capacity);
+			byte[] line = Headers.statusLine(status);
+			if (line == null) {
+				throw new IllegalArgumentException("unknown status code " + status);
+			}
+			startLine(line);
+		}
+
+		public Response(String version, int status, String reason) {
+			this(version, status, reason, DEFAULT_CAPACITY);
+		}
+
+		public Response(String version, int status, String reason, int capacity) {
+			super(capacity);
+			startLine(version, Integer.toString(status), reason);
+		}
+
+		Response(AbstractResponse response, int extra) {
+			super(response, extra);
+		}
+
+		@Override
+		protected HTTP.Response construct(byte[] bytes, int[] lines, int numLines, Entity body) {
+			return new AbstractResponse(bytes, lines, numLines, body) {
+			};
+		}
+	}
+
+	private static final int DEFAULT_CAPACITY = 512;
+
+	private static final byte[] CHUNKED = { 'c', 'h', 'u', 'n', 'k', 'e', 'd' };
+
+	private static final byte CR = 13;
+	private static final byte LF = 10;
+}
@@ -0,0 +1,72 @@
+package jtinyhttp.util;
+
+/**
+ * Receives events from connections and servers, from which metrics can be
+ * recorded (see <code>HttpMetrics</code>). Every method does nothing by default,
+ * such that an implementation need only override those events it cares about.
+ * When metrics are disabled (i.e. <code>NONE</code>), connections skip even
+ * reading the clock.
+ */
+public interface Metrics {
+	/**
+	 * Metrics which are disabled.
+	 */
+	public static final Metrics NONE = new Metrics() {
+	};
+
+	/**
+	 * A connection has been opened (or accepted).
+	 */
+	public default void connectionOpened() {
+	}
+
+	/**
+	 * A connection has been closed.
+	 */
+	public default void connectionClosed() {
+	}
+
+	/**
+	 * Bytes have been read from a connection.
+	 *
+	 * @param count
+	 */
+	public default void bytesRead(long count) {
+	}
+
+	/**
+	 * Bytes have been written to a connection.
+	 *
+	 * @param count
+	 */
+	public default void bytesWritten(long count) {
+	}
+
+	/**
+	 * A server has received a request.
+	 *
+	 * @param parseNanos Time spent parsing the request head.
+	 */
+	public default void requestReceived(long parseNanos) {
+	}
+
+	/**
+	 * A server has begun sending a response.
+	 *
+	 * @param status
+	 * @param nanos  Time since the request was received (i.e. to the first byte
+	 *               of the response).
+	 */
+	public default void responseSent(int status, long nanos) {
+	}
+
+	/**
+	 * A client has received the head of a response.
+	 *
+	 * @param status
+	 * @param nanos  Time since the request was sent (i.e. to the first byte of the
+	 *               response).
+	 */
+	public default void responseReceived(int status, long nanos) {
+	}
+}
@@ -0,0 +1,35 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.ServerConnection;
+import jtinyhttp.core.Headers;
+
+/**
+ * A handler which responds to every request with the current values of some
+ * metrics, in plain text. This is typically installed on a separate port (or
+ * behind a router) as the endpoint from which the metrics are scraped.
+ */
+public class MetricsHandler implements HTTP.Handler {
+	private final HttpMetrics[] metrics;
+
+	public MetricsHandler(HttpMetrics... metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void handle(Request request, ServerConnection connection) throws IOException {
+		StringBuilder text = new StringBuilder(4096);
+		for (HttpMetrics m : metrics) {
+			m.writeText(text);
+		}
+		byte[] body = text.toString().getBytes(StandardCharsets.US_ASCII);
+		connection.send(new MessageBuilder.Response(HTTP.OK).header(Headers.CONTENT_TYPE, CONTENT_TYPE)
+				.build(new ByteArrayEntity(body)));
+	}
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+}
@@ -0,0 +1,562 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Method;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.ServerConnection;
+import jtinyhttp.core.Headers;
+
+/**
+ * A handler which dispatches requests to other handlers by method and path.
+ * Routes are patterns such as <code>/users/{id}/posts</code>, where
+ * <code>{id}</code> matches a single (non-empty) path segment, and a trailing
+ * <code>*</code> matches the remainder of the path. Routes for each method are
+ * held in a compressed radix tree, which is matched directly against the bytes
+ * of the request line (i.e. without decoding the path into a string). Matching
+ * takes time proportional to the length of the path irrespective of the number
+ * of routes, with static segments preferred over parameters and parameters over
+ * wildcards. Parameters are captured as offsets into the request line, in a
+ * <code>Match</code> which is reused, such that matching does not allocate.
+ * Paths are matched as they are sent (i.e. without percent-decoding), and the
+ * query string is ignored. Routes must be added before the router is used to
+ * handle requests.
+ */
+public class Router implements HTTP.Handler {
+	/**
+	 * Root of the tree for each method, indexed by ordinal.
+	 */
+	private final Node[] roots = new Node[Method.values().length];
+	/**
+	 * Greatest number of parameters in any route.
+	 */
+	private int maxParameters;
+	/**
+	 * Match used by each thread when handling requests.
+	 */
+	private final ThreadLocal<Match> matches = ThreadLocal.withInitial(this::newMatch);
+
+	/**
+	 * A handler for requests which match a given route.
+	 */
+	public interface Target {
+		/**
+		 * Handle a request which matched a route. The match is only valid during
+		 * this call, and must be copied if the request is handed off to another
+		 * thread.
+		 *
+		 * @param request
+		 * @param match
+		 * @param connection
+		 * @throws IOException
+		 */
+		public void handle(Request request, Match match, ServerConnection connection) throws IOException;
+	}
+
+	/**
+	 * Add a route whose handler does not need the parameters matched.
+	 *
+	 * @param method
+	 * @param pattern
+	 * @param handler
+	 * @return
+	 */
+	public Router add(Method method, String pattern, HTTP.Handler handler) {
+		return add(method, pattern, (request, match, connection) -> handler.handle(request, connection));
+	}
+
+	/**
+	 * Add a route for a given method and pattern.
+	 *
+	 * @param method
+	 * @param pattern
+	 * @param target
+	 * @return
+	 * @throws IllegalArgumentException If the pattern is invalid, or the route
+	 *                                  already exists.
+	 */
+	public Router add(Method method, String pattern, Target target) {
+		if (pattern.isEmpty() || pattern.charAt(0) != '/') {
+			throw new IllegalArgumentException("pattern must start with '/': " + pattern);
+		}
+		Node root = roots[method.ordinal()];
+		if (root == null) {
+			root = roots[method.ordinal()] = new Node(EMPTY);
+		}
+		Node node = root;
+		String[] names = new String[0];
+		int i = 0;
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i);
+			if (c == '{') {
+				int end = pattern.indexOf('}', i);
+				if (end < 0 || end == i + 1 || (end + 1 < pattern.length() && pattern.charAt(end + 1) != '/')
+						|| pattern.charAt(i - 1) != '/') {
+					throw new IllegalArgumentException("invalid parameter in pattern: " + pattern);
+				}
+				names = Arrays.copyOf(names, names.length + 1);
+				names[names.length - 1] = pattern.substring(i + 1, end);
+				if (node.parameter == null) {
+					node.parameter = new Node(EMPTY);
+				}
+				node = node.parameter;
+				i = end + 1;
+			} else if (c == '*') {
+				if (i + 1 != pattern.length()) {
+					throw new IllegalArgumentException("wildcard must end pattern: " + pattern);
+				}
+				names = Arrays.copyOf(names, names.length + 1);
+				names[names.length - 1] = WILDCARD;
+				if (node.wildcard == null) {
+					node.wildcard = new Node(EMPTY);
+				}
+				node = node.wildcard;
+				i = i + 1;
+			} else {
+				int end = i;
+				while (end < pattern.length() && pattern.charAt(end) != '{' && pattern.charAt(end) != '*') {
+					end++;
+				}
+				node = node.insert(pattern.substring(i, end).getBytes(StandardCharsets.US_ASCII), 0);
+				i = end;
+			}
+		}
+		if (node.endpoint != null) {
+			throw new IllegalArgumentException("duplicate route: " + method + " " + pattern);
+		}
+		node.endpoint = new Endpoint(pattern, names, target);
+		maxParameters = Math.max(maxParameters, names.length);
+		return this;
+	}
+
+	/**
+	 * Create a match with enough room for the parameters of any route added so
+	 * far.
+	 *
+	 * @return
+	 */
+	public Match newMatch() {
+		return new Match(maxParameters);
+	}
+
+	@Override
+	public void handle(Request request, ServerConnection connection) throws IOException {
+		Match match = matches.get();
+		if (route(request, match)) {
+			match.endpoint.target.handle(request, match, connection);
+		} else {
+			String allowed = allowed(request);
+			if (allowed == null) {
+				connection.send(NOT_FOUND);
+			} else {
+				connection.send(new MessageBuilder.Response(HTTP.METHOD_NOT_ALLOWED).header(Headers.ALLOW, allowed)
+						.build(new ByteArrayEntity(EMPTY)));
+			}
+		}
+	}
+
+	/**
+	 * Match the method and path of a given request against the routes.
+	 *
+	 * @param request
+	 * @param match   Receives the route and parameters matched.
+	 * @return <code>true</code> if a route matched.
+	 */
+	public boolean route(Request request, Match match) {
+		byte[] bytes;
+		int end;
+		if (request instanceof AbstractMessage) {
+			AbstractMessage message = (AbstractMessage) request;
+			bytes = message.header;
+			end = message.lines[0] - 2;
+		} else {
+			// Request line is not directly available, so encode it
+			bytes = (request.getMethod() + " " + request.getURI() + " ").getBytes(StandardCharsets.US_ASCII);
+			end = bytes.length;
+		}
+		int start = 0;
+		while (start < end && bytes[start] != ' ') {
+			start++;
+		}
+		start = pathStart(bytes, start + 1, end);
+		int i = start;
+		while (i < end && bytes[i] != ' ' && bytes[i] != '?') {
+			i++;
+		}
+		return match(request.getMethod(), bytes, start, i, match);
+	}
+
+	/**
+	 * Match a method and a path held in a given region of a byte array against
+	 * the routes.
+	 *
+	 * @param method
+	 * @param bytes
+	 * @param start  Index of the first byte of the path.
+	 * @param end    Index one past the last byte of the path.
+	 * @param match  Receives the route and parameters matched.
+	 * @return <code>true</code> if a route matched.
+	 */
+	public boolean match(Method method, byte[] bytes, int start, int end, Match match) {
+		Node root = roots[method.ordinal()];
+		match.reset(bytes);
+		return root != null && root.match(bytes, start, end, match);
+	}
+
+	/**
+	 * Determine the other methods (if any) for which the path of a request which
+	 * matched no route would match a route.
+	 *
+	 * @param request
+	 * @return The methods as a list (e.g. for an <code>Allow</code> header), or
+	 *         <code>null</code> if there are none.
+	 */
+	private String allowed(Request request) {
+		Method original = request.getMethod();
+		Match match = newMatch();
+		String uri = request.getURI();
+		int start = pathStart(uri.getBytes(StandardCharsets.US_ASCII), 0, uri.length());
+		int end = uri.indexOf('?');
+		byte[] path = uri.substring(start, end < 0 ? uri.length() : end).getBytes(StandardCharsets.US_ASCII);
+		String allowed = null;
+		for (Method method : Method.values()) {
+			if (method != original && match(method, path, 0, path.length, match)) {
+				allowed = (allowed == null) ? method.toString() : allowed + ", " + method;
+			}
+		}
+		return allowed;
+	}
+
+	/**
+	 * Skip the scheme and authority of a URI in absolute form (e.g.
+	 * <code>http://host/path</code>).
+	 *
+	 * @param bytes
+	 * @param start
+	 * @param end
+	 * @return The index of the path.
+	 */
+	private static int pathStart(byte[] bytes, int start, int end) {
+		if (start < end && bytes[start] != '/') {
+			int slashes = 0;
+			while (start < end && bytes[start] != ' ') {
+				if (bytes[start] == '/' && ++slashes == 3) {
+					break;
+				}
+				start++;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * The route and parameters matched for a request. The parameters are regions
+	 * of the bytes which were matched (i.e. the request line), and are therefore
+	 * only valid for as long as the request is.
+	 */
+	public static final class Match {
+		private byte[] bytes;
+		private Endpoint endpoint;
+		/**
+		 * Start and length of each parameter, interleaved.
+		 */
+		private int[] regions;
+		private int size;
+
+		public Match(int capacity) {
+			this.regions = new int[capacity * 2];
+		}
+
+		/**
+		 * Get the pattern of the route matched.
+		 *
+		 * @return
+		 */
+		public String getPattern() {
+			return endpoint.pattern;
+		}
+
+		/**
+		 * Get the bytes holding the parameters.
+		 *
+		 * @return
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the number of parameters matched.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Get the name of the ith parameter, where the wildcard is named
+		 * <code>"*"</code>.
+		 *
+		 * @param i
+		 * @return
+		 */
+		public String getName(int i) {
+			return endpoint.names[i];
+		}
+
+		public int getStart(int i) {
+			return regions[i * 2];
+		}
+
+		public int getLength(int i) {
+			return regions[i * 2 + 1];
+		}
+
+		/**
+		 * Get the index of the parameter with a given name, or -1 if there is none.
+		 *
+		 * @param name
+		 * @return
+		 */
+		public int indexOf(String name) {
+			String[] names = endpoint.names;
+			for (int i = 0; i != size; ++i) {
+				if (names[i].equals(name)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Get the value of the ith parameter as a string.
+		 *
+		 * @param i
+		 * @return
+		 */
+		public String get(int i) {
+			return new String(bytes, getStart(i), getLength(i), StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Get the value of the parameter with a given name as a string, or
+		 * <code>null</code> if there is none.
+		 *
+		 * @param name
+		 * @return
+		 */
+		public String get(String name) {
+			int i = indexOf(name);
+			return i < 0 ? null : get(i);
+		}
+
+		private void reset(byte[] bytes) {
+			this.bytes = bytes;
+			this.endpoint = null;
+			this.size = 0;
+		}
+
+		private void push(int start, int length) {
+			if (size * 2 == regions.length) {
+				// Only when routes were added after this was created
+				regions = Arrays.copyOf(regions, Math.max(regions.length * 2, 2));
+			}
+			regions[size * 2] = start;
+			regions[size * 2 + 1] = length;
+			size++;
+		}
+	}
+
+	/**
+	 * A node in the tree, which matches a sequence of bytes (its prefix) followed
+	 * by one of its children. Static children are distinguished by their first
+	 * byte.
+	 */
+	private static final class Node {
+		private byte[] prefix;
+		private byte[] labels = EMPTY;
+		private Node[] children = new Node[0];
+		/**
+		 * Child matched after a parameter.
+		 */
+		private Node parameter;
+		/**
+		 * Child matched after a wildcard, which is always a leaf.
+		 */
+		private Node wildcard;
+		/**
+		 * Route which ends at this node, if any.
+		 */
+		private Endpoint endpoint;
+
+		public Node(byte[] prefix) {
+			this.prefix = prefix;
+		}
+
+		/**
+		 * Insert a sequence of static bytes below this node, splitting nodes as
+		 * necessary.
+		 *
+		 * @param text
+		 * @param index Index of the first byte to insert.
+		 * @return The node at which the sequence ends.
+		 */
+		public Node insert(byte[] text, int index) {
+			if (index == text.length) {
+				return this;
+			}
+			int i = indexOf(text[index]);
+			if (i < 0) {
+				Node child = new Node(Arrays.copyOfRange(text, index, text.length));
+				labels = Arrays.copyOf(labels, labels.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				labels[labels.length - 1] = text[index];
+				children[children.length - 1] = child;
+				return child;
+			}
+			Node child = children[i];
+			int common = 0;
+			while (common < child.prefix.length && index + common < text.length
+					&& child.prefix[common] == text[index + common]) {
+				common++;
+			}
+			if (common < child.prefix.length) {
+				// Split the child at the end of the common prefix
+				Node split = new Node(Arrays.copyOf(child.prefix, common));
+				child.prefix = Arrays.copyOfRange(child.prefix, common, child.prefix.length);
+				split.labels = new byte[] { child.prefix[0] };
+				split.children = new Node[] { child };
+				children[i] = split;
+				child = split;
+			}
+			return child.insert(text, index + common);
+		}
+
+		/**
+		 * Match the remainder of a path, once the prefix of this node has been
+		 * matched. Static nodes are descended iteratively, and only nodes with a
+		 * parameter or wildcard (from which a static match may have to backtrack)
+		 * recurse, using only the stack.
+		 *
+		 * @param bytes
+		 * @param index
+		 * @param end
+		 * @param match
+		 * @return
+		 */
+		public boolean match(byte[] bytes, int index, int end, Match match) {
+			Node node = this;
+			while (node.parameter == null && node.wildcard == null) {
+				if (index == end) {
+					match.endpoint = node.endpoint;
+					return node.endpoint != null;
+				}
+				int i = node.indexOf(bytes[index]);
+				if (i < 0) {
+					return false;
+				}
+				node = node.children[i];
+				if (!node.matchesPrefix(bytes, index, end)) {
+					return false;
+				}
+				index += node.prefix.length;
+			}
+			return node.branch(bytes, index, end, match);
+		}
+
+		/**
+		 * Match the remainder of a path at a node with a parameter or wildcard,
+		 * trying its static children first and backtracking on failure.
+		 *
+		 * @param bytes
+		 * @param index
+		 * @param end
+		 * @param match
+		 * @return
+		 */
+		private boolean branch(byte[] bytes, int index, int end, Match match) {
+			if (index == end && endpoint != null) {
+				match.endpoint = endpoint;
+				return true;
+			}
+			if (index < end) {
+				int i = indexOf(bytes[index]);
+				if (i >= 0) {
+					Node child = children[i];
+					if (child.matchesPrefix(bytes, index, end)
+							&& child.match(bytes, index + child.prefix.length, end, match)) {
+						return true;
+					}
+				}
+				if (parameter != null) {
+					int j = index;
+					while (j < end && bytes[j] != '/') {
+						j++;
+					}
+					if (j > index) {
+						match.push(index, j - index);
+						if (parameter.match(bytes, j, end, match)) {
+							return true;
+						}
+						match.size--;
+					}
+				}
+			}
+			if (wildcard != null) {
+				match.push(index, end - index);
+				match.endpoint = wildcard.endpoint;
+				return true;
+			}
+			return false;
+		}
+
+		private boolean matchesPrefix(byte[] bytes, int index, int end) {
+			final byte[] prefix = this.prefix;
+			if (end - index < prefix.length) {
+				return false;
+			}
+			for (int i = 0; i != prefix.length; ++i) {
+				if (bytes[index + i] != prefix[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int indexOf(byte label) {
+			final byte[] labels = this.labels;
+			for (int i = 0; i != labels.length; ++i) {
+				if (labels[i] == label) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private static final class Endpoint {
+		private final String pattern;
+		private final String[] names;
+		private final Target target;
+
+		public Endpoint(String pattern, String[] names, Target target) {
+			this.pattern = pattern;
+			this.names = names;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * Name given to the wildcard parameter.
+	 */
+	public static final String WILDCARD = "*";
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private static final HTTP.Response NOT_FOUND = new MessageBuilder.Response(HTTP.NOT_FOUND)
+			.build(new ByteArrayEntity(EMPTY));
+}
@@ -0,0 +1,1056 @@
+package jtinyhttp.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jtinyhttp.core.HTTP;
+import jtinyhttp.core.HTTP.Entity;
+import jtinyhttp.core.HTTP.Request;
+import jtinyhttp.core.HTTP.Response;
+
+/**
+ * A non-blocking server which multiplexes many connections over a small number
+ * of selector threads. Each connection has its own read buffer, over which
+ * requests are parsed in place using an <code>HttpParser</code>. A connection
+ * stops reading once a complete request has been parsed, and only resumes once
+ * the response has been written. Thus, a request remains valid until its
+ * response is sent and handlers which need to block can pass the request off to
+ * another thread. Handlers which don't block can respond directly on the
+ * selector thread, which avoids any hand off. Responses are written with a
+ * single vectored write of the message head and body, without first assembling
+ * them into one buffer, where the body allows. Bodies which can only be
+ * streamed are written by the sending thread (or, when sent from a selector
+ * thread, by a thread of their own) through a small bounded buffer, which the
+ * selector thread drains as the client reads, so they are never held whole.
+ * <p>
+ * Each selector thread tracks the timeouts of its connections on a timer wheel,
+ * so connections which are idle or slow to send a request (or to read a
+ * response) are closed without needing a task per connection.
+ */
+public class SelectorServer {
+	private final HTTP.Handler handler;
+	private final ServerSocketChannel channel;
+	private final Worker[] workers;
+	/**
+	 * Initial size of the read buffer for each connection.
+	 */
+	private final int bufferSize;
+	/**
+	 * Receives events from every connection.
+	 */
+	private final Metrics metrics;
+	private volatile HttpLimits limits = HttpLimits.DEFAULT;
+	private volatile HttpTimeouts timeouts = HttpTimeouts.DEFAULT;
+	private Thread acceptor;
+	/**
+	 * Threads which write streamed bodies sent from a selector thread (see
+	 * <code>Connection.send()</code>).
+	 */
+	private final ExecutorService producers = Executors.newCachedThreadPool(task -> {
+		Thread thread = new Thread(task, "SelectorServer-body");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private volatile boolean closed;
+
+	public SelectorServer(InetSocketAddress address, int threads, int bufferSize, HTTP.Handler handler)
+			throws IOException {
+		this(address, threads, bufferSize, Metrics.NONE, handler);
+	}
+
+	/**
+	 * Construct a server which records metrics from its connections (e.g. to an
+	 * <code>HttpMetrics</code>).
+	 *
+	 * @param address
+	 * @param threads
+	 * @param bufferSize
+	 * @param metrics
+	 * @param handler
+	 * @throws IOException
+	 */
+	public SelectorServer(InetSocketAddress address, int threads, int bufferSize, Metrics metrics,
+			HTTP.Handler handler) throws IOException {
+		this.handler = handler;
+		this.metrics = metrics;
+		this.bufferSize = bufferSize;
+		this.channel = ServerSocketChannel.open();
+		this.channel.bind(address, 1024);
+		this.workers = new Worker[threads];
+		for (int i = 0; i != threads; ++i) {
+			workers[i] = new Worker();
+		}
+	}
+
+	/**
+	 * Get the port this server is listening on.
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Set the limits on the size of requests, which apply to connections accepted
+	 * from now on. Requests which exceed them are rejected with the corresponding
+	 * status code, and their connection closed. By default,
+	 * <code>HttpLimits.DEFAULT</code> applies.
+	 *
+	 * @param limits
+	 */
+	public void setLimits(HttpLimits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Set the timeouts for connections accepted from now on. By default,
+	 * <code>HttpTimeouts.DEFAULT</code> applies.
+	 *
+	 * @param timeouts
+	 */
+	public void setTimeouts(HttpTimeouts timeouts) {
+		this.timeouts = timeouts;
+	}
+
+	/**
+	 * Start the selector threads, and begin accepting connections.
+	 */
+	public void start() {
+		for (int i = 0; i != workers.length; ++i) {
+			Thread thread = new Thread(workers[i], "SelectorServer-" + i);
+			workers[i].thread = thread;
+			thread.start();
+		}
+		acceptor = new Thread(this::accept, "SelectorServer-acceptor");
+		acceptor.start();
+	}
+
+	/**
+	 * Stop accepting connections and close all open connections.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		closed = true;
+		channel.close();
+		producers.shutdown();
+		for (Worker worker : workers) {
+			worker.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Number of bytes discarded after rejecting a request before its connection
+	 * is closed regardless.
+	 */
+	private static final long DRAIN_LIMIT = 1024 * 1024;
+
+	/**
+	 * Time (in milliseconds) for which bytes are discarded after rejecting a
+	 * request.
+	 */
+	private static final long DRAIN_TIMEOUT = 1000;
+
+	/**
+	 * Time (in milliseconds) for which accepting pauses after an error.
+	 */
+	private static final long ACCEPT_BACKOFF = 50;
+
+	/**
+	 * Size of each chunk in which a streamed body is handed to the selector
+	 * thread. At most two are held per connection.
+	 */
+	private static final int STREAM_CHUNK = 16 * 1024;
+
+	/**
+	 * Resolution of the timer wheel of each worker (in milliseconds), and the
+	 * number of buckets, which together cover just under a minute per revolution.
+	 */
+	private static final long TICK = 100;
+	private static final int WHEEL_SIZE = 512;
+
+	/**
+	 * Phases of a connection, each of which has its own timeout.
+	 */
+	private static final int NONE = 0;
+	private static final int IDLE = 1;
+	private static final int HEADER = 2;
+	private static final int BODY = 3;
+	private static final int WRITE = 4;
+	private static final int DRAIN = 5;
+
+	private void accept() {
+		int next = 0;
+		while (!closed) {
+			SocketChannel socket = null;
+			try {
+				socket = channel.accept();
+				socket.configureBlocking(false);
+				socket.socket().setTcpNoDelay(true);
+				workers[next].register(socket);
+				next = (next + 1) % workers.length;
+			} catch (IOException e) {
+				if (socket != null) {
+					// Failure to set up one connection should not stop the server
+					closeQuietly(socket);
+				} else if (!channel.isOpen()) {
+					return;
+				} else {
+					// Errors such as running out of file descriptors tend to persist
+					try {
+						Thread.sleep(ACCEPT_BACKOFF);
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A selector thread, which is responsible for reading and writing on a
+	 * subset of the connections. Each has its own timer wheel, which tracks the
+	 * timeouts of its connections and is only ever accessed from its thread.
+	 */
+	private final class Worker implements Runnable {
+		private final Selector selector;
+		/**
+		 * Tasks to be run on this worker's thread, such as registering new
+		 * connections.
+		 */
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final TimerWheel wheel = new TimerWheel(TICK, WHEEL_SIZE);
+		private Thread thread;
+
+		public Worker() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		public void register(SocketChannel socket) {
+			execute(() -> {
+				try {
+					SelectionKey key = socket.register(selector, SelectionKey.OP_READ);
+					Connection connection = new Connection(this, socket, key);
+					key.attach(connection);
+					connection.arm();
+				} catch (IOException e) {
+					closeQuietly(socket);
+				}
+			});
+		}
+
+		/**
+		 * Run a given task on this worker's thread, either immediately (if already
+		 * on it) or at the next opportunity.
+		 *
+		 * @param task
+		 */
+		public void execute(Runnable task) {
+			if (Thread.currentThread() == thread) {
+				task.run();
+			} else {
+				tasks.add(task);
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					// Wake up at least once a tick while there are timeouts to expire
+					selector.select(wheel.isEmpty() ? 0 : wheel.getTick());
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.write();
+							}
+							connection.arm();
+						} catch (IOException | RuntimeException e) {
+							connection.abort();
+						}
+					}
+					wheel.expire();
+				}
+			} catch (IOException e) {
+				// Selector failed, so this worker cannot continue
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					((Connection) key.attachment()).abort();
+				}
+				closeQuietly(selector);
+			}
+		}
+	}
+
+	/**
+	 * A single connection from a client, which parses requests directly from its
+	 * read buffer.
+	 */
+	private final class Connection implements HTTP.ServerConnection {
+		private final Worker worker;
+		private final SocketChannel socket;
+		private final SelectionKey key;
+		private final HttpParser parser = new HttpParser();
+		private byte[] buffer;
+		private ByteBuffer input;
+		/**
+		 * Index of the first byte in the buffer which has not been consumed.
+		 */
+		private int start;
+		/**
+		 * Index one past the last byte read into the buffer.
+		 */
+		private int end;
+		/**
+		 * Indicates whether the head of the current request has been parsed.
+		 */
+		private boolean headParsed;
+		/**
+		 * Indicates a request has been dispatched, and its response not yet sent.
+		 */
+		private volatile boolean processing;
+		/**
+		 * Indicates the handler is being called from <code>process()</code>, and
+		 * whether the response was written in the meantime such that the next
+		 * request should be processed once it returns. Processing that request
+		 * directly would recurse once per pipelined request.
+		 */
+		private boolean dispatching;
+		private boolean resume;
+		/**
+		 * Indicates whether the connection persists after the current request.
+		 */
+		private boolean keepAlive;
+		/**
+		 * Buffers holding the current response, which are written with a single
+		 * vectored write where possible.
+		 */
+		private ByteBuffer[] pending;
+		/**
+		 * Number of bytes of the current response remaining to be written.
+		 */
+		private long remaining;
+		/**
+		 * File to be transferred once the buffers have been written, or
+		 * <code>null</code> if there is none.
+		 */
+		private FileEntity transfer;
+		private FileChannel transferChannel;
+		/**
+		 * Number of bytes of the file transferred so far.
+		 */
+		private long transferred;
+		/**
+		 * Stream through which the body is being produced, or <code>null</code>
+		 * if there is none, along with the chunk of it being written.
+		 */
+		private BodyStream stream;
+		private byte[] chunk;
+		private boolean closeAfterWrite;
+		private boolean aborted;
+		/**
+		 * Timeout for the current phase of this connection, along with the phase
+		 * it was scheduled for (see <code>arm()</code>).
+		 */
+		private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::expired);
+		private final HttpTimeouts timeouts = SelectorServer.this.timeouts;
+		private int phase = NONE;
+		/**
+		 * Indicates whether bytes have been read or written since the timeout was
+		 * last armed.
+		 */
+		private boolean progress;
+		/**
+		 * Number of bytes read or written on this connection, along with the time
+		 * at which the current phase began and the number by then. These enforce
+		 * the minimum transfer rate whilst reading a body or writing a response.
+		 */
+		private long bytes;
+		private long phaseStart;
+		private long phaseBytes;
+		/**
+		 * Indicates the current request was rejected whilst being read, in which
+		 * case the remainder is discarded after the response (see
+		 * <code>drain()</code>).
+		 */
+		private boolean rejected;
+		/**
+		 * Number of bytes discarded since the response to a rejected request was
+		 * written, or -1 if not draining.
+		 */
+		private long drained = -1;
+		/**
+		 * Time spent parsing the head of the current request, and the time at which
+		 * it was dispatched. These are only measured when metrics are recorded.
+		 */
+		private long parseNanos;
+		private long received;
+
+		public Connection(Worker worker, SocketChannel socket, SelectionKey key) {
+			this.worker = worker;
+			this.socket = socket;
+			this.key = key;
+			this.buffer = BufferPool.DEFAULT.acquire(bufferSize);
+			this.input = ByteBuffer.wrap(buffer);
+			this.parser.setLimits(limits);
+			metrics.connectionOpened();
+		}
+
+		public void read() throws IOException {
+			if (drained >= 0) {
+				discard();
+				return;
+			} else if (end == buffer.length) {
+				grow(buffer.length + 1L);
+			}
+			input.limit(buffer.length).position(end);
+			int n = socket.read(input);
+			if (n < 0) {
+				abort();
+			} else {
+				end = end + n;
+				bytes += n;
+				progress |= n > 0;
+				metrics.bytesRead(n);
+				process();
+			}
+		}
+
+		/**
+		 * Parse as much of the next request as possible from the buffer, and
+		 * dispatch it once complete.
+		 *
+		 * @throws IOException
+		 */
+		private void process() throws IOException {
+			do {
+				resume = false;
+				if (!dispatch()) {
+					return;
+				}
+			} while (resume);
+		}
+
+		/**
+		 * Parse as much of the next request as possible, and hand it to the handler
+		 * if complete.
+		 *
+		 * @return <code>true</code> if the request was handed to the handler.
+		 * @throws IOException
+		 */
+		private boolean dispatch() throws IOException {
+			try {
+				if (!headParsed) {
+					if (!parseHead()) {
+						return false;
+					} else if (AbstractRequest.parseMethod(buffer) == null) {
+						rejected = true;
+						error(ErrorResponses.NOT_IMPLEMENTED);
+						return false;
+					}
+					headParsed = true;
+					// The buffer then grows only as the body actually arrives (see read()),
+					// since a client can claim any length within the limits
+					parser.expectRequestBody(buffer);
+				}
+				if (!parser.parseBody(buffer, end)) {
+					return false;
+				}
+			} catch (HttpException e) {
+				rejected = true;
+				error(ErrorResponses.get(e.getStatusCode()));
+				return false;
+			} catch (ProtocolException e) {
+				rejected = true;
+				error(ErrorResponses.BAD_REQUEST);
+				return false;
+			}
+			int bodyStart = parser.getBodyStart();
+			int bodyLength = parser.getBodyEnd() - bodyStart;
+			Entity body = (bodyLength == 0) ? null : new ByteArrayEntity(buffer, bodyStart, bodyLength);
+			Request request = new AbstractRequest(buffer, parser.getLines(), parser.getKeyEnds(), parser.getNumLines(),
+					body) {
+			};
+			keepAlive = parser.isPersistent(buffer);
+			processing = true;
+			key.interestOps(0);
+			// The time spent handling the request is not limited
+			worker.wheel.cancel(timeout);
+			phase = NONE;
+			if (metrics != Metrics.NONE) {
+				received = System.nanoTime();
+				metrics.requestReceived(parseNanos);
+				parseNanos = 0;
+			}
+			dispatching = true;
+			try {
+				handler.handle(request, this);
+			} catch (IOException | RuntimeException e) {
+				if (processing && pending == null) {
+					error(ErrorResponses.INTERNAL_SERVER_ERROR);
+				} else {
+					throw e;
+				}
+			} finally {
+				dispatching = false;
+			}
+			return true;
+		}
+
+		@Override
+		public void send(Response response) throws IOException {
+			if (!processing) {
+				throw new IllegalStateException("no request awaiting response");
+			}
+			if (metrics != Metrics.NONE) {
+				metrics.responseSent(response.getStatusCode(), System.nanoTime() - received);
+			}
+			Entity body = response.getBody();
+			ByteBuffer[] buffers = AbstractMessage.toByteBuffers(response);
+			FileChannel file = null;
+			BodyStream producer = null;
+			if (buffers == null && body instanceof FileEntity) {
+				// Write the head, and then send the file directly from the page cache
+				file = ((FileEntity) body).open();
+				buffers = AbstractMessage.toHeadBuffers(response);
+			} else if (buffers == null) {
+				// Body can only be streamed, so write the head whilst it is produced
+				producer = new BodyStream(this);
+				buffers = AbstractMessage.toHeadBuffers(response);
+			}
+			final ByteBuffer[] contents = buffers;
+			final FileChannel channel = file;
+			final BodyStream bodyStream = producer;
+			closeAfterWrite = !keepAlive || !AbstractResponse.isPersistent(response);
+			processing = false;
+			worker.execute(() -> {
+				setPending(contents);
+				if (channel != null) {
+					transfer = (FileEntity) body;
+					transferChannel = channel;
+					transferred = 0;
+				}
+				stream = bodyStream;
+				try {
+					write();
+					arm();
+				} catch (IOException | RuntimeException e) {
+					abort();
+				}
+			});
+			if (producer == null) {
+				return;
+			} else if (worker.thread == Thread.currentThread()) {
+				// The selector thread must not block, so the body is produced elsewhere
+				final BodyStream target = producer;
+				producers.execute(() -> {
+					try {
+						target.produce(body);
+					} catch (IOException e) {
+						// The connection has been closed
+					}
+				});
+			} else {
+				producer.produce(body);
+			}
+		}
+
+		public void write() throws IOException {
+			do {
+				if (remaining > 0) {
+					long n = socket.write(pending);
+					remaining -= n;
+					bytes += n;
+					progress |= n > 0;
+					metrics.bytesWritten(n);
+				}
+				if (remaining == 0 && transfer != null) {
+					long n = transfer.transferTo(transferChannel, transferred, socket);
+					transferred += n;
+					bytes += n;
+					progress |= n > 0;
+					metrics.bytesWritten(n);
+					if (transferred == transfer.getLength()) {
+						closeTransfer();
+					}
+				}
+			} while (remaining == 0 && stream != null && nextChunk());
+			if (remaining > 0 || transfer != null) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (stream != null) {
+				// Wait for the producer to hand over more of the body (see resume())
+				key.interestOps(0);
+			} else if (closeAfterWrite && rejected) {
+				drain();
+			} else if (closeAfterWrite) {
+				abort();
+			} else {
+				// Begin the next request
+				pending = null;
+				start = parser.getPosition();
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end = end - start;
+				start = 0;
+				headParsed = false;
+				parser.reset();
+				key.interestOps(SelectionKey.OP_READ);
+				if (dispatching) {
+					resume = true;
+				} else {
+					process();
+				}
+			}
+		}
+
+		/**
+		 * Respond with a canned error response and then close the connection.
+		 *
+		 * @param response
+		 * @throws IOException
+		 */
+		private void error(byte[] response) throws IOException {
+			key.interestOps(0);
+			if (metrics != Metrics.NONE) {
+				// Errors before a request is dispatched are sent immediately
+				long nanos = processing ? System.nanoTime() - received : 0;
+				metrics.responseSent(ErrorResponses.getStatusCode(response), nanos);
+			}
+			// The canned response completes the current request (if any)
+			processing = false;
+			closeAfterWrite = true;
+			setPending(new ByteBuffer[] { ByteBuffer.wrap(response) });
+			write();
+		}
+
+		/**
+		 * Stop sending, and then discard whatever the client is still sending (up
+		 * to a limit) before closing. Closing a socket with unread bytes resets the
+		 * connection, which could otherwise destroy the response to a rejected
+		 * request before the client has read it.
+		 *
+		 * @throws IOException
+		 */
+		private void drain() throws IOException {
+			pending = null;
+			drained = 0;
+			socket.shutdownOutput();
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void discard() throws IOException {
+			input.clear();
+			int n = socket.read(input);
+			if (n > 0) {
+				drained += n;
+				progress = true;
+				metrics.bytesRead(n);
+			}
+			if (n < 0 || drained >= DRAIN_LIMIT) {
+				abort();
+			}
+		}
+
+		/**
+		 * Parse as much of the request head as is in the buffer, accumulating the
+		 * time taken when metrics are recorded.
+		 *
+		 * @return <code>true</code> if the head is complete.
+		 * @throws ProtocolException
+		 */
+		private boolean parseHead() throws ProtocolException {
+			if (metrics == Metrics.NONE) {
+				return parser.parseHead(buffer, end);
+			}
+			long time = System.nanoTime();
+			try {
+				return parser.parseHead(buffer, end);
+			} finally {
+				parseNanos += System.nanoTime() - time;
+			}
+		}
+
+		private void setPending(ByteBuffer[] buffers) {
+			long total = 0;
+			for (ByteBuffer buffer : buffers) {
+				total += buffer.remaining();
+			}
+			pending = buffers;
+			remaining = total;
+		}
+
+		/**
+		 * Take the next chunk of a streamed body to be written, once the previous
+		 * one has been.
+		 *
+		 * @return <code>false</code> if no chunk is ready, in which case the stream
+		 *         is cleared if the body is complete.
+		 * @throws IOException If the body could not be produced.
+		 */
+		private boolean nextChunk() throws IOException {
+			releaseChunk();
+			ByteBuffer next = stream.take();
+			if (next != null) {
+				chunk = next.array();
+				setPending(new ByteBuffer[] { next });
+				return true;
+			} else if (stream.isFinished()) {
+				stream = null;
+			}
+			return false;
+		}
+
+		private void releaseChunk() {
+			if (chunk != null) {
+				BufferPool.DEFAULT.release(chunk);
+				chunk = null;
+			}
+		}
+
+		/**
+		 * Called on the worker thread when the producer of a streamed body hands
+		 * over a chunk which the worker is waiting for, or stops.
+		 *
+		 * @param producer
+		 */
+		private void resume(BodyStream producer) {
+			if (producer != stream) {
+				// Already complete
+				return;
+			} else if (aborted) {
+				// The producer has stopped, so can no longer refer to the request
+				if (producer.isStopped()) {
+					stream = null;
+					abort();
+				}
+				return;
+			}
+			try {
+				write();
+				arm();
+			} catch (IOException | RuntimeException e) {
+				abort();
+			}
+		}
+
+		private void closeTransfer() {
+			if (transferChannel != null) {
+				closeQuietly(transferChannel);
+			}
+			transfer = null;
+			transferChannel = null;
+		}
+
+		/**
+		 * Schedule the timeout for the phase this connection is now in. The idle
+		 * and header phases have a fixed deadline from when they begin, whilst
+		 * reading a body or writing a response is allowed to continue for as long
+		 * as it makes progress at the minimum rate (see <code>HttpTimeouts</code>).
+		 * Since the wheel makes this constant time, it is cheap enough to do after
+		 * every read and write.
+		 */
+		public void arm() {
+			int next;
+			if (aborted) {
+				return;
+			} else if (drained >= 0) {
+				next = DRAIN;
+			} else if (processing) {
+				next = NONE;
+			} else if (remaining > 0 || transfer != null) {
+				next = WRITE;
+			} else if (stream != null) {
+				// Like handling the request, producing its body is not limited
+				next = NONE;
+			} else if (headParsed) {
+				next = BODY;
+			} else if (end > start) {
+				next = HEADER;
+			} else {
+				next = IDLE;
+			}
+			if (next != phase) {
+				phase = next;
+				phaseStart = System.nanoTime();
+				phaseBytes = bytes;
+				worker.wheel.schedule(timeout, delay(next));
+			} else if (progress && (next == BODY || next == WRITE)) {
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - phaseStart);
+				worker.wheel.schedule(timeout, timeouts.getDelay(delay(next), elapsed, bytes - phaseBytes));
+			}
+			progress = false;
+		}
+
+		private long delay(int phase) {
+			switch (phase) {
+			case IDLE:
+				return timeouts.getIdle();
+			case HEADER:
+				return timeouts.getHeaderRead();
+			case BODY:
+				return timeouts.getBodyRead();
+			case WRITE:
+				return timeouts.getWrite();
+			case DRAIN:
+				return DRAIN_TIMEOUT;
+			default:
+				return 0;
+			}
+		}
+
+		/**
+		 * Called on the worker thread when the timeout for the current phase
+		 * expires. A client which is part way through sending a request is told so
+		 * with <code>REQUEST_TIMEOUT</code>, whilst otherwise the connection is
+		 * simply closed.
+		 */
+		private void expired() {
+			if (aborted) {
+				return;
+			}
+			try {
+				if (phase == HEADER || phase == BODY) {
+					rejected = true;
+					error(ErrorResponses.REQUEST_TIMEOUT);
+					arm();
+				} else if (phase == WRITE) {
+					// Client has stopped reading, so whatever remains unsent is discarded
+					socket.setOption(StandardSocketOptions.SO_LINGER, 0);
+					abort();
+				} else {
+					abort();
+				}
+			} catch (IOException | RuntimeException e) {
+				abort();
+			}
+		}
+
+		public void abort() {
+			worker.wheel.cancel(timeout);
+			if (!aborted) {
+				aborted = true;
+				metrics.connectionClosed();
+			}
+			closeTransfer();
+			releaseChunk();
+			if (stream != null) {
+				stream.cancel();
+			}
+			key.cancel();
+			closeQuietly(socket);
+			if (!processing && stream == null && buffer != null) {
+				// Otherwise, the handler (or the producer of its body) may still be
+				// reading the request, and the buffer is released when it is done
+				BufferPool.DEFAULT.release(buffer);
+				buffer = null;
+				input = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			worker.execute(this::abort);
+		}
+
+		private void grow(long capacity) throws ProtocolException {
+			if (capacity > Integer.MAX_VALUE - 8) {
+				throw new ProtocolException("request too large");
+			} else if (capacity > buffer.length) {
+				int size = (int) Math.max(capacity, Math.min(buffer.length * 2L, Integer.MAX_VALUE - 8));
+				byte[] grown = BufferPool.DEFAULT.acquire(size);
+				System.arraycopy(buffer, 0, grown, 0, end);
+				// No request is being processed whilst reading, so nothing else refers to it
+				BufferPool.DEFAULT.release(buffer);
+				buffer = grown;
+				input = ByteBuffer.wrap(buffer);
+			}
+		}
+	}
+
+	/**
+	 * The stream to which a body which can only be streamed is written, by a
+	 * thread other than the worker. The body is handed to the worker a chunk at a
+	 * time, and at most one chunk waits to be written, so the producer blocks
+	 * whilst the client is slow to read rather than the body being buffered.
+	 */
+	private final class BodyStream extends OutputStream {
+		private final Connection connection;
+		/**
+		 * Chunk being filled by the producer.
+		 */
+		private byte[] filling = BufferPool.DEFAULT.acquire(STREAM_CHUNK);
+		private int length;
+		/**
+		 * Chunk waiting to be written, guarded by this stream as are the flags.
+		 */
+		private ByteBuffer ready;
+		/**
+		 * Indicates the worker is waiting for the next chunk.
+		 */
+		private boolean starved;
+		private boolean finished;
+		private boolean failed;
+		private boolean cancelled;
+
+		public BodyStream(Connection connection) {
+			this.connection = connection;
+		}
+
+		/**
+		 * Write a body to this stream, and then notify the worker that it is
+		 * complete (or has failed).
+		 *
+		 * @param body
+		 * @throws IOException
+		 */
+		public void produce(Entity body) throws IOException {
+			boolean complete = false;
+			try {
+				body.write(this);
+				flush();
+				complete = true;
+			} finally {
+				synchronized (this) {
+					finished = complete;
+					failed = !complete;
+					notifyAll();
+				}
+				BufferPool.DEFAULT.release(filling);
+				filling = null;
+				connection.worker.execute(() -> connection.resume(this));
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (length == STREAM_CHUNK) {
+				handOff();
+			}
+			filling[length++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int count) throws IOException {
+			while (count > 0) {
+				if (length == STREAM_CHUNK) {
+					handOff();
+				}
+				int n = Math.min(count, STREAM_CHUNK - length);
+				System.arraycopy(bytes, offset, filling, length, n);
+				length += n;
+				offset += n;
+				count -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (length > 0) {
+				handOff();
+			}
+		}
+
+		/**
+		 * Hand the chunk being filled to the worker, once it has taken the last.
+		 *
+		 * @throws IOException If the connection has been closed.
+		 */
+		private synchronized void handOff() throws IOException {
+			try {
+				while (ready != null && !cancelled) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (cancelled) {
+				throw new IOException("connection closed");
+			}
+			ready = ByteBuffer.wrap(filling, 0, length);
+			filling = BufferPool.DEFAULT.acquire(STREAM_CHUNK);
+			length = 0;
+			if (starved) {
+				starved = false;
+				connection.worker.execute(() -> connection.resume(this));
+			}
+		}
+
+		/**
+		 * Called by the worker to take the next chunk.
+		 *
+		 * @return The chunk, or <code>null</code> if none is ready yet (in which
+		 *         case the worker is resumed once one is) or the body is complete.
+		 * @throws IOException If the body could not be produced.
+		 */
+		public synchronized ByteBuffer take() throws IOException {
+			if (failed) {
+				throw new IOException("body failed");
+			}
+			ByteBuffer next = ready;
+			ready = null;
+			if (next != null) {
+				notifyAll();
+			} else if (!finished) {
+				starved = true;
+			}
+			return next;
+		}
+
+		public synchronized boolean isFinished() {
+			return finished && ready == null;
+		}
+
+		public synchronized boolean isStopped() {
+			return finished || failed;
+		}
+
+		/**
+		 * Called by the worker when the connection is closed, so the producer
+		 * fails rather than waiting forever.
+		 */
+		public synchronized void cancel() {
+			cancelled = true;
+			if (ready != null) {
+				BufferPool.DEFAULT.release(ready.array());
+				ready = null;
+			}
+			notifyAll();
+		}
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// Nothing useful can be done here
+		}
+	}
+}
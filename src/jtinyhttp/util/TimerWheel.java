@@ -0,0 +1,220 @@
+package jtinyhttp.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel, which tracks deadlines for large numbers of
+ * connections at once. Time is divided into ticks, and each deadline is placed
+ * in the bucket for its tick (modulo the number of buckets), so scheduling and
+ * cancelling a timeout are constant time irrespective of how many are pending.
+ * Deadlines further away than one revolution of the wheel simply remain in
+ * their bucket until their tick comes round. The price is that timeouts fire
+ * only to the resolution of a tick, which suits network timeouts measured in
+ * seconds.
+ * <p>
+ * Each <code>Timeout</code> is an intrusive list node, which is intended to be
+ * allocated once per connection and then rescheduled as the connection moves
+ * between states. This avoids creating a task for every deadline, most of which
+ * are cancelled long before they expire. Nothing happens in the background:
+ * the owner of a wheel must call <code>expire()</code> periodically (e.g. from
+ * a selector loop), and expired tasks are run on the calling thread.
+ */
+public final class TimerWheel {
+	/**
+	 * Length of a tick in nanoseconds.
+	 */
+	private final long tick;
+	/**
+	 * Head of the list of timeouts in each bucket.
+	 */
+	private final Timeout[] buckets;
+	private final int mask;
+	/**
+	 * Time from which ticks are counted.
+	 */
+	private final long origin;
+	/**
+	 * Next tick to be expired, such that every earlier tick has been.
+	 */
+	private long current;
+	/**
+	 * Number of timeouts scheduled.
+	 */
+	private int size;
+
+	/**
+	 * Construct a wheel with a given resolution and number of buckets.
+	 *
+	 * @param tick    Length of a tick in milliseconds.
+	 * @param buckets Number of buckets, which is rounded up to a power of two.
+	 */
+	public TimerWheel(long tick, int buckets) {
+		if (tick <= 0 || buckets <= 0 || buckets > (1 << 30)) {
+			throw new IllegalArgumentException("invalid timer wheel");
+		}
+		int length = Integer.highestOneBit(buckets);
+		length = (length < buckets) ? length << 1 : length;
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tick);
+		this.buckets = new Timeout[length];
+		this.mask = length - 1;
+		this.origin = System.nanoTime();
+	}
+
+	/**
+	 * Get the length of a tick in milliseconds, which is the longest a caller of
+	 * <code>expire()</code> should wait between calls.
+	 *
+	 * @return
+	 */
+	public long getTick() {
+		return TimeUnit.NANOSECONDS.toMillis(tick);
+	}
+
+	/**
+	 * Check whether any timeouts are scheduled.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Schedule a new timeout to run a given task after a given delay.
+	 *
+	 * @param delay Delay in milliseconds.
+	 * @param task
+	 * @return
+	 */
+	public Timeout schedule(long delay, Runnable task) {
+		Timeout timeout = new Timeout(task);
+		schedule(timeout, delay);
+		return timeout;
+	}
+
+	/**
+	 * Schedule a timeout to run its task after a given delay, replacing its
+	 * deadline if already scheduled. A delay of zero (or less) cancels the
+	 * timeout instead.
+	 *
+	 * @param timeout
+	 * @param delay   Delay in milliseconds.
+	 */
+	public synchronized void schedule(Timeout timeout, long delay) {
+		if (timeout.wheel == this) {
+			remove(timeout);
+		} else if (timeout.wheel != null) {
+			throw new IllegalStateException("timeout scheduled on another wheel");
+		}
+		if (delay <= 0) {
+			return;
+		}
+		// Round up, so a timeout never fires early
+		long elapsed = System.nanoTime() - origin + TimeUnit.MILLISECONDS.toNanos(delay);
+		long deadline = Math.max(current, (elapsed + tick - 1) / tick);
+		int bucket = (int) (deadline & mask);
+		timeout.deadline = deadline;
+		timeout.wheel = this;
+		timeout.prev = null;
+		timeout.next = buckets[bucket];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		buckets[bucket] = timeout;
+		size = size + 1;
+	}
+
+	/**
+	 * Cancel a timeout, if it is scheduled on this wheel.
+	 *
+	 * @param timeout
+	 * @return <code>true</code> if the timeout was scheduled.
+	 */
+	public synchronized boolean cancel(Timeout timeout) {
+		if (timeout.wheel != this) {
+			return false;
+		}
+		remove(timeout);
+		return true;
+	}
+
+	/**
+	 * Run the task of every timeout whose deadline has passed. Tasks are run on
+	 * the calling thread, outside the lock of this wheel, so they are free to
+	 * reschedule timeouts.
+	 */
+	public void expire() {
+		Timeout expired = null;
+		synchronized (this) {
+			long now = (System.nanoTime() - origin) / tick;
+			if (now < current) {
+				return;
+			}
+			// Once every bucket has been visited, there is nothing more to find
+			long steps = Math.min(now - current + 1, buckets.length);
+			for (long i = 0; i != steps && size != 0; ++i) {
+				int bucket = (int) ((current + i) & mask);
+				Timeout timeout = buckets[bucket];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.deadline <= now) {
+						remove(timeout);
+						timeout.expired = expired;
+						expired = timeout;
+					}
+					timeout = next;
+				}
+			}
+			current = now + 1;
+		}
+		while (expired != null) {
+			Timeout next = expired.expired;
+			expired.expired = null;
+			expired.task.run();
+			expired = next;
+		}
+	}
+
+	private void remove(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[(int) (timeout.deadline & mask)] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.wheel = null;
+		size = size - 1;
+	}
+
+	/**
+	 * A task which runs once a deadline has passed, and which can be rescheduled
+	 * any number of times.
+	 */
+	public static final class Timeout {
+		private final Runnable task;
+		/**
+		 * Wheel on which this is scheduled, or <code>null</code> if it is not.
+		 */
+		private TimerWheel wheel;
+		private Timeout prev;
+		private Timeout next;
+		/**
+		 * Next timeout to be run by <code>expire()</code>. This is separate from
+		 * the bucket links, since the timeout may be rescheduled (e.g. from another
+		 * thread) before it is run.
+		 */
+		private Timeout expired;
+		/**
+		 * Tick at which this expires.
+		 */
+		private long deadline;
+
+		public Timeout(Runnable task) {
+			this.task = task;
+		}
+	}
+}